@@ -0,0 +1,49 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Muxer} writing through {@link MediaMuxer}, which puts the moov box at the end of the file.
+ */
+public class AndroidMuxer implements Muxer {
+    private final MediaMuxer mMuxer;
+
+    public AndroidMuxer(String outputPath) throws IOException {
+        mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
@@ -8,14 +8,18 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Queue;
 
 /**
  * Channel of raw audio from decoder to encoder.
  * Performs the necessary conversion between different input & output audio formats.
  *
- * We currently support upmixing from mono to stereo & downmixing from stereo to mono.
- * Sample rate conversion is not supported yet.
+ * We currently support upmixing from mono to stereo, downmixing from stereo to mono, and downmixing
+ * multichannel layouts up to 7.1 to either with {@link MultichannelDownmixer}.
+ * Sample rates are converted with {@link AudioResampler}, after remixing.
+ * Encoder input gets its presentation time from {@link AudioTimestampGenerator}, by the number of frames written
+ * since the first decoder buffer, resynced after gaps in the input.
  */
 class AudioChannel {
     public static final String TAG = "AudioChannel";
@@ -26,6 +30,32 @@ class AudioChannel {
         ShortBuffer data;
     }
 
+    // Native order short views of codec buffers, created once per buffer index instead of once per use.
+    private static class ShortBufferViews {
+        private ByteBuffer[] mBuffers = new ByteBuffer[0];
+        private ShortBuffer[] mViews = new ShortBuffer[0];
+
+        // Returns the view of the buffer at index, covering the buffer from its position to its limit.
+        ShortBuffer get(int index, ByteBuffer buffer) {
+            if (index >= mBuffers.length) {
+                mBuffers = Arrays.copyOf(mBuffers, index + 1);
+                mViews = Arrays.copyOf(mViews, index + 1);
+            }
+            if (mBuffers[index] != buffer) {
+                // codecs may hand out new buffer objects, e.g. after their buffers changed.
+                ByteBuffer whole = buffer.duplicate();
+                whole.clear();
+                mViews[index] = whole.order(ByteOrder.nativeOrder()).asShortBuffer();
+                mBuffers[index] = buffer;
+            }
+            ShortBuffer view = mViews[index];
+            view.clear();
+            view.limit(buffer.limit() / BYTES_PER_SHORT);
+            view.position(buffer.position() / BYTES_PER_SHORT);
+            return view;
+        }
+    }
+
     public static final int BUFFER_INDEX_END_OF_STREAM = -1;
 
     private static final int BYTES_PER_SHORT = 2;
@@ -43,20 +73,42 @@ class AudioChannel {
     private int mOutputChannelCount;
 
     private AudioRemixer mRemixer;
+    private AudioResampler mResampler;
+    // remixed audio waiting for the resampler.
+    private ByteBuffer mRemixedByteBuffer;
+    private ShortBuffer mRemixedBuffer;
+    private final ShortBufferViews mDecoderViews = new ShortBufferViews();
+    private final ShortBufferViews mEncoderViews = new ShortBufferViews();
+    private AudioTimestampGenerator mTimestampGenerator;
+    private long mStartPresentationTimeUs;
+    private long mEndPresentationTimeUs = -1;
 
     private final MediaCodecOutputBuffers mDecoderBuffers;
     private final MediaCodecInputBuffers mEncoderBuffers;
+    private final MediaCodecCallbackQueue mEncoderCallbackQueue;
 
     private final AudioBuffer mOverflowBuffer = new AudioBuffer();
+    private ByteBuffer mOverflowByteBuffer;
 
     private MediaFormat mActualDecodedFormat;
 
 
     public AudioChannel(final MediaCodec decoder,
                         final MediaCodec encoder, final MediaFormat encodeFormat) {
+        this(decoder, encoder, encodeFormat, null);
+    }
+
+    /**
+     * @param encoderCallbackQueue Source of encoder input buffers when the encoder runs in callback mode,
+     *                             or null to poll the encoder.
+     */
+    public AudioChannel(final MediaCodec decoder,
+                        final MediaCodec encoder, final MediaFormat encodeFormat,
+                        final MediaCodecCallbackQueue encoderCallbackQueue) {
         mDecoder = decoder;
         mEncoder = encoder;
         mEncodeFormat = encodeFormat;
+        mEncoderCallbackQueue = encoderCallbackQueue;
 
         mDecoderBuffers = new MediaCodecOutputBuffers(mDecoder);
         mEncoderBuffers = new MediaCodecInputBuffers(mEncoder);
@@ -66,17 +118,13 @@ class AudioChannel {
         mActualDecodedFormat = decodedFormat;
 
         mInputSampleRate = mActualDecodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        if (mInputSampleRate != mEncodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)) {
-            throw new UnsupportedOperationException("Audio sample rate conversion not supported yet.");
-        }
+        int outputSampleRate = mEncodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
 
         mInputChannelCount = mActualDecodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         mOutputChannelCount = mEncodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
 
-        if (mInputChannelCount != 1 && mInputChannelCount != 2) {
-            Log.d(TAG, "Input channel count (" + mInputChannelCount + ") not supported, reset to 2.");
-            mInputChannelCount = 2;
-//            throw new UnsupportedOperationException("Input channel count (" + mInputChannelCount + ") not supported.");
+        if (mInputChannelCount < 1 || mInputChannelCount > MultichannelDownmixer.MAX_INPUT_CHANNEL_COUNT) {
+            throw new UnsupportedOperationException("Input channel count (" + mInputChannelCount + ") not supported.");
         }
 
         if (mOutputChannelCount != 1 && mOutputChannelCount != 2) {
@@ -86,18 +134,45 @@ class AudioChannel {
 //            throw new UnsupportedOperationException("Output channel count (" + mOutputChannelCount + ") not supported.");
         }
 
-        if (mInputChannelCount > mOutputChannelCount) {
-            mRemixer = AudioRemixer.DOWNMIX;
+        if (mInputChannelCount > 2) {
+            final int channelMask = mActualDecodedFormat.containsKey(MediaFormat.KEY_CHANNEL_MASK) ?
+                    mActualDecodedFormat.getInteger(MediaFormat.KEY_CHANNEL_MASK) : 0;
+            Log.d(TAG, "Down-mixing " + mInputChannelCount + " channels (mask 0x" + Integer.toHexString(channelMask)
+                    + ") to " + mOutputChannelCount + ".");
+            mRemixer = new MultichannelDownmixer(mInputChannelCount, channelMask, mOutputChannelCount);
+        } else if (mInputChannelCount > mOutputChannelCount) {
+            mRemixer = new StereoToMonoDownmixer();
         } else if (mInputChannelCount < mOutputChannelCount) {
-            mRemixer = AudioRemixer.UPMIX;
+            mRemixer = new MonoToStereoUpmixer();
         } else {
             mRemixer = AudioRemixer.PASSTHROUGH;
         }
 
-        mOverflowBuffer.presentationTimeUs = 0;
+        if (mInputSampleRate != outputSampleRate) {
+            Log.d(TAG, "Resampling audio from " + mInputSampleRate + " to " + outputSampleRate + " Hz.");
+            mResampler = new AudioResampler(mInputSampleRate, outputSampleRate, mOutputChannelCount);
+        }
+
+        mTimestampGenerator = mResampler == null ? new AudioTimestampGenerator(mInputSampleRate, outputSampleRate)
+                : new AudioTimestampGenerator(mInputSampleRate, mResampler.getPhaseCount(), mResampler.getInputStep());
+    }
+
+    /**
+     * Decoded frames presented before the given time are dropped, so output starts exactly there.
+     */
+    public void setStartPresentationTimeUs(long startPresentationTimeUs) {
+        mStartPresentationTimeUs = startPresentationTimeUs;
+    }
+
+    /**
+     * Decoded frames presented at or after the given time are dropped, so output ends exactly there.
+     * Negative value to keep all frames.
+     */
+    public void setEndPresentationTimeUs(long endPresentationTimeUs) {
+        mEndPresentationTimeUs = endPresentationTimeUs;
     }
 
-    public void drainDecoderBufferAndQueue(final int bufferIndex, final long presentationTimeUs) {
+    public void drainDecoderBufferAndQueue(final int bufferIndex, long presentationTimeUs) {
         if (mActualDecodedFormat == null) {
             throw new RuntimeException("Buffer received before format!");
         }
@@ -106,6 +181,32 @@ class AudioChannel {
                 bufferIndex == BUFFER_INDEX_END_OF_STREAM ?
                         null : mDecoderBuffers.getOutputBuffer(bufferIndex);
 
+        if (data != null && presentationTimeUs < mStartPresentationTimeUs) {
+            final int frameSize = mInputChannelCount * BYTES_PER_SHORT;
+            final long skippedFrames = (mStartPresentationTimeUs - presentationTimeUs) * mInputSampleRate / MICROSECS_PER_SEC;
+            if (skippedFrames >= data.remaining() / frameSize) {
+                // Entirely before the start
+                mDecoder.releaseOutputBuffer(bufferIndex, false);
+                return;
+            }
+            // Views below start at the position
+            data.position(data.position() + (int) skippedFrames * frameSize);
+            presentationTimeUs = mStartPresentationTimeUs;
+        }
+        if (data != null && mEndPresentationTimeUs >= 0) {
+            final int frameSize = mInputChannelCount * BYTES_PER_SHORT;
+            final long keptFrames = (mEndPresentationTimeUs - presentationTimeUs) * mInputSampleRate / MICROSECS_PER_SEC;
+            if (keptFrames <= 0) {
+                // Entirely at or after the end
+                mDecoder.releaseOutputBuffer(bufferIndex, false);
+                return;
+            }
+            if (keptFrames < data.remaining() / frameSize) {
+                // Views below end at the limit
+                data.limit(data.position() + (int) keptFrames * frameSize);
+            }
+        }
+
         AudioBuffer buffer = mEmptyBuffers.poll();
         if (buffer == null) {
             buffer = new AudioBuffer();
@@ -113,27 +214,60 @@ class AudioChannel {
 
         buffer.bufferIndex = bufferIndex;
         buffer.presentationTimeUs = presentationTimeUs;
+        if (mResampler != null) {
+            // the resampler does arithmetic on samples, so read them in the byte order codecs use.
+            buffer.data = data == null ? null : mDecoderViews.get(bufferIndex, data);
+            if (mRemixedBuffer == null && data != null) {
+                // up-mixing doubles samples.
+                mRemixedByteBuffer = ByteBufferPool.getInstance().lease(data.capacity() * 2);
+                mRemixedBuffer = mRemixedByteBuffer.asShortBuffer();
+                mRemixedBuffer.clear().flip();
+            }
+            mFilledBuffers.add(buffer);
+            return;
+        }
         buffer.data = data == null ? null : data.asShortBuffer();
 
-        if (mOverflowBuffer.data == null) {
-            mOverflowBuffer.data = ByteBuffer
-                    .allocateDirect(data.capacity())
-                    .order(ByteOrder.nativeOrder())
-                    .asShortBuffer();
+        if (mOverflowBuffer.data == null && data != null) {
+            mOverflowByteBuffer = ByteBufferPool.getInstance().lease(data.capacity());
+            mOverflowBuffer.data = mOverflowByteBuffer.asShortBuffer();
             mOverflowBuffer.data.clear().flip();
         }
 
         mFilledBuffers.add(buffer);
     }
 
+    /**
+     * Gives the overflow and remix buffers back to {@link ByteBufferPool}.
+     */
+    public void release() {
+        ByteBufferPool.getInstance().release(mOverflowByteBuffer);
+        mOverflowByteBuffer = null;
+        mOverflowBuffer.data = null;
+        ByteBufferPool.getInstance().release(mRemixedByteBuffer);
+        mRemixedByteBuffer = null;
+        mRemixedBuffer = null;
+    }
+
+    /**
+     * @return Decoder presentation times compared with the ones given to the encoder so far,
+     * or null before the decoded format is known.
+     */
+    public AudioTimestampGenerator.DriftReport getDriftReport() {
+        return mTimestampGenerator == null ? null : mTimestampGenerator.getDriftReport();
+    }
+
     public boolean feedEncoder(long timeoutUs) {
+        if (mResampler != null) return feedEncoderResampled(timeoutUs);
+
         final boolean hasOverflow = mOverflowBuffer.data != null && mOverflowBuffer.data.hasRemaining();
         if (mFilledBuffers.isEmpty() && !hasOverflow) {
             // No audio data - Bail out
             return false;
         }
 
-        final int encoderInBuffIndex = mEncoder.dequeueInputBuffer(timeoutUs);
+        final int encoderInBuffIndex = mEncoderCallbackQueue != null ?
+                mEncoderCallbackQueue.dequeueInputBuffer() : mEncoder.dequeueInputBuffer(timeoutUs);
         if (encoderInBuffIndex < 0) {
             // Encoder is full - Bail out
             return false;
@@ -142,24 +276,20 @@ class AudioChannel {
         // Drain overflow first
         final ShortBuffer outBuffer = mEncoderBuffers.getInputBuffer(encoderInBuffIndex).asShortBuffer();
         if (hasOverflow) {
-            final long presentationTimeUs = drainOverflow(outBuffer);
-            mEncoder.queueInputBuffer(encoderInBuffIndex,
-                    0, outBuffer.position() * BYTES_PER_SHORT,
-                    presentationTimeUs, 0);
+            drainOverflow(outBuffer);
+            queueEncoderInputBuffer(encoderInBuffIndex, outBuffer);
             return true;
         }
 
         final AudioBuffer inBuffer = mFilledBuffers.poll();
         if (inBuffer.bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
-            mEncoder.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            queueEndOfStream(encoderInBuffIndex);
             return false;
         }
 
         try {
-            final long presentationTimeUs = remixAndMaybeFillOverflow(inBuffer, outBuffer);
-            mEncoder.queueInputBuffer(encoderInBuffIndex,
-                    0, outBuffer.position() * BYTES_PER_SHORT,
-                    presentationTimeUs, 0);
+            remixAndMaybeFillOverflow(inBuffer, outBuffer);
+            queueEncoderInputBuffer(encoderInBuffIndex, outBuffer);
             if (inBuffer != null) {
                 mDecoder.releaseOutputBuffer(inBuffer.bufferIndex, false);
                 mEmptyBuffers.add(inBuffer);
@@ -173,38 +303,87 @@ class AudioChannel {
         return false;
     }
 
-    private static long sampleCountToDurationUs(final int sampleCount,
-                                                final int sampleRate,
-                                                final int channelCount) {
-        return (sampleCount / (sampleRate * MICROSECS_PER_SEC)) / channelCount;
+    // Fills one encoder buffer from as many decoder buffers as it takes. A decoder buffer is remixed as a whole,
+    // then released; its samples wait in the remix buffer until the resampler has consumed them.
+    private boolean feedEncoderResampled(long timeoutUs) {
+        if (mFilledBuffers.isEmpty() && (mRemixedBuffer == null || !mRemixedBuffer.hasRemaining())) {
+            // No audio data - Bail out
+            return false;
+        }
+
+        final int encoderInBuffIndex = mEncoderCallbackQueue != null ?
+                mEncoderCallbackQueue.dequeueInputBuffer() : mEncoder.dequeueInputBuffer(timeoutUs);
+        if (encoderInBuffIndex < 0) {
+            // Encoder is full - Bail out
+            return false;
+        }
+
+        final ShortBuffer outBuffer = mEncoderViews.get(encoderInBuffIndex,
+                mEncoderBuffers.getInputBuffer(encoderInBuffIndex));
+        outBuffer.clear();
+        boolean isEndOfStream = false;
+        while (outBuffer.remaining() >= mOutputChannelCount) {
+            if (mRemixedBuffer != null && mRemixedBuffer.hasRemaining()) {
+                mResampler.resample(mRemixedBuffer, outBuffer);
+                continue;
+            }
+            final AudioBuffer inBuffer = mFilledBuffers.peek();
+            if (inBuffer == null) break;
+            if (inBuffer.bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
+                isEndOfStream = mResampler.flush(outBuffer);
+                break;
+            }
+            mFilledBuffers.poll();
+            // the view covers the samples kept when the buffer was queued.
+            mTimestampGenerator.onInputBuffer(inBuffer.presentationTimeUs, inBuffer.data.remaining() / mInputChannelCount);
+            mRemixedBuffer.clear();
+            mRemixer.remix(inBuffer.data, mRemixedBuffer);
+            mRemixedBuffer.flip();
+            mDecoder.releaseOutputBuffer(inBuffer.bufferIndex, false);
+            mEmptyBuffers.add(inBuffer);
+        }
+
+        if (isEndOfStream && outBuffer.position() == 0) {
+            mFilledBuffers.poll();
+            queueEndOfStream(encoderInBuffIndex);
+            return false;
+        }
+        queueEncoderInputBuffer(encoderInBuffIndex, outBuffer);
+        return true;
+    }
+
+    // Queues the samples before the position of outBuffer, timed by the frames queued before them.
+    private void queueEncoderInputBuffer(final int encoderInBuffIndex, final ShortBuffer outBuffer) {
+        final long presentationTimeUs = mTimestampGenerator.getPresentationTimeUs();
+        mTimestampGenerator.onOutputFrames(outBuffer.position() / mOutputChannelCount);
+        mEncoder.queueInputBuffer(encoderInBuffIndex, 0, outBuffer.position() * BYTES_PER_SHORT, presentationTimeUs, 0);
+    }
+
+    private void queueEndOfStream(final int encoderInBuffIndex) {
+        Log.d(TAG, "Audio timestamps: " + mTimestampGenerator.getDriftReport());
+        mEncoder.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
     }
 
-    private long drainOverflow(final ShortBuffer outBuff) {
+    private void drainOverflow(final ShortBuffer outBuff) {
         final ShortBuffer overflowBuff = mOverflowBuffer.data;
         final int overflowLimit = overflowBuff.limit();
-        final int overflowSize = overflowBuff.remaining();
-
-        final long beginPresentationTimeUs = mOverflowBuffer.presentationTimeUs +
-                sampleCountToDurationUs(overflowBuff.position(), mInputSampleRate, mOutputChannelCount);
 
         outBuff.clear();
         // Limit overflowBuff to outBuff's capacity
-        overflowBuff.limit(outBuff.capacity());
+        overflowBuff.limit(Math.min(overflowLimit, overflowBuff.position() + outBuff.remaining()));
         // Load overflowBuff onto outBuff
         outBuff.put(overflowBuff);
 
-        if (overflowSize >= outBuff.capacity()) {
+        if (overflowBuff.position() == overflowLimit) {
             // Overflow fully consumed - Reset
             overflowBuff.clear().limit(0);
         } else {
             // Only partially consumed - Keep position & restore previous limit
             overflowBuff.limit(overflowLimit);
         }
-
-        return beginPresentationTimeUs;
     }
 
-    private long remixAndMaybeFillOverflow(final AudioBuffer input,
+    private void remixAndMaybeFillOverflow(final AudioBuffer input,
                                            final ShortBuffer outBuff) {
         final ShortBuffer inBuff = input.data;
         final ShortBuffer overflowBuff = mOverflowBuffer.data;
@@ -213,11 +392,14 @@ class AudioChannel {
 
         // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
         inBuff.clear();
+        mTimestampGenerator.onInputBuffer(input.presentationTimeUs, inBuff.remaining() / mInputChannelCount);
 
-        if (inBuff.remaining() > outBuff.remaining()) {
+        // Compare in frames, remixing changes the number of samples per frame
+        final int outFrames = outBuff.remaining() / mOutputChannelCount;
+        if (inBuff.remaining() / mInputChannelCount > outFrames) {
             // Overflow
-            // Limit inBuff to outBuff's capacity
-            inBuff.limit(outBuff.capacity());
+            // Limit inBuff to the frames outBuff has room for
+            inBuff.limit(outFrames * mInputChannelCount);
             mRemixer.remix(inBuff, outBuff);
 
             // Reset limit to its own capacity & Keep position
@@ -225,18 +407,14 @@ class AudioChannel {
 
             // Remix the rest onto overflowBuffer
             // NOTE: We should only reach this point when overflow buffer is empty
-            final long consumedDurationUs =
-                    sampleCountToDurationUs(inBuff.position(), mInputSampleRate, mInputChannelCount);
+            overflowBuff.clear();
             mRemixer.remix(inBuff, overflowBuff);
 
             // Seal off overflowBuff & mark limit
             overflowBuff.flip();
-            mOverflowBuffer.presentationTimeUs = input.presentationTimeUs + consumedDurationUs;
         } else {
             // No overflow
             mRemixer.remix(inBuff, outBuff);
         }
-
-        return input.presentationTimeUs;
     }
 }
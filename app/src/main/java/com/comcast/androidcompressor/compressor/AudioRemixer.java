@@ -2,9 +2,17 @@ package com.comcast.androidcompressor.compressor;
 
 import java.nio.ShortBuffer;
 
+/**
+ * Converts interleaved 16 bit PCM between channel layouts. Remixes as many whole frames as the output has room for.
+ */
 public interface AudioRemixer {
     void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff);
 
+    /**
+     * @deprecated Reads and writes one sample at a time; {@link AudioChannel} uses a {@link StereoToMonoDownmixer}
+     * per channel instead.
+     */
+    @Deprecated
     AudioRemixer DOWNMIX = new AudioRemixer() {
         private static final int SIGNED_SHORT_LIMIT = 32768;
         private static final int UNSIGNED_SHORT_MAX = 65535;
@@ -40,6 +48,11 @@ public interface AudioRemixer {
         }
     };
 
+    /**
+     * @deprecated Reads and writes one sample at a time; {@link AudioChannel} uses a {@link MonoToStereoUpmixer}
+     * per channel instead.
+     */
+    @Deprecated
     AudioRemixer UPMIX = new AudioRemixer() {
         @Override
         public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
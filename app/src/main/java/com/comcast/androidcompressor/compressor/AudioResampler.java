@@ -0,0 +1,253 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Streaming polyphase sample rate converter for interleaved 16 bit PCM, used by {@link AudioChannel}.
+ * <p>
+ * The rate ratio is reduced to L/M (output/input); output frame m lies at input time m * M / L and is the windowed
+ * sinc low-pass filter phase (m * M) mod L applied to the input frames around it, so no upsampled signal is built.
+ * Input history is carried over between calls, so chunks may be of any size and split anywhere.
+ * Nothing is allocated after construction.
+ * Output is aligned with input: the filter delay is skipped at the start and flushed with {@link #flush(ShortBuffer)}.
+ */
+class AudioResampler {
+    private static final int MIN_TAPS_PER_PHASE = 16;
+    private static final int MAX_TAPS_PER_PHASE = 64;
+    private static final int MAX_PHASES = 1024;
+    // cutoff relative to the lower Nyquist frequency, leaving room for the transition band.
+    private static final double CUTOFF_RATIO = 0.9;
+    private static final double KAISER_BETA = 8.0;
+
+    private final int mInputSampleRate;
+    private final int mOutputSampleRate;
+    private final int mChannelCount;
+    private final int mPhaseCount;
+    private final int mInputStep;
+    private final int mTapCount;
+    // coefficients of phase p at [p * mTapCount, (p + 1) * mTapCount), newest input first.
+    private final float[] mCoefficients;
+    // per channel, the last mTapCount frames written twice so they can be read without wrapping.
+    private final float[] mHistory;
+    private int mHistoryPosition;
+    private long mInputFrameCount;
+    private long mOutputFrameCount;
+    private int mPhase;
+    // index of the newest input frame the next output needs.
+    private long mNeededInputFrame;
+    // input frame count when flushing started, or -1.
+    private long mFlushInputFrameCount = -1;
+
+    /**
+     * @param inputSampleRate  Sample rate of input, in Hz.
+     * @param outputSampleRate Sample rate of output, in Hz.
+     * @param channelCount     Number of interleaved channels, same for input and output.
+     */
+    public AudioResampler(int inputSampleRate, int outputSampleRate, int channelCount) {
+        if (inputSampleRate <= 0 || outputSampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("Invalid resampler parameters: " + inputSampleRate + " -> "
+                    + outputSampleRate + " Hz, " + channelCount + " channels.");
+        }
+        mInputSampleRate = inputSampleRate;
+        mOutputSampleRate = outputSampleRate;
+        mChannelCount = channelCount;
+        int gcd = gcd(inputSampleRate, outputSampleRate);
+        int phaseCount = outputSampleRate / gcd;
+        int inputStep = inputSampleRate / gcd;
+        if (phaseCount > MAX_PHASES) {
+            // unusual rate pairs: round the step instead, a frequency error below 0.1%. The rate produced is then
+            // inputSampleRate * MAX_PHASES / inputStep; output must be timed with getPhaseCount and getInputStep.
+            inputStep = (int) Math.round((double) inputSampleRate * MAX_PHASES / outputSampleRate);
+            phaseCount = MAX_PHASES;
+        }
+        mPhaseCount = phaseCount;
+        mInputStep = inputStep;
+        double downsampling = Math.max(1.0, (double) inputStep / phaseCount);
+        mTapCount = Math.min(MAX_TAPS_PER_PHASE, (int) Math.ceil(MIN_TAPS_PER_PHASE * downsampling) & ~1);
+        mCoefficients = createCoefficients(phaseCount, mTapCount, CUTOFF_RATIO / downsampling);
+        mHistory = new float[channelCount * mTapCount * 2];
+        // the filter is centered, so output 0 needs input up to half the taps ahead.
+        mNeededInputFrame = mTapCount / 2;
+    }
+
+    public int getInputSampleRate() {
+        return mInputSampleRate;
+    }
+
+    /**
+     * @return Requested output sample rate. With unusual rate pairs the rate produced differs slightly, see
+     * {@link #getPhaseCount()}.
+     */
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    /**
+     * @return Output frames produced for every {@link #getInputStep()} input frames.
+     */
+    public int getPhaseCount() {
+        return mPhaseCount;
+    }
+
+    /**
+     * @return Input frames consumed for every {@link #getPhaseCount()} output frames.
+     */
+    public int getInputStep() {
+        return mInputStep;
+    }
+
+    /**
+     * @return number of frames (samples per channel) written so far.
+     */
+    public long getOutputFrameCount() {
+        return mOutputFrameCount;
+    }
+
+    /**
+     * Converts as much of the input as the output has room for.
+     * Input is consumed in whole frames; frames not consumed stay in the input for the next call.
+     */
+    public void resample(ShortBuffer input, ShortBuffer output) {
+        final int channelCount = mChannelCount;
+        while (output.remaining() >= channelCount) {
+            if (mNeededInputFrame >= mInputFrameCount) {
+                if (input.remaining() < channelCount) return;
+                pushFrame(input);
+                continue;
+            }
+            writeFrame(output);
+        }
+    }
+
+    /**
+     * Writes the output still held back by the filter delay, as if the input was followed by silence.
+     *
+     * @return true when all output is written, false if output ran out of room and this should be called again.
+     */
+    public boolean flush(ShortBuffer output) {
+        if (mFlushInputFrameCount < 0) mFlushInputFrameCount = mInputFrameCount;
+        final int channelCount = mChannelCount;
+        // outputs up to the time of the last input frame.
+        while (mNeededInputFrame - mTapCount / 2 < mFlushInputFrameCount) {
+            if (output.remaining() < channelCount) return false;
+            if (mNeededInputFrame >= mInputFrameCount) {
+                pushZeroFrame();
+                continue;
+            }
+            writeFrame(output);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets input history and counts, e.g. after a seek.
+     */
+    public void reset() {
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = 0;
+        }
+        mHistoryPosition = 0;
+        mInputFrameCount = 0;
+        mOutputFrameCount = 0;
+        mPhase = 0;
+        mNeededInputFrame = mTapCount / 2;
+        mFlushInputFrameCount = -1;
+    }
+
+    private void pushFrame(ShortBuffer input) {
+        final int tapCount = mTapCount;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            float sample = input.get();
+            int base = channel * tapCount * 2;
+            mHistory[base + mHistoryPosition] = sample;
+            mHistory[base + mHistoryPosition + tapCount] = sample;
+        }
+        advanceHistory();
+    }
+
+    private void pushZeroFrame() {
+        final int tapCount = mTapCount;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            int base = channel * tapCount * 2;
+            mHistory[base + mHistoryPosition] = 0;
+            mHistory[base + mHistoryPosition + tapCount] = 0;
+        }
+        advanceHistory();
+    }
+
+    private void advanceHistory() {
+        if (++mHistoryPosition == mTapCount) mHistoryPosition = 0;
+        mInputFrameCount++;
+    }
+
+    private void writeFrame(ShortBuffer output) {
+        final int tapCount = mTapCount;
+        final float[] coefficients = mCoefficients;
+        final float[] history = mHistory;
+        int coefficientBase = mPhase * tapCount;
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            // frames are pushed only until the needed one, so it is the newest; older ones precede it.
+            int newest = channel * tapCount * 2 + mHistoryPosition - 1 + tapCount;
+            float sum = 0;
+            for (int k = 0; k < tapCount; k++) {
+                sum += coefficients[coefficientBase + k] * history[newest - k];
+            }
+            int value = Math.round(sum);
+            if (value > Short.MAX_VALUE) value = Short.MAX_VALUE;
+            else if (value < Short.MIN_VALUE) value = Short.MIN_VALUE;
+            output.put((short) value);
+        }
+        mOutputFrameCount++;
+        mPhase += mInputStep;
+        mNeededInputFrame += mPhase / mPhaseCount;
+        mPhase %= mPhaseCount;
+    }
+
+    // Kaiser windowed sinc sampled at phase / phaseCount of an input frame.
+    private static float[] createCoefficients(int phaseCount, int tapCount, double cutoff) {
+        float[] coefficients = new float[phaseCount * tapCount];
+        double halfWidth = tapCount / 2.0;
+        double denominator = besselI0(KAISER_BETA);
+        for (int phase = 0; phase < phaseCount; phase++) {
+            double sum = 0;
+            for (int k = 0; k < tapCount; k++) {
+                // tap k weighs the input frame k frames older than the newest needed one;
+                // d is the distance from the output time to that frame, in input frames.
+                double d = (double) phase / phaseCount - halfWidth + k;
+                double t = Math.PI * cutoff * d;
+                double sinc = t == 0 ? 1.0 : Math.sin(t) / t;
+                double x = d / halfWidth;
+                double window = Math.abs(x) >= 1.0 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1.0 - x * x)) / denominator;
+                double value = sinc * window;
+                coefficients[phase * tapCount + k] = (float) value;
+                sum += value;
+            }
+            // normalize each phase to unity gain so DC passes unchanged.
+            for (int k = 0; k < tapCount; k++) {
+                coefficients[phase * tapCount + k] /= sum;
+            }
+        }
+        return coefficients;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 32; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,205 @@
+package com.comcast.androidcompressor.compressor;
+
+/**
+ * Presentation times of encoder input in {@link AudioChannel}, derived from the number of PCM frames emitted
+ * so far instead of from decoder buffers, so buffers split or merged on the way get exact, strictly increasing
+ * times without rounding errors adding up.
+ * <p>
+ * The timeline starts at the presentation time of the first decoder buffer. Each later decoder buffer is compared
+ * with the time the timeline gives its first frame; the difference is reported as drift, e.g. gaps in the input
+ * or decoders with inexact timestamps. When a decoder buffer is ahead of the timeline by more than an AAC frame,
+ * the timeline resyncs to it, so audio after a gap stays in sync with video. Decoder times behind the timeline are
+ * not followed, since times already given to the encoder cannot be taken back; that drift is only reported.
+ */
+class AudioTimestampGenerator {
+    private static final long MICROSECS_PER_SEC = 1000000;
+    // change of drift between buffers counted as a discontinuity.
+    static final long DISCONTINUITY_THRESHOLD_US = 1000;
+    // drift the timeline resyncs at, in frames: one AAC frame.
+    static final int RESYNC_THRESHOLD_FRAMES = 1024;
+
+    private final int mInputSampleRate;
+    // output frames produced for every mInputFrames input frames.
+    private final int mOutputFrames;
+    private final int mInputFrames;
+    private long mStartTimeUs = -1;
+    private long mInputFrameCount;
+    private long mOutputFrameCount;
+    private int mInputBufferCount;
+    private long mLastDriftUs;
+    private long mMaxDriftUs;
+    private int mDiscontinuityCount;
+    private int mResyncCount;
+
+    /**
+     * @param inputSampleRate  Sample rate of decoder output, in Hz.
+     * @param outputSampleRate Sample rate of encoder input, in Hz.
+     */
+    public AudioTimestampGenerator(int inputSampleRate, int outputSampleRate) {
+        this(inputSampleRate, outputSampleRate / gcd(inputSampleRate, outputSampleRate),
+                inputSampleRate / gcd(inputSampleRate, outputSampleRate));
+    }
+
+    /**
+     * For a rate ratio not given by whole sample rates, e.g. the one {@link AudioResampler} actually produces.
+     *
+     * @param inputSampleRate Sample rate of decoder output, in Hz.
+     * @param outputFrames    Frames of encoder input for every inputFrames frames of decoder output.
+     * @param inputFrames     Frames of decoder output for every outputFrames frames of encoder input.
+     */
+    public AudioTimestampGenerator(int inputSampleRate, int outputFrames, int inputFrames) {
+        if (inputSampleRate <= 0 || outputFrames <= 0 || inputFrames <= 0) {
+            throw new IllegalArgumentException("Invalid rates: " + inputSampleRate + " Hz, " + outputFrames + "/"
+                    + inputFrames);
+        }
+        mInputSampleRate = inputSampleRate;
+        mOutputFrames = outputFrames;
+        mInputFrames = inputFrames;
+    }
+
+    /**
+     * @return Duration of frameCount frames, in micro-second, rounded down.
+     */
+    public static long framesToDurationUs(long frameCount, int sampleRate) {
+        return frameCount * MICROSECS_PER_SEC / sampleRate;
+    }
+
+    /**
+     * Called for each decoder buffer as it is consumed, in order.
+     *
+     * @param frameCount Frames (samples per channel) in the buffer.
+     */
+    public void onInputBuffer(long presentationTimeUs, int frameCount) {
+        if (mStartTimeUs < 0) mStartTimeUs = presentationTimeUs;
+        long driftUs = presentationTimeUs - (mStartTimeUs + framesToDurationUs(mInputFrameCount, mInputSampleRate));
+        if (Math.abs(driftUs - mLastDriftUs) > DISCONTINUITY_THRESHOLD_US) mDiscontinuityCount++;
+        if (Math.abs(driftUs) > Math.abs(mMaxDriftUs)) mMaxDriftUs = driftUs;
+        mLastDriftUs = driftUs;
+        if (driftUs > framesToDurationUs(RESYNC_THRESHOLD_FRAMES, mInputSampleRate)) {
+            // frames still to be emitted move with the timeline; they belong right before this buffer.
+            mStartTimeUs += driftUs;
+            mLastDriftUs = 0;
+            mResyncCount++;
+        }
+        mInputFrameCount += frameCount;
+        mInputBufferCount++;
+    }
+
+    /**
+     * @return Presentation time of the next frame emitted.
+     */
+    public long getPresentationTimeUs() {
+        return Math.max(0, mStartTimeUs) + getOutputDurationUs();
+    }
+
+    /**
+     * Advances the timeline by frames emitted to the encoder.
+     */
+    public void onOutputFrames(int frameCount) {
+        mOutputFrameCount += frameCount;
+    }
+
+    public long getOutputFrameCount() {
+        return mOutputFrameCount;
+    }
+
+    // output frames as input frames, timed by the input sample rate.
+    private long getOutputDurationUs() {
+        return mOutputFrameCount * mInputFrames * MICROSECS_PER_SEC / ((long) mOutputFrames * mInputSampleRate);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public DriftReport getDriftReport() {
+        return new DriftReport(mInputBufferCount, framesToDurationUs(mInputFrameCount, mInputSampleRate),
+                getOutputDurationUs(), mLastDriftUs, mMaxDriftUs,
+                mDiscontinuityCount, mResyncCount);
+    }
+
+    /**
+     * Decoder presentation times compared with the generated timeline. Times are in micro-second.
+     */
+    static class DriftReport {
+        private final int mInputBufferCount;
+        private final long mInputDurationUs;
+        private final long mOutputDurationUs;
+        private final long mFinalDriftUs;
+        private final long mMaxDriftUs;
+        private final int mDiscontinuityCount;
+        private final int mResyncCount;
+
+        DriftReport(int inputBufferCount, long inputDurationUs, long outputDurationUs, long finalDriftUs,
+                    long maxDriftUs, int discontinuityCount, int resyncCount) {
+            mInputBufferCount = inputBufferCount;
+            mInputDurationUs = inputDurationUs;
+            mOutputDurationUs = outputDurationUs;
+            mFinalDriftUs = finalDriftUs;
+            mMaxDriftUs = maxDriftUs;
+            mDiscontinuityCount = discontinuityCount;
+            mResyncCount = resyncCount;
+        }
+
+        public int getInputBufferCount() {
+            return mInputBufferCount;
+        }
+
+        /**
+         * @return Duration of decoded frames.
+         */
+        public long getInputDurationUs() {
+            return mInputDurationUs;
+        }
+
+        /**
+         * @return Duration of frames emitted to the encoder.
+         */
+        public long getOutputDurationUs() {
+            return mOutputDurationUs;
+        }
+
+        /**
+         * @return Drift of the last decoder buffer after resyncing; positive if decoder times run ahead of the
+         * timeline.
+         */
+        public long getFinalDriftUs() {
+            return mFinalDriftUs;
+        }
+
+        /**
+         * @return Drift of largest magnitude, with its sign.
+         */
+        public long getMaxDriftUs() {
+            return mMaxDriftUs;
+        }
+
+        /**
+         * @return Number of decoder buffers whose drift changed by more than
+         * {@link AudioTimestampGenerator#DISCONTINUITY_THRESHOLD_US} from the previous one.
+         */
+        public int getDiscontinuityCount() {
+            return mDiscontinuityCount;
+        }
+
+        /**
+         * @return Number of decoder buffers the timeline resynced to, i.e. ahead of it by more than
+         * {@link AudioTimestampGenerator#RESYNC_THRESHOLD_FRAMES}.
+         */
+        public int getResyncCount() {
+            return mResyncCount;
+        }
+
+        @Override
+        public String toString() {
+            return "DriftReport{buffers=" + mInputBufferCount + ", duration in=" + mInputDurationUs + " us, out="
+                    + mOutputDurationUs + " us, drift final=" + mFinalDriftUs + " us, max=" + mMaxDriftUs
+                    + " us, discontinuities=" + mDiscontinuityCount + ", resyncs=" + mResyncCount + "}";
+        }
+    }
+}
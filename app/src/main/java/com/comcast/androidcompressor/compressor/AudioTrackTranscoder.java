@@ -3,6 +3,7 @@ package com.comcast.androidcompressor.compressor;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Handler;
 
 import java.io.IOException;
 
@@ -16,7 +17,10 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     private final MediaExtractor mExtractor;
     private final QueuedMuxer mMuxer;
-    private long mWrittenPresentationTimeUs;
+    private volatile long mWrittenPresentationTimeUs;
+    private long mEndPresentationTimeUs = -1;
+    private long mStartPresentationTimeUs;
+    private boolean mIsPastEndPresentationTime;
 
     private final int mTrackIndex;
     private final MediaFormat mInputFormat;
@@ -32,12 +36,17 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     private boolean mIsExtractorEOS;
     private boolean mIsDecoderEOS;
-    private boolean mIsEncoderEOS;
+    private volatile boolean mIsEncoderEOS;
     private boolean mDecoderStarted;
     private boolean mEncoderStarted;
 
     private AudioChannel mAudioChannel;
 
+    private Handler mCallbackHandler;
+    private PipelineSignal mPipelineSignal;
+    private MediaCodecCallbackQueue mDecoderCallbackQueue;
+    private MediaCodecCallbackQueue mEncoderCallbackQueue;
+
     public AudioTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
         mExtractor = extractor;
@@ -48,6 +57,18 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         mInputFormat = mExtractor.getTrackFormat(mTrackIndex);
     }
 
+    /**
+     * Drive codecs through {@link MediaCodec.Callback} instead of polling. Must be called before {@link #setup()}.
+     * Requires API 23.
+     *
+     * @param callbackHandler Handler on which codec callbacks are delivered.
+     * @param pipelineSignal  Signal raised whenever any codec has a buffer ready.
+     */
+    public void setCallbackHandler(Handler callbackHandler, PipelineSignal pipelineSignal) {
+        mCallbackHandler = callbackHandler;
+        mPipelineSignal = pipelineSignal;
+    }
+
     @Override
     public void setup() {
         mExtractor.selectTrack(mTrackIndex);
@@ -56,6 +77,10 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (mCallbackHandler != null) {
+            mEncoderCallbackQueue = new MediaCodecCallbackQueue(mPipelineSignal);
+            mEncoder.setCallback(mEncoderCallbackQueue, mCallbackHandler);
+        }
         mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoder.start();
         mEncoderStarted = true;
@@ -67,12 +92,30 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (mCallbackHandler != null) {
+            mDecoderCallbackQueue = new MediaCodecCallbackQueue(mPipelineSignal);
+            mDecoder.setCallback(mDecoderCallbackQueue, mCallbackHandler);
+        }
         mDecoder.configure(inputFormat, null, null, 0);
         mDecoder.start();
         mDecoderStarted = true;
         mDecoderBuffers = new MediaCodecInputBuffers(mDecoder);
 
-        mAudioChannel = new AudioChannel(mDecoder, mEncoder, mOutputFormat);
+        mAudioChannel = new AudioChannel(mDecoder, mEncoder, mOutputFormat, mEncoderCallbackQueue);
+        mAudioChannel.setStartPresentationTimeUs(mStartPresentationTimeUs);
+        mAudioChannel.setEndPresentationTimeUs(mEndPresentationTimeUs);
+    }
+
+    @Override
+    public void setEndPresentationTimeUs(long endPresentationTimeUs) {
+        mEndPresentationTimeUs = endPresentationTimeUs;
+        if (mAudioChannel != null) mAudioChannel.setEndPresentationTimeUs(endPresentationTimeUs);
+    }
+
+    @Override
+    public void setStartPresentationTimeUs(long startPresentationTimeUs) {
+        mStartPresentationTimeUs = startPresentationTimeUs;
+        if (mAudioChannel != null) mAudioChannel.setStartPresentationTimeUs(startPresentationTimeUs);
     }
 
     @Override
@@ -100,12 +143,18 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     private int drainExtractor(long timeoutUs) {
         if (mIsExtractorEOS) return DRAIN_STATE_NONE;
-        int trackIndex = mExtractor.getSampleTrackIndex();
+        // once past the end our track is unselected, so the extractor only reports the other track.
+        int trackIndex = mIsPastEndPresentationTime ? -1 : mExtractor.getSampleTrackIndex();
         if (trackIndex >= 0 && trackIndex != mTrackIndex) {
             return DRAIN_STATE_NONE;
         }
+        if (trackIndex >= 0 && mEndPresentationTimeUs >= 0 && mExtractor.getSampleTime() >= mEndPresentationTimeUs) {
+            mExtractor.unselectTrack(mTrackIndex);
+            mIsPastEndPresentationTime = true;
+            trackIndex = -1;
+        }
 
-        final int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        final int result = dequeueDecoderInputBuffer(timeoutUs);
         if (result < 0) return DRAIN_STATE_NONE;
         if (trackIndex < 0) {
             mIsExtractorEOS = true;
@@ -123,7 +172,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private int drainDecoder(long timeoutUs) {
         if (mIsDecoderEOS) return DRAIN_STATE_NONE;
 
-        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = dequeueDecoderOutputBuffer(timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -146,7 +195,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
 
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = dequeueEncoderOutputBuffer(timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -181,6 +230,21 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         return DRAIN_STATE_CONSUMED;
     }
 
+    private int dequeueDecoderInputBuffer(long timeoutUs) {
+        if (mDecoderCallbackQueue != null) return mDecoderCallbackQueue.dequeueInputBuffer();
+        return mDecoder.dequeueInputBuffer(timeoutUs);
+    }
+
+    private int dequeueDecoderOutputBuffer(long timeoutUs) {
+        if (mDecoderCallbackQueue != null) return mDecoderCallbackQueue.dequeueOutputBuffer(mBufferInfo);
+        return mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    }
+
+    private int dequeueEncoderOutputBuffer(long timeoutUs) {
+        if (mEncoderCallbackQueue != null) return mEncoderCallbackQueue.dequeueOutputBuffer(mBufferInfo);
+        return mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    }
+
     @Override
     public long getWrittenPresentationTimeUs() {
         return mWrittenPresentationTimeUs;
@@ -193,6 +257,10 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
     @Override
     public void release() {
+        if (mAudioChannel != null) {
+            mAudioChannel.release();
+            mAudioChannel = null;
+        }
         if (mDecoder != null) {
             if (mDecoderStarted) mDecoder.stop();
             mDecoder.release();
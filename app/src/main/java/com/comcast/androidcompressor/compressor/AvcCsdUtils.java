@@ -35,6 +35,33 @@ public class AvcCsdUtils {
         return prefixedSpsBuffer.slice();
     }
 
+    /**
+     * @return NAL unit of a csd buffer (SPS or PPS) without start code, as stored in avcC. A csd buffer without
+     * start code is taken as the NAL unit already.
+     */
+    public static byte[] getNalUnit(ByteBuffer csdBuffer) {
+        ByteBuffer prefixedBuffer = csdBuffer.duplicate();
+        prefixedBuffer.rewind();
+        if (hasStartCode(prefixedBuffer)) skipStartCode(prefixedBuffer);
+        byte[] nalUnit = new byte[prefixedBuffer.remaining()];
+        prefixedBuffer.get(nalUnit);
+        return nalUnit;
+    }
+
+    /**
+     * @return true if a csd buffer starts with a start code, i.e. the codec uses Annex B: samples come with start
+     * codes too, rather than with NAL unit lengths.
+     */
+    public static boolean hasStartCode(ByteBuffer csdBuffer) {
+        ByteBuffer buffer = csdBuffer.duplicate();
+        buffer.rewind();
+        if (buffer.remaining() < AVC_START_CODE_4.length) return false;
+        byte[] prefix = new byte[AVC_START_CODE_4.length];
+        buffer.get(prefix);
+        return Arrays.equals(Arrays.copyOf(prefix, AVC_START_CODE_3.length), AVC_START_CODE_3)
+                || Arrays.equals(prefix, AVC_START_CODE_4);
+    }
+
     private static void skipStartCode(ByteBuffer prefixedSpsBuffer) {
         byte[] prefix3 = new byte[3];
         prefixedSpsBuffer.get(prefix3);
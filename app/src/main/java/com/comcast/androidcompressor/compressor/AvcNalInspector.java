@@ -0,0 +1,121 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads nal_ref_idc and slice type of the slices in an H.264 sample, so {@link VideoTrackTranscoder} can tell
+ * disposable samples, which no other frame refers to, before they are queued to the decoder.
+ * <p>
+ * Samples are Annex B (start code prefixed NAL units), as read by MediaExtractor, or 4 byte length prefixed as
+ * stored in MP4. Only NAL headers up to the first slice and the first bytes of its header are read; the buffer's
+ * position and limit are not changed.
+ */
+class AvcNalInspector {
+    // Refer: ITU-T H.264 Table 7-1 and 7-6
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_SLICE_IDR = 5;
+    public static final int SLICE_TYPE_UNKNOWN = -1;
+    public static final int SLICE_TYPE_P = 0;
+    public static final int SLICE_TYPE_B = 1;
+    public static final int SLICE_TYPE_I = 2;
+    public static final int SLICE_TYPE_SP = 3;
+    public static final int SLICE_TYPE_SI = 4;
+
+    private boolean mHasSlice;
+    private int mNalRefIdc;
+    private int mSliceType;
+    private boolean mIdr;
+
+    /**
+     * Inspects the sample in [offset, offset + size) of the buffer, replacing the result of the previous sample.
+     * Only the first slice is read, as all slices of a picture share nal_ref_idc.
+     *
+     * @return true if the sample contains a slice.
+     */
+    public boolean inspect(ByteBuffer sample, int offset, int size) {
+        mHasSlice = false;
+        mNalRefIdc = 0;
+        mSliceType = SLICE_TYPE_UNKNOWN;
+        mIdr = false;
+        int end = offset + size;
+        if (hasStartCode(sample, offset, end)) {
+            int position = findNalUnit(sample, offset, end);
+            while (position < end && !inspectNalUnit(sample, position, end)) {
+                position = findNalUnit(sample, position, end);
+            }
+        } else {
+            int position = offset;
+            while (position + 4 < end) {
+                int length = sample.getInt(position);
+                position += 4;
+                if (length <= 0 || length > end - position) break;
+                if (inspectNalUnit(sample, position, position + length)) break;
+                position += length;
+            }
+        }
+        return mHasSlice;
+    }
+
+    /**
+     * @return true if the inspected sample has a slice that is not used for reference.
+     */
+    public boolean isDisposable() {
+        return mHasSlice && mNalRefIdc == 0 && !mIdr;
+    }
+
+    /**
+     * @return slice type of the first slice, one of SLICE_TYPE_*.
+     */
+    public int getSliceType() {
+        return mSliceType;
+    }
+
+    public boolean isIdr() {
+        return mIdr;
+    }
+
+    // Returns true if the NAL unit is a slice, which ends the inspection.
+    private boolean inspectNalUnit(ByteBuffer sample, int position, int end) {
+        int header = sample.get(position) & 0xFF;
+        int nalType = header & 0x1F;
+        if (nalType < NAL_TYPE_SLICE || nalType > NAL_TYPE_SLICE_IDR) return false;
+        mHasSlice = true;
+        mNalRefIdc = (header >> 5) & 0x3;
+        mIdr = nalType == NAL_TYPE_SLICE_IDR;
+        mSliceType = readSliceType(sample, position + 1, end);
+        return true;
+    }
+
+    // first_mb_in_slice then slice_type, both ue(v); types 5 to 9 mean all slices of the picture have that type.
+    private static int readSliceType(ByteBuffer sample, int position, int end) {
+        // both fit in the first 8 bytes of the slice header, before any emulation prevention byte could occur.
+        long bits = 0;
+        int bitCount = 0;
+        while (bitCount < 64 && position < end) {
+            bits |= (long) (sample.get(position++) & 0xFF) << (56 - bitCount);
+            bitCount += 8;
+        }
+        int firstLength = Long.numberOfLeadingZeros(bits) * 2 + 1;
+        if (firstLength > 63 || firstLength > bitCount) return SLICE_TYPE_UNKNOWN;
+        bits <<= firstLength;
+        bitCount -= firstLength;
+        int typeLength = Long.numberOfLeadingZeros(bits) * 2 + 1;
+        if (typeLength > 7 || typeLength > bitCount) return SLICE_TYPE_UNKNOWN;
+        int sliceType = (int) (bits >>> (64 - typeLength)) - 1;
+        return sliceType <= 9 ? sliceType % 5 : SLICE_TYPE_UNKNOWN;
+    }
+
+    private static boolean hasStartCode(ByteBuffer sample, int position, int end) {
+        return end - position >= 3 && sample.get(position) == 0 && sample.get(position + 1) == 0
+                && (sample.get(position + 2) == 1
+                || (end - position >= 4 && sample.get(position + 2) == 0 && sample.get(position + 3) == 1));
+    }
+
+    // Returns the position after the next start code at or after position, or end.
+    private static int findNalUnit(ByteBuffer sample, int position, int end) {
+        for (int i = position; i + 2 < end; i++) {
+            if (sample.get(i) == 0 && sample.get(i + 1) == 0 && sample.get(i + 2) == 1) return i + 3;
+        }
+        return end;
+    }
+}
@@ -1,11 +1,261 @@
 package com.comcast.androidcompressor.compressor;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class AvcSpsUtils {
+
     public static byte getProfileIdc(ByteBuffer spsBuffer) {
         // Refer: http://www.cardinalpeak.com/blog/the-h-264-sequence-parameter-set/
         // First byte after NAL.
         return spsBuffer.get(0);
     }
+
+    /**
+     * Parses the fields of an SPS up to the VUI, which slices depend on.
+     *
+     * @param spsBuffer SPS without NAL header, see {@link AvcCsdUtils#getSpsBuffer}.
+     * @throws IllegalStateException if the SPS is truncated or malformed.
+     */
+    public static SequenceParameterSet parse(ByteBuffer spsBuffer) {
+        // Refer: ITU-T H.264 7.3.2.1.1
+        BitReader reader = new BitReader(spsBuffer);
+        SequenceParameterSet sps = new SequenceParameterSet();
+        sps.mProfileIdc = reader.readBits(8);
+        sps.mConstraintFlags = reader.readBits(8);
+        sps.mLevelIdc = reader.readBits(8);
+        sps.mId = reader.readUnsignedExpGolomb();
+        sps.mChromaFormatIdc = 1;
+        if (hasChromaFormat(sps.mProfileIdc)) {
+            sps.mChromaFormatIdc = reader.readUnsignedExpGolomb();
+            if (sps.mChromaFormatIdc == 3) sps.mSeparateColourPlane = reader.readBit();
+            sps.mBitDepthLuma = 8 + reader.readUnsignedExpGolomb();
+            sps.mBitDepthChroma = 8 + reader.readUnsignedExpGolomb();
+            sps.mTransformBypass = reader.readBit();
+            if (reader.readBit()) {
+                int listCount = sps.mChromaFormatIdc == 3 ? 12 : 8;
+                sps.mScalingLists = new int[listCount][];
+                for (int i = 0; i < listCount; i++) {
+                    if (reader.readBit()) sps.mScalingLists[i] = readScalingList(reader, i < 6 ? 16 : 64);
+                }
+            }
+        } else {
+            sps.mBitDepthLuma = 8;
+            sps.mBitDepthChroma = 8;
+        }
+        sps.mLog2MaxFrameNum = 4 + reader.readUnsignedExpGolomb();
+        sps.mPicOrderCntType = reader.readUnsignedExpGolomb();
+        if (sps.mPicOrderCntType == 0) {
+            sps.mLog2MaxPicOrderCntLsb = 4 + reader.readUnsignedExpGolomb();
+        } else if (sps.mPicOrderCntType == 1) {
+            sps.mDeltaPicOrderAlwaysZero = reader.readBit();
+            sps.mOffsetForNonRefPic = reader.readSignedExpGolomb();
+            sps.mOffsetForTopToBottomField = reader.readSignedExpGolomb();
+            int cycleLength = reader.readUnsignedExpGolomb();
+            sps.mOffsetsForRefFrame = new int[cycleLength];
+            for (int i = 0; i < cycleLength; i++) {
+                sps.mOffsetsForRefFrame[i] = reader.readSignedExpGolomb();
+            }
+        }
+        sps.mMaxNumRefFrames = reader.readUnsignedExpGolomb();
+        sps.mGapsInFrameNumAllowed = reader.readBit();
+        sps.mWidthInMbs = 1 + reader.readUnsignedExpGolomb();
+        sps.mHeightInMapUnits = 1 + reader.readUnsignedExpGolomb();
+        sps.mFrameMbsOnly = reader.readBit();
+        if (!sps.mFrameMbsOnly) sps.mMbAdaptiveFrameField = reader.readBit();
+        sps.mDirect8x8Inference = reader.readBit();
+        if (reader.readBit()) {
+            sps.mCropLeft = reader.readUnsignedExpGolomb();
+            sps.mCropRight = reader.readUnsignedExpGolomb();
+            sps.mCropTop = reader.readUnsignedExpGolomb();
+            sps.mCropBottom = reader.readUnsignedExpGolomb();
+        }
+        return sps;
+    }
+
+    // Profiles whose SPS carries chroma format, bit depths and scaling matrices (7.3.2.1.1).
+    private static boolean hasChromaFormat(int profileIdc) {
+        switch (profileIdc) {
+            case 100:
+            case 110:
+            case 122:
+            case 244:
+            case 44:
+            case 83:
+            case 86:
+            case 118:
+            case 128:
+            case 138:
+            case 139:
+            case 134:
+            case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns the scales of a coded scaling list (7.3.2.1.1.1), or an empty array for the default list.
+    private static int[] readScalingList(BitReader reader, int size) {
+        int[] scalingList = new int[size];
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSignedExpGolomb() + 256) % 256;
+                if (j == 0 && nextScale == 0) {
+                    // use the default list; nothing more is coded.
+                    return new int[0];
+                }
+            }
+            scalingList[j] = nextScale == 0 ? lastScale : nextScale;
+            lastScale = scalingList[j];
+        }
+        return scalingList;
+    }
+
+    /**
+     * Fields of a parsed SPS. Sizes are in pixels, after cropping.
+     */
+    public static class SequenceParameterSet {
+        private int mProfileIdc;
+        private int mConstraintFlags;
+        private int mLevelIdc;
+        private int mId;
+        private int mChromaFormatIdc;
+        private boolean mSeparateColourPlane;
+        private int mBitDepthLuma;
+        private int mBitDepthChroma;
+        private boolean mTransformBypass;
+        // scaling lists as coded, null for lists not present; null if the SPS has no scaling matrix.
+        private int[][] mScalingLists;
+        private int mLog2MaxFrameNum;
+        private int mPicOrderCntType;
+        private int mLog2MaxPicOrderCntLsb;
+        private boolean mDeltaPicOrderAlwaysZero;
+        private int mOffsetForNonRefPic;
+        private int mOffsetForTopToBottomField;
+        private int[] mOffsetsForRefFrame = new int[0];
+        private int mMaxNumRefFrames;
+        private boolean mGapsInFrameNumAllowed;
+        private int mWidthInMbs;
+        private int mHeightInMapUnits;
+        private boolean mFrameMbsOnly;
+        private boolean mMbAdaptiveFrameField;
+        private boolean mDirect8x8Inference;
+        private int mCropLeft;
+        private int mCropRight;
+        private int mCropTop;
+        private int mCropBottom;
+
+        public int getProfileIdc() {
+            return mProfileIdc;
+        }
+
+        public int getLevelIdc() {
+            return mLevelIdc;
+        }
+
+        public int getWidth() {
+            int cropUnitX = mChromaFormatIdc == 0 || mChromaFormatIdc == 3 ? 1 : 2;
+            return mWidthInMbs * 16 - cropUnitX * (mCropLeft + mCropRight);
+        }
+
+        public int getHeight() {
+            int cropUnitY = (mChromaFormatIdc == 1 ? 2 : 1) * (mFrameMbsOnly ? 1 : 2);
+            return mHeightInMapUnits * 16 * (mFrameMbsOnly ? 1 : 2) - cropUnitY * (mCropTop + mCropBottom);
+        }
+
+        /**
+         * Whether slices coded against the other SPS decode correctly against this one, so streams of both can be
+         * joined under this SPS: every field slice parsing and reference handling depend on is equal, and level and
+         * reference frames are at least the other's. Scaling matrices are compared list by list as coded, so the
+         * same matrix coded in two ways counts as different. VUI is not compared.
+         */
+        public boolean canDecodeSlicesOf(SequenceParameterSet other) {
+            return mProfileIdc == other.mProfileIdc
+                    && mLevelIdc >= other.mLevelIdc
+                    && mId == other.mId
+                    && mChromaFormatIdc == other.mChromaFormatIdc
+                    && mSeparateColourPlane == other.mSeparateColourPlane
+                    && mBitDepthLuma == other.mBitDepthLuma
+                    && mBitDepthChroma == other.mBitDepthChroma
+                    && mTransformBypass == other.mTransformBypass
+                    && Arrays.deepEquals(mScalingLists, other.mScalingLists)
+                    && mLog2MaxFrameNum == other.mLog2MaxFrameNum
+                    && mPicOrderCntType == other.mPicOrderCntType
+                    && mLog2MaxPicOrderCntLsb == other.mLog2MaxPicOrderCntLsb
+                    && mDeltaPicOrderAlwaysZero == other.mDeltaPicOrderAlwaysZero
+                    && mOffsetForNonRefPic == other.mOffsetForNonRefPic
+                    && mOffsetForTopToBottomField == other.mOffsetForTopToBottomField
+                    && Arrays.equals(mOffsetsForRefFrame, other.mOffsetsForRefFrame)
+                    && mMaxNumRefFrames >= other.mMaxNumRefFrames
+                    && mGapsInFrameNumAllowed == other.mGapsInFrameNumAllowed
+                    && mWidthInMbs == other.mWidthInMbs
+                    && mHeightInMapUnits == other.mHeightInMapUnits
+                    && mFrameMbsOnly == other.mFrameMbsOnly
+                    && mMbAdaptiveFrameField == other.mMbAdaptiveFrameField
+                    && mDirect8x8Inference == other.mDirect8x8Inference
+                    && getWidth() == other.getWidth()
+                    && getHeight() == other.getHeight();
+        }
+
+        @Override
+        public String toString() {
+            return "SPS{profile=" + mProfileIdc + ", level=" + mLevelIdc + ", id=" + mId + ", " + getWidth() + "x"
+                    + getHeight() + ", refFrames=" + mMaxNumRefFrames + ", pocType=" + mPicOrderCntType + "}";
+        }
+    }
+
+    // Reads RBSP bits, skipping emulation prevention bytes (00 00 03).
+    private static class BitReader {
+        private final ByteBuffer mBuffer;
+        private int mPosition;
+        private int mZeroCount;
+        private int mCurrentByte;
+        private int mBitsLeft;
+
+        private BitReader(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mPosition = buffer.position();
+        }
+
+        private boolean readBit() {
+            if (mBitsLeft == 0) {
+                if (mPosition >= mBuffer.limit()) throw new IllegalStateException("SPS is truncated.");
+                int value = mBuffer.get(mPosition++) & 0xFF;
+                if (mZeroCount >= 2 && value == 3) {
+                    mZeroCount = 0;
+                    if (mPosition >= mBuffer.limit()) throw new IllegalStateException("SPS is truncated.");
+                    value = mBuffer.get(mPosition++) & 0xFF;
+                }
+                mZeroCount = value == 0 ? mZeroCount + 1 : 0;
+                mCurrentByte = value;
+                mBitsLeft = 8;
+            }
+            mBitsLeft--;
+            return ((mCurrentByte >> mBitsLeft) & 1) != 0;
+        }
+
+        private int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        private int readUnsignedExpGolomb() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                if (++leadingZeros > 31) throw new IllegalStateException("Malformed Exp-Golomb code in SPS.");
+            }
+            return (int) ((1L << leadingZeros) - 1 + readBits(leadingZeros));
+        }
+
+        private int readSignedExpGolomb() {
+            int codeNum = readUnsignedExpGolomb();
+            return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Serializes ISO base media file format boxes into a growable big-endian buffer.
+ * Boxes nest: {@link #startBox(String)} reserves the size field, which {@link #endBox()} fills in.
+ * Not thread safe.
+ */
+class BoxWriter {
+    private static final int MAX_DEPTH = 16;
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth;
+
+    public BoxWriter(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public BoxWriter startBox(String type) {
+        if (mDepth == MAX_DEPTH) throw new IllegalStateException("Boxes nested too deep.");
+        mBoxStarts[mDepth++] = mBuffer.position();
+        putInt(0);
+        putFourCc(type);
+        return this;
+    }
+
+    public BoxWriter startFullBox(String type, int version, int flags) {
+        startBox(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    public BoxWriter endBox() {
+        if (mDepth == 0) throw new IllegalStateException("No box to end.");
+        int start = mBoxStarts[--mDepth];
+        mBuffer.putInt(start, mBuffer.position() - start);
+        return this;
+    }
+
+    public BoxWriter putByte(int value) {
+        ensureCapacity(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    public BoxWriter putShort(int value) {
+        ensureCapacity(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter putInt(int value) {
+        ensureCapacity(4);
+        mBuffer.putInt(value);
+        return this;
+    }
+
+    public BoxWriter putLong(long value) {
+        ensureCapacity(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    public BoxWriter putFourCc(String fourCc) {
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) fourCc.charAt(i));
+        }
+        return this;
+    }
+
+    public BoxWriter putZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    public BoxWriter putBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        mBuffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Copies bytes between position and limit, moving position to limit.
+     */
+    public BoxWriter putBuffer(ByteBuffer buffer) {
+        ensureCapacity(buffer.remaining());
+        mBuffer.put(buffer);
+        return this;
+    }
+
+    /**
+     * Overwrites an int written earlier, e.g. an entry count known only after the entries.
+     *
+     * @param position Position returned by {@link #size()} before the int was written.
+     */
+    public BoxWriter patchInt(int position, int value) {
+        mBuffer.putInt(position, value);
+        return this;
+    }
+
+    /**
+     * Writes an MPEG-4 descriptor header (ISO/IEC 14496-1) with its size in the fixed four byte form.
+     */
+    public BoxWriter putDescriptorHeader(int tag, int size) {
+        putByte(tag);
+        putByte(0x80 | ((size >> 21) & 0x7F));
+        putByte(0x80 | ((size >> 14) & 0x7F));
+        putByte(0x80 | ((size >> 7) & 0x7F));
+        putByte(size & 0x7F);
+        return this;
+    }
+
+    /**
+     * @return number of bytes written so far.
+     */
+    public int size() {
+        return mBuffer.position();
+    }
+
+    /**
+     * @return read-only view of the bytes written so far, valid until the next write.
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        if (mDepth != 0) throw new IllegalStateException(mDepth + " boxes not ended.");
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public void clear() {
+        mBuffer.clear();
+        mDepth = 0;
+    }
+
+    private void ensureCapacity(int count) {
+        if (mBuffer.remaining() >= count) return;
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + count);
+        ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(mBuffer.array(), capacity)).order(ByteOrder.BIG_ENDIAN);
+        buffer.position(mBuffer.position());
+        mBuffer = buffer;
+    }
+}
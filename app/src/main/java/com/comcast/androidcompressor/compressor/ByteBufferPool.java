@@ -0,0 +1,147 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Process-wide pool of direct ByteBuffers in native byte order, shared by all jobs so native memory for sample
+ * buffers is reused instead of allocated per track and per job.
+ * <p>
+ * Buffers come in power of two size classes from {@link #MIN_BUFFER_SIZE} to {@link #MAX_POOLED_BUFFER_SIZE};
+ * larger leases are allocated and dropped as before. Returned buffers are kept up to a retained byte budget.
+ * Thread safe.
+ */
+public class ByteBufferPool {
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 32 * 1024 * 1024;
+    private static final int MIN_SIZE_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_BUFFER_SIZE) - MIN_SIZE_CLASS_SHIFT + 1;
+
+    private static final ByteBufferPool sInstance = new ByteBufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+    private final ArrayDeque<ByteBuffer>[] mFreeBuffers;
+    private long mMaxRetainedBytes;
+    private long mRetainedBytes;
+    private long mLeasedBytes;
+    private long mHighWaterMark;
+    private long mLeaseCount;
+    private long mMissCount;
+
+    /**
+     * @return Pool shared by all transcoding jobs in this process.
+     */
+    public static ByteBufferPool getInstance() {
+        return sInstance;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ByteBufferPool(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+        mFreeBuffers = new ArrayDeque[SIZE_CLASS_COUNT];
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            mFreeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @param minCapacity Least capacity needed.
+     * @return Cleared direct buffer of at least minCapacity bytes, to be given back with {@link #release(ByteBuffer)}.
+     */
+    public synchronized ByteBuffer lease(int minCapacity) {
+        int sizeClass = getSizeClass(minCapacity);
+        ByteBuffer buffer = sizeClass < SIZE_CLASS_COUNT ? mFreeBuffers[sizeClass].poll() : null;
+        if (buffer == null) {
+            int capacity = sizeClass < SIZE_CLASS_COUNT ? 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT) : minCapacity;
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            mMissCount++;
+        } else {
+            mRetainedBytes -= buffer.capacity();
+            buffer.clear();
+        }
+        mLeaseCount++;
+        mLeasedBytes += buffer.capacity();
+        mHighWaterMark = Math.max(mHighWaterMark, mLeasedBytes);
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer from {@link #lease(int)}. It must not be used afterwards. Null is ignored.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        int capacity = buffer.capacity();
+        mLeasedBytes -= capacity;
+        int sizeClass = getSizeClass(capacity);
+        // only exact size classes are pooled, larger ones were allocated to fit.
+        if (sizeClass < SIZE_CLASS_COUNT && 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT) == capacity
+                && mRetainedBytes + capacity <= mMaxRetainedBytes) {
+            mFreeBuffers[sizeClass].push(buffer);
+            mRetainedBytes += capacity;
+        }
+    }
+
+    /**
+     * Most bytes kept in the pool for later leases. Lowering it drops buffers kept beyond it.
+     */
+    public synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        mMaxRetainedBytes = maxRetainedBytes;
+        for (int i = SIZE_CLASS_COUNT - 1; i >= 0 && mRetainedBytes > mMaxRetainedBytes; i--) {
+            while (mRetainedBytes > mMaxRetainedBytes && !mFreeBuffers[i].isEmpty()) {
+                mRetainedBytes -= mFreeBuffers[i].poll().capacity();
+            }
+        }
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return mMaxRetainedBytes;
+    }
+
+    /**
+     * @return Capacity of buffers currently leased, in bytes.
+     */
+    public synchronized long getLeasedBytes() {
+        return mLeasedBytes;
+    }
+
+    /**
+     * @return Largest {@link #getLeasedBytes()} so far.
+     */
+    public synchronized long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * @return Capacity of buffers kept for later leases, in bytes.
+     */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    public synchronized long getLeaseCount() {
+        return mLeaseCount;
+    }
+
+    /**
+     * @return Number of leases that had to allocate a new buffer.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Drops all kept buffers, e.g. on low memory. Leased buffers are not affected.
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> freeBuffers : mFreeBuffers) {
+            freeBuffers.clear();
+        }
+        mRetainedBytes = 0;
+    }
+
+    private static int getSizeClass(int capacity) {
+        if (capacity <= MIN_BUFFER_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_CLASS_SHIFT;
+    }
+}
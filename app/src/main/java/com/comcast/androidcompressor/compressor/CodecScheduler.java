@@ -0,0 +1,225 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admits jobs to an executor only when the codecs they need have a free instance.
+ * <p>
+ * Hardware codecs support a handful of concurrent instances, see
+ * {@link MediaCodecInfo.CodecCapabilities#getMaxSupportedInstances()}. Jobs that would exceed it wait here
+ * instead of failing codec allocation, while jobs needing other codecs, or none at all (pass-through),
+ * may overtake them.
+ * <p>
+ * Pending jobs are ordered by priority, then deadline, then estimated cost, so a short clip the user waits for
+ * is not stuck behind a long upload. Priority changes and cancellation only touch the pending set.
+ */
+class CodecScheduler {
+    private static final String TAG = "CodecScheduler";
+    // used below API 23, where codecs do not report their limit.
+    private static final int DEFAULT_VIDEO_CODEC_INSTANCES = 2;
+    private static final int DEFAULT_AUDIO_CODEC_INSTANCES = 8;
+
+    private final Executor mExecutor;
+    private final int mMaxRunningJobs;
+    private Map<String, Integer> mCapacities;
+    private final Map<String, Integer> mInstancesInUse = new HashMap<>();
+    private final TreeSet<Job> mPendingJobs = new TreeSet<>(new Comparator<Job>() {
+        @Override
+        public int compare(Job lhs, Job rhs) {
+            if (lhs.mPriority != rhs.mPriority) return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            if (lhs.mDeadlineMs != rhs.mDeadlineMs) return lhs.mDeadlineMs < rhs.mDeadlineMs ? -1 : 1;
+            if (lhs.mCost != rhs.mCost) return lhs.mCost < rhs.mCost ? -1 : 1;
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    });
+    private long mNextSequence;
+    private int mRunningJobs;
+
+    public CodecScheduler(Executor executor, int maxRunningJobs) {
+        mExecutor = executor;
+        mMaxRunningJobs = maxRunningJobs;
+    }
+
+    public static String encoderKey(String mime) {
+        return "encoder:" + mime;
+    }
+
+    public static String decoderKey(String mime) {
+        return "decoder:" + mime;
+    }
+
+    /**
+     * Queues a task, which is run as soon as every codec in codecKeys has a free instance.
+     *
+     * @param task       Task to run on the executor.
+     * @param codecKeys  Codecs the task instantiates, from {@link #encoderKey(String)} and {@link #decoderKey(String)}.
+     * @param priority   Higher priority jobs are dispatched first.
+     * @param deadlineMs Wall clock time the job should be done by, or {@link Long#MAX_VALUE} for none.
+     * @param cost       Estimated cost, cheaper jobs are dispatched first among equal priority and deadline.
+     * @return job to change priority or cancel while pending.
+     */
+    public synchronized Job submit(Runnable task, String[] codecKeys, int priority, long deadlineMs, long cost) {
+        Job job = new Job(task, codecKeys, priority, deadlineMs, cost, mNextSequence++);
+        mPendingJobs.add(job);
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Changes priority of a pending job. Has no effect once the job has been dispatched.
+     */
+    public synchronized void setPriority(Job job, int priority) {
+        if (!mPendingJobs.remove(job)) return;
+        job.mPriority = priority;
+        mPendingJobs.add(job);
+        dispatch();
+    }
+
+    /**
+     * Removes a pending job.
+     *
+     * @return true if the job was pending and will never run, false if it has been dispatched already.
+     */
+    public synchronized boolean remove(Job job) {
+        return mPendingJobs.remove(job);
+    }
+
+    public synchronized boolean isPending(Job job) {
+        return mPendingJobs.contains(job);
+    }
+
+    /**
+     * @return maximum number of concurrent instances of the codec, as reported by MediaCodecList.
+     */
+    public synchronized int getCapacity(String codecKey) {
+        loadCapacities();
+        Integer capacity = mCapacities.get(codecKey);
+        if (capacity == null || capacity <= 0) {
+            return codecKey.contains("video/") ? DEFAULT_VIDEO_CODEC_INSTANCES : DEFAULT_AUDIO_CODEC_INSTANCES;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return number of instances of the codec held by running jobs.
+     */
+    public synchronized int getInstancesInUse(String codecKey) {
+        Integer inUse = mInstancesInUse.get(codecKey);
+        return inUse == null ? 0 : inUse;
+    }
+
+    private void dispatch() {
+        Iterator<Job> iterator = mPendingJobs.iterator();
+        while (iterator.hasNext() && mRunningJobs < mMaxRunningJobs) {
+            Job job = iterator.next();
+            // a job needing more instances than the device has still runs once nothing else does.
+            if (mRunningJobs > 0 && !isAvailable(job.mCodecKeys)) continue;
+            iterator.remove();
+            acquire(job.mCodecKeys);
+            mRunningJobs++;
+            try {
+                mExecutor.execute(job);
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Executor rejected job.", e);
+                release(job.mCodecKeys);
+                mRunningJobs--;
+            }
+        }
+    }
+
+    private synchronized void onJobFinished(Job job) {
+        release(job.mCodecKeys);
+        mRunningJobs--;
+        dispatch();
+    }
+
+    private boolean isAvailable(String[] codecKeys) {
+        for (String codecKey : codecKeys) {
+            int needed = 0;
+            for (String other : codecKeys) {
+                if (other.equals(codecKey)) needed++;
+            }
+            if (getInstancesInUse(codecKey) + needed > getCapacity(codecKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void acquire(String[] codecKeys) {
+        for (String codecKey : codecKeys) {
+            mInstancesInUse.put(codecKey, getInstancesInUse(codecKey) + 1);
+        }
+    }
+
+    private void release(String[] codecKeys) {
+        for (String codecKey : codecKeys) {
+            mInstancesInUse.put(codecKey, getInstancesInUse(codecKey) - 1);
+        }
+    }
+
+    // MediaCodec.create{En,De}coderByType picks the first codec supporting the type, so is its limit.
+    private void loadCapacities() {
+        if (mCapacities != null) return;
+        mCapacities = new HashMap<>();
+        MediaCodecInfo[] codecInfos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } else {
+            codecInfos = new MediaCodecInfo[MediaCodecList.getCodecCount()];
+            for (int i = 0; i < codecInfos.length; i++) {
+                codecInfos[i] = MediaCodecList.getCodecInfoAt(i);
+            }
+        }
+        for (MediaCodecInfo codecInfo : codecInfos) {
+            for (String type : codecInfo.getSupportedTypes()) {
+                String codecKey = codecInfo.isEncoder() ? encoderKey(type) : decoderKey(type);
+                if (mCapacities.containsKey(codecKey)) continue;
+                int capacity = 0;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    capacity = codecInfo.getCapabilitiesForType(type).getMaxSupportedInstances();
+                }
+                mCapacities.put(codecKey, capacity);
+                Log.d(TAG, codecKey + " -> " + codecInfo.getName() + ", max instances: " + capacity);
+            }
+        }
+    }
+
+    public class Job implements Runnable {
+        private final Runnable mTask;
+        private final String[] mCodecKeys;
+        private int mPriority;
+        private final long mDeadlineMs;
+        private final long mCost;
+        private final long mSequence;
+
+        private Job(Runnable task, String[] codecKeys, int priority, long deadlineMs, long cost, long sequence) {
+            mTask = task;
+            mCodecKeys = codecKeys;
+            mPriority = priority;
+            mDeadlineMs = deadlineMs;
+            mCost = cost;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTask.run();
+            } finally {
+                onJobFinished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Estimates the size of a transcoded file from the input header and the output format, without decoding,
+ * so a job that would save little can be skipped.
+ * <p>
+ * Output size is the target bitrate of each track over the input duration; video is scaled down when the input has
+ * fewer frames per second than the target, as encoders spend their bitrate per configured frame.
+ * Tracks the format passes through keep their input bitrate. It is an estimate: encoders may undershoot the target
+ * on simple content.
+ */
+public class CompressionPredictor {
+    private static final String TAG = "CompressionPredictor";
+    // moov and chunk tables, relative to media data.
+    private static final double CONTAINER_OVERHEAD_RATIO = 0.01;
+
+    private CompressionPredictor() {
+    }
+
+    /**
+     * Estimate of a transcode. Sizes are in bytes, bitrates in bit/sec; unknown values are 0.
+     */
+    public static class Prediction {
+        private final long mInputBytes;
+        private final long mEstimatedOutputBytes;
+        private final long mDurationUs;
+        private final int mSourceBitRate;
+        private final int mTargetBitRate;
+
+        Prediction(long inputBytes, long estimatedOutputBytes, long durationUs, int sourceBitRate, int targetBitRate) {
+            mInputBytes = inputBytes;
+            mEstimatedOutputBytes = estimatedOutputBytes;
+            mDurationUs = durationUs;
+            mSourceBitRate = sourceBitRate;
+            mTargetBitRate = targetBitRate;
+        }
+
+        public long getInputBytes() {
+            return mInputBytes;
+        }
+
+        public long getEstimatedOutputBytes() {
+            return mEstimatedOutputBytes;
+        }
+
+        public long getDurationUs() {
+            return mDurationUs;
+        }
+
+        public int getSourceBitRate() {
+            return mSourceBitRate;
+        }
+
+        /**
+         * @return estimated bitrate of the output, video and audio.
+         */
+        public int getTargetBitRate() {
+            return mTargetBitRate;
+        }
+
+        /**
+         * @return whether input size and duration were known, so the estimate means anything.
+         */
+        public boolean isKnown() {
+            return mInputBytes > 0 && mEstimatedOutputBytes > 0;
+        }
+
+        /**
+         * @return share of the input size saved by transcoding, negative if the output would be larger,
+         * or 0 if unknown.
+         */
+        public double getSavingRatio() {
+            if (!isKnown()) return 0;
+            return 1.0 - (double) mEstimatedOutputBytes / mInputBytes;
+        }
+
+        /**
+         * @return whether transcoding saves at least the given share of the input size.
+         * Unknown estimates are always worth transcoding.
+         */
+        public boolean isWorthTranscoding(double minSavingRatio) {
+            return !isKnown() || getSavingRatio() >= minSavingRatio;
+        }
+
+        @Override
+        public String toString() {
+            return "Prediction{input=" + mInputBytes + " bytes, output=" + mEstimatedOutputBytes + " bytes, duration="
+                    + mDurationUs + " us, bitrate " + mSourceBitRate + " -> " + mTargetBitRate + "}";
+        }
+    }
+
+    /**
+     * @return estimate, or null if the input could not be read.
+     */
+    public static Prediction predict(FileDescriptor fileDescriptor, MediaOutputFormat formatStrategy) {
+        MediaProbe probe = MediaProbe.probe(fileDescriptor);
+        if (probe == null) return null;
+        return predict(probe, fileDescriptor, formatStrategy);
+    }
+
+    static Prediction predict(MediaProbe probe, FileDescriptor fileDescriptor, MediaOutputFormat formatStrategy) {
+        long durationUs = probe.getDurationUs();
+        int sourceBitRate = probe.getContainerBitRate();
+        long inputBytes = getSize(fileDescriptor);
+        if (inputBytes <= 0 && sourceBitRate > 0 && durationUs > 0) {
+            inputBytes = sourceBitRate * durationUs / 8 / 1000000;
+        }
+        if (sourceBitRate <= 0 && inputBytes > 0 && durationUs > 0) {
+            sourceBitRate = (int) (inputBytes * 8 * 1000000 / durationUs);
+        }
+
+        MediaFormat videoFormat = probe.getVideoFormat();
+        MediaFormat audioFormat = probe.getAudioFormat();
+        double videoBitRate = getBitRate(videoFormat);
+        MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(videoFormat, probe.getRotation());
+        if (videoOutputFormat != null) {
+            videoBitRate = getBitRate(videoOutputFormat);
+            if (videoFormat.containsKey(MediaFormat.KEY_FRAME_RATE) && videoOutputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                int sourceFrameRate = videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+                int targetFrameRate = videoOutputFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+                if (sourceFrameRate > 0 && sourceFrameRate < targetFrameRate) {
+                    videoBitRate = videoBitRate * sourceFrameRate / targetFrameRate;
+                }
+            }
+        }
+        MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(audioFormat);
+        double audioBitRate = getBitRate(audioOutputFormat != null ? audioOutputFormat : audioFormat);
+
+        int targetBitRate = (int) (videoBitRate + audioBitRate);
+        long estimatedOutputBytes = 0;
+        if (durationUs > 0 && videoBitRate > 0) {
+            estimatedOutputBytes = (long) (targetBitRate * (1 + CONTAINER_OVERHEAD_RATIO) * durationUs / 8 / 1000000);
+        }
+        Prediction prediction = new Prediction(inputBytes, estimatedOutputBytes, durationUs, sourceBitRate, targetBitRate);
+        Log.d(TAG, prediction.toString());
+        return prediction;
+    }
+
+    private static double getBitRate(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+    }
+
+    private static long getSize(FileDescriptor fileDescriptor) {
+        try {
+            // not closed, closing would close the descriptor of the caller.
+            return new FileInputStream(fileDescriptor).getChannel().size();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not get input size (fd: " + fileDescriptor + ").", e);
+            return 0;
+        }
+    }
+}
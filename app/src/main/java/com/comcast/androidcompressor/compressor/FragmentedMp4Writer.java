@@ -0,0 +1,327 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pure Java writer of fragmented MP4 (ISO/IEC 14496-12 movie fragments, as used by CMAF, HLS and DASH).
+ * <p>
+ * The init segment (ftyp and a moov without samples) is delivered on {@link #start()}. Samples are then buffered
+ * until the next video sync sample, where the buffered samples are delivered as one self-contained fragment
+ * (moof and mdat). Encoders emit sync samples every KEY_I_FRAME_INTERVAL, so fragments follow that interval and
+ * can be uploaded while later ones are still being transcoded. Without a video track, fragments are cut every
+ * {@link #AUDIO_ONLY_FRAGMENT_DURATION_US}.
+ * <p>
+ * Has no Android dependency. Not thread safe.
+ */
+public class FragmentedMp4Writer implements Mp4SampleWriter {
+    private static final int MOVIE_TIME_SCALE = 1000;
+    private static final int INITIAL_FRAGMENT_CAPACITY = 1024 * 1024;
+    private static final int TRUN_FLAGS = 0x000F01; // data offset, sample duration, size, flags and composition offset
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000; // depends on no other sample
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000; // depends on others, non sync
+    public static final long AUDIO_ONLY_FRAGMENT_DURATION_US = 2000000;
+
+    public interface FragmentListener {
+        /**
+         * Called once before any fragment with ftyp and moov, which a player needs to decode fragments.
+         *
+         * @param initSegment Init segment, only valid during the call.
+         */
+        void onInitSegment(ByteBuffer initSegment) throws IOException;
+
+        /**
+         * Called for each fragment, in order. Every fragment starts with a video sync sample, if there is video.
+         *
+         * @param fragment       moof and mdat, only valid during the call.
+         * @param sequenceNumber Sequence number of the fragment, starting at 1.
+         * @param startTimeUs    Presentation time of the fragment relative to the first fragment.
+         * @param durationUs     Duration of the fragment.
+         */
+        void onFragment(ByteBuffer fragment, int sequenceNumber, long startTimeUs, long durationUs) throws IOException;
+
+        /**
+         * Called after the last fragment.
+         */
+        void onFinished() throws IOException;
+    }
+
+    private final FragmentListener mListener;
+    private final List<TrackFragment> mTracks = new ArrayList<>(2);
+    private final BoxWriter mFragmentWriter = new BoxWriter(INITIAL_FRAGMENT_CAPACITY);
+    private int mOrientationHint;
+    private int mSequenceNumber;
+    private long mStartTimeUs = -1;
+    private long mFragmentEndTimeUs;
+    private boolean mHasVideoTrack;
+    private boolean mStarted;
+    private boolean mStopped;
+
+    public FragmentedMp4Writer(FragmentListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps, boolean isAnnexB) {
+        checkNotStarted();
+        mTracks.add(new TrackFragment(Mp4Track.createAvcTrack(mTracks.size() + 1, width, height, sps, pps, isAnnexB)));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig, int bitRate) {
+        checkNotStarted();
+        mTracks.add(new TrackFragment(Mp4Track.createAacTrack(mTracks.size() + 1, sampleRate, channelCount, audioSpecificConfig, bitRate)));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        checkNotStarted();
+        mOrientationHint = degrees;
+    }
+
+    /**
+     * Delivers the init segment.
+     */
+    @Override
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) throw new IllegalStateException("No track added.");
+        mStarted = true;
+        for (TrackFragment track : mTracks) {
+            mHasVideoTrack |= track.mTrack.isVideo();
+        }
+        BoxWriter writer = mFragmentWriter;
+        writer.clear();
+        writer.startBox("ftyp")
+                .putFourCc("iso6").putInt(0)
+                .putFourCc("iso6").putFourCc("cmfc").putFourCc("isom").putFourCc("avc1").putFourCc("mp41")
+                .endBox();
+        writer.startBox("moov");
+        writer.startFullBox("mvhd", 0, 0)
+                .putInt(0).putInt(0)
+                .putInt(MOVIE_TIME_SCALE)
+                .putInt(0) // duration is in fragments
+                .putInt(0x00010000)
+                .putShort(0x0100)
+                .putZeros(10)
+                .putInt(0x10000).putInt(0).putInt(0)
+                .putInt(0).putInt(0x10000).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000)
+                .putZeros(24)
+                .putInt(mTracks.size() + 1)
+                .endBox();
+        for (TrackFragment track : mTracks) {
+            track.mTrack.writeTrak(writer, 0, MOVIE_TIME_SCALE, 0, false, mOrientationHint);
+        }
+        writer.startBox("mvex");
+        for (TrackFragment track : mTracks) {
+            writer.startFullBox("trex", 0, 0)
+                    .putInt(track.mTrack.getTrackId())
+                    .putInt(1) // sample description index
+                    .putInt(0).putInt(0).putInt(0)
+                    .endBox();
+        }
+        writer.endBox();
+        writer.endBox();
+        mListener.onInitSegment(writer.asReadOnlyBuffer());
+    }
+
+    /**
+     * Buffers a sample. A video sync sample first delivers the samples buffered before it as a fragment, as does
+     * an audio sample {@link #AUDIO_ONLY_FRAGMENT_DURATION_US} after the first buffered one when there is no video.
+     * Start codes of AVC tracks added as Annex B are replaced with 4 byte NAL unit lengths. Audio samples are all sync
+     * samples, whatever the encoder flagged.
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean isSyncSample) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("Writer is not started.");
+        if (!data.hasRemaining()) return;
+        TrackFragment track = mTracks.get(trackIndex);
+        if (track.mTrack.isVideo() && isSyncSample && track.mSampleSizes.size() > 0) {
+            writeFragment(presentationTimeUs);
+        } else if (!mHasVideoTrack && track.mSampleSizes.size() > 0
+                && presentationTimeUs - track.mPresentationTimesUs.get(0) >= AUDIO_ONLY_FRAGMENT_DURATION_US) {
+            writeFragment(-1);
+        }
+        int size;
+        if (track.mTrack.isAnnexB()) {
+            size = putAnnexBSample(track.mData, data);
+        } else {
+            size = data.remaining();
+            track.mData.putBuffer(data);
+        }
+        track.mSampleSizes.add(size);
+        track.mPresentationTimesUs.add(presentationTimeUs);
+        // AAC encoders do not flag sync frames, but every audio frame decodes on its own.
+        track.mSampleFlags.add(isSyncSample || !track.mTrack.isVideo() ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+    }
+
+    /**
+     * Delivers the remaining samples as the last fragment.
+     */
+    @Override
+    public void stop() throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("Writer is not started.");
+        mStopped = true;
+        writeFragment(-1);
+        mListener.onFinished();
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /**
+     * @param nextSyncTimeUs Presentation time of the video sync sample starting the next fragment, or -1 if none.
+     */
+    private void writeFragment(long nextSyncTimeUs) throws IOException {
+        long firstTimeUs = Long.MAX_VALUE;
+        for (TrackFragment track : mTracks) {
+            for (int i = 0; i < track.mPresentationTimesUs.size(); i++) {
+                firstTimeUs = Math.min(firstTimeUs, track.mPresentationTimesUs.get(i));
+            }
+        }
+        if (firstTimeUs == Long.MAX_VALUE) return;
+        if (mStartTimeUs < 0) mStartTimeUs = firstTimeUs;
+        long fragmentStartTimeUs = mFragmentEndTimeUs;
+        BoxWriter writer = mFragmentWriter;
+        writer.clear();
+        writer.startBox("moof");
+        writer.startFullBox("mfhd", 0, 0).putInt(++mSequenceNumber).endBox();
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int t = 0; t < mTracks.size(); t++) {
+            TrackFragment track = mTracks.get(t);
+            dataOffsetPositions[t] = -1;
+            if (track.mSampleSizes.size() == 0) continue;
+            dataOffsetPositions[t] = writeTrackFragment(writer, track, nextSyncTimeUs);
+            if (track.mTrack.isVideo() || !mHasVideoTrack) {
+                mFragmentEndTimeUs = track.mNextDecodeTicks * 1000000 / track.mTrack.getTimeScale();
+            }
+        }
+        writer.endBox();
+        int dataOffset = writer.size() + 8;
+        writer.startBox("mdat");
+        for (int t = 0; t < mTracks.size(); t++) {
+            TrackFragment track = mTracks.get(t);
+            if (dataOffsetPositions[t] < 0) continue;
+            writer.patchInt(dataOffsetPositions[t], dataOffset);
+            ByteBuffer data = track.mData.asReadOnlyBuffer();
+            dataOffset += data.remaining();
+            writer.putBuffer(data);
+            track.clear();
+        }
+        writer.endBox();
+        mListener.onFragment(writer.asReadOnlyBuffer(), mSequenceNumber, fragmentStartTimeUs,
+                Math.max(0, mFragmentEndTimeUs - fragmentStartTimeUs));
+    }
+
+    // Writes traf and returns the position of its trun data offset, which is known once moof is complete.
+    private int writeTrackFragment(BoxWriter writer, TrackFragment track, long nextSyncTimeUs) {
+        int timeScale = track.mTrack.getTimeScale();
+        int sampleCount = track.mSampleSizes.size();
+        long[] presentationTicks = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            presentationTicks[i] = Math.max(0, Mp4Track.toTicks(track.mPresentationTimesUs.get(i) - mStartTimeUs, timeScale));
+        }
+        // fragments start with a sync sample, so decode times are the presentation times sorted within it.
+        long[] decodeTicks = Arrays.copyOf(presentationTicks, sampleCount);
+        Arrays.sort(decodeTicks);
+        long baseDecodeTicks = track.mFragmentCount == 0 ? decodeTicks[0] : track.mNextDecodeTicks;
+        long nextDecodeTicks = nextSyncTimeUs >= 0 && track.mTrack.isVideo()
+                ? Mp4Track.toTicks(nextSyncTimeUs - mStartTimeUs, timeScale) : -1;
+        long[] durations = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            if (i + 1 < sampleCount) {
+                durations[i] = decodeTicks[i + 1] - decodeTicks[i];
+            } else if (nextDecodeTicks > decodeTicks[i]) {
+                durations[i] = nextDecodeTicks - decodeTicks[i];
+            } else if (i > 0) {
+                durations[i] = durations[i - 1];
+            } else {
+                durations[i] = track.mLastDurationTicks;
+            }
+        }
+        boolean hasNegativeOffset = false;
+        long decodeTime = baseDecodeTicks;
+        long[] compositionOffsets = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            compositionOffsets[i] = presentationTicks[i] - decodeTime;
+            hasNegativeOffset |= compositionOffsets[i] < 0;
+            decodeTime += durations[i];
+        }
+
+        writer.startBox("traf");
+        writer.startFullBox("tfhd", 0, 0x020000) // default base is moof
+                .putInt(track.mTrack.getTrackId())
+                .endBox();
+        writer.startFullBox("tfdt", 1, 0).putLong(baseDecodeTicks).endBox();
+        writer.startFullBox("trun", hasNegativeOffset ? 1 : 0, TRUN_FLAGS).putInt(sampleCount);
+        int dataOffsetPosition = writer.size();
+        writer.putInt(0);
+        for (int i = 0; i < sampleCount; i++) {
+            writer.putInt((int) durations[i])
+                    .putInt(track.mSampleSizes.get(i))
+                    .putInt(track.mSampleFlags.get(i))
+                    .putInt((int) compositionOffsets[i]);
+        }
+        writer.endBox();
+        writer.endBox();
+
+        track.mNextDecodeTicks = decodeTime;
+        track.mLastDurationTicks = durations[sampleCount - 1];
+        track.mFragmentCount++;
+        return dataOffsetPosition;
+    }
+
+    private int putAnnexBSample(BoxWriter sink, ByteBuffer data) {
+        Mp4Writer.checkStartCode(data);
+        int end = data.limit();
+        int size = 0;
+        int nalStart = Mp4Writer.skipStartCode(data, data.position());
+        while (nalStart < end) {
+            int nextStartCode = Mp4Writer.findStartCode(data, nalStart, end);
+            ByteBuffer nal = data.duplicate();
+            nal.limit(nextStartCode).position(nalStart);
+            sink.putInt(nextStartCode - nalStart).putBuffer(nal);
+            size += 4 + nextStartCode - nalStart;
+            nalStart = nextStartCode < end ? Mp4Writer.skipStartCode(data, nextStartCode) : end;
+        }
+        data.position(end);
+        return size;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) throw new IllegalStateException("Writer has already started.");
+    }
+
+    private static class TrackFragment {
+        private final Mp4Track mTrack;
+        private final BoxWriter mData = new BoxWriter(INITIAL_FRAGMENT_CAPACITY);
+        private final IntArray mSampleSizes = new IntArray(256);
+        private final LongArray mPresentationTimesUs = new LongArray(256);
+        private final IntArray mSampleFlags = new IntArray(256);
+        private long mNextDecodeTicks;
+        private long mLastDurationTicks;
+        private int mFragmentCount;
+
+        private TrackFragment(Mp4Track track) {
+            mTrack = track;
+            mLastDurationTicks = track.isVideo() ? track.getTimeScale() / 30 : 1024;
+        }
+
+        private void clear() {
+            mData.clear();
+            mSampleSizes.clear();
+            mPresentationTimesUs.clear();
+            mSampleFlags.clear();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Captures JPEG thumbnails of frames {@link VideoTrackTranscoder} already decodes, so no second decode of the
+ * output is needed for them.
+ * <p>
+ * For each requested time, the first frame rendered at or after it is drawn again, upright and scaled down, into
+ * an offscreen framebuffer and read back by a {@link PixelBufferReader}, overlapping the following frames where
+ * the context allows; only thumbnail size pixels cross from the GPU. Bitmap conversion and JPEG encoding run on
+ * the given executor. GL methods are called on the transcoding thread with the encoder's EGL context current;
+ * {@link #awaitCompletion()} may be called on any thread.
+ */
+class FrameCapturer {
+    private static final String TAG = "FrameCapturer";
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * Receives thumbnails on the encoding executor.
+     */
+    interface Callback {
+        /**
+         * @param timeUs Requested presentation time of the input, in micro-second.
+         * @param jpeg   JPEG of the first rendered frame at or after that time.
+         */
+        void onFrameCaptured(long timeUs, byte[] jpeg);
+    }
+
+    private final long[] mTimesUs;
+    private final int mMaxSize;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private final Object mPendingLock = new Object();
+    private int mPendingCount;
+    private int mNextTimeIndex;
+    private int mWidth;
+    private int mHeight;
+    private int mOrientation;
+    private int mFramebuffer;
+    private int mTexture;
+    private PixelBufferReader mPixelBufferReader;
+    // requested times of the reads in flight, in read order.
+    private final ArrayDeque<long[]> mReadTimesUs = new ArrayDeque<>();
+
+    /**
+     * @param timesUs  Presentation times of the input to capture, in micro-second.
+     * @param maxSize  Longer edge of thumbnails, in pixels. Frames are not upscaled.
+     * @param executor Executor for JPEG encoding.
+     * @param callback Callback receiving thumbnails on the executor.
+     */
+    public FrameCapturer(long[] timesUs, int maxSize, Executor executor, Callback callback) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid thumbnail size: " + maxSize);
+        }
+        mTimesUs = Arrays.copyOf(timesUs, timesUs.length);
+        Arrays.sort(mTimesUs);
+        mMaxSize = maxSize;
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * Creates the framebuffer thumbnails are drawn to. Called on the GL thread.
+     *
+     * @param width       Width of decoded frames.
+     * @param height      Height of decoded frames.
+     * @param orientation Rotation of the input in degrees; thumbnails are rotated upright.
+     */
+    public void setup(int width, int height, int orientation) {
+        if (orientation % 180 != 0) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        float scale = Math.min(1.0f, (float) mMaxSize / Math.max(width, height));
+        mWidth = Math.max(1, Math.round(width * scale));
+        mHeight = Math.max(1, Math.round(height * scale));
+        mOrientation = orientation;
+
+        int[] names = new int[1];
+        GLES20.glGenTextures(1, names, 0);
+        mTexture = names[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glGenFramebuffers(1, names, 0);
+        mFramebuffer = names[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTexture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Thumbnail framebuffer incomplete: 0x" + Integer.toHexString(status));
+        }
+        mPixelBufferReader = new PixelBufferReader(mWidth, mHeight, PixelBufferReader.DEFAULT_BUFFER_COUNT,
+                new PixelBufferReader.Callback() {
+                    @Override
+                    public void onPixelsRead(ByteBuffer pixels, long presentationTimeUs) {
+                        submit(pixels, mReadTimesUs.poll());
+                    }
+                });
+        mPixelBufferReader.setup();
+        Log.d(TAG, "Capturing " + mTimesUs.length + " frames at " + mWidth + "x" + mHeight
+                + (mPixelBufferReader.isAsync() ? "" : ", reading synchronously"));
+    }
+
+    /**
+     * @return true if the frame to render at this time should be captured.
+     */
+    public boolean isCaptureDue(long presentationTimeUs) {
+        return mNextTimeIndex < mTimesUs.length && mTimesUs[mNextTimeIndex] <= presentationTimeUs;
+    }
+
+    /**
+     * Draws the frame latched in the surface into the thumbnail framebuffer and queues its readback; frames read
+     * back by then are queued for encoding. Framebuffer and viewport of the caller are restored. Called on the GL
+     * thread.
+     */
+    public void capture(OutputSurface surface, long presentationTimeUs) {
+        int[] previous = new int[5];
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, previous, 0);
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previous, 1);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        // drawn flipped, so rows read back bottom-up come out top-down as Bitmap expects.
+        surface.drawImage(true, mOrientation, true);
+        int first = mNextTimeIndex;
+        while (isCaptureDue(presentationTimeUs)) mNextTimeIndex++;
+        mReadTimesUs.add(Arrays.copyOfRange(mTimesUs, first, mNextTimeIndex));
+        mPixelBufferReader.read(presentationTimeUs);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, previous[0]);
+        GLES20.glViewport(previous[1], previous[2], previous[3], previous[4]);
+    }
+
+    /**
+     * Queues encoding of all frames still being read back. Called on the GL thread after the last frame.
+     */
+    public void flush() {
+        if (mPixelBufferReader != null) mPixelBufferReader.flush();
+    }
+
+    // Converts and encodes on the executor; the pixels are not touched by GL anymore.
+    private void submit(final ByteBuffer pixels, final long[] timesUs) {
+        synchronized (mPendingLock) {
+            mPendingCount++;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] jpeg = encode(pixels);
+                    for (long timeUs : timesUs) {
+                        mCallback.onFrameCaptured(timeUs, jpeg);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Could not encode thumbnail.", e);
+                } finally {
+                    synchronized (mPendingLock) {
+                        mPendingCount--;
+                        mPendingLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private byte[] encode(ByteBuffer pixels) {
+        // RGBA bytes are what Bitmap.copyPixelsFromBuffer expects for ARGB_8888.
+        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        try {
+            pixels.rewind();
+            bitmap.copyPixelsFromBuffer(pixels);
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(mWidth * mHeight / 4);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+            return outputStream.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Blocks until every captured frame has been encoded and delivered. Frames still being read back when
+     * {@link #flush()} was not called are not waited for.
+     *
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        synchronized (mPendingLock) {
+            while (mPendingCount > 0) {
+                mPendingLock.wait();
+            }
+        }
+        if (mNextTimeIndex < mTimesUs.length) {
+            Log.i(TAG, (mTimesUs.length - mNextTimeIndex) + " requested frames past the last rendered one, not captured.");
+        }
+    }
+
+    /**
+     * Deletes the framebuffer and read buffers. Called on the GL thread.
+     */
+    public void release() {
+        if (mPixelBufferReader != null) {
+            mPixelBufferReader.release();
+            mPixelBufferReader = null;
+        }
+        if (mFramebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+            mFramebuffer = 0;
+        }
+        if (mTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+            mTexture = 0;
+        }
+    }
+}
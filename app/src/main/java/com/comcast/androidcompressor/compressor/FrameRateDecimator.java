@@ -0,0 +1,103 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.util.Arrays;
+
+/**
+ * Picks the decoded frames {@link VideoTrackTranscoder} renders, so inputs above the output frame rate are not
+ * drawn and encoded frame by frame only for the encoder to get more frames than the output needs.
+ * <p>
+ * Frames are matched to the nearest time of a grid of the target frame rate anchored at the first frame, i.e.
+ * with half an output frame interval of tolerance either way: the first frame of each grid slot is kept, others
+ * are dropped. Timestamp jitter well below half an interval does not change which frames are kept. Only use it
+ * for inputs known to be above the target frame rate, see {@link #isNeeded(int, int)}; inputs slightly below it
+ * would lose a frame whenever their drift crosses a slot boundary.
+ */
+class FrameRateDecimator {
+    private static final long MICROSECS_PER_SEC = 1000000;
+    // frames of B-frame reordering covered by mayRender.
+    private static final int RECENT_FRAME_COUNT = 16;
+
+    private final int mFrameRate;
+    private long mAnchorTimeUs = -1;
+    // index of the next grid slot to fill.
+    private long mNextFrameIndex;
+    private int mKeptFrameCount;
+    private int mDroppedFrameCount;
+    // presentation times passed to mayRender, in a ring.
+    private final long[] mRecentTimesUs = new long[RECENT_FRAME_COUNT];
+    private int mRecentTimeIndex;
+
+    /**
+     * @param frameRate Target frame rate, in frames per second.
+     */
+    public FrameRateDecimator(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Invalid frame rate: " + frameRate);
+        }
+        mFrameRate = frameRate;
+        Arrays.fill(mRecentTimesUs, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param sourceFrameRate Frame rate of the input, or 0 if unknown.
+     * @param targetFrameRate Frame rate of the output.
+     * @return true if frames have to be dropped to reach the target frame rate.
+     */
+    public static boolean isNeeded(int sourceFrameRate, int targetFrameRate) {
+        return targetFrameRate > 0 && sourceFrameRate > targetFrameRate;
+    }
+
+    /**
+     * Called for each frame to render, in presentation order.
+     *
+     * @return true if the frame should be rendered, false to drop it.
+     */
+    public boolean shouldRender(long presentationTimeUs) {
+        if (mAnchorTimeUs < 0) mAnchorTimeUs = presentationTimeUs;
+        long frameIndex = getFrameIndex(presentationTimeUs - mAnchorTimeUs);
+        if (frameIndex < mNextFrameIndex) {
+            mDroppedFrameCount++;
+            return false;
+        }
+        // a gap in the input leaves no debt.
+        mNextFrameIndex = frameIndex + 1;
+        mKeptFrameCount++;
+        return true;
+    }
+
+    /**
+     * Whether a frame not yet decoded may be rendered, so frames nothing refers to can be dropped before decoding.
+     * Called for every frame in decode order, ahead of {@link #shouldRender(long)}; errs on keeping frames.
+     * <p>
+     * A frame is needed if it is the first of a grid slot not filled yet, i.e. if the frame before it in
+     * presentation order lies in an earlier slot. That frame is decoded before this one, except with reordering
+     * deeper than the recent frames remembered.
+     */
+    public boolean mayRender(long presentationTimeUs) {
+        long previousTimeUs = Long.MIN_VALUE;
+        for (long timeUs : mRecentTimesUs) {
+            if (timeUs < presentationTimeUs && timeUs > previousTimeUs) previousTimeUs = timeUs;
+        }
+        mRecentTimesUs[mRecentTimeIndex] = presentationTimeUs;
+        mRecentTimeIndex = (mRecentTimeIndex + 1) % mRecentTimesUs.length;
+        if (mAnchorTimeUs < 0 || previousTimeUs == Long.MIN_VALUE) return true;
+        long frameIndex = getFrameIndex(presentationTimeUs - mAnchorTimeUs);
+        return frameIndex >= mNextFrameIndex && frameIndex > getFrameIndex(previousTimeUs - mAnchorTimeUs);
+    }
+
+    public int getKeptFrameCount() {
+        return mKeptFrameCount;
+    }
+
+    public int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    // index of the nearest grid time, computed per frame so rounding errors do not add up.
+    private long getFrameIndex(long elapsedUs) {
+        // round(elapsed * rate / 1s) as a floor division, so frames before the anchor get negative indices.
+        long numerator = elapsedUs * mFrameRate * 2 + MICROSECS_PER_SEC;
+        long denominator = MICROSECS_PER_SEC * 2;
+        return numerator >= 0 ? numerator / denominator : -((denominator - 1 - numerator) / denominator);
+    }
+}
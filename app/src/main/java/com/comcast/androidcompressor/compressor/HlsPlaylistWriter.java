@@ -0,0 +1,115 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * {@link FragmentedMp4Writer.FragmentListener} writing each fragment to its own file in a directory, along with
+ * an HLS media playlist (RFC 8216, fMP4 segments) rewritten after every fragment. The playlist is an EVENT
+ * playlist, so players and uploaders can follow it while transcoding; EXT-X-ENDLIST is appended when done. Its
+ * target duration is fixed up front, as it may not change between reloads (RFC 8216 6.2.1).
+ * <p>
+ * Fragments may also be forwarded to another listener, e.g. one uploading them.
+ */
+public class HlsPlaylistWriter implements FragmentedMp4Writer.FragmentListener {
+    private final File mDirectory;
+    private final String mBaseName;
+    private final int mTargetDurationSecs;
+    private final FragmentedMp4Writer.FragmentListener mForwardListener;
+    private final StringBuilder mSegments = new StringBuilder();
+
+    /**
+     * @param directory          Directory for the playlist, init segment and fragments.
+     * @param baseName           Files are named baseName.m3u8, baseName_init.mp4 and baseName_N.m4s.
+     * @param targetDurationSecs EXT-X-TARGETDURATION, in seconds. Fragments start at video sync samples, so use the
+     *                           KEY_I_FRAME_INTERVAL of the output video format rounded up, or
+     *                           {@link FragmentedMp4Writer#AUDIO_ONLY_FRAGMENT_DURATION_US} for audio only.
+     * @param forwardListener    Listener also receiving every call, or null.
+     */
+    public HlsPlaylistWriter(File directory, String baseName, int targetDurationSecs,
+                             FragmentedMp4Writer.FragmentListener forwardListener) {
+        if (targetDurationSecs <= 0) {
+            throw new IllegalArgumentException("Invalid target duration: " + targetDurationSecs);
+        }
+        mDirectory = directory;
+        mBaseName = baseName;
+        mTargetDurationSecs = targetDurationSecs;
+        mForwardListener = forwardListener;
+    }
+
+    public File getPlaylistFile() {
+        return new File(mDirectory, mBaseName + ".m3u8");
+    }
+
+    @Override
+    public void onInitSegment(ByteBuffer initSegment) throws IOException {
+        writeFile(getInitSegmentName(), initSegment.duplicate());
+        if (mForwardListener != null) mForwardListener.onInitSegment(initSegment);
+    }
+
+    /**
+     * @throws IOException also if the fragment, rounded to whole seconds, is longer than the target duration.
+     */
+    @Override
+    public void onFragment(ByteBuffer fragment, int sequenceNumber, long startTimeUs, long durationUs) throws IOException {
+        if ((durationUs + 500000) / 1000000 > mTargetDurationSecs) {
+            throw new IOException("Fragment " + sequenceNumber + " of " + durationUs + " us exceeds target duration of "
+                    + mTargetDurationSecs + " s.");
+        }
+        String name = mBaseName + "_" + sequenceNumber + ".m4s";
+        writeFile(name, fragment.duplicate());
+        mSegments.append(String.format(Locale.US, "#EXTINF:%.3f,\n", durationUs / 1000000.0)).append(name).append('\n');
+        writePlaylist(false);
+        if (mForwardListener != null) mForwardListener.onFragment(fragment, sequenceNumber, startTimeUs, durationUs);
+    }
+
+    @Override
+    public void onFinished() throws IOException {
+        writePlaylist(true);
+        if (mForwardListener != null) mForwardListener.onFinished();
+    }
+
+    private String getInitSegmentName() {
+        return mBaseName + "_init.mp4";
+    }
+
+    // Written to a temporary file and renamed, so readers never see a partial playlist.
+    private void writePlaylist(boolean finished) throws IOException {
+        File temporaryFile = new File(mDirectory, mBaseName + ".m3u8.tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+        try {
+            writer.write("#EXTM3U\n");
+            writer.write("#EXT-X-VERSION:7\n");
+            writer.write("#EXT-X-TARGETDURATION:" + mTargetDurationSecs + "\n");
+            writer.write("#EXT-X-MEDIA-SEQUENCE:1\n");
+            writer.write("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+            writer.write("#EXT-X-INDEPENDENT-SEGMENTS\n");
+            writer.write("#EXT-X-MAP:URI=\"" + getInitSegmentName() + "\"\n");
+            writer.write(mSegments.toString());
+            if (finished) writer.write("#EXT-X-ENDLIST\n");
+        } finally {
+            writer.close();
+        }
+        if (!temporaryFile.renameTo(getPlaylistFile())) {
+            throw new IOException("Could not replace playlist " + getPlaylistFile());
+        }
+    }
+
+    private void writeFile(String name, ByteBuffer data) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(new File(mDirectory, name));
+        try {
+            FileChannel channel = outputStream.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -33,7 +33,8 @@ class InputSurface {
         eglSetup();
     }
     /**
-     * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
+     * Prepares EGL.  We want a GLES 3.0 context if the device has one, so that {@link PixelBufferReader}
+     * may read back asynchronously, otherwise GLES 2.0, and a surface that supports recording.
      */
     private void eglSetup() {
         mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
@@ -45,43 +46,67 @@ class InputSurface {
             mEGLDisplay = null;
             throw new RuntimeException("unable to initialize EGL14");
         }
-        // Configure EGL for recordable and OpenGL ES 2.0.  We want enough RGB bits
-        // to minimize artifacts from possible YUV conversion.
+        EGLConfig config = chooseConfig(EGLExt.EGL_OPENGL_ES3_BIT_KHR);
+        if (config != null) {
+            mEGLContext = createContext(config, 3);
+            // drivers without ES 3 contexts fail here, ES 2 is tried then.
+            if (EGL14.eglGetError() != EGL14.EGL_SUCCESS) mEGLContext = EGL14.EGL_NO_CONTEXT;
+        }
+        if (mEGLContext == null || mEGLContext.equals(EGL14.EGL_NO_CONTEXT)) {
+            config = chooseConfig(EGL14.EGL_OPENGL_ES2_BIT);
+            if (config == null) {
+                throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+            }
+            mEGLContext = createContext(config, 2);
+            checkEglError("eglCreateContext");
+            if (mEGLContext == null) {
+                throw new RuntimeException("null context");
+            }
+        }
+        // Create a window surface, and attach it to the Surface we received.
+        int[] surfaceAttribs = {
+                EGL14.EGL_NONE
+        };
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, config, mSurface,
+                surfaceAttribs, 0);
+        checkEglError("eglCreateWindowSurface");
+        if (mEGLSurface == null) {
+            throw new RuntimeException("surface was null");
+        }
+    }
+    /**
+     * Configures EGL for recordable and the given OpenGL ES version.  We want enough RGB bits
+     * to minimize artifacts from possible YUV conversion.
+     *
+     * @return config, or null if there is none.
+     */
+    private EGLConfig chooseConfig(int renderableType) {
         int[] attribList = {
                 EGL14.EGL_RED_SIZE, 8,
                 EGL14.EGL_GREEN_SIZE, 8,
                 EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_RENDERABLE_TYPE, renderableType,
                 EGL_RECORDABLE_ANDROID, 1,
                 EGL14.EGL_NONE
         };
         EGLConfig[] configs = new EGLConfig[1];
         int[] numConfigs = new int[1];
         if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
-                numConfigs, 0)) {
-            throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+                numConfigs, 0) || numConfigs[0] <= 0) {
+            return null;
         }
-        // Configure context for OpenGL ES 2.0.
+        return configs[0];
+    }
+    /**
+     * Creates a context for the given OpenGL ES version.  Errors are left to the caller.
+     */
+    private EGLContext createContext(EGLConfig config, int clientVersion) {
         int[] attrib_list = {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion,
                 EGL14.EGL_NONE
         };
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT,
+        return EGL14.eglCreateContext(mEGLDisplay, config, EGL14.EGL_NO_CONTEXT,
                 attrib_list, 0);
-        checkEglError("eglCreateContext");
-        if (mEGLContext == null) {
-            throw new RuntimeException("null context");
-        }
-        // Create a window surface, and attach it to the Surface we received.
-        int[] surfaceAttribs = {
-                EGL14.EGL_NONE
-        };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
-                surfaceAttribs, 0);
-        checkEglError("eglCreateWindowSurface");
-        if (mEGLSurface == null) {
-            throw new RuntimeException("surface was null");
-        }
     }
     /**
      * Discard all resources held by this class, notably the EGL context.  Also releases the
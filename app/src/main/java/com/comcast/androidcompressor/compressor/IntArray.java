@@ -0,0 +1,45 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive ints, to keep per-sample tables without boxing.
+ * Not thread safe.
+ */
+class IntArray {
+    private int[] mValues;
+    private int mSize;
+
+    public IntArray(int initialCapacity) {
+        mValues = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void add(int value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mValues[mSize++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        return mValues[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        mValues[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+}
@@ -0,0 +1,89 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lightweight, thread safe view of a compression job: state, progress and timings.
+ * Stays valid after the job has been evicted from {@link MediaCompressor}.
+ */
+public class JobHandle {
+
+    /**
+     * SKIPPED: not run, as transcoding was predicted to save too little, see {@link MediaCompressor#setMinSavingRatio(double)}.
+     */
+    public enum State {PENDING, RUNNING, SUCCEEDED, FAILED, CANCELED, SKIPPED}
+
+    private final AtomicReference<State> mState = new AtomicReference<>(State.PENDING);
+    private volatile double mProgress;
+    private final long mSubmitTimeMs;
+    private volatile long mStartTimeMs;
+    private volatile long mEndTimeMs;
+
+    JobHandle() {
+        mSubmitTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    public State getState() {
+        return mState.get();
+    }
+
+    public boolean isFinished() {
+        State state = mState.get();
+        return state == State.SUCCEEDED || state == State.FAILED || state == State.CANCELED || state == State.SKIPPED;
+    }
+
+    /**
+     * @return Progress in [0.0, 1.0] range, or negative value if progress is unknown.
+     */
+    public double getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * @return time spent waiting for codecs or a worker thread, in milliseconds.
+     */
+    public long getQueuedTimeMs() {
+        long startTimeMs = mStartTimeMs;
+        if (startTimeMs == 0) {
+            startTimeMs = isFinished() ? mEndTimeMs : SystemClock.elapsedRealtime();
+        }
+        return startTimeMs - mSubmitTimeMs;
+    }
+
+    /**
+     * @return time spent transcoding so far, in milliseconds. 0 if the job has not started.
+     */
+    public long getRunningTimeMs() {
+        long startTimeMs = mStartTimeMs;
+        if (startTimeMs == 0) return 0;
+        long endTimeMs = mEndTimeMs;
+        return (endTimeMs != 0 ? endTimeMs : SystemClock.elapsedRealtime()) - startTimeMs;
+    }
+
+    /**
+     * @return false if the job left PENDING before, e.g. it was cancelled while its worker was starting it.
+     */
+    boolean onStarted() {
+        if (!mState.compareAndSet(State.PENDING, State.RUNNING)) return false;
+        mStartTimeMs = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    /**
+     * @return false if the job has started or finished already.
+     */
+    boolean onCanceledPending() {
+        return mState.compareAndSet(State.PENDING, State.CANCELED);
+    }
+
+    void onProgress(double progress) {
+        mProgress = progress;
+    }
+
+    void onFinished(State state) {
+        mEndTimeMs = SystemClock.elapsedRealtime();
+        mState.set(state);
+    }
+}
@@ -0,0 +1,45 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive longs, to keep per-sample tables without boxing.
+ * Not thread safe.
+ */
+class LongArray {
+    private long[] mValues;
+    private int mSize;
+
+    public LongArray(int initialCapacity) {
+        mValues = new long[Math.max(1, initialCapacity)];
+    }
+
+    public void add(long value) {
+        if (mSize == mValues.length) {
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        mValues[mSize++] = value;
+    }
+
+    public long get(int index) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        return mValues[index];
+    }
+
+    public void set(int index, long value) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        mValues[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+}
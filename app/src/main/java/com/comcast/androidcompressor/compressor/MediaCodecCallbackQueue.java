@@ -0,0 +1,111 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+
+/**
+ * Receives MediaCodec asynchronous callbacks and hands out buffer indices with the same contract as
+ * {@link MediaCodec#dequeueInputBuffer(long)} and {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)},
+ * so transcoders can drive the codec in callback mode without changing their drain logic.
+ * Every callback raises the given {@link PipelineSignal} so the pipeline thread wakes up as soon as a buffer is ready.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class MediaCodecCallbackQueue extends MediaCodec.Callback {
+    private static class OutputEvent {
+        int index;
+        int offset;
+        int size;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    private final PipelineSignal mSignal;
+    private final ArrayDeque<Integer> mInputIndices = new ArrayDeque<>();
+    private final ArrayDeque<OutputEvent> mOutputEvents = new ArrayDeque<>();
+    private final ArrayDeque<OutputEvent> mRecycledEvents = new ArrayDeque<>();
+    private MediaCodec.CodecException mError;
+
+    public MediaCodecCallbackQueue(PipelineSignal signal) {
+        mSignal = signal;
+    }
+
+    /**
+     * @return Index of an input buffer, or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none is available.
+     */
+    public synchronized int dequeueInputBuffer() {
+        throwIfError();
+        Integer index = mInputIndices.poll();
+        return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+    }
+
+    /**
+     * @return Index of an output buffer, {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED},
+     * or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if nothing is pending.
+     */
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo) {
+        throwIfError();
+        OutputEvent event = mOutputEvents.poll();
+        if (event == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        if (event.index >= 0) {
+            bufferInfo.set(event.offset, event.size, event.presentationTimeUs, event.flags);
+        }
+        int index = event.index;
+        mRecycledEvents.add(event);
+        return index;
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+        synchronized (this) {
+            mInputIndices.add(index);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        synchronized (this) {
+            OutputEvent event = obtainEvent();
+            event.index = index;
+            event.offset = info.offset;
+            event.size = info.size;
+            event.presentationTimeUs = info.presentationTimeUs;
+            event.flags = info.flags;
+            mOutputEvents.add(event);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        synchronized (this) {
+            OutputEvent event = obtainEvent();
+            event.index = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            mOutputEvents.add(event);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        synchronized (this) {
+            mError = e;
+        }
+        mSignal.signal();
+    }
+
+    private OutputEvent obtainEvent() {
+        OutputEvent event = mRecycledEvents.poll();
+        return event == null ? new OutputEvent() : event;
+    }
+
+    private void throwIfError() {
+        if (mError != null) {
+            throw new IllegalStateException("Codec reported an error: " + mError.getDiagnosticInfo(), mError);
+        }
+    }
+}
@@ -2,18 +2,28 @@ package com.comcast.androidcompressor.compressor;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MediaCompressor {
@@ -52,19 +62,79 @@ public class MediaCompressor {
         void closeInputStream();
     }
 
+    /**
+     * Listener also receiving the predicted saving of each job, see {@link CompressionPredictor}.
+     */
+    public interface PredictionListener extends Listener {
+        /**
+         * Called before the job starts, so the caller may cancel it.
+         */
+        void onPrediction(CompressionPredictor.Prediction prediction);
+
+        /**
+         * Called instead of the other completion callbacks when the job is not run, as it was predicted to save
+         * less than {@link #setMinSavingRatio(double)}. Plain listeners get {@link #onCanceled()}.
+         */
+        void onSkipped();
+    }
+
+    /**
+     * Listener also receiving JPEG thumbnails of the output, captured from frames the job renders anyway instead of
+     * decoding the output again. Only jobs transcoding video in one piece capture frames; segmented jobs and jobs
+     * passing video through deliver none.
+     */
+    public interface ThumbnailListener extends Listener {
+        /**
+         * Called once when the job is submitted.
+         *
+         * @return Presentation times of the input to capture, in micro-second.
+         */
+        long[] getThumbnailTimesUs();
+
+        /**
+         * Called for each requested time before {@link #onSucceed()}.
+         *
+         * @param timeUs Requested time.
+         * @param jpeg   JPEG of the first frame at or after that time, see {@link #setThumbnailSize(int)}.
+         */
+        void onThumbnail(long timeUs, byte[] jpeg);
+    }
+
+    /** Lowest job priority, e.g. background uploads. */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    /** Highest job priority, e.g. a clip the user is waiting for. */
+    public static final int PRIORITY_HIGH = 10;
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
     private static final String TAG = "MediaCompressor";
-    private static final int MAXIMUM_THREAD = 8; // TODO
+    private static final int MAXIMUM_THREAD = 8;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    private static final int MAXIMUM_SEGMENTS = 4;
+    private static final int DEFAULT_THUMBNAIL_SIZE = 320;
     private static volatile MediaCompressor mMediaCompressor;
     private ThreadPoolExecutor mExecutor;
-
-    private LinkedHashMap<Future<Void>, Listener> mTasks;
+    private ThreadPoolExecutor mThumbnailExecutor;
+    private ThreadPoolExecutor mProbeExecutor;
+    private ScheduledThreadPoolExecutor mProgressTimer;
+    private CodecScheduler mScheduler;
+
+    // jobs not finished yet; finished jobs are evicted once their listener has been called.
+    private final ConcurrentHashMap<Future<Void>, CompressionFuture> mJobs = new ConcurrentHashMap<>();
+    private volatile boolean mAsyncCodecMode = true;
+    private volatile boolean mConcurrentTracks = true;
+    private volatile Executor mCallbackExecutor;
+    private volatile long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private volatile long mSegmentedThresholdUs;
+    private volatile boolean mFastStart;
+    private volatile double mMinSavingRatio;
+    private volatile int mThumbnailSize = DEFAULT_THUMBNAIL_SIZE;
 
     private MediaCompressor() {
-        int cpus = Runtime.getRuntime().availableProcessors();
-        int maxPoolSize = ((cpus > 0 ) ? cpus : 1) * 2;
+        // Heavy jobs are bounded by codec instances in CodecScheduler, threads only bound
+        // how many light (audio-only or pass-through) jobs run alongside them.
         mExecutor = new ThreadPoolExecutor(
-//                0, MAXIMUM_THREAD,
-                maxPoolSize, maxPoolSize,
+                MAXIMUM_THREAD, MAXIMUM_THREAD,
                 60, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<Runnable>(),
                 new ThreadFactory() {
@@ -73,8 +143,41 @@ public class MediaCompressor {
                         return new Thread(r, "MediaCompressor-Worker");
                     }
                 });
-
-        mTasks = new LinkedHashMap<>();
+        mExecutor.allowCoreThreadTimeOut(true);
+        mScheduler = new CodecScheduler(mExecutor, MAXIMUM_THREAD);
+        // JPEG encoding of thumbnails, kept off the threads driving codecs.
+        mThumbnailExecutor = new ThreadPoolExecutor(
+                1, 1,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "MediaCompressor-Thumbnail");
+                    }
+                });
+        mThumbnailExecutor.allowCoreThreadTimeOut(true);
+        // Header reads of submitted jobs, kept off the calling thread, which may be the UI thread.
+        mProbeExecutor = new ThreadPoolExecutor(
+                1, 1,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "MediaCompressor-Probe");
+                    }
+                });
+        mProbeExecutor.allowCoreThreadTimeOut(true);
+        // Posts progress coalesced within the interval once it has passed, as no later update may come.
+        mProgressTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "MediaCompressor-Progress");
+            }
+        });
+        mProgressTimer.setKeepAliveTime(60, TimeUnit.SECONDS);
+        mProgressTimer.allowCoreThreadTimeOut(true);
     }
 
     public static MediaCompressor getInstance() {
@@ -88,58 +191,176 @@ public class MediaCompressor {
         return mMediaCompressor;
     }
 
-    public void setListener(Future<Void> future, final Listener listener) {
-        if (future != null) {
+    public boolean isAsyncCodecMode() {
+        return mAsyncCodecMode;
+    }
 
-            // get original listener
-            final Listener oldListener = mTasks.get(future);
+    /**
+     * Use MediaCodec callbacks instead of polling codecs for jobs started after this call.
+     * Enabled by default; has no effect below API 23, where the polling engine is always used.
+     */
+    public void setAsyncCodecMode(boolean asyncCodecMode) {
+        mAsyncCodecMode = asyncCodecMode;
+    }
 
-            // merge listeners
-            Listener newListerner = new Listener() {
-                @Override
-                public void onProgress(double progress) {
-                    listener.onProgress(progress);
-                }
+    public boolean isConcurrentTracks() {
+        return mConcurrentTracks;
+    }
 
-                @Override
-                public void onSucceed() {
-                    closeInputStream();
-                    listener.onSucceed();
-                }
+    /**
+     * Run audio and video pipelines of each job on separate threads with separate extractors,
+     * for jobs started after this call. Enabled by default.
+     */
+    public void setConcurrentTracks(boolean concurrentTracks) {
+        mConcurrentTracks = concurrentTracks;
+    }
 
-                @Override
-                public void onCanceled() {
-                    closeInputStream();
-                    listener.onCanceled();
-                }
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
 
-                @Override
-                public void onFailed(Exception exception) {
-                    closeInputStream();
-                    listener.onFailed(exception);
-                }
+    /**
+     * Executor on which listener callbacks of jobs started after this call are run.
+     * By default callbacks are posted to the Looper of the thread calling compress(), or the main Looper
+     * if it has none; set an executor to receive them on a thread without a Looper.
+     *
+     * @param callbackExecutor Executor for callbacks, or null for the default.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
 
-                @Override
-                public void cancel() {
-                    listener.cancel();
-                }
+    public long getProgressIntervalMs() {
+        return mProgressIntervalMs;
+    }
 
-                @Override
-                public void closeInputStream() {
-                    oldListener.closeInputStream();
-                }
-            };
+    /**
+     * Minimum time between two {@link Listener#onProgress(double)} calls of a job; progress in between
+     * is coalesced and only the latest value is delivered. Applies to jobs started after this call.
+     */
+    public void setProgressIntervalMs(long progressIntervalMs) {
+        mProgressIntervalMs = progressIntervalMs;
+    }
+
+    public long getSegmentedThresholdUs() {
+        return mSegmentedThresholdUs;
+    }
+
+    /**
+     * Split inputs at least this long at keyframes and transcode the segments in parallel, as many as
+     * the device has free video codec instances for, see {@link SegmentedTranscoder}.
+     * Applies to jobs started after this call.
+     *
+     * @param segmentedThresholdUs Minimum input duration in micro-second, or 0 to disable (default).
+     */
+    public void setSegmentedThresholdUs(long segmentedThresholdUs) {
+        mSegmentedThresholdUs = segmentedThresholdUs;
+    }
+
+    public boolean isFastStart() {
+        return mFastStart;
+    }
+
+    /**
+     * Write output files with the moov box first, so they can be played or uploaded progressively,
+     * for jobs started after this call. Disabled by default.
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    public double getMinSavingRatio() {
+        return mMinSavingRatio;
+    }
+
+    /**
+     * Skip jobs predicted to save less than this share of the input size, e.g. 0.2 for 20%, for jobs submitted
+     * after this call. Their future is cancelled and the listener notified, see {@link PredictionListener#onSkipped()}.
+     * Jobs whose saving cannot be estimated always run.
+     *
+     * @param minSavingRatio Minimum saving ratio, or 0 to never skip (default).
+     */
+    public void setMinSavingRatio(double minSavingRatio) {
+        mMinSavingRatio = minSavingRatio;
+    }
+
+    public int getThumbnailSize() {
+        return mThumbnailSize;
+    }
+
+    /**
+     * Longer edge of thumbnails delivered to {@link ThumbnailListener}, in pixels. Frames are not upscaled.
+     * Applies to jobs submitted after this call.
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        if (thumbnailSize <= 0) {
+            throw new IllegalArgumentException("Invalid thumbnail size: " + thumbnailSize);
+        }
+        mThumbnailSize = thumbnailSize;
+    }
+
+    /**
+     * Estimates the output size of transcoding an input with the given format, reading only its header.
+     * Reads the input on the calling thread, so do not call it on the UI thread.
+     *
+     * @return estimate, or null if the input could not be read.
+     */
+    public CompressionPredictor.Prediction predict(FileDescriptor inFileDescriptor, MediaOutputFormat outFormatStrategy) {
+        return CompressionPredictor.predict(inFileDescriptor, outFormatStrategy);
+    }
+
+    /**
+     * Replaces the listener of a job. The first listener replaced gets {@link Listener#closeInputStream()} when
+     * the job finishes, before the new listener's completion callback.
+     */
+    public void setListener(Future<Void> future, Listener listener) {
+        if (future instanceof CompressionFuture) {
+            ((CompressionFuture) future).setListener(listener);
+        }
+    }
+
+    /**
+     * @return state, progress and timings of the job, or null if the future was not created by this class.
+     */
+    public JobHandle getJobHandle(Future<Void> future) {
+        if (future instanceof CompressionFuture) {
+            return ((CompressionFuture) future).mJobHandle;
+        }
+        return null;
+    }
+
+    /**
+     * @return handles of jobs which are pending or running.
+     */
+    public List<JobHandle> getActiveJobHandles() {
+        List<JobHandle> jobHandles = new ArrayList<>(mJobs.size());
+        for (CompressionFuture future : mJobs.values()) {
+            jobHandles.add(future.mJobHandle);
+        }
+        return jobHandles;
+    }
 
-            // update listener
-            mTasks.put(future, newListerner);
+    /**
+     * Changes priority of a job which has not started yet. Has no effect on running jobs.
+     */
+    public void setPriority(Future<Void> future, int priority) {
+        if (future instanceof CompressionFuture) {
+            // taken when the job is scheduled after probing, or applied to the scheduled job here.
+            ((CompressionFuture) future).mPriority = priority;
+            CodecScheduler.Job job = ((CompressionFuture) future).mJob;
+            if (job != null) {
+                mScheduler.setPriority(job, priority);
+            }
         }
     }
 
     public void cancel(Future<Void> future) {
         if (future != null) {
-            Listener listener = mTasks.get(future);
-            if (listener != null) {
-                listener.cancel();
+            if (future instanceof CompressionFuture) {
+                Listener listener = ((CompressionFuture) future).mListener;
+                if (listener != null) {
+                    listener.cancel();
+                }
             }
             future.cancel(true);
         }
@@ -156,70 +377,42 @@ public class MediaCompressor {
      * @throws IOException if input file could not be read.
      */
     public Future<Void> compress(final String inPath, final String outPath, final MediaOutputFormat outFormatStrategy, final Listener listener) {
+        return compress(inPath, outPath, outFormatStrategy, PRIORITY_NORMAL, NO_DEADLINE, listener);
+    }
+
+    /**
+     * Transcodes video file asynchronously.
+     * Audio track will be kept unchanged.
+     * Pending jobs are started by priority, then deadline, then estimated cost (duration x pixels).
+     *
+     * @param inPath            File path for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param priority          Job priority, see {@link #PRIORITY_NORMAL}.
+     * @param deadlineMs        Wall clock time the job should be done by, or {@link #NO_DEADLINE}.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> compress(final String inPath, final String outPath, final MediaOutputFormat outFormatStrategy,
+                                 int priority, long deadlineMs, final Listener listener) {
         FileInputStream fileInputStream = null;
         FileDescriptor inFileDescriptor;
         try {
             fileInputStream = new FileInputStream(inPath);
             inFileDescriptor = fileInputStream.getFD();
         } catch (IOException e) {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException eClose) {
-                    Log.e(TAG, "Can't close input stream: ", eClose);
-                }
-            }
+            closeQuietly(fileInputStream);
             return null;
         }
 
-        // merge listener
-        final FileInputStream finalFileInputStream = fileInputStream;
-        Listener newListerner = new Listener() {
-            @Override
-            public void onProgress(double progress) {
-                listener.onProgress(progress);
-            }
-
-            @Override
-            public void onSucceed() {
-                closeInputStream();
-                listener.onSucceed();
-            }
-
-            @Override
-            public void onCanceled() {
-                closeInputStream();
-                listener.onCanceled();
-            }
-
-            @Override
-            public void onFailed(Exception exception) {
-                closeInputStream();
-                listener.onFailed(exception);
-            }
-
-            @Override
-            public void cancel() {
-                listener.cancel();
-            }
-
-            @Override
-            public void closeInputStream() {
-                try {
-                    finalFileInputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Can't close input stream: ", e);
-                }
-            }
-        };
-
-        // compress
-        return compress(inFileDescriptor, outPath, outFormatStrategy, newListerner);
+        // compress, input stream is closed when the job finishes
+        return submit(inFileDescriptor, fileInputStream, outPath, null, null, outFormatStrategy, priority, deadlineMs, listener);
     }
 
     /**
      * Transcodes video file asynchronously.
      * Audio track will be kept unchanged.
+     * The job starts once the codecs it needs have a free instance; input header is probed on a background thread,
+     * and an unreadable input fails the job.
      *
      * @param inFileDescriptor  FileDescriptor for input.
      * @param outPath           File path for output.
@@ -229,36 +422,147 @@ public class MediaCompressor {
      * @param listener          Listener instance for callback.
      */
     public Future<Void> compress(final FileDescriptor inFileDescriptor, final String outPath, final MediaOutputFormat outFormatStrategy, final Listener listener) {
-        Looper looper = Looper.myLooper();
-        if (looper == null) looper = Looper.getMainLooper();
-        final Handler handler = new Handler(looper);
-        final AtomicReference<Future<Void>> futureReference = new AtomicReference<>();
-        final Future<Void> createdFuture = mExecutor.submit(new Callable<Void>() {
+        return compress(inFileDescriptor, outPath, outFormatStrategy, PRIORITY_NORMAL, NO_DEADLINE, listener);
+    }
+
+    /**
+     * Transcodes video file asynchronously.
+     * Audio track will be kept unchanged.
+     * Pending jobs are started by priority, then deadline, then estimated cost (duration x pixels).
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param priority          Job priority, see {@link #PRIORITY_NORMAL}.
+     * @param deadlineMs        Wall clock time the job should be done by, or {@link #NO_DEADLINE}.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> compress(final FileDescriptor inFileDescriptor, final String outPath, final MediaOutputFormat outFormatStrategy,
+                                 int priority, long deadlineMs, final Listener listener) {
+        return submit(inFileDescriptor, null, outPath, null, null, outFormatStrategy, priority, deadlineMs, listener);
+    }
+
+    /**
+     * Transcodes video asynchronously to a channel, e.g. a pipe, a socket or a descriptor from the
+     * Storage Access Framework. The output is a fast-start MP4, written to the channel at once when
+     * transcoding completes; media data is kept in a temporary file until then.
+     * Inputs are never split into segments for channel output.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outChannel        Channel for output, not closed when the job finishes.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param priority          Job priority, see {@link #PRIORITY_NORMAL}.
+     * @param deadlineMs        Wall clock time the job should be done by, or {@link #NO_DEADLINE}.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> compress(final FileDescriptor inFileDescriptor, final WritableByteChannel outChannel, final MediaOutputFormat outFormatStrategy,
+                                 int priority, long deadlineMs, final Listener listener) {
+        return submit(inFileDescriptor, null, null, outChannel, null, outFormatStrategy, priority, deadlineMs, listener);
+    }
+
+    /**
+     * Transcodes video asynchronously to fragmented MP4, so it can be uploaded or played while transcoding.
+     * The init segment and each fragment are delivered to the fragment listener on the transcoding thread;
+     * wrap it in {@link HlsPlaylistWriter} to also write an HLS playlist.
+     * Inputs are never split into segments for fragmented output.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param fragmentListener  Listener receiving the init segment and fragments.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param priority          Job priority, see {@link #PRIORITY_NORMAL}.
+     * @param deadlineMs        Wall clock time the job should be done by, or {@link #NO_DEADLINE}.
+     * @param listener          Listener instance for callback.
+     */
+    public Future<Void> compress(final FileDescriptor inFileDescriptor, final FragmentedMp4Writer.FragmentListener fragmentListener,
+                                 final MediaOutputFormat outFormatStrategy, int priority, long deadlineMs, final Listener listener) {
+        return submit(inFileDescriptor, null, null, null, fragmentListener, outFormatStrategy, priority, deadlineMs, listener);
+    }
+
+    private Future<Void> submit(final FileDescriptor inFileDescriptor, Closeable inputStream, final String outPath,
+                                final WritableByteChannel outChannel, final FragmentedMp4Writer.FragmentListener fragmentListener,
+                                final MediaOutputFormat outFormatStrategy,
+                                int priority, long deadlineMs, Listener listener) {
+        Executor callbackExecutor = mCallbackExecutor;
+        if (callbackExecutor == null) {
+            Looper looper = Looper.myLooper();
+            if (looper == null) looper = Looper.getMainLooper();
+            final Handler handler = new Handler(looper);
+            callbackExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        final long progressIntervalMs = mProgressIntervalMs;
+        final boolean fastStart = mFastStart;
+
+        final int thumbnailSize = mThumbnailSize;
+        long[] timesUs = listener instanceof ThumbnailListener ? ((ThumbnailListener) listener).getThumbnailTimesUs() : null;
+        final long[] requestedTimesUs = timesUs != null && timesUs.length > 0 ? timesUs : null;
+
+        final AtomicReference<CompressionFuture> futureReference = new AtomicReference<>();
+        final CompressionFuture createdFuture = new CompressionFuture(callbackExecutor, listener, inputStream, new Callable<Void>() {
             @Override
             public Void call() throws Exception {
+                CompressionFuture createdFuture = futureReference.get();
+                int jobSegmentCount = createdFuture.mSegmentCount;
+                long[] thumbnailTimesUs = createdFuture.mThumbnailTimesUs;
+                if (!createdFuture.mJobHandle.onStarted()) {
+                    // cancelled between the worker picking the job up and here; done() has reported it.
+                    return null;
+                }
                 Exception caughtException = null;
                 try {
-                    MediaTranscoderEngine engine = new MediaTranscoderEngine();
-                    engine.setProgressCallback(new MediaTranscoderEngine.ProgressCallback() {
+                    MediaTranscoderEngine.ProgressCallback progressCallback = new MediaTranscoderEngine.ProgressCallback() {
                         @Override
-                        public void onProgress(final double progress) {
-                            handler.post(new Runnable() { // TODO: reuse instance
+                        public void onProgress(double progress) {
+                            futureReference.get().publishProgress(progress, progressIntervalMs);
+                        }
+                    };
+                    if (jobSegmentCount > 1) {
+                        SegmentedTranscoder transcoder = new SegmentedTranscoder();
+                        transcoder.setSegmentCount(jobSegmentCount);
+                        transcoder.setAsyncMode(mAsyncCodecMode);
+                        transcoder.setConcurrentTracks(mConcurrentTracks);
+                        transcoder.setFastStart(fastStart);
+                        transcoder.setProgressIntervalMs(progressIntervalMs);
+                        transcoder.setProgressCallback(progressCallback);
+                        transcoder.setDataSource(inFileDescriptor);
+                        transcoder.transcodeVideo(outPath, outFormatStrategy);
+                    } else {
+                        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+                        FrameCapturer frameCapturer = null;
+                        if (thumbnailTimesUs != null) {
+                            frameCapturer = new FrameCapturer(thumbnailTimesUs, thumbnailSize, mThumbnailExecutor, new FrameCapturer.Callback() {
                                 @Override
-                                public void run() {
-                                    Future<Void> future = futureReference.get();
-                                    Listener listener = mTasks.get(future);
-                                    if (listener != null) {
-                                        listener.onProgress(progress);
-                                    }
+                                public void onFrameCaptured(long timeUs, byte[] jpeg) {
+                                    futureReference.get().publishThumbnail(timeUs, jpeg);
                                 }
                             });
+                            engine.setFrameCapturer(frameCapturer);
+                        }
+                        engine.setAsyncMode(mAsyncCodecMode);
+                        engine.setConcurrentTracks(mConcurrentTracks);
+                        engine.setFastStart(fastStart);
+                        engine.setProgressIntervalMs(progressIntervalMs);
+                        engine.setProgressCallback(progressCallback);
+                        engine.setDataSource(inFileDescriptor);
+                        if (fragmentListener != null) {
+                            engine.transcodeVideo(fragmentListener, outFormatStrategy);
+                        } else if (outChannel != null) {
+                            engine.transcodeVideo(outChannel, File.createTempFile(TAG, ".mdat"), outFormatStrategy);
+                        } else {
+                            engine.transcodeVideo(outPath, outFormatStrategy);
                         }
-                    });
-                    engine.setDataSource(inFileDescriptor);
-                    engine.transcodeVideo(outPath, outFormatStrategy);
+                        if (frameCapturer != null) {
+                            // thumbnails are posted before the completion callback.
+                            frameCapturer.awaitCompletion();
+                        }
+                    }
                 } catch (IOException e) {
                     Log.w(TAG, "Transcode failed: input file (fd: " + inFileDescriptor.toString() + ") not found"
-                            + " or could not open output file ('" + outPath + "').", e);
+                            + " or could not open output ('" + (outPath != null ? outPath : (outChannel != null ? outChannel : fragmentListener)) + "').", e);
                     caughtException = e;
                 } catch (InterruptedException e) {
                     Log.i(TAG, "Cancel transcode video file.", e);
@@ -269,33 +573,282 @@ public class MediaCompressor {
                 }
 
                 final Exception exception = caughtException;
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        Future<Void> future = futureReference.get();
-                        Listener listener = mTasks.get(future);
-                        if (listener != null) {
-                            if (exception == null) {
-                                listener.onSucceed();
-                            } else {
-                                if (future != null && future.isCancelled()) {
-                                    listener.onCanceled();
-                                } else {
-                                    listener.onFailed(exception);
-                                }
-                            }
-                        }
-                    }
-                });
+                if (exception == null) {
+                    createdFuture.finish(JobHandle.State.SUCCEEDED, null);
+                } else if (createdFuture.isCancelled()) {
+                    createdFuture.finish(JobHandle.State.CANCELED, null);
+                } else {
+                    createdFuture.finish(JobHandle.State.FAILED, exception);
+                }
 
                 if (exception != null) throw exception;
                 return null;
             }
         });
-
         futureReference.set(createdFuture);
-        mTasks.put(futureReference.get(), listener);
-        return futureReference.get();
+        mJobs.put(createdFuture, createdFuture);
+        final long segmentedThresholdUs = outPath != null ? mSegmentedThresholdUs : 0;
+        final double minSavingRatio = mMinSavingRatio;
+        createdFuture.mPriority = priority;
+        final long jobDeadlineMs = deadlineMs;
+        mProbeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    schedule(createdFuture, inFileDescriptor, outFormatStrategy, segmentedThresholdUs, minSavingRatio,
+                            requestedTimesUs, jobDeadlineMs);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Could not schedule input (fd: " + inFileDescriptor + ").", e);
+                    createdFuture.fail(e);
+                }
+            }
+        });
+        return createdFuture;
+    }
+
+    // Called on the probe thread: reads the input header for the codecs, cost and segments of the job, then
+    // queues it to the scheduler unless it was cancelled meanwhile or is predicted to save too little.
+    private void schedule(CompressionFuture future, FileDescriptor inFileDescriptor, MediaOutputFormat outFormatStrategy,
+                          long segmentedThresholdUs, double minSavingRatio, long[] thumbnailTimesUs, long deadlineMs) {
+        if (future.isDone()) return;
+        MediaProbe probe = MediaProbe.probe(inFileDescriptor);
+        if (probe == null) {
+            future.fail(new IOException("Could not read input (fd: " + inFileDescriptor + ")."));
+            return;
+        }
+        long cost = probe.getEstimatedCost();
+        String[] codecKeys = new String[0];
+        try {
+            codecKeys = probe.getCodecKeys(outFormatStrategy);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not determine codecs for input (fd: " + inFileDescriptor + ").", e);
+        }
+        if (segmentedThresholdUs > 0 && probe.getDurationUs() >= segmentedThresholdUs) {
+            future.mSegmentCount = getSegmentCount(codecKeys);
+            codecKeys = repeat(codecKeys, future.mSegmentCount);
+        }
+        if (thumbnailTimesUs != null && future.mSegmentCount > 1) {
+            Log.i(TAG, "Input (fd: " + inFileDescriptor + ") is transcoded in segments, no thumbnails captured.");
+            thumbnailTimesUs = null;
+        }
+        future.mThumbnailTimesUs = thumbnailTimesUs;
+
+        if (minSavingRatio > 0 || future.mListener instanceof PredictionListener) {
+            CompressionPredictor.Prediction prediction = null;
+            try {
+                prediction = CompressionPredictor.predict(probe, inFileDescriptor, outFormatStrategy);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not predict output size for input (fd: " + inFileDescriptor + ").", e);
+            }
+            if (prediction != null) {
+                future.publishPrediction(prediction);
+                if (minSavingRatio > 0 && !prediction.isWorthTranscoding(minSavingRatio)) {
+                    Log.i(TAG, "Skipping input (fd: " + inFileDescriptor + "), saving below " + minSavingRatio + ": " + prediction);
+                    future.finish(JobHandle.State.SKIPPED, null);
+                    future.cancel(false);
+                    return;
+                }
+            }
+        }
+        int priority = future.mPriority;
+        CodecScheduler.Job job = mScheduler.submit(future, codecKeys, priority, deadlineMs, cost);
+        future.mJob = job;
+        // cancelled or reprioritized before the job was known to cancel() and setPriority().
+        if (future.isCancelled()) {
+            mScheduler.remove(job);
+        } else if (future.mPriority != priority) {
+            mScheduler.setPriority(job, future.mPriority);
+        }
+    }
+
+    // One segment per instance of the scarcest video codec the job needs, 1 if the video track passes through.
+    private int getSegmentCount(String[] codecKeys) {
+        int segmentCount = MAXIMUM_SEGMENTS;
+        boolean transcodesVideo = false;
+        for (String codecKey : codecKeys) {
+            if (codecKey.contains("video/")) {
+                transcodesVideo = true;
+                segmentCount = Math.min(segmentCount, mScheduler.getCapacity(codecKey));
+            }
+        }
+        return transcodesVideo ? Math.max(1, segmentCount) : 1;
+    }
+
+    private static String[] repeat(String[] codecKeys, int count) {
+        String[] repeated = new String[codecKeys.length * count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(codecKeys, 0, repeated, i * codecKeys.length, codecKeys.length);
+        }
+        return repeated;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't close input stream: ", e);
+        }
+    }
+
+    private class CompressionFuture extends FutureTask<Void> {
+        private final Executor mCallbackExecutor;
+        private final JobHandle mJobHandle = new JobHandle();
+        private final ProgressTask mProgressTask = new ProgressTask();
+        private final Runnable mPostProgressTask = new Runnable() {
+            @Override
+            public void run() {
+                mCallbackExecutor.execute(mProgressTask);
+            }
+        };
+        private final AtomicBoolean mProgressPending = new AtomicBoolean();
+        private volatile long mLastProgressTimeMs;
+        private volatile Listener mListener;
+        // first listener replaced by setListener, whose input is closed when the job finishes.
+        private Listener mReplacedListener;
+        private boolean mListenerReleased;
+        private volatile Closeable mInputStream;
+        private volatile CodecScheduler.Job mJob;
+        private volatile int mPriority;
+        // decided by the probe, before the job is scheduled.
+        private volatile int mSegmentCount = 1;
+        private volatile long[] mThumbnailTimesUs;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        private CompressionFuture(Executor callbackExecutor, Listener listener, Closeable inputStream, Callable<Void> callable) {
+            super(callable);
+            mCallbackExecutor = callbackExecutor;
+            mListener = listener;
+            mInputStream = inputStream;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            CodecScheduler.Job job = mJob;
+            if (job != null) {
+                mScheduler.remove(job);
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && mJobHandle.onCanceledPending()) {
+                // never started, so the job itself cannot report it.
+                finish(JobHandle.State.CANCELED, null);
+            }
+        }
+
+        // Keeps the first replaced listener, as the input it closes is read until the job finishes.
+        private synchronized void setListener(Listener listener) {
+            if (mListenerReleased) return;
+            if (mReplacedListener == null) mReplacedListener = mListener;
+            mListener = listener;
+        }
+
+        // Fails a job which has not started, e.g. on an unreadable input.
+        private void fail(Exception exception) {
+            finish(JobHandle.State.FAILED, exception);
+            setException(exception);
+        }
+
+        // Called on the worker thread. At most one ProgressTask is queued at a time; updates arriving while
+        // it is queued only replace the value it will deliver. Within the interval of the last delivery the task
+        // is posted once the interval has passed, so the latest value is delivered even if no update follows.
+        private void publishProgress(double progress, long progressIntervalMs) {
+            mJobHandle.onProgress(progress);
+            if (!mProgressPending.compareAndSet(false, true)) return;
+            long delayMs = mLastProgressTimeMs + progressIntervalMs - SystemClock.uptimeMillis();
+            if (delayMs <= 0 || progress >= 1.0) {
+                mCallbackExecutor.execute(mProgressTask);
+            } else {
+                mProgressTimer.schedule(mPostProgressTask, delayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void publishPrediction(final CompressionPredictor.Prediction prediction) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Listener listener = mListener;
+                    if (listener instanceof PredictionListener) {
+                        ((PredictionListener) listener).onPrediction(prediction);
+                    }
+                }
+            });
+        }
+
+        private void publishThumbnail(final long timeUs, final byte[] jpeg) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Listener listener = mListener;
+                    if (listener instanceof ThumbnailListener) {
+                        ((ThumbnailListener) listener).onThumbnail(timeUs, jpeg);
+                    }
+                }
+            });
+        }
+
+        // Closes input, notifies listener on the callback executor, then evicts the job and drops
+        // references to listener and input so a retained Future does not leak them.
+        private void finish(final JobHandle.State state, final Exception exception) {
+            if (!mFinished.compareAndSet(false, true)) return;
+            mJobHandle.onFinished(state);
+            closeQuietly(mInputStream);
+            mInputStream = null;
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Listener listener;
+                    Listener replacedListener;
+                    synchronized (CompressionFuture.this) {
+                        listener = mListener;
+                        replacedListener = mReplacedListener;
+                        mListener = null;
+                        mReplacedListener = null;
+                        mListenerReleased = true;
+                    }
+                    mJobs.remove(CompressionFuture.this);
+                    if (replacedListener != null) replacedListener.closeInputStream();
+                    if (listener == null) return;
+                    if (mProgressPending.getAndSet(false)) {
+                        // a delayed ProgressTask would find no listener any more.
+                        listener.onProgress(mJobHandle.getProgress());
+                    }
+                    switch (state) {
+                        case SUCCEEDED:
+                            listener.onSucceed();
+                            break;
+                        case CANCELED:
+                            listener.onCanceled();
+                            break;
+                        case SKIPPED:
+                            if (listener instanceof PredictionListener) {
+                                ((PredictionListener) listener).onSkipped();
+                            } else {
+                                listener.onCanceled();
+                            }
+                            break;
+                        default:
+                            listener.onFailed(exception);
+                            break;
+                    }
+                }
+            });
+        }
+
+        private class ProgressTask implements Runnable {
+            @Override
+            public void run() {
+                if (!mProgressPending.getAndSet(false)) return;
+                mLastProgressTimeMs = SystemClock.uptimeMillis();
+                Listener listener = mListener;
+                if (listener != null) {
+                    listener.onProgress(mJobHandle.getProgress());
+                }
+            }
+        }
     }
 
 }
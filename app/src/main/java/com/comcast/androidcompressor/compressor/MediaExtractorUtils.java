@@ -21,6 +21,20 @@ public class MediaExtractorUtils {
         public MediaFormat mAudioTrackFormat;
     }
 
+    /**
+     * Extractors rarely report a video bitrate; estimates it from the bitrate of the container, less the audio
+     * bitrate if known, so {@link MediaOutputFormat} can compare it with its target.
+     *
+     * @param containerBitRate Bitrate from MediaMetadataRetriever, or 0 if unknown.
+     */
+    public static void setVideoBitRateFromContainer(TrackResult trackResult, int containerBitRate) {
+        MediaFormat videoFormat = trackResult.mVideoTrackFormat;
+        if (containerBitRate <= 0 || videoFormat.containsKey(MediaFormat.KEY_BIT_RATE)) return;
+        MediaFormat audioFormat = trackResult.mAudioTrackFormat;
+        int audioBitRate = audioFormat.containsKey(MediaFormat.KEY_BIT_RATE) ? audioFormat.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, Math.max(1, containerBitRate - audioBitRate));
+    }
+
     public static TrackResult getFirstVideoAndAudioTrack(MediaExtractor extractor) {
         TrackResult trackResult = new TrackResult();
         trackResult.mVideoTrackIndex = -1;
@@ -0,0 +1,135 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Quick look at the track formats of an input, used to schedule jobs before they run.
+ * Only reads the container header; no sample is decoded.
+ */
+class MediaProbe {
+    private static final String TAG = "MediaProbe";
+
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+    private int mRotation;
+    private int mContainerBitRate;
+
+    private MediaProbe() {
+    }
+
+    /**
+     * @return probe of the input, or null if the input could not be read.
+     */
+    public static MediaProbe probe(FileDescriptor fileDescriptor) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(fileDescriptor);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+            MediaProbe probe = new MediaProbe();
+            probe.mVideoFormat = trackResult.mVideoTrackFormat;
+            probe.mAudioFormat = trackResult.mAudioTrackFormat;
+            probe.readMetadata(fileDescriptor, trackResult);
+            return probe;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not probe input (fd: " + fileDescriptor + ").", e);
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // rotation and container bitrate decide whether the strategy passes tracks through.
+    private void readMetadata(FileDescriptor fileDescriptor, MediaExtractorUtils.TrackResult trackResult) {
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(fileDescriptor);
+            mRotation = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+            mContainerBitRate = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+            MediaExtractorUtils.setVideoBitRateFromContainer(trackResult, mContainerBitRate);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not read metadata of input (fd: " + fileDescriptor + ").", e);
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public MediaFormat getVideoFormat() {
+        return mVideoFormat;
+    }
+
+    public MediaFormat getAudioFormat() {
+        return mAudioFormat;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return bitrate of the whole input in bit/sec, or 0 if unknown.
+     */
+    public int getContainerBitRate() {
+        return mContainerBitRate;
+    }
+
+    /**
+     * @return duration in micro-second, or -1 if unknown.
+     */
+    public long getDurationUs() {
+        MediaFormat format = mVideoFormat != null ? mVideoFormat : mAudioFormat;
+        if (format == null || !format.containsKey(MediaFormat.KEY_DURATION)) return -1;
+        return format.getLong(MediaFormat.KEY_DURATION);
+    }
+
+    /**
+     * Estimates relative cost of transcoding the input as duration (ms) times pixels per frame.
+     * Audio-only work counts as one pixel per frame.
+     *
+     * @return estimated cost, or {@link Long#MAX_VALUE} if duration is unknown, so such inputs are not preferred.
+     */
+    public long getEstimatedCost() {
+        long durationUs = getDurationUs();
+        if (durationUs < 0) return Long.MAX_VALUE;
+        long durationMs = durationUs / 1000;
+        long pixels = 1;
+        if (mVideoFormat != null) {
+            pixels = (long) mVideoFormat.getInteger(MediaFormat.KEY_WIDTH) * mVideoFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+        return durationMs * pixels;
+    }
+
+    /**
+     * Lists codecs the engine will instantiate for this input, as {@link CodecScheduler} keys.
+     * Tracks the strategy passes through need no codec.
+     */
+    public String[] getCodecKeys(MediaOutputFormat formatStrategy) {
+        List<String> keys = new ArrayList<>(4);
+        MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(mVideoFormat, mRotation);
+        if (videoOutputFormat != null) {
+            keys.add(CodecScheduler.decoderKey(mVideoFormat.getString(MediaFormat.KEY_MIME)));
+            keys.add(CodecScheduler.encoderKey(videoOutputFormat.getString(MediaFormat.KEY_MIME)));
+        }
+        MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(mAudioFormat);
+        if (audioOutputFormat != null) {
+            keys.add(CodecScheduler.decoderKey(mAudioFormat.getString(MediaFormat.KEY_MIME)));
+            keys.add(CodecScheduler.encoderKey(audioOutputFormat.getString(MediaFormat.KEY_MIME)));
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
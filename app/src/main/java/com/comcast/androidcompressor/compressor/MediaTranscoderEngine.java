@@ -3,11 +3,20 @@ package com.comcast.androidcompressor.compressor;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Internal engine, do not use this directly.
@@ -17,16 +26,38 @@ public class MediaTranscoderEngine {
     private static final String TAG = "MediaTranscoderEngine";
     private static final double PROGRESS_UNKNOWN = -1.0;
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
-    private static final long PROGRESS_INTERVAL_STEPS = 10;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    private static final long MAX_AUDIO_LEAD_US = 500 * 1000;
+    private static final long COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final String MIMETYPE_MP4 = "video/mp4";
     private FileDescriptor mInputFileDescriptor;
     private TrackTranscoder mVideoTrackTranscoder;
     private TrackTranscoder mAudioTrackTranscoder;
     private MediaExtractor mExtractor;
-    private MediaMuxer mMuxer;
+    private MediaExtractor mAudioExtractor;
+    private Muxer mMuxer;
+    private QueuedMuxer mQueuedMuxer;
+    private long mMuxerMemoryBudget = QueuedMuxer.DEFAULT_MEMORY_BUDGET;
+    private long mMaxChunkDurationUs = SampleInterleaver.DEFAULT_MAX_CHUNK_DURATION_US;
     private volatile double mProgress;
     private ProgressCallback mProgressCallback;
+    private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private long mLastProgressTimeMs;
     private long mDurationUs;
+    private long mStartTimeUs;
+    private long mEndTimeUs = -1;
+    // whether the time range is a trim, dropping what is before the start and rebasing times to it.
+    private boolean mTrimming;
     private int mRotation;
+    private int mContainerBitRate;
+    private boolean mAsyncMode;
+    private boolean mConcurrentTracks;
+    private boolean mFastStart;
+    private FrameCapturer mFrameCapturer;
+    private HandlerThread mCallbackThread;
+    private PipelineSignal mPipelineSignal;
+    private PipelineSignal mAudioPipelineSignal;
+    private volatile RuntimeException mAudioPipelineException;
 
     /**
      * Do not use this constructor unless you know what you are doing.
@@ -46,6 +77,99 @@ public class MediaTranscoderEngine {
         mProgressCallback = progressCallback;
     }
 
+    public long getProgressIntervalMs() {
+        return mProgressIntervalMs;
+    }
+
+    /**
+     * Minimum time between two progress callbacks, regardless of how fast the pipeline steps.
+     */
+    public void setProgressIntervalMs(long progressIntervalMs) {
+        mProgressIntervalMs = progressIntervalMs;
+    }
+
+    public boolean isAsyncMode() {
+        return mAsyncMode;
+    }
+
+    /**
+     * Drive codecs through MediaCodec callbacks so buffers are handled as soon as codecs signal them,
+     * instead of polling and sleeping. Only takes effect on API 23 or later; older devices keep polling.
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    public boolean isConcurrentTracks() {
+        return mConcurrentTracks;
+    }
+
+    /**
+     * Run the audio pipeline on its own thread with its own MediaExtractor, so audio decode/encode
+     * overlaps with video render/encode instead of being interleaved with it on one thread.
+     */
+    public void setConcurrentTracks(boolean concurrentTracks) {
+        mConcurrentTracks = concurrentTracks;
+    }
+
+    public boolean isFastStart() {
+        return mFastStart;
+    }
+
+    /**
+     * Write files to a path with the moov box first, using {@link Mp4Muxer} instead of MediaMuxer,
+     * so they can be played or uploaded progressively.
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    public long getMuxerMemoryBudget() {
+        return mMuxerMemoryBudget;
+    }
+
+    /**
+     * Bytes of encoded samples kept in memory while waiting for both output formats before the muxer can start.
+     * Samples beyond that wait in a temporary file.
+     */
+    public void setMuxerMemoryBudget(long muxerMemoryBudget) {
+        mMuxerMemoryBudget = muxerMemoryBudget;
+    }
+
+    public long getMaxChunkDurationUs() {
+        return mMaxChunkDurationUs;
+    }
+
+    /**
+     * Interleave video and audio in the output with runs of at most this duration per track, see {@link SampleInterleaver}.
+     * 0 writes samples in the order the pipelines produce them.
+     */
+    public void setMaxChunkDurationUs(long maxChunkDurationUs) {
+        mMaxChunkDurationUs = maxChunkDurationUs;
+    }
+
+    /**
+     * Transcode only [startUs, endUs) of the input. Reading starts at the sync sample at or before startUs,
+     * so startUs should be the time of a sync sample. Audio is cut to the range exactly. Samples keep the time
+     * base of the input.
+     * Used by {@link SegmentedTranscoder} to transcode segments of one input in parallel.
+     *
+     * @param startUs Start time in micro-second.
+     * @param endUs   End time in micro-second, or negative value to transcode to the end of the input.
+     */
+    void setTimeRange(long startUs, long endUs) {
+        mStartTimeUs = startUs;
+        mEndTimeUs = endUs;
+    }
+
+    /**
+     * Capture thumbnails of frames while they are rendered for the encoder. Times are in the time base of the input.
+     * Nothing is captured when the video track is passed through.
+     */
+    void setFrameCapturer(FrameCapturer frameCapturer) {
+        mFrameCapturer = frameCapturer;
+    }
+
     /**
      * NOTE: This method is thread safe.
      */
@@ -56,6 +180,8 @@ public class MediaTranscoderEngine {
     /**
      * Run video transcoding. Blocks current thread.
      * Audio data will not be transcoded; original stream will be wrote to output file.
+     * When the format strategy passes both tracks through, an MP4 input is copied to the output as is,
+     * unless fast start or a time range is set; otherwise it is remuxed.
      *
      * @param outputPath     File path to output transcoded video file.
      * @param formatStrategy Output format strategy.
@@ -67,17 +193,228 @@ public class MediaTranscoderEngine {
         if (outputPath == null) {
             throw new NullPointerException("Output path cannot be null.");
         }
+        checkDataSource();
+        if (!mFastStart && mayPassThrough(formatStrategy) && isInputCopyable(formatStrategy)) {
+            FileOutputStream outputStream = new FileOutputStream(outputPath);
+            try {
+                copyInput(outputStream.getChannel());
+            } finally {
+                outputStream.close();
+            }
+            return;
+        }
+        transcode(mFastStart ? new Mp4Muxer(outputPath) : new AndroidMuxer(outputPath), formatStrategy);
+    }
+
+    /**
+     * Run video transcoding of [startUs, endUs) of the input only. Blocks current thread.
+     * Reading starts at the sync sample at or before startUs; frames between it and startUs are decoded but not
+     * encoded, reading stops at the first sync sample at or after endUs, frames presented from endUs on are dropped,
+     * and output times start at 0, so work grows with the range, not the input.
+     * When the format strategy passes video through, the output starts at that sync sample instead.
+     *
+     * @param outputPath     File path to output transcoded video file.
+     * @param startUs        Start time in micro-second.
+     * @param endUs          End time in micro-second, or negative value to transcode to the end of the input.
+     * @param formatStrategy Output format strategy.
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideo(String outputPath, long startUs, long endUs, MediaOutputFormat formatStrategy)
+            throws IOException, InterruptedException {
+        setTrimRange(startUs, endUs);
+        try {
+            transcodeVideo(outputPath, formatStrategy);
+        } finally {
+            clearTrimRange();
+        }
+    }
+
+    /**
+     * Run video transcoding to a channel, e.g. a pipe or a socket. Blocks current thread.
+     * The output is a fast-start MP4 written by {@link Mp4Muxer}; nothing is written to the channel
+     * before transcoding completes, then the whole file is.
+     *
+     * @param output         Channel to output transcoded video file. Not closed by this method.
+     * @param mediaDataFile  Temporary file holding media data until transcoding completes, deleted afterwards.
+     * @param formatStrategy Output format strategy.
+     * @throws IOException                  when input or media data file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideo(WritableByteChannel output, File mediaDataFile, MediaOutputFormat formatStrategy)
+            throws IOException, InterruptedException {
+        if (output == null) {
+            throw new NullPointerException("Output cannot be null.");
+        }
+        checkDataSource();
+        transcode(new Mp4Muxer(output, mediaDataFile), formatStrategy);
+    }
+
+    /**
+     * Run video transcoding of [startUs, endUs) of the input to a channel. Blocks current thread.
+     * See {@link #transcodeVideo(String, long, long, MediaOutputFormat)} for the range and
+     * {@link #transcodeVideo(WritableByteChannel, File, MediaOutputFormat)} for the output.
+     */
+    public void transcodeVideo(WritableByteChannel output, File mediaDataFile, long startUs, long endUs,
+                               MediaOutputFormat formatStrategy) throws IOException, InterruptedException {
+        setTrimRange(startUs, endUs);
+        try {
+            transcodeVideo(output, mediaDataFile, formatStrategy);
+        } finally {
+            clearTrimRange();
+        }
+    }
+
+    /**
+     * Run video transcoding to fragmented MP4. Blocks current thread.
+     * The init segment and each fragment are delivered to the listener on the transcoding thread as soon as they
+     * are complete, so they can be uploaded while the rest is transcoded. Fragments start at video sync samples,
+     * i.e. every {@link MediaFormat#KEY_I_FRAME_INTERVAL} of the output format.
+     *
+     * @param fragmentListener Listener receiving the init segment and fragments. Wrap it in {@link HlsPlaylistWriter}
+     *                         to also write an HLS playlist.
+     * @param formatStrategy   Output format strategy.
+     * @throws IOException                  when input could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideo(FragmentedMp4Writer.FragmentListener fragmentListener, MediaOutputFormat formatStrategy)
+            throws IOException, InterruptedException {
+        if (fragmentListener == null) {
+            throw new NullPointerException("Fragment listener cannot be null.");
+        }
+        checkDataSource();
+        transcode(new Mp4Muxer(fragmentListener), formatStrategy);
+    }
+
+    /**
+     * Run video transcoding of [startUs, endUs) of the input to fragmented MP4. Blocks current thread.
+     * See {@link #transcodeVideo(String, long, long, MediaOutputFormat)} for the range and
+     * {@link #transcodeVideo(FragmentedMp4Writer.FragmentListener, MediaOutputFormat)} for the output.
+     */
+    public void transcodeVideo(FragmentedMp4Writer.FragmentListener fragmentListener, long startUs, long endUs,
+                               MediaOutputFormat formatStrategy) throws IOException, InterruptedException {
+        setTrimRange(startUs, endUs);
+        try {
+            transcodeVideo(fragmentListener, formatStrategy);
+        } finally {
+            clearTrimRange();
+        }
+    }
+
+    private void setTrimRange(long startUs, long endUs) {
+        if (startUs < 0 || (endUs >= 0 && endUs <= startUs)) {
+            throw new IllegalArgumentException("Invalid time range: " + startUs + " - " + endUs + " us.");
+        }
+        setTimeRange(startUs, endUs);
+        mTrimming = true;
+    }
+
+    private void clearTrimRange() {
+        setTimeRange(0, -1);
+        mTrimming = false;
+    }
+
+    // X1PhotosOutputFormat passes nothing through unless enabled, so its inputs need not be read again here.
+    private static boolean mayPassThrough(MediaOutputFormat formatStrategy) {
+        return !(formatStrategy instanceof X1PhotosOutputFormat)
+                || ((X1PhotosOutputFormat) formatStrategy).isPassThroughEnabled();
+    }
+
+    // Whether the input is an MP4 the strategy would pass through entirely, so the file itself can be the output.
+    private boolean isInputCopyable(MediaOutputFormat formatStrategy) throws IOException {
+        if (mStartTimeUs > 0 || mEndTimeUs >= 0) return false;
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        int rotation;
+        int containerBitRate;
+        try {
+            mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
+            if (!MIMETYPE_MP4.equals(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_MIMETYPE))) {
+                return false;
+            }
+            rotation = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+            containerBitRate = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not read input metadata.", e);
+            return false;
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mInputFileDescriptor);
+            if (extractor.getTrackCount() != 2) return false;
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+            MediaExtractorUtils.setVideoBitRateFromContainer(trackResult, containerBitRate);
+            if (rotation % 360 != 0 && formatStrategy.isFormalizingOrientation()) return false;
+            return formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat, rotation) == null
+                    && formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat) == null;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    // Copies the input with transferTo, so the data does not pass through the Java heap.
+    private void copyInput(WritableByteChannel output) throws IOException, InterruptedException {
+        Log.i(TAG, "Input satisfies output format, copying it as is.");
+        // not closed, closing would close the input descriptor of the caller.
+        FileChannel input = new FileInputStream(mInputFileDescriptor).getChannel();
+        long size = input.size();
+        long position = 0;
+        while (position < size) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            position += input.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), output);
+            double progress = (double) position / size;
+            mProgress = progress;
+            if (mProgressCallback != null) mProgressCallback.onProgress(progress);
+        }
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void checkDataSource() {
         if (mInputFileDescriptor == null) {
             throw new IllegalStateException("Data source is not set.");
         }
+    }
+
+    // Releases the muxer when done, also if the input cannot be read.
+    private void transcode(Muxer muxer, MediaOutputFormat formatStrategy) throws IOException, InterruptedException {
         try {
-            // NOTE: use single extractor to keep from running out audio track fast.
+            mMuxer = mMaxChunkDurationUs > 0 ? new SampleInterleaver(muxer, mMaxChunkDurationUs,
+                    SampleInterleaver.DEFAULT_REORDER_WINDOW_US, SampleInterleaver.DEFAULT_MEMORY_BUDGET) : muxer;
+            // NOTE: use single extractor to keep from running out audio track fast,
+            // unless audio runs on its own thread, which needs its own extractor.
             mExtractor = new MediaExtractor();
             mExtractor.setDataSource(mInputFileDescriptor);
-            mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (mConcurrentTracks) {
+                mAudioExtractor = createIndependentExtractor();
+            }
+            if (mAsyncMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mCallbackThread = new HandlerThread("MediaTranscoderEngine-Callback");
+                mCallbackThread.start();
+                mPipelineSignal = new PipelineSignal();
+                mAudioPipelineSignal = mConcurrentTracks ? new PipelineSignal() : mPipelineSignal;
+            }
             setupMetadata(formatStrategy);
             setupTrackTranscoders(formatStrategy);
-            runPipelines();
+            if (mConcurrentTracks) {
+                runPipelinesConcurrently();
+            } else {
+                runPipelines();
+            }
             mMuxer.stop();
         } finally {
             try {
@@ -93,6 +430,14 @@ public class MediaTranscoderEngine {
                     mExtractor.release();
                     mExtractor = null;
                 }
+                if (mAudioExtractor != null) {
+                    mAudioExtractor.release();
+                    mAudioExtractor = null;
+                }
+                if (mQueuedMuxer != null) {
+                    mQueuedMuxer.release();
+                    mQueuedMuxer = null;
+                }
             } catch (RuntimeException e) {
                 // Too fatal to make alive the app, because it may leak native resources.
                 //noinspection ThrowFromFinallyBlock
@@ -106,9 +451,33 @@ public class MediaTranscoderEngine {
             } catch (RuntimeException e) {
                 Log.e(TAG, "Failed to release muxer.", e);
             }
+            if (mCallbackThread != null) {
+                // codecs are released above, no more callbacks will arrive.
+                mCallbackThread.quit();
+                mCallbackThread = null;
+                mPipelineSignal = null;
+                mAudioPipelineSignal = null;
+            }
+            mAudioPipelineException = null;
         }
     }
 
+    // Two extractors on dup()ed descriptors would share one file offset, so open the file again
+    // through /proc to get an independent one.
+    private MediaExtractor createIndependentExtractor() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        ParcelFileDescriptor parcelFileDescriptor = ParcelFileDescriptor.dup(mInputFileDescriptor);
+        try {
+            extractor.setDataSource("/proc/self/fd/" + parcelFileDescriptor.getFd());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not reopen input, audio extractor shares the input descriptor.", e);
+            extractor.setDataSource(mInputFileDescriptor);
+        } finally {
+            parcelFileDescriptor.close();
+        }
+        return extractor;
+    }
+
     private void setupMetadata(MediaOutputFormat formatStrategy) throws IOException {
         MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
         mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
@@ -122,6 +491,8 @@ public class MediaTranscoderEngine {
             }
         } catch (NumberFormatException e) {}
 
+        mContainerBitRate = parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+
         // TODO: parse ISO 6709
         // String locationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_LOCATION);
         // mMuxer.setLocation(Integer.getInteger(rotationString, 0));
@@ -131,15 +502,24 @@ public class MediaTranscoderEngine {
         } catch (NumberFormatException e) {
             mDurationUs = -1;
         }
+        if (mDurationUs > 0 && (mStartTimeUs > 0 || mEndTimeUs >= 0)) {
+            long endTimeUs = mEndTimeUs >= 0 ? Math.min(mEndTimeUs, mDurationUs) : mDurationUs;
+            mDurationUs = endTimeUs - mStartTimeUs;
+        }
         Log.d(TAG, "Duration (us): " + mDurationUs);
     }
 
     private void setupTrackTranscoders(MediaOutputFormat formatStrategy) {
+        MediaExtractor audioExtractor = mAudioExtractor != null ? mAudioExtractor : mExtractor;
         MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
+        MediaExtractorUtils.setVideoBitRateFromContainer(trackResult, mContainerBitRate);
         MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat, mRotation);
         MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat);
         if (videoOutputFormat == null && audioOutputFormat == null) {
-            throw new InvalidOutputFormatException("MediaOutputFormat returned pass-through for both video and audio. No transcoding is necessary.");
+            Log.i(TAG, "MediaOutputFormat returned pass-through for both video and audio, remuxing.");
+        }
+        if (mTrimming && mStartTimeUs > 0 && videoOutputFormat == null) {
+            moveStartToVideoSyncSample(trackResult.mVideoTrackIndex);
         }
 
         QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxer, new QueuedMuxer.Listener() {
@@ -156,28 +536,69 @@ public class MediaTranscoderEngine {
                     Log.d(TAG, "Invalid audio format!");
                 }
             }
-        });
+        }, mMuxerMemoryBudget);
+        mQueuedMuxer = queuedMuxer;
 
         if (videoOutputFormat == null) {
+            if (mFrameCapturer != null) {
+                Log.i(TAG, "Video is passed through, no frames to capture.");
+            }
             mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
         } else {
-            mVideoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+            VideoTrackTranscoder videoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+            videoTrackTranscoder.setOriginalOrientation(formatStrategy.isFormalizingOrientation(), mRotation);
+            if (mCallbackThread != null) {
+                videoTrackTranscoder.setCallbackHandler(new Handler(mCallbackThread.getLooper()), mPipelineSignal);
+            }
+            videoTrackTranscoder.setFrameCapturer(mFrameCapturer);
+            mVideoTrackTranscoder = videoTrackTranscoder;
         }
+        mVideoTrackTranscoder.setEndPresentationTimeUs(mEndTimeUs);
         mVideoTrackTranscoder.setup();
-        ((VideoTrackTranscoder)mVideoTrackTranscoder).setOriginalOrientation(formatStrategy.isFormalizingOrientation(), mRotation);
 
         if (audioOutputFormat == null) {
-            mAudioTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
+            mAudioTrackTranscoder = new PassThroughTrackTranscoder(audioExtractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
         } else {
-            mAudioTrackTranscoder = new AudioTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+            AudioTrackTranscoder audioTrackTranscoder = new AudioTrackTranscoder(audioExtractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+            if (mCallbackThread != null) {
+                audioTrackTranscoder.setCallbackHandler(new Handler(mCallbackThread.getLooper()), mAudioPipelineSignal);
+            }
+            mAudioTrackTranscoder = audioTrackTranscoder;
         }
+        mAudioTrackTranscoder.setEndPresentationTimeUs(mEndTimeUs);
         mAudioTrackTranscoder.setup();
+        if (mStartTimeUs > 0) {
+            // audio is cut at the start of time ranges too, so segments joined there do not overlap.
+            mAudioTrackTranscoder.setStartPresentationTimeUs(mStartTimeUs);
+        }
+        if (mTrimming && mStartTimeUs > 0) {
+            mVideoTrackTranscoder.setStartPresentationTimeUs(mStartTimeUs);
+            queuedMuxer.setTimeOffsetUs(mStartTimeUs);
+        }
         mExtractor.selectTrack(trackResult.mVideoTrackIndex);
-        mExtractor.selectTrack(trackResult.mAudioTrackIndex);
+        audioExtractor.selectTrack(trackResult.mAudioTrackIndex);
+        if (mStartTimeUs > 0) {
+            mExtractor.seekTo(mStartTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            if (audioExtractor != mExtractor) {
+                audioExtractor.seekTo(mStartTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+        }
+    }
+
+    // Passed-through video can only start at a sync sample, so the trim starts there, before any track is selected.
+    private void moveStartToVideoSyncSample(int videoTrackIndex) {
+        mExtractor.selectTrack(videoTrackIndex);
+        mExtractor.seekTo(mStartTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long syncTimeUs = mExtractor.getSampleTime();
+        mExtractor.unselectTrack(videoTrackIndex);
+        if (syncTimeUs < 0 || syncTimeUs >= mStartTimeUs) return;
+        Log.i(TAG, "Video is passed through, trimming from its sync sample at " + syncTimeUs + " us instead of "
+                + mStartTimeUs + " us.");
+        if (mDurationUs > 0) mDurationUs += mStartTimeUs - syncTimeUs;
+        mStartTimeUs = syncTimeUs;
     }
 
     private void runPipelines() {
-        long loopCount = 0;
         if (mDurationUs <= 0) {
             double progress = PROGRESS_UNKNOWN;
             mProgress = progress;
@@ -186,26 +607,103 @@ public class MediaTranscoderEngine {
         while (!(mVideoTrackTranscoder.isFinished() && mAudioTrackTranscoder.isFinished())) {
             boolean stepped = mVideoTrackTranscoder.stepPipeline()
                     || mAudioTrackTranscoder.stepPipeline();
-            loopCount++;
-            if (mDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
-                long videoProgress = mVideoTrackTranscoder.isFinished() ? 100 : Math.min(100, 100*mVideoTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                long audioProgress = mAudioTrackTranscoder.isFinished() ? 100 : Math.min(100, 100*mAudioTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                long progress = (videoProgress + audioProgress) / 2;
-                if (mProgress != progress) {
-                    mProgress = progress;
-                    if (mProgressCallback != null) {
-                        mProgressCallback.onProgress(progress);
-                    }
-                }
-            }
+            updateProgress(false);
             if (!stepped) {
                 try {
-                    Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                    waitForPipeline(mPipelineSignal);
                 } catch (InterruptedException e) {
                     // nothing to do
                 }
             }
         }
+        updateProgress(true);
+    }
+
+    // Video is stepped on the calling thread, which owns the EGL context made current in setup.
+    private void runPipelinesConcurrently() throws InterruptedException {
+        if (mDurationUs <= 0) {
+            double progress = PROGRESS_UNKNOWN;
+            mProgress = progress;
+            if (mProgressCallback != null) mProgressCallback.onProgress(progress); // unknown
+        }
+        Thread audioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runAudioPipeline();
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "Audio pipeline interrupted.");
+                } catch (RuntimeException e) {
+                    mAudioPipelineException = e;
+                }
+            }
+        }, "MediaTranscoderEngine-Audio");
+        audioThread.start();
+        try {
+            while (!mVideoTrackTranscoder.isFinished()) {
+                if (mAudioPipelineException != null) break;
+                boolean stepped = mVideoTrackTranscoder.stepPipeline();
+                updateProgress(false);
+                if (!stepped) {
+                    waitForPipeline(mPipelineSignal);
+                }
+            }
+        } finally {
+            if (!mVideoTrackTranscoder.isFinished()) {
+                audioThread.interrupt();
+            }
+            audioThread.join();
+        }
+        if (mAudioPipelineException != null) {
+            throw mAudioPipelineException;
+        }
+        updateProgress(true);
+    }
+
+    // Audio is cheap compared to video, so keep it at most MAX_AUDIO_LEAD_US ahead of the video
+    // already written, which keeps the samples handed to the muxer roughly in timestamp order.
+    private void runAudioPipeline() throws InterruptedException {
+        while (!mAudioTrackTranscoder.isFinished()) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            boolean aheadOfVideo = !mVideoTrackTranscoder.isFinished()
+                    && mAudioTrackTranscoder.getWrittenPresentationTimeUs()
+                    > mVideoTrackTranscoder.getWrittenPresentationTimeUs() + MAX_AUDIO_LEAD_US;
+            boolean stepped = !aheadOfVideo && mAudioTrackTranscoder.stepPipeline();
+            if (!stepped) {
+                waitForPipeline(aheadOfVideo ? null : mAudioPipelineSignal);
+            }
+        }
+    }
+
+    private void waitForPipeline(PipelineSignal signal) throws InterruptedException {
+        if (signal != null) {
+            // wake up as soon as any codec signals a buffer; timeout only guards pass-through tracks.
+            signal.await(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+        } else {
+            Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+        }
+    }
+
+    private void updateProgress(boolean force) {
+        if (mDurationUs <= 0) return;
+        long now = SystemClock.uptimeMillis();
+        if (!force && now - mLastProgressTimeMs < mProgressIntervalMs) return;
+        mLastProgressTimeMs = now;
+        double videoProgress = getTrackProgress(mVideoTrackTranscoder);
+        double audioProgress = getTrackProgress(mAudioTrackTranscoder);
+        double progress = (videoProgress + audioProgress) / 2;
+        if (mProgress != progress) {
+            mProgress = progress;
+            if (mProgressCallback != null) {
+                mProgressCallback.onProgress(progress);
+            }
+        }
+    }
+
+    private double getTrackProgress(TrackTranscoder trackTranscoder) {
+        if (trackTranscoder.isFinished()) return 1.0;
+        long writtenUs = trackTranscoder.getWrittenPresentationTimeUs() - mStartTimeUs;
+        return Math.max(0.0, Math.min(1.0, (double) writtenUs / mDurationUs));
     }
 
     public interface ProgressCallback {
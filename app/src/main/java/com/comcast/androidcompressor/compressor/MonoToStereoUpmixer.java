@@ -0,0 +1,32 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ShortBuffer;
+
+/**
+ * {@link AudioRemixer} from mono to stereo, as {@link AudioRemixer#UPMIX}, copying samples in blocks through
+ * short[] scratch arrays. Not thread safe, use one per channel.
+ */
+class MonoToStereoUpmixer implements AudioRemixer {
+    private static final int FRAMES_PER_BLOCK = 1024;
+
+    private final short[] mInputBlock = new short[FRAMES_PER_BLOCK];
+    private final short[] mOutputBlock = new short[FRAMES_PER_BLOCK * 2];
+
+    @Override
+    public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final short[] in = mInputBlock;
+        final short[] out = mOutputBlock;
+        int frames = Math.min(inSBuff.remaining(), outSBuff.remaining() / 2);
+        while (frames > 0) {
+            final int blockFrames = Math.min(frames, FRAMES_PER_BLOCK);
+            inSBuff.get(in, 0, blockFrames);
+            for (int i = 0; i < blockFrames; i++) {
+                final short sample = in[i];
+                out[2 * i] = sample;
+                out[2 * i + 1] = sample;
+            }
+            outSBuff.put(out, 0, blockFrames * 2);
+            frames -= blockFrames;
+        }
+    }
+}
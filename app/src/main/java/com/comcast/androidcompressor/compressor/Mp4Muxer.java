@@ -0,0 +1,118 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Muxer} writing fast-start MP4 through {@link Mp4Writer}, to a path or to any {@link WritableByteChannel}
+ * such as a pipe, a socket or a descriptor from the Storage Access Framework,
+ * or fragmented MP4 through {@link FragmentedMp4Writer}.
+ * Supports AVC video and AAC audio, the formats {@link MediaFormatValidator} accepts.
+ */
+public class Mp4Muxer implements Muxer {
+    private static final String MEDIA_DATA_SUFFIX = ".mdat";
+    private final Mp4SampleWriter mWriter;
+    private final FileOutputStream mOwnedOutputStream;
+
+    /**
+     * Writes to a file. Media data is kept in a temporary file next to it until {@link #stop()}.
+     */
+    public Mp4Muxer(String outputPath) throws IOException {
+        mOwnedOutputStream = new FileOutputStream(outputPath);
+        mWriter = new Mp4Writer(mOwnedOutputStream.getChannel(), new File(outputPath + MEDIA_DATA_SUFFIX));
+    }
+
+    /**
+     * @param output        Channel the whole file is written to on {@link #stop()}. Not closed by this class.
+     * @param mediaDataFile Temporary file for media data, deleted on {@link #release()}.
+     */
+    public Mp4Muxer(WritableByteChannel output, File mediaDataFile) {
+        mOwnedOutputStream = null;
+        mWriter = new Mp4Writer(output, mediaDataFile);
+    }
+
+    /**
+     * Writes fragmented MP4, delivering the init segment and each fragment to the listener as they complete.
+     */
+    public Mp4Muxer(FragmentedMp4Writer.FragmentListener fragmentListener) {
+        mOwnedOutputStream = null;
+        mWriter = new FragmentedMp4Writer(fragmentListener);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            ByteBuffer sps = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_SPS);
+            // samples are framed like the codec config.
+            return mWriter.addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    AvcCsdUtils.getNalUnit(sps),
+                    AvcCsdUtils.getNalUnit(format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_PPS)),
+                    AvcCsdUtils.hasStartCode(sps));
+        }
+        if (MediaFormatExtraConstants.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+            csd.rewind();
+            byte[] audioSpecificConfig = new byte[csd.remaining()];
+            csd.get(audioSpecificConfig);
+            int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            return mWriter.addAacTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), audioSpecificConfig, bitRate);
+        }
+        throw new IllegalArgumentException("Unsupported format: " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start output.", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) return;
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        try {
+            mWriter.writeSampleData(trackIndex, sample, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write sample.", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write output.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        mWriter.release();
+        if (mOwnedOutputStream != null) {
+            try {
+                mOwnedOutputStream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java MP4 writers {@link Mp4Muxer} can drive: {@link Mp4Writer} for whole files,
+ * {@link FragmentedMp4Writer} for fragments.
+ */
+interface Mp4SampleWriter {
+
+    /**
+     * @param sps      Sequence parameter set NAL unit, without start code.
+     * @param pps      Picture parameter set NAL unit, without start code.
+     * @param isAnnexB true if samples use start codes (Annex B), as MediaCodec outputs them along with a csd-0
+     *                 starting with one; false if they use 4 byte NAL unit lengths already.
+     * @return track index for {@link #writeSampleData(int, ByteBuffer, long, boolean)}.
+     */
+    int addAvcTrack(int width, int height, byte[] sps, byte[] pps, boolean isAnnexB);
+
+    /**
+     * @param audioSpecificConfig AudioSpecificConfig, i.e. csd-0 of an AAC encoder.
+     * @param bitRate             Average bit rate, or 0 if unknown.
+     * @return track index for {@link #writeSampleData(int, ByteBuffer, long, boolean)}.
+     */
+    int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig, int bitRate);
+
+    void setOrientationHint(int degrees);
+
+    void start() throws IOException;
+
+    /**
+     * @param data Sample between position and limit. Position is moved to limit.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean isSyncSample) throws IOException;
+
+    void stop() throws IOException;
+
+    void release();
+}
@@ -0,0 +1,365 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.util.Arrays;
+
+/**
+ * One track of an MP4 being written by {@link Mp4Writer}: codec parameters plus sample tables
+ * (sizes, times, sync samples, chunks) kept in primitive arrays until the moov box is written.
+ * Not thread safe.
+ */
+class Mp4Track {
+    static final int VIDEO_TIME_SCALE = 90000;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+    private static final int[][] ROTATION_MATRICES = {
+            {0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000},
+            {0, 0x10000, 0, -0x10000, 0, 0, 0, 0, 0x40000000},
+            {-0x10000, 0, 0, 0, -0x10000, 0, 0, 0, 0x40000000},
+            {0, -0x10000, 0, 0x10000, 0, 0, 0, 0, 0x40000000},
+    };
+
+    private final int mTrackId;
+    private final boolean mIsVideo;
+    private final int mTimeScale;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSps;
+    private byte[] mPps;
+    private boolean mIsAnnexB;
+    private int mSampleRate;
+    private int mChannelCount;
+    private byte[] mAudioSpecificConfig;
+    private int mBitRate;
+
+    private final IntArray mSampleSizes = new IntArray(INITIAL_CAPACITY);
+    private final LongArray mPresentationTimesUs = new LongArray(INITIAL_CAPACITY);
+    // 1-based sample numbers, as stored in stss.
+    private final IntArray mSyncSamples = new IntArray(INITIAL_CAPACITY / 16);
+    private final LongArray mChunkOffsets = new LongArray(INITIAL_CAPACITY / 4);
+    private final IntArray mChunkSampleCounts = new IntArray(INITIAL_CAPACITY / 4);
+
+    private Mp4Track(int trackId, boolean isVideo, int timeScale) {
+        mTrackId = trackId;
+        mIsVideo = isVideo;
+        mTimeScale = timeScale;
+    }
+
+    /**
+     * @param sps      Sequence parameter set NAL unit, without start code.
+     * @param pps      Picture parameter set NAL unit, without start code.
+     * @param isAnnexB Whether samples use start codes rather than 4 byte NAL unit lengths.
+     */
+    public static Mp4Track createAvcTrack(int trackId, int width, int height, byte[] sps, byte[] pps, boolean isAnnexB) {
+        if (sps.length < 4) throw new IllegalArgumentException("SPS too short: " + sps.length);
+        Mp4Track track = new Mp4Track(trackId, true, VIDEO_TIME_SCALE);
+        track.mWidth = width;
+        track.mHeight = height;
+        track.mSps = sps;
+        track.mPps = pps;
+        track.mIsAnnexB = isAnnexB;
+        return track;
+    }
+
+    /**
+     * @param audioSpecificConfig AudioSpecificConfig (ISO/IEC 14496-3), i.e. csd-0 of an AAC encoder.
+     */
+    public static Mp4Track createAacTrack(int trackId, int sampleRate, int channelCount, byte[] audioSpecificConfig, int bitRate) {
+        Mp4Track track = new Mp4Track(trackId, false, sampleRate);
+        track.mSampleRate = sampleRate;
+        track.mChannelCount = channelCount;
+        track.mAudioSpecificConfig = audioSpecificConfig;
+        track.mBitRate = bitRate;
+        return track;
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    public boolean isVideo() {
+        return mIsVideo;
+    }
+
+    /**
+     * @return true if samples of this AVC track use start codes, which have to be replaced with lengths.
+     */
+    public boolean isAnnexB() {
+        return mIsAnnexB;
+    }
+
+    public int getTimeScale() {
+        return mTimeScale;
+    }
+
+    public int getSampleCount() {
+        return mSampleSizes.size();
+    }
+
+    public long getFirstPresentationTimeUs() {
+        long firstUs = Long.MAX_VALUE;
+        for (int i = 0; i < mPresentationTimesUs.size(); i++) {
+            firstUs = Math.min(firstUs, mPresentationTimesUs.get(i));
+        }
+        return firstUs;
+    }
+
+    /**
+     * Records a sample written to the media data.
+     *
+     * @param offset     Offset of the sample in the media data, relative to its first byte.
+     * @param startChunk Whether the sample is not contiguous with the previous sample of this track.
+     */
+    public void addSample(long offset, int size, long presentationTimeUs, boolean isSyncSample, boolean startChunk) {
+        if (startChunk || mChunkOffsets.size() == 0) {
+            mChunkOffsets.add(offset);
+            mChunkSampleCounts.add(0);
+        }
+        int lastChunk = mChunkSampleCounts.size() - 1;
+        mChunkSampleCounts.set(lastChunk, mChunkSampleCounts.get(lastChunk) + 1);
+        mSampleSizes.add(size);
+        mPresentationTimesUs.add(presentationTimeUs);
+        if (isSyncSample) mSyncSamples.add(mSampleSizes.size());
+    }
+
+    /**
+     * Writes the trak box. A track without samples, as in the init segment of a fragmented file,
+     * gets empty sample tables.
+     *
+     * @param startTimeUs      Earliest presentation time of all tracks, which becomes time 0 of the movie.
+     * @param movieTimeScale   Time scale of mvhd.
+     * @param chunkOffsetBase  File offset of the first byte of media data.
+     * @param useLargeOffsets  Write co64 instead of stco.
+     * @param orientationHint  Rotation of video in degrees, one of 0, 90, 180 or 270.
+     * @return track duration in movie time scale, including the initial empty edit.
+     */
+    public long writeTrak(BoxWriter writer, long startTimeUs, int movieTimeScale, long chunkOffsetBase,
+                          boolean useLargeOffsets, int orientationHint) {
+        int sampleCount = getSampleCount();
+        long firstUs = sampleCount > 0 ? getFirstPresentationTimeUs() : startTimeUs;
+        long[] presentationTicks = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            presentationTicks[i] = toTicks(mPresentationTimesUs.get(i) - firstUs, mTimeScale);
+        }
+        // samples come in decode order; decode times are the presentation times sorted.
+        long[] decodeTicks = Arrays.copyOf(presentationTicks, sampleCount);
+        Arrays.sort(decodeTicks);
+        long compositionDelay = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            compositionDelay = Math.max(compositionDelay, decodeTicks[i] - presentationTicks[i]);
+        }
+        long mediaDuration = 0;
+        long[] sampleDurations = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            if (i + 1 < sampleCount) {
+                sampleDurations[i] = decodeTicks[i + 1] - decodeTicks[i];
+            } else if (i > 0) {
+                sampleDurations[i] = sampleDurations[i - 1];
+            } else {
+                sampleDurations[i] = mIsVideo ? mTimeScale / 30 : AAC_SAMPLES_PER_FRAME;
+            }
+            mediaDuration += sampleDurations[i];
+        }
+        long emptyDuration = toTicks(firstUs - startTimeUs, movieTimeScale);
+        long presentedDuration = mediaDuration * movieTimeScale / mTimeScale;
+
+        writer.startBox("trak");
+        writer.startFullBox("tkhd", 0, 0x3) // enabled, in movie
+                .putInt(0).putInt(0)
+                .putInt(mTrackId)
+                .putInt(0)
+                .putInt((int) (emptyDuration + presentedDuration))
+                .putZeros(8)
+                .putShort(0) // layer
+                .putShort(0) // alternate group
+                .putShort(mIsVideo ? 0 : 0x0100)
+                .putShort(0);
+        for (int value : ROTATION_MATRICES[mIsVideo ? (orientationHint / 90) & 3 : 0]) {
+            writer.putInt(value);
+        }
+        writer.putInt(mIsVideo ? mWidth << 16 : 0).putInt(mIsVideo ? mHeight << 16 : 0)
+                .endBox();
+
+        if (emptyDuration > 0 || compositionDelay > 0) {
+            writer.startBox("edts");
+            writer.startFullBox("elst", 0, 0).putInt(emptyDuration > 0 ? 2 : 1);
+            if (emptyDuration > 0) {
+                writer.putInt((int) emptyDuration).putInt(-1).putInt(0x10000);
+            }
+            writer.putInt((int) presentedDuration).putInt((int) compositionDelay).putInt(0x10000);
+            writer.endBox().endBox();
+        }
+
+        writer.startBox("mdia");
+        writer.startFullBox("mdhd", 0, 0)
+                .putInt(0).putInt(0)
+                .putInt(mTimeScale)
+                .putInt((int) mediaDuration)
+                .putShort(0x55C4) // "und"
+                .putShort(0)
+                .endBox();
+        writer.startFullBox("hdlr", 0, 0)
+                .putInt(0)
+                .putFourCc(mIsVideo ? "vide" : "soun")
+                .putZeros(12)
+                .putBytes((mIsVideo ? "VideoHandle\0" : "SoundHandle\0").getBytes())
+                .endBox();
+        writer.startBox("minf");
+        if (mIsVideo) {
+            writer.startFullBox("vmhd", 0, 1).putZeros(8).endBox();
+        } else {
+            writer.startFullBox("smhd", 0, 0).putZeros(4).endBox();
+        }
+        writer.startBox("dinf");
+        writer.startFullBox("dref", 0, 0).putInt(1);
+        writer.startFullBox("url ", 0, 1).endBox(); // media data is in this file
+        writer.endBox().endBox();
+
+        writer.startBox("stbl");
+        writer.startFullBox("stsd", 0, 0).putInt(1);
+        writeSampleEntry(writer);
+        writer.endBox();
+        writeTimeToSample(writer, sampleDurations);
+        if (compositionDelay > 0) {
+            writeCompositionOffsets(writer, presentationTicks, decodeTicks, compositionDelay);
+        }
+        if (mIsVideo && mSyncSamples.size() < sampleCount) {
+            writer.startFullBox("stss", 0, 0).putInt(mSyncSamples.size());
+            for (int i = 0; i < mSyncSamples.size(); i++) {
+                writer.putInt(mSyncSamples.get(i));
+            }
+            writer.endBox();
+        }
+        writeSampleToChunk(writer);
+        writer.startFullBox("stsz", 0, 0).putInt(0).putInt(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            writer.putInt(mSampleSizes.get(i));
+        }
+        writer.endBox();
+        writer.startFullBox(useLargeOffsets ? "co64" : "stco", 0, 0).putInt(mChunkOffsets.size());
+        for (int i = 0; i < mChunkOffsets.size(); i++) {
+            long offset = chunkOffsetBase + mChunkOffsets.get(i);
+            if (useLargeOffsets) {
+                writer.putLong(offset);
+            } else {
+                writer.putInt((int) offset);
+            }
+        }
+        writer.endBox();
+        writer.endBox(); // stbl
+        writer.endBox(); // minf
+        writer.endBox(); // mdia
+        writer.endBox(); // trak
+        return emptyDuration + presentedDuration;
+    }
+
+    /**
+     * Writes the avc1 or mp4a sample entry of stsd.
+     */
+    public void writeSampleEntry(BoxWriter writer) {
+        if (mIsVideo) {
+            writer.startBox("avc1")
+                    .putZeros(6).putShort(1) // data reference index
+                    .putZeros(16)
+                    .putShort(mWidth).putShort(mHeight)
+                    .putInt(0x00480000).putInt(0x00480000) // 72 dpi
+                    .putInt(0)
+                    .putShort(1) // frame count
+                    .putZeros(32) // compressor name
+                    .putShort(0x0018) // depth
+                    .putShort(-1);
+            writer.startBox("avcC")
+                    .putByte(1) // configuration version
+                    .putByte(mSps[1]) // profile
+                    .putByte(mSps[2]) // profile compatibility
+                    .putByte(mSps[3]) // level
+                    .putByte(0xFF) // 4 byte NAL unit lengths
+                    .putByte(0xE1).putShort(mSps.length).putBytes(mSps)
+                    .putByte(1).putShort(mPps.length).putBytes(mPps)
+                    .endBox();
+            writer.endBox();
+        } else {
+            writer.startBox("mp4a")
+                    .putZeros(6).putShort(1) // data reference index
+                    .putZeros(8)
+                    .putShort(mChannelCount)
+                    .putShort(16) // sample size
+                    .putZeros(4)
+                    .putInt(mSampleRate << 16);
+            int decoderSpecificInfoSize = 5 + mAudioSpecificConfig.length;
+            int decoderConfigSize = 13 + decoderSpecificInfoSize;
+            int esSize = 3 + 5 + decoderConfigSize + 5 + 1;
+            writer.startFullBox("esds", 0, 0)
+                    .putDescriptorHeader(0x03, esSize)
+                    .putShort(0) // ES_ID
+                    .putByte(0)
+                    .putDescriptorHeader(0x04, decoderConfigSize)
+                    .putByte(0x40) // Audio ISO/IEC 14496-3
+                    .putByte(0x15) // audio stream
+                    .putByte(0).putShort(0) // buffer size
+                    .putInt(mBitRate).putInt(mBitRate)
+                    .putDescriptorHeader(0x05, mAudioSpecificConfig.length)
+                    .putBytes(mAudioSpecificConfig)
+                    .putDescriptorHeader(0x06, 1)
+                    .putByte(0x02)
+                    .endBox();
+            writer.endBox();
+        }
+    }
+
+    private void writeTimeToSample(BoxWriter writer, long[] sampleDurations) {
+        writer.startFullBox("stts", 0, 0);
+        int countPosition = writer.size();
+        writer.putInt(0);
+        int entryCount = 0;
+        for (int i = 0; i < sampleDurations.length; ) {
+            int run = 1;
+            while (i + run < sampleDurations.length && sampleDurations[i + run] == sampleDurations[i]) run++;
+            writer.putInt(run).putInt((int) sampleDurations[i]);
+            entryCount++;
+            i += run;
+        }
+        writer.patchInt(countPosition, entryCount);
+        writer.endBox();
+    }
+
+    private void writeCompositionOffsets(BoxWriter writer, long[] presentationTicks, long[] decodeTicks, long compositionDelay) {
+        writer.startFullBox("ctts", 0, 0);
+        int countPosition = writer.size();
+        writer.putInt(0);
+        int entryCount = 0;
+        for (int i = 0; i < presentationTicks.length; ) {
+            long offset = presentationTicks[i] - decodeTicks[i] + compositionDelay;
+            int run = 1;
+            while (i + run < presentationTicks.length
+                    && presentationTicks[i + run] - decodeTicks[i + run] + compositionDelay == offset) {
+                run++;
+            }
+            writer.putInt(run).putInt((int) offset);
+            entryCount++;
+            i += run;
+        }
+        writer.patchInt(countPosition, entryCount);
+        writer.endBox();
+    }
+
+    private void writeSampleToChunk(BoxWriter writer) {
+        writer.startFullBox("stsc", 0, 0);
+        int countPosition = writer.size();
+        writer.putInt(0);
+        int entryCount = 0;
+        int previousCount = -1;
+        for (int i = 0; i < mChunkSampleCounts.size(); i++) {
+            int count = mChunkSampleCounts.get(i);
+            if (count == previousCount) continue;
+            writer.putInt(i + 1).putInt(count).putInt(1);
+            entryCount++;
+            previousCount = count;
+        }
+        writer.patchInt(countPosition, entryCount);
+        writer.endBox();
+    }
+
+    static long toTicks(long timeUs, int timeScale) {
+        return (timeUs * timeScale + 500000) / 1000000;
+    }
+}
@@ -0,0 +1,250 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pure Java MP4 (ISO/IEC 14496-12) writer for AVC and AAC tracks, producing fast-start files:
+ * the moov box comes before the media data, so playback or an upload can begin with the first bytes.
+ * <p>
+ * Samples are appended to a temporary media data file while writing. {@link #stop()} writes ftyp and moov to the
+ * output, then moves the media data over with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+ * so it is not copied through the Java heap. The output may be any channel: a file, a pipe or a socket.
+ * <p>
+ * Has no Android dependency, so it runs on the JVM as well. Not thread safe.
+ */
+public class Mp4Writer implements Mp4SampleWriter {
+    private static final int MOVIE_TIME_SCALE = 1000;
+    private static final long MAX_32BIT_SIZE = 0xFFFFFFFFL;
+
+    private final WritableByteChannel mOutput;
+    private final File mMediaDataFile;
+    private RandomAccessFile mMediaDataAccess;
+    private FileChannel mMediaDataChannel;
+    private final List<Mp4Track> mTracks = new ArrayList<>(2);
+    private final ByteBuffer mLengthBuffer = ByteBuffer.allocate(4);
+    private long mMediaDataSize;
+    private int mLastTrackIndex = -1;
+    private int mOrientationHint;
+    private boolean mStarted;
+    private boolean mStopped;
+
+    /**
+     * @param output        Channel the file is written to on {@link #stop()}. Not closed by this class.
+     * @param mediaDataFile Temporary file for media data, deleted on {@link #release()}.
+     */
+    public Mp4Writer(WritableByteChannel output, File mediaDataFile) {
+        mOutput = output;
+        mMediaDataFile = mediaDataFile;
+    }
+
+    @Override
+    public int addAvcTrack(int width, int height, byte[] sps, byte[] pps, boolean isAnnexB) {
+        checkNotStarted();
+        mTracks.add(Mp4Track.createAvcTrack(mTracks.size() + 1, width, height, sps, pps, isAnnexB));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public int addAacTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig, int bitRate) {
+        checkNotStarted();
+        mTracks.add(Mp4Track.createAacTrack(mTracks.size() + 1, sampleRate, channelCount, audioSpecificConfig, bitRate));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        checkNotStarted();
+        mOrientationHint = degrees;
+    }
+
+    @Override
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) throw new IllegalStateException("No track added.");
+        mMediaDataAccess = new RandomAccessFile(mMediaDataFile, "rw");
+        mMediaDataAccess.setLength(0);
+        mMediaDataChannel = mMediaDataAccess.getChannel();
+        mStarted = true;
+    }
+
+    /**
+     * Appends a sample. Start codes of AVC tracks added as Annex B are replaced with 4 byte NAL unit lengths;
+     * other samples are written as they are.
+     *
+     * @param data Sample between position and limit. Position is moved to limit.
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, long presentationTimeUs, boolean isSyncSample) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("Writer is not started.");
+        if (!data.hasRemaining()) return;
+        Mp4Track track = mTracks.get(trackIndex);
+        long offset = mMediaDataSize;
+        int size = track.isAnnexB() ? writeAnnexBSample(data) : writeFully(data);
+        track.addSample(offset, size, presentationTimeUs, isSyncSample, trackIndex != mLastTrackIndex);
+        mMediaDataSize += size;
+        mLastTrackIndex = trackIndex;
+    }
+
+    /**
+     * Writes the whole file to the output.
+     */
+    @Override
+    public void stop() throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("Writer is not started.");
+        mStopped = true;
+        long startTimeUs = Long.MAX_VALUE;
+        for (Mp4Track track : mTracks) {
+            if (track.getSampleCount() > 0) startTimeUs = Math.min(startTimeUs, track.getFirstPresentationTimeUs());
+        }
+        if (startTimeUs == Long.MAX_VALUE) throw new IllegalStateException("No sample written.");
+
+        BoxWriter fileType = new BoxWriter(32);
+        fileType.startBox("ftyp")
+                .putFourCc("isom").putInt(0x200)
+                .putFourCc("isom").putFourCc("iso2").putFourCc("avc1").putFourCc("mp41")
+                .endBox();
+        boolean useLargeMediaData = mMediaDataSize + 8 > MAX_32BIT_SIZE;
+        int mediaDataHeaderSize = useLargeMediaData ? 16 : 8;
+
+        // moov size depends only on the chunk offset box type; lay it out once to learn where media data starts.
+        BoxWriter movie = new BoxWriter(64 * 1024);
+        writeMovie(movie, startTimeUs, 0, false);
+        long chunkOffsetBase = fileType.size() + movie.size() + mediaDataHeaderSize;
+        boolean useLargeOffsets = chunkOffsetBase + mMediaDataSize > MAX_32BIT_SIZE;
+        if (useLargeOffsets) {
+            movie.clear();
+            writeMovie(movie, startTimeUs, 0, true);
+            chunkOffsetBase = fileType.size() + movie.size() + mediaDataHeaderSize;
+        }
+        movie.clear();
+        writeMovie(movie, startTimeUs, chunkOffsetBase, useLargeOffsets);
+
+        BoxWriter mediaDataHeader = new BoxWriter(16);
+        if (useLargeMediaData) {
+            mediaDataHeader.putInt(1).putFourCc("mdat").putLong(16 + mMediaDataSize);
+        } else {
+            mediaDataHeader.putInt((int) (8 + mMediaDataSize)).putFourCc("mdat");
+        }
+        writeFully(fileType.asReadOnlyBuffer(), mOutput);
+        writeFully(movie.asReadOnlyBuffer(), mOutput);
+        writeFully(mediaDataHeader.asReadOnlyBuffer(), mOutput);
+        long position = 0;
+        while (position < mMediaDataSize) {
+            position += mMediaDataChannel.transferTo(position, mMediaDataSize - position, mOutput);
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary media data file. Does not close the output.
+     */
+    @Override
+    public void release() {
+        if (mMediaDataAccess != null) {
+            try {
+                mMediaDataAccess.close();
+            } catch (IOException e) {
+                // nothing to do, the file is deleted anyway
+            }
+            mMediaDataAccess = null;
+            mMediaDataChannel = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mMediaDataFile.delete();
+    }
+
+    private void writeMovie(BoxWriter writer, long startTimeUs, long chunkOffsetBase, boolean useLargeOffsets) {
+        writer.startBox("moov");
+        writer.startFullBox("mvhd", 0, 0)
+                .putInt(0).putInt(0)
+                .putInt(MOVIE_TIME_SCALE);
+        int durationPosition = writer.size();
+        writer.putInt(0)
+                .putInt(0x00010000) // rate 1.0
+                .putShort(0x0100) // volume 1.0
+                .putZeros(10)
+                .putInt(0x10000).putInt(0).putInt(0)
+                .putInt(0).putInt(0x10000).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000)
+                .putZeros(24)
+                .putInt(mTracks.size() + 1) // next track id
+                .endBox();
+        long duration = 0;
+        for (Mp4Track track : mTracks) {
+            if (track.getSampleCount() == 0) continue;
+            duration = Math.max(duration, track.writeTrak(writer, startTimeUs, MOVIE_TIME_SCALE,
+                    chunkOffsetBase, useLargeOffsets, mOrientationHint));
+        }
+        writer.patchInt(durationPosition, (int) duration);
+        writer.endBox();
+    }
+
+    private int writeFully(ByteBuffer data) throws IOException {
+        return writeFully(data, mMediaDataChannel);
+    }
+
+    private static int writeFully(ByteBuffer data, WritableByteChannel channel) throws IOException {
+        int size = data.remaining();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        return size;
+    }
+
+    private int writeAnnexBSample(ByteBuffer data) throws IOException {
+        checkStartCode(data);
+        int end = data.limit();
+        int size = 0;
+        int nalStart = skipStartCode(data, data.position());
+        while (nalStart < end) {
+            int nextStartCode = findStartCode(data, nalStart, end);
+            mLengthBuffer.clear();
+            mLengthBuffer.putInt(nextStartCode - nalStart).flip();
+            ByteBuffer nal = data.duplicate();
+            nal.limit(nextStartCode).position(nalStart);
+            size += writeFully(mLengthBuffer) + writeFully(nal);
+            nalStart = nextStartCode < end ? skipStartCode(data, nextStartCode) : end;
+        }
+        data.position(end);
+        return size;
+    }
+
+    // Only checked on tracks known to be Annex B: a length prefixed NAL unit of 256 to 511 bytes starts with
+    // 00 00 01 as well.
+    static void checkStartCode(ByteBuffer data) {
+        int position = data.position();
+        boolean hasStartCode = data.remaining() >= 4 && data.get(position) == 0 && data.get(position + 1) == 0
+                && (data.get(position + 2) == 1 || (data.get(position + 2) == 0 && data.get(position + 3) == 1));
+        if (!hasStartCode) throw new IllegalArgumentException("AVC sample of an Annex B track without start code.");
+    }
+
+    static int skipStartCode(ByteBuffer data, int position) {
+        return data.get(position + 2) == 1 ? position + 3 : position + 4;
+    }
+
+    // Emulation prevention keeps 00 00 01 out of NAL units, so the next one starts there,
+    // or one byte earlier for a four byte start code.
+    static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data.get(i + 2) & 0xFF) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i > from && data.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return end;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) throw new IllegalStateException("Writer has already started.");
+    }
+}
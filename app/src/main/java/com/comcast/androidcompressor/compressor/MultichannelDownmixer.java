@@ -0,0 +1,181 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ShortBuffer;
+
+/**
+ * {@link AudioRemixer} from multichannel layouts (3 to 8 channels, e.g. 5.1 and 7.1) down to stereo or mono.
+ * <p>
+ * Each input channel is placed by its speaker position, taken from the channel mask or, without one, from the
+ * default layout for the channel count. Centre and surround channels are mixed into left and right at -3 dB
+ * and LFE is dropped, as in ITU-R BS.775; mono is the average of left and right. Gains are normalized so a
+ * full scale input on every channel cannot clip.
+ * <p>
+ * Frames are copied in blocks into short[] scratch arrays and mixed in fixed point. Unlike the remixers of
+ * {@link AudioRemixer}, not thread safe, use one per channel.
+ */
+class MultichannelDownmixer implements AudioRemixer {
+    // Speaker positions of android.media.AudioFormat.CHANNEL_OUT_*; interleaved samples are in bit order.
+    static final int CHANNEL_FRONT_LEFT = 0x4;
+    static final int CHANNEL_FRONT_RIGHT = 0x8;
+    static final int CHANNEL_FRONT_CENTER = 0x10;
+    static final int CHANNEL_LOW_FREQUENCY = 0x20;
+    static final int CHANNEL_BACK_LEFT = 0x40;
+    static final int CHANNEL_BACK_RIGHT = 0x80;
+    static final int CHANNEL_FRONT_LEFT_OF_CENTER = 0x100;
+    static final int CHANNEL_FRONT_RIGHT_OF_CENTER = 0x200;
+    static final int CHANNEL_BACK_CENTER = 0x400;
+    static final int CHANNEL_SIDE_LEFT = 0x800;
+    static final int CHANNEL_SIDE_RIGHT = 0x1000;
+
+    static final int CHANNEL_MASK_5POINT1 = CHANNEL_FRONT_LEFT | CHANNEL_FRONT_RIGHT | CHANNEL_FRONT_CENTER
+            | CHANNEL_LOW_FREQUENCY | CHANNEL_BACK_LEFT | CHANNEL_BACK_RIGHT;
+    static final int CHANNEL_MASK_7POINT1 = CHANNEL_MASK_5POINT1 | CHANNEL_SIDE_LEFT | CHANNEL_SIDE_RIGHT;
+
+    public static final int MAX_INPUT_CHANNEL_COUNT = 8;
+
+    private static final int FRAMES_PER_BLOCK = 256;
+    private static final int GAIN_SHIFT = 14;
+    private static final double MINUS_3_DB = 0.7071;
+
+    private final int mInputChannelCount;
+    private final int mOutputChannelCount;
+    // gain of input channel i to output channel o at [o * mInputChannelCount + i], in Q14.
+    private final int[] mGains;
+    private final short[] mInputBlock;
+    private final short[] mOutputBlock;
+
+    /**
+     * @param inputChannelCount  Number of interleaved input channels, 3 to {@link #MAX_INPUT_CHANNEL_COUNT}.
+     * @param channelMask        android.media.AudioFormat channel mask of the input, or 0 if unknown.
+     * @param outputChannelCount 1 or 2.
+     */
+    public MultichannelDownmixer(int inputChannelCount, int channelMask, int outputChannelCount) {
+        if (inputChannelCount < 3 || inputChannelCount > MAX_INPUT_CHANNEL_COUNT
+                || (outputChannelCount != 1 && outputChannelCount != 2)) {
+            throw new IllegalArgumentException("Down-mixing " + inputChannelCount + " to " + outputChannelCount
+                    + " channels not supported.");
+        }
+        mInputChannelCount = inputChannelCount;
+        mOutputChannelCount = outputChannelCount;
+        mGains = createGains(getPositions(inputChannelCount, channelMask), outputChannelCount);
+        mInputBlock = new short[FRAMES_PER_BLOCK * inputChannelCount];
+        mOutputBlock = new short[FRAMES_PER_BLOCK * outputChannelCount];
+    }
+
+    @Override
+    public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final int inputChannelCount = mInputChannelCount;
+        final int outputChannelCount = mOutputChannelCount;
+        final int[] gains = mGains;
+        final short[] in = mInputBlock;
+        final short[] out = mOutputBlock;
+        int frames = Math.min(inSBuff.remaining() / inputChannelCount, outSBuff.remaining() / outputChannelCount);
+        while (frames > 0) {
+            final int blockFrames = Math.min(frames, FRAMES_PER_BLOCK);
+            inSBuff.get(in, 0, blockFrames * inputChannelCount);
+            int inIndex = 0;
+            int outIndex = 0;
+            for (int frame = 0; frame < blockFrames; frame++) {
+                int gainIndex = 0;
+                for (int o = 0; o < outputChannelCount; o++) {
+                    int sum = 0;
+                    for (int i = 0; i < inputChannelCount; i++) {
+                        sum += in[inIndex + i] * gains[gainIndex++];
+                    }
+                    // gains add up to at most 1, so this stays within a short.
+                    out[outIndex++] = (short) (sum >> GAIN_SHIFT);
+                }
+                inIndex += inputChannelCount;
+            }
+            outSBuff.put(out, 0, outIndex);
+            frames -= blockFrames;
+        }
+    }
+
+    // Speaker position of each interleaved channel.
+    private static int[] getPositions(int channelCount, int channelMask) {
+        if (Integer.bitCount(channelMask) != channelCount) {
+            channelMask = getDefaultChannelMask(channelCount);
+        }
+        int[] positions = new int[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            positions[i] = Integer.lowestOneBit(channelMask);
+            channelMask &= ~positions[i];
+        }
+        return positions;
+    }
+
+    // Layouts of android.media.AudioFormat for channel counts decoders report without a mask.
+    static int getDefaultChannelMask(int channelCount) {
+        switch (channelCount) {
+            case 3:
+                return CHANNEL_FRONT_LEFT | CHANNEL_FRONT_RIGHT | CHANNEL_FRONT_CENTER;
+            case 4:
+                return CHANNEL_FRONT_LEFT | CHANNEL_FRONT_RIGHT | CHANNEL_BACK_LEFT | CHANNEL_BACK_RIGHT;
+            case 5:
+                return CHANNEL_FRONT_LEFT | CHANNEL_FRONT_RIGHT | CHANNEL_FRONT_CENTER
+                        | CHANNEL_BACK_LEFT | CHANNEL_BACK_RIGHT;
+            case 6:
+                return CHANNEL_MASK_5POINT1;
+            case 7:
+                return CHANNEL_MASK_5POINT1 | CHANNEL_BACK_CENTER;
+            default:
+                return CHANNEL_MASK_7POINT1;
+        }
+    }
+
+    private static int[] createGains(int[] positions, int outputChannelCount) {
+        int inputChannelCount = positions.length;
+        double[] left = new double[inputChannelCount];
+        double[] right = new double[inputChannelCount];
+        for (int i = 0; i < inputChannelCount; i++) {
+            switch (positions[i]) {
+                case CHANNEL_FRONT_LEFT:
+                case CHANNEL_FRONT_LEFT_OF_CENTER:
+                    left[i] = 1.0;
+                    break;
+                case CHANNEL_FRONT_RIGHT:
+                case CHANNEL_FRONT_RIGHT_OF_CENTER:
+                    right[i] = 1.0;
+                    break;
+                case CHANNEL_BACK_LEFT:
+                case CHANNEL_SIDE_LEFT:
+                    left[i] = MINUS_3_DB;
+                    break;
+                case CHANNEL_BACK_RIGHT:
+                case CHANNEL_SIDE_RIGHT:
+                    right[i] = MINUS_3_DB;
+                    break;
+                case CHANNEL_LOW_FREQUENCY:
+                    break;
+                default:
+                    // centre channels, and positions without a place in stereo.
+                    left[i] = MINUS_3_DB;
+                    right[i] = MINUS_3_DB;
+                    break;
+            }
+        }
+        double leftSum = 0;
+        double rightSum = 0;
+        for (int i = 0; i < inputChannelCount; i++) {
+            leftSum += left[i];
+            rightSum += right[i];
+        }
+        double scale = 1.0 / Math.max(1.0, Math.max(leftSum, rightSum));
+        int[] gains = new int[inputChannelCount * outputChannelCount];
+        for (int i = 0; i < inputChannelCount; i++) {
+            if (outputChannelCount == 1) {
+                gains[i] = toFixedPoint((left[i] + right[i]) / 2 * scale);
+            } else {
+                gains[i] = toFixedPoint(left[i] * scale);
+                gains[inputChannelCount + i] = toFixedPoint(right[i] * scale);
+            }
+        }
+        return gains;
+    }
+
+    // rounds down, so the gains of an output never add up to more than 1.
+    private static int toFixedPoint(double gain) {
+        return (int) (gain * (1 << GAIN_SHIFT));
+    }
+}
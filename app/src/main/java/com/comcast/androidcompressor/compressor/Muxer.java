@@ -0,0 +1,28 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Calls the engine makes on its output container, the same as {@link android.media.MediaMuxer}'s,
+ * so output can be written by MediaMuxer ({@link AndroidMuxer}) or the pure Java {@link Mp4Muxer}.
+ */
+public interface Muxer {
+
+    void setOrientationHint(int degrees);
+
+    /**
+     * @return track index for {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)}.
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
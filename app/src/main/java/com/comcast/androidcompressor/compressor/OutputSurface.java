@@ -242,6 +242,14 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         mTextureRender.drawFrame(mSurfaceTexture, isFormalizingOrientation, originalOrientation);
     }
 
+    /**
+     * Draws the data from SurfaceTexture onto the current EGL surface or framebuffer, upside down if flipped.
+     * Does not wait for the GPU to finish drawing.
+     */
+    public void drawImage(boolean isFormalizingOrientation, int originalOrientation, boolean isFlipped) {
+        mTextureRender.drawFrame(mSurfaceTexture, isFormalizingOrientation, originalOrientation, isFlipped);
+    }
+
     @Override
     public void onFrameAvailable(SurfaceTexture st) {
         if (VERBOSE) Log.d(TAG, "new frame available");
@@ -6,7 +6,6 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 public class PassThroughTrackTranscoder implements TrackTranscoder {
     private final MediaExtractor mExtractor;
@@ -16,9 +15,11 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private int mBufferSize;
     private ByteBuffer mBuffer;
-    private boolean mIsEOS;
+    private volatile boolean mIsEOS;
     private MediaFormat mActualOutputFormat;
-    private long mWrittenPresentationTimeUs;
+    private volatile long mWrittenPresentationTimeUs;
+    private TrimEnd mTrimEnd = new TrimEnd(-1);
+    private long mStartPresentationTimeUs;
 
     public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                       QueuedMuxer muxer, QueuedMuxer.SampleType sampleType) {
@@ -30,13 +31,27 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
         mActualOutputFormat = mExtractor.getTrackFormat(mTrackIndex);
         mMuxer.setOutputFormat(mSampleType, mActualOutputFormat);
         mBufferSize = mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
-        mBuffer = ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.nativeOrder());
+        mBuffer = ByteBufferPool.getInstance().lease(mBufferSize);
     }
 
     @Override
     public void setup() {
     }
 
+    @Override
+    public void setEndPresentationTimeUs(long endPresentationTimeUs) {
+        mTrimEnd = new TrimEnd(endPresentationTimeUs);
+    }
+
+    /**
+     * Samples are dropped as they are read, so for video this should be the time of a sync sample; samples before
+     * it could not be decoded without the ones before the sync sample anyway.
+     */
+    @Override
+    public void setStartPresentationTimeUs(long startPresentationTimeUs) {
+        mStartPresentationTimeUs = startPresentationTimeUs;
+    }
+
     @Override
     public MediaFormat getDeterminedFormat() {
         return mActualOutputFormat;
@@ -47,6 +62,11 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
     public boolean stepPipeline() {
         if (mIsEOS) return false;
         int trackIndex = mExtractor.getSampleTrackIndex();
+        if (trackIndex == mTrackIndex && mTrimEnd.isEndOfTrack(mExtractor.getSampleTime(),
+                (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0)) {
+            mExtractor.unselectTrack(mTrackIndex);
+            trackIndex = -1;
+        }
         if (trackIndex < 0) {
             mBuffer.clear();
             mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
@@ -55,6 +75,11 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
             return true;
         }
         if (trackIndex != mTrackIndex) return false;
+        long sampleTimeUs = mExtractor.getSampleTime();
+        if (sampleTimeUs < mStartPresentationTimeUs || !mTrimEnd.isBeforeEnd(sampleTimeUs)) {
+            mExtractor.advance();
+            return true;
+        }
 
         mBuffer.clear();
         int sampleSize = mExtractor.readSampleData(mBuffer, 0);
@@ -81,5 +106,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
 
     @Override
     public void release() {
+        ByteBufferPool.getInstance().release(mBuffer);
+        mBuffer = null;
     }
 }
@@ -0,0 +1,181 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queue of samples written before the muxer can start, used by {@link QueuedMuxer}.
+ * <p>
+ * Sample data is packed into a chain of direct chunks leased from {@link ByteBufferPool}, so a large
+ * key frame only takes more chunks. Once the memory budget is used up, further samples are appended to a
+ * temporary file instead. Per-sample metadata is kept in primitive arrays.
+ * Not thread safe.
+ */
+class PendingSampleQueue {
+    private static final String TAG = "PendingSampleQueue";
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long mMemoryBudget;
+    private final List<ByteBuffer> mChunks = new ArrayList<>();
+    private final IntArray mTrackIndices = new IntArray(64);
+    private final IntArray mSizes = new IntArray(64);
+    private final IntArray mFlags = new IntArray(64);
+    private final LongArray mPresentationTimesUs = new LongArray(64);
+    private long mMemoryBytes;
+    // samples from this index on are in the spill file.
+    private int mSpillStartIndex = -1;
+    private File mSpillFile;
+    private RandomAccessFile mSpillAccess;
+    private FileChannel mSpillChannel;
+    private int mMaxSampleSize;
+
+    /**
+     * @param memoryBudget Bytes of sample data to keep in memory before spilling to a temporary file.
+     */
+    public PendingSampleQueue(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    public int getSampleCount() {
+        return mSizes.size();
+    }
+
+    public long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    public boolean isSpilled() {
+        return mSpillStartIndex >= 0;
+    }
+
+    /**
+     * @param data Sample between position and limit. Position is moved to limit.
+     */
+    public void add(int trackIndex, ByteBuffer data, MediaCodec.BufferInfo bufferInfo) throws IOException {
+        int size = data.remaining();
+        if (mSpillStartIndex < 0 && mMemoryBytes + size > mMemoryBudget) {
+            openSpillFile();
+            mSpillStartIndex = mSizes.size();
+            Log.d(TAG, "Memory budget of " + mMemoryBudget + " bytes used up, spilling samples to " + mSpillFile);
+        }
+        if (mSpillStartIndex >= 0) {
+            while (data.hasRemaining()) {
+                mSpillChannel.write(data);
+            }
+        } else {
+            while (data.hasRemaining()) {
+                ByteBuffer chunk = mChunks.isEmpty() ? null : mChunks.get(mChunks.size() - 1);
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = ByteBufferPool.getInstance().lease(CHUNK_SIZE);
+                    mChunks.add(chunk);
+                }
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), chunk.remaining()));
+                chunk.put(part);
+                data.position(part.limit());
+            }
+            mMemoryBytes += size;
+        }
+        mTrackIndices.add(trackIndex);
+        mSizes.add(size);
+        mFlags.add(bufferInfo.flags);
+        mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+        mMaxSampleSize = Math.max(mMaxSampleSize, size);
+    }
+
+    /**
+     * Writes all samples to the muxer in the order they were added, then empties the queue.
+     *
+     * @param trackIndices Muxer track index for each track index given to {@link #add}.
+     */
+    public void drainTo(Muxer muxer, int[] trackIndices) throws IOException {
+        if (mSizes.size() == 0) return;
+        ByteBuffer sample = ByteBufferPool.getInstance().lease(mMaxSampleSize);
+        try {
+            drainTo(muxer, trackIndices, sample);
+        } finally {
+            ByteBufferPool.getInstance().release(sample);
+        }
+        release();
+    }
+
+    private void drainTo(Muxer muxer, int[] trackIndices, ByteBuffer sample) throws IOException {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        if (mSpillChannel != null) mSpillChannel.position(0);
+        int chunkIndex = 0;
+        int chunkPosition = 0;
+        for (int i = 0; i < mSizes.size(); i++) {
+            int size = mSizes.get(i);
+            sample.clear();
+            sample.limit(size);
+            if (mSpillStartIndex >= 0 && i >= mSpillStartIndex) {
+                while (sample.hasRemaining()) {
+                    if (mSpillChannel.read(sample) < 0) throw new IOException("Spill file is truncated.");
+                }
+            } else {
+                while (sample.hasRemaining()) {
+                    ByteBuffer chunk = mChunks.get(chunkIndex).duplicate();
+                    int length = Math.min(sample.remaining(), CHUNK_SIZE - chunkPosition);
+                    chunk.limit(chunkPosition + length).position(chunkPosition);
+                    sample.put(chunk);
+                    chunkPosition += length;
+                    if (chunkPosition == CHUNK_SIZE) {
+                        chunkIndex++;
+                        chunkPosition = 0;
+                    }
+                }
+            }
+            sample.flip();
+            bufferInfo.offset = 0;
+            bufferInfo.size = size;
+            bufferInfo.presentationTimeUs = mPresentationTimesUs.get(i);
+            bufferInfo.flags = mFlags.get(i);
+            muxer.writeSampleData(trackIndices[mTrackIndices.get(i)], sample, bufferInfo);
+        }
+    }
+
+    /**
+     * Gives chunks back to the pool and deletes the spill file.
+     */
+    public void release() {
+        for (ByteBuffer chunk : mChunks) {
+            ByteBufferPool.getInstance().release(chunk);
+        }
+        mChunks.clear();
+        mTrackIndices.clear();
+        mSizes.clear();
+        mFlags.clear();
+        mPresentationTimesUs.clear();
+        mMemoryBytes = 0;
+        mMaxSampleSize = 0;
+        mSpillStartIndex = -1;
+        if (mSpillAccess != null) {
+            try {
+                mSpillAccess.close();
+            } catch (IOException e) {
+                // nothing to do, the file is deleted anyway
+            }
+            mSpillAccess = null;
+            mSpillChannel = null;
+        }
+        if (mSpillFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+
+    private void openSpillFile() throws IOException {
+        mSpillFile = File.createTempFile(TAG, ".tmp");
+        mSpillAccess = new RandomAccessFile(mSpillFile, "rw");
+        mSpillChannel = mSpillAccess.getChannel();
+    }
+}
@@ -0,0 +1,26 @@
+package com.comcast.androidcompressor.compressor;
+
+/**
+ * Wakes up a pipeline thread waiting for codec events.
+ * A signal raised while nobody is waiting is remembered, so the next {@link #await(long)} returns immediately.
+ */
+class PipelineSignal {
+    private boolean mSignaled;
+
+    public synchronized void signal() {
+        mSignaled = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until {@link #signal()} is called or timeout expires, then clears the signal.
+     *
+     * @param timeoutMs Maximum time to wait in milliseconds.
+     */
+    public synchronized void await(long timeoutMs) throws InterruptedException {
+        if (!mSignaled) {
+            wait(timeoutMs);
+        }
+        mSignaled = false;
+    }
+}
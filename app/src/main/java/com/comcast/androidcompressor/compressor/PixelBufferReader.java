@@ -0,0 +1,193 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads RGBA pixels of the bound framebuffer without stalling the GL pipeline for each frame.
+ * <p>
+ * With OpenGL ES 3, each read is queued into one of a ring of pixel buffer objects together with a fence, and its
+ * pixels are delivered once the GPU has passed the fence, so reading back frame N overlaps with rendering frame
+ * N + 1. Only when a read would reuse a buffer still in flight does the caller wait. Contexts not created for ES 3,
+ * see {@link InputSurface}, fall back to a synchronous glReadPixels, delivered right away.
+ * <p>
+ * All methods are called on the thread with the GL context current. Rows are delivered bottom-up, as read.
+ */
+class PixelBufferReader {
+    private static final String TAG = "PixelBufferReader";
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * Receives pixels on the GL thread.
+     */
+    interface Callback {
+        /**
+         * @param pixels             Copy of the pixels, owned by the callee; position 0, rows bottom-up.
+         * @param presentationTimeUs Time given to {@link #read(long)}.
+         */
+        void onPixelsRead(ByteBuffer pixels, long presentationTimeUs);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBufferCount;
+    private final Callback mCallback;
+    private int[] mBuffers;
+    private long[] mFences;
+    private long[] mPresentationTimesUs;
+    // oldest read in flight, and number of reads in flight.
+    private int mHead;
+    private int mPendingCount;
+
+    /**
+     * @param width       Width of the area read, from the bottom left corner.
+     * @param height      Height of the area read.
+     * @param bufferCount Pixel buffer objects in the ring, at least 2 so a read can overlap the next frame.
+     * @param callback    Callback receiving pixels.
+     */
+    public PixelBufferReader(int width, int height, int bufferCount, Callback callback) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("Invalid buffer count: " + bufferCount);
+        }
+        mWidth = width;
+        mHeight = height;
+        mBufferCount = bufferCount;
+        mCallback = callback;
+    }
+
+    /**
+     * Allocates the pixel buffer objects if the current context supports them.
+     */
+    public void setup() {
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 4);
+        if (!isPixelBufferSupported()) {
+            Log.d(TAG, "Context is not OpenGL ES 3, reading pixels synchronously.");
+            return;
+        }
+        mBuffers = new int[mBufferCount];
+        mFences = new long[mBufferCount];
+        mPresentationTimesUs = new long[mBufferCount];
+        GLES30.glGenBuffers(mBufferCount, mBuffers, 0);
+        for (int buffer : mBuffers) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, getByteCount(), null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * @return true if reads are asynchronous.
+     */
+    public boolean isAsync() {
+        return mBuffers != null;
+    }
+
+    /**
+     * Queues a read of the bound framebuffer. Pixels of earlier reads the GPU has finished are delivered first.
+     *
+     * @param presentationTimeUs Time passed back to the callback with the pixels.
+     */
+    public void read(long presentationTimeUs) {
+        if (!isAsync()) {
+            ByteBuffer pixels = ByteBuffer.allocateDirect(getByteCount()).order(ByteOrder.nativeOrder());
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+            mCallback.onPixelsRead(pixels, presentationTimeUs);
+            return;
+        }
+        poll();
+        if (mPendingCount == mBufferCount) {
+            // ring is full, the oldest read has to complete before its buffer is reused.
+            deliverHead(true);
+        }
+        int index = (mHead + mPendingCount) % mBufferCount;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[index]);
+        // with a pack buffer bound, the last argument is an offset into it and the call returns without waiting.
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mPresentationTimesUs[index] = presentationTimeUs;
+        mPendingCount++;
+    }
+
+    /**
+     * Delivers pixels of the reads the GPU has finished, oldest first, without waiting.
+     */
+    public void poll() {
+        while (mPendingCount > 0 && deliverHead(false)) {
+            // delivered one.
+        }
+    }
+
+    /**
+     * Waits for and delivers all reads in flight.
+     */
+    public void flush() {
+        while (mPendingCount > 0) {
+            deliverHead(true);
+        }
+    }
+
+    /**
+     * Deletes buffers and fences; reads in flight are dropped.
+     */
+    public void release() {
+        if (mBuffers == null) return;
+        while (mPendingCount > 0) {
+            GLES30.glDeleteSync(mFences[mHead]);
+            mHead = (mHead + 1) % mBufferCount;
+            mPendingCount--;
+        }
+        GLES30.glDeleteBuffers(mBufferCount, mBuffers, 0);
+        mBuffers = null;
+    }
+
+    // Returns false if the oldest read is not finished and not waiting.
+    private boolean deliverHead(boolean wait) {
+        int index = mHead;
+        // flush on the first wait, otherwise a fence never submitted to the GPU is waited for forever.
+        int status = GLES30.glClientWaitSync(mFences[index], wait ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                wait ? Long.MAX_VALUE : 0);
+        if (status == GLES30.GL_TIMEOUT_EXPIRED && !wait) return false;
+        if (status == GLES30.GL_WAIT_FAILED) {
+            throw new RuntimeException("glClientWaitSync failed: 0x" + Integer.toHexString(GLES20.glGetError()));
+        }
+        GLES30.glDeleteSync(mFences[index]);
+        mHead = (mHead + 1) % mBufferCount;
+        mPendingCount--;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[index]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, getByteCount(),
+                GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            throw new RuntimeException("glMapBufferRange failed: 0x" + Integer.toHexString(GLES20.glGetError()));
+        }
+        ByteBuffer pixels = ByteBuffer.allocateDirect(getByteCount()).order(ByteOrder.nativeOrder());
+        pixels.put(mapped);
+        pixels.rewind();
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mCallback.onPixelsRead(pixels, mPresentationTimesUs[index]);
+        return true;
+    }
+
+    private int getByteCount() {
+        return mWidth * mHeight * BYTES_PER_PIXEL;
+    }
+
+    // ES 3 entry points are only defined on a context created for ES 3, whatever GL_VERSION of an ES 2 one says.
+    private static boolean isPixelBufferSupported() {
+        int[] version = new int[1];
+        return EGL14.eglQueryContext(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentContext(),
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, version, 0) && version[0] >= 3;
+    }
+}
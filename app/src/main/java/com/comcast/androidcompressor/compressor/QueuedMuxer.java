@@ -2,37 +2,52 @@ package com.comcast.androidcompressor.compressor;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * This class queues until all output track formats are determined.
+ * Queued samples are kept in pooled chunks up to a memory budget, then in a temporary file, see {@link PendingSampleQueue}.
+ * Thread safe, so tracks may be written from separate pipeline threads.
  */
 public class QueuedMuxer {
     private static final String TAG = "QueuedMuxer";
-    private static final int BUFFER_SIZE = 64 * 1024; // I have no idea whether this value is appropriate or not...
-    private final MediaMuxer mMuxer;
+    public static final long DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+    private final Muxer mMuxer;
     private final Listener mListener;
     private MediaFormat mVideoFormat;
     private MediaFormat mAudioFormat;
     private int mVideoTrackIndex;
     private int mAudioTrackIndex;
-    private ByteBuffer mByteBuffer;
-    private final List<SampleInfo> mSampleInfoList;
+    private final PendingSampleQueue mPendingSamples;
     private boolean mStarted;
+    private long mTimeOffsetUs;
+    private final MediaCodec.BufferInfo mOffsetBufferInfo = new MediaCodec.BufferInfo();
 
-    public QueuedMuxer(MediaMuxer muxer, Listener listener) {
+    public QueuedMuxer(Muxer muxer, Listener listener) {
+        this(muxer, listener, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param memoryBudget Bytes of samples queued in memory before the muxer starts; more are queued in a temporary file.
+     */
+    public QueuedMuxer(Muxer muxer, Listener listener, long memoryBudget) {
         mMuxer = muxer;
         mListener = listener;
-        mSampleInfoList = new ArrayList<>();
+        mPendingSamples = new PendingSampleQueue(memoryBudget);
+    }
+
+    /**
+     * Presentation times of samples written afterwards are reduced by this offset, e.g. to start trimmed output at 0.
+     * The callers' BufferInfo is left as it is.
+     */
+    public synchronized void setTimeOffsetUs(long timeOffsetUs) {
+        mTimeOffsetUs = timeOffsetUs;
     }
 
-    public void setOutputFormat(SampleType sampleType, MediaFormat format) {
+    public synchronized void setOutputFormat(SampleType sampleType, MediaFormat format) {
         switch (sampleType) {
             case VIDEO:
                 mVideoFormat = format;
@@ -67,35 +82,40 @@ public class QueuedMuxer {
         mMuxer.start();
         mStarted = true;
 
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocate(0);
-        }
-        mByteBuffer.flip();
-        Log.v(TAG, "Output format determined, writing " + mSampleInfoList.size() +
-                " samples / " + mByteBuffer.limit() + " bytes to muxer.");
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int offset = 0;
-        for (SampleInfo sampleInfo : mSampleInfoList) {
-            sampleInfo.writeToBufferInfo(bufferInfo, offset);
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleInfo.mSampleType), mByteBuffer, bufferInfo);
-            offset += sampleInfo.mSize;
+        Log.v(TAG, "Output format determined, writing " + mPendingSamples.getSampleCount() + " samples ("
+                + mPendingSamples.getMemoryBytes() + " bytes in memory" + (mPendingSamples.isSpilled() ? ", rest spilled" : "")
+                + ") to muxer.");
+        try {
+            mPendingSamples.drainTo(mMuxer, new int[]{mVideoTrackIndex, mAudioTrackIndex});
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read queued samples.", e);
         }
-        mSampleInfoList.clear();
-        mByteBuffer = null;
     }
 
-    public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+    public synchronized void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (mTimeOffsetUs != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0) {
+            mOffsetBufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs - mTimeOffsetUs,
+                    bufferInfo.flags);
+            bufferInfo = mOffsetBufferInfo;
+        }
         if (mStarted) {
             mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
             return;
         }
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
         byteBuf.position(bufferInfo.offset);
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        try {
+            mPendingSamples.add(sampleType.ordinal(), byteBuf, bufferInfo);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not queue sample.", e);
         }
-        mByteBuffer.put(byteBuf);
-        mSampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
+    }
+
+    /**
+     * Frees samples still queued, when transcoding ends before the muxer could start.
+     */
+    public synchronized void release() {
+        mPendingSamples.release();
     }
 
     private int getTrackIndexForSampleType(SampleType sampleType) {
@@ -111,24 +131,6 @@ public class QueuedMuxer {
 
     public enum SampleType {VIDEO, AUDIO}
 
-    private static class SampleInfo {
-        private final SampleType mSampleType;
-        private final int mSize;
-        private final long mPresentationTimeUs;
-        private final int mFlags;
-
-        private SampleInfo(SampleType sampleType, int size, MediaCodec.BufferInfo bufferInfo) {
-            mSampleType = sampleType;
-            mSize = size;
-            mPresentationTimeUs = bufferInfo.presentationTimeUs;
-            mFlags = bufferInfo.flags;
-        }
-
-        private void writeToBufferInfo(MediaCodec.BufferInfo bufferInfo, int offset) {
-            bufferInfo.set(offset, mSize, mPresentationTimeUs, mFlags);
-        }
-    }
-
     public interface Listener {
         void onDetermineOutputFormat();
     }
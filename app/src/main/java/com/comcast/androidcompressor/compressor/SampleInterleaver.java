@@ -0,0 +1,188 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Muxer} stage that interleaves tracks before the underlying muxer, so the output has one run of samples
+ * per track for every chunk duration instead of whatever the pipelines happened to produce.
+ * <p>
+ * Encoded samples are copied into buffers leased from {@link ByteBufferPool} and held per track. A sample is
+ * written once every other track has a sample queued or has already queued a later one, earliest first; a track
+ * keeps its turn until its chunk duration is full. Samples wait at most the reorder window, and no more than the
+ * memory budget is held, so a track that ends early only delays the other by the window.
+ * Samples are ordered by presentation time in encoder output order, which is decode order.
+ * Not thread safe; {@link QueuedMuxer} serializes the pipelines.
+ */
+public class SampleInterleaver implements Muxer {
+    public static final long DEFAULT_MAX_CHUNK_DURATION_US = 500 * 1000;
+    public static final long DEFAULT_REORDER_WINDOW_US = 2 * 1000 * 1000;
+    public static final long DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024;
+    private static final int MAX_POOLED_SAMPLES = 256;
+
+    private final Muxer mMuxer;
+    private final long mMaxChunkDurationUs;
+    private final long mReorderWindowUs;
+    private final long mMemoryBudget;
+    private final List<TrackQueue> mTracks = new ArrayList<>(2);
+    private final ArrayDeque<Sample> mSamplePool = new ArrayDeque<>();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private long mQueuedBytes;
+    private TrackQueue mChunkTrack;
+    private long mChunkStartTimeUs;
+
+    public SampleInterleaver(Muxer muxer) {
+        this(muxer, DEFAULT_MAX_CHUNK_DURATION_US, DEFAULT_REORDER_WINDOW_US, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param muxer              Muxer samples are written to in interleaved order.
+     * @param maxChunkDurationUs Longest run of one track, in micro-second.
+     * @param reorderWindowUs    Longest time span held per track before samples are written regardless of other tracks.
+     * @param memoryBudget       Most bytes of sample data held before samples are written regardless of other tracks.
+     */
+    public SampleInterleaver(Muxer muxer, long maxChunkDurationUs, long reorderWindowUs, long memoryBudget) {
+        mMuxer = muxer;
+        mMaxChunkDurationUs = maxChunkDurationUs;
+        mReorderWindowUs = Math.max(reorderWindowUs, maxChunkDurationUs);
+        mMemoryBudget = memoryBudget;
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int trackIndex = mMuxer.addTrack(format);
+        mTracks.add(new TrackQueue(trackIndex));
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mMuxer.writeSampleData(mTracks.get(trackIndex).mMuxerTrackIndex, byteBuf, bufferInfo);
+            return;
+        }
+        TrackQueue track = mTracks.get(trackIndex);
+        Sample sample = obtainSample(bufferInfo.size);
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        sample.mData.put(data).flip();
+        sample.mPresentationTimeUs = bufferInfo.presentationTimeUs;
+        sample.mFlags = bufferInfo.flags;
+        track.mSamples.add(sample);
+        track.mLastQueuedTimeUs = Math.max(track.mLastQueuedTimeUs, sample.mPresentationTimeUs);
+        mQueuedBytes += bufferInfo.size;
+        drain(false);
+    }
+
+    /**
+     * Writes the samples still held, then stops the underlying muxer.
+     */
+    @Override
+    public void stop() {
+        drain(true);
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        for (TrackQueue track : mTracks) {
+            for (Sample sample : track.mSamples) {
+                ByteBufferPool.getInstance().release(sample.mData);
+            }
+            track.mSamples.clear();
+        }
+        mSamplePool.clear();
+        mQueuedBytes = 0;
+        mMuxer.release();
+    }
+
+    private void drain(boolean flush) {
+        while (true) {
+            TrackQueue next = null;
+            if (mChunkTrack != null && !mChunkTrack.mSamples.isEmpty()
+                    && mChunkTrack.mSamples.peek().mPresentationTimeUs < mChunkStartTimeUs + mMaxChunkDurationUs) {
+                next = mChunkTrack;
+            } else {
+                for (TrackQueue track : mTracks) {
+                    if (track.mSamples.isEmpty()) continue;
+                    if (next == null
+                            || track.mSamples.peek().mPresentationTimeUs < next.mSamples.peek().mPresentationTimeUs) {
+                        next = track;
+                    }
+                }
+            }
+            if (next == null) return;
+            Sample sample = next.mSamples.peek();
+            if (!flush && !isOthersPast(next, sample.mPresentationTimeUs) && mQueuedBytes <= mMemoryBudget
+                    && next.mLastQueuedTimeUs - sample.mPresentationTimeUs <= mReorderWindowUs) {
+                return;
+            }
+            if (next != mChunkTrack) {
+                mChunkTrack = next;
+                mChunkStartTimeUs = sample.mPresentationTimeUs;
+            }
+            next.mSamples.poll();
+            mBufferInfo.offset = 0;
+            mBufferInfo.size = sample.mData.remaining();
+            mBufferInfo.presentationTimeUs = sample.mPresentationTimeUs;
+            mBufferInfo.flags = sample.mFlags;
+            mMuxer.writeSampleData(next.mMuxerTrackIndex, sample.mData, mBufferInfo);
+            mQueuedBytes -= mBufferInfo.size;
+            recycleSample(sample);
+        }
+    }
+
+    // Whether no other track can still bring a sample before the given time.
+    private boolean isOthersPast(TrackQueue track, long presentationTimeUs) {
+        for (TrackQueue other : mTracks) {
+            if (other != track && other.mSamples.isEmpty() && other.mLastQueuedTimeUs < presentationTimeUs) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Sample obtainSample(int size) {
+        Sample sample = mSamplePool.poll();
+        if (sample == null) sample = new Sample();
+        sample.mData = ByteBufferPool.getInstance().lease(size);
+        return sample;
+    }
+
+    private void recycleSample(Sample sample) {
+        ByteBufferPool.getInstance().release(sample.mData);
+        sample.mData = null;
+        if (mSamplePool.size() < MAX_POOLED_SAMPLES) mSamplePool.push(sample);
+    }
+
+    private static class TrackQueue {
+        private final int mMuxerTrackIndex;
+        private final ArrayDeque<Sample> mSamples = new ArrayDeque<>();
+        private long mLastQueuedTimeUs = Long.MIN_VALUE;
+
+        private TrackQueue(int muxerTrackIndex) {
+            mMuxerTrackIndex = muxerTrackIndex;
+        }
+    }
+
+    private static class Sample {
+        private ByteBuffer mData;
+        private long mPresentationTimeUs;
+        private int mFlags;
+    }
+}
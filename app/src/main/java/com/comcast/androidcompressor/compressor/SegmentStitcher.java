@@ -0,0 +1,265 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Concatenates segment files written by {@link SegmentedTranscoder} into one MP4 without re-encoding.
+ * <p>
+ * MediaMuxer may rebase timestamps of a file, so each segment is shifted so its first sample lands on the
+ * segment start time in the input. Audio samples not after the last audio sample of the previous segment are
+ * dropped, so audio running past a joint is not played twice. Tracks are matched between segments by type (video
+ * or audio); the first segment defines the output tracks and codec specific data, which is identical across
+ * segments encoded with the same format.
+ */
+class SegmentStitcher {
+    private static final String TAG = "SegmentStitcher";
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private SegmentStitcher() {
+    }
+
+    /**
+     * Samples of one segment file, read with {@link MediaExtractor} by {@link ExtractorSegment}.
+     * Track types and sample sizes are taken from the track formats here, so the stitching does not read them.
+     */
+    interface Segment {
+
+        /**
+         * Opens the segment; segments are opened one at a time, each released before the next is opened.
+         * Released as well if opening fails.
+         *
+         * @throws IOException when the segment could not be opened.
+         */
+        void open() throws IOException;
+
+        int getTrackCount();
+
+        MediaFormat getTrackFormat(int trackIndex);
+
+        String getMime(int trackIndex);
+
+        /**
+         * @return Largest sample size of the track in bytes, or 0 if unknown.
+         */
+        int getMaxInputSize(int trackIndex);
+
+        void selectTrack(int trackIndex);
+
+        void unselectTrack(int trackIndex);
+
+        /**
+         * @return Track of the current sample, or negative value after the last sample.
+         */
+        int getSampleTrackIndex();
+
+        long getSampleTime();
+
+        boolean isSyncSample();
+
+        int readSampleData(ByteBuffer buffer);
+
+        void advance();
+
+        void release();
+    }
+
+    /**
+     * @param segmentPaths         Segment files in presentation order.
+     * @param segmentStartTimesUs  Start time of each segment in the input, in micro-second.
+     * @param muxer                Muxer to write the stitched file, released by this method.
+     * @param orientationHint      Rotation to set on the output, in degrees.
+     * @throws IOException when a segment could not be opened.
+     */
+    public static void stitch(String[] segmentPaths, long[] segmentStartTimesUs, Muxer muxer, int orientationHint) throws IOException {
+        Segment[] segments = new Segment[segmentPaths.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new ExtractorSegment(segmentPaths[i]);
+        }
+        stitch(segments, segmentStartTimesUs, muxer, orientationHint);
+    }
+
+    static void stitch(Segment[] segments, long[] segmentStartTimesUs, Muxer muxer, int orientationHint)
+            throws IOException {
+        Segment openSegment = null;
+        ByteBuffer buffer = null;
+        try {
+            if (orientationHint != 0) {
+                muxer.setOrientationHint(orientationHint);
+            }
+            int videoTrackIndex = -1;
+            int audioTrackIndex = -1;
+            // last written time per output track, video then audio, to keep timestamps increasing across joints.
+            long[] lastPresentationTimesUs = {-1, -1};
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+            for (int segment = 0; segment < segments.length; segment++) {
+                Segment input = segments[segment];
+                openSegment = input;
+                input.open();
+                int trackCount = input.getTrackCount();
+                int[] outputTrackIndices = new int[trackCount];
+                long firstPresentationTimeUs = Long.MAX_VALUE;
+                int bufferSize = DEFAULT_BUFFER_SIZE;
+                for (int i = 0; i < trackCount; i++) {
+                    String mime = input.getMime(i);
+                    if (segment == 0) {
+                        if (videoTrackIndex < 0 && mime.startsWith("video/")) {
+                            videoTrackIndex = muxer.addTrack(input.getTrackFormat(i));
+                        } else if (audioTrackIndex < 0 && mime.startsWith("audio/")) {
+                            audioTrackIndex = muxer.addTrack(input.getTrackFormat(i));
+                        }
+                    }
+                    // later segments may hold larger samples, e.g. a passed-through part after a re-encoded one.
+                    bufferSize = Math.max(bufferSize, input.getMaxInputSize(i));
+                    outputTrackIndices[i] = mime.startsWith("video/") ? videoTrackIndex : (mime.startsWith("audio/") ? audioTrackIndex : -1);
+                    if (outputTrackIndices[i] < 0) {
+                        Log.w(TAG, "Dropping track " + i + " (" + mime + ") of segment " + segment);
+                        continue;
+                    }
+                    input.selectTrack(i);
+                    firstPresentationTimeUs = Math.min(firstPresentationTimeUs, input.getSampleTime());
+                    input.unselectTrack(i);
+                }
+                if (segment == 0) {
+                    muxer.start();
+                }
+                if (buffer == null || buffer.capacity() < bufferSize) {
+                    ByteBufferPool.getInstance().release(buffer);
+                    buffer = null;
+                    buffer = ByteBufferPool.getInstance().lease(bufferSize);
+                }
+                for (int i = 0; i < trackCount; i++) {
+                    if (outputTrackIndices[i] >= 0) input.selectTrack(i);
+                }
+
+                long offsetUs = segmentStartTimesUs[segment] - firstPresentationTimeUs;
+                // video shift, only non-zero if the previous segment ran past this start time.
+                long videoShiftUs = -1;
+                int trackIndex;
+                while ((trackIndex = input.getSampleTrackIndex()) >= 0) {
+                    int outputTrackIndex = outputTrackIndices[trackIndex];
+                    int slot = outputTrackIndex == videoTrackIndex ? 0 : 1;
+                    long presentationTimeUs = input.getSampleTime() + offsetUs;
+                    if (slot == 0) {
+                        // video starts with a sync sample, dropping frames would break the ones referring to them.
+                        if (videoShiftUs < 0) {
+                            videoShiftUs = Math.max(0, lastPresentationTimesUs[0] + 1 - presentationTimeUs);
+                        }
+                        presentationTimeUs += videoShiftUs;
+                    } else if (presentationTimeUs <= lastPresentationTimesUs[1]) {
+                        // shifting audio instead would delay it against video by the overlap at every joint.
+                        input.advance();
+                        continue;
+                    }
+
+                    buffer.clear();
+                    bufferInfo.offset = 0;
+                    bufferInfo.size = input.readSampleData(buffer);
+                    bufferInfo.presentationTimeUs = presentationTimeUs;
+                    bufferInfo.flags = input.isSyncSample() ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+                    muxer.writeSampleData(outputTrackIndex, buffer, bufferInfo);
+                    lastPresentationTimesUs[slot] = Math.max(lastPresentationTimesUs[slot], presentationTimeUs);
+                    input.advance();
+                }
+                input.release();
+                openSegment = null;
+            }
+            muxer.stop();
+        } finally {
+            if (openSegment != null) {
+                openSegment.release();
+            }
+            ByteBufferPool.getInstance().release(buffer);
+            try {
+                muxer.release();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to release muxer.", e);
+            }
+        }
+    }
+
+    private static class ExtractorSegment implements Segment {
+        private final String mPath;
+        private MediaExtractor mExtractor;
+
+        private ExtractorSegment(String path) {
+            mPath = path;
+        }
+
+        @Override
+        public void open() throws IOException {
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mPath);
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mExtractor.getTrackCount();
+        }
+
+        @Override
+        public MediaFormat getTrackFormat(int trackIndex) {
+            return mExtractor.getTrackFormat(trackIndex);
+        }
+
+        @Override
+        public String getMime(int trackIndex) {
+            return mExtractor.getTrackFormat(trackIndex).getString(MediaFormat.KEY_MIME);
+        }
+
+        @Override
+        public int getMaxInputSize(int trackIndex) {
+            MediaFormat format = mExtractor.getTrackFormat(trackIndex);
+            if (!format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) return 0;
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        }
+
+        @Override
+        public void selectTrack(int trackIndex) {
+            mExtractor.selectTrack(trackIndex);
+        }
+
+        @Override
+        public void unselectTrack(int trackIndex) {
+            mExtractor.unselectTrack(trackIndex);
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return mExtractor.getSampleTrackIndex();
+        }
+
+        @Override
+        public long getSampleTime() {
+            return mExtractor.getSampleTime();
+        }
+
+        @Override
+        public boolean isSyncSample() {
+            return (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer) {
+            return mExtractor.readSampleData(buffer, 0);
+        }
+
+        @Override
+        public void advance() {
+            mExtractor.advance();
+        }
+
+        @Override
+        public void release() {
+            if (mExtractor == null) return;
+            mExtractor.release();
+            mExtractor = null;
+        }
+    }
+}
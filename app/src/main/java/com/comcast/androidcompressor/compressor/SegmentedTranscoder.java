@@ -0,0 +1,263 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Transcodes a long input as several segments in parallel, then stitches them into one file.
+ * <p>
+ * The input is split at sync samples of the video track, so every segment decodes on its own.
+ * Each segment runs its own {@link MediaTranscoderEngine}, thus its own decoder/encoder pairs, on its own thread,
+ * and is written to a temporary file next to the output. Segments are then copied into the output with
+ * timestamps moved to the segment start, so the result plays as one continuous stream.
+ * <p>
+ * Callers should bound the segment count by the free encoder instances, see {@link CodecScheduler}.
+ */
+public class SegmentedTranscoder {
+    private static final String TAG = "SegmentedTranscoder";
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    private FileDescriptor mInputFileDescriptor;
+    private int mSegmentCount = 1;
+    private boolean mAsyncMode;
+    private boolean mConcurrentTracks;
+    private boolean mFastStart;
+    private MediaTranscoderEngine.ProgressCallback mProgressCallback;
+    private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private long mLastProgressTimeMs;
+    private long mDurationUs;
+    private long[] mSegmentStartTimesUs;
+    private double[] mSegmentProgress;
+
+    public void setDataSource(FileDescriptor fileDescriptor) {
+        mInputFileDescriptor = fileDescriptor;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * Maximum number of segments transcoded in parallel. Fewer are used if the input has fewer sync samples.
+     */
+    public void setSegmentCount(int segmentCount) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("Segment count must be positive: " + segmentCount);
+        }
+        mSegmentCount = segmentCount;
+    }
+
+    /**
+     * @see MediaTranscoderEngine#setAsyncMode(boolean)
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * @see MediaTranscoderEngine#setConcurrentTracks(boolean)
+     */
+    public void setConcurrentTracks(boolean concurrentTracks) {
+        mConcurrentTracks = concurrentTracks;
+    }
+
+    /**
+     * Write the stitched file with the moov box first, see {@link MediaTranscoderEngine#setFastStart(boolean)}.
+     * Segment files are temporary and always written by MediaMuxer.
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * Progress of all segments, weighted by segment duration. Unlike {@link MediaTranscoderEngine},
+     * the callback is called on segment threads, one call at a time.
+     */
+    public void setProgressCallback(MediaTranscoderEngine.ProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
+    }
+
+    public void setProgressIntervalMs(long progressIntervalMs) {
+        mProgressIntervalMs = progressIntervalMs;
+    }
+
+    /**
+     * Run video transcoding. Blocks current thread.
+     *
+     * @param outputPath     File path to output transcoded video file.
+     * @param formatStrategy Output format strategy.
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideo(String outputPath, MediaOutputFormat formatStrategy) throws IOException, InterruptedException {
+        if (outputPath == null) {
+            throw new NullPointerException("Output path cannot be null.");
+        }
+        if (mInputFileDescriptor == null) {
+            throw new IllegalStateException("Data source is not set.");
+        }
+        mSegmentStartTimesUs = findSegmentStartTimes();
+        int segmentCount = mSegmentStartTimesUs.length;
+        Log.d(TAG, "Segments: " + Arrays.toString(mSegmentStartTimesUs));
+        if (segmentCount == 1) {
+            MediaTranscoderEngine engine = createEngine(0);
+            engine.setFastStart(mFastStart);
+            engine.transcodeVideo(outputPath, formatStrategy);
+            return;
+        }
+
+        mSegmentProgress = new double[segmentCount];
+        String[] segmentPaths = new String[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segmentPaths[i] = outputPath + ".segment" + i;
+        }
+        try {
+            transcodeSegments(segmentPaths, formatStrategy);
+            int orientationHint = formatStrategy.isFormalizingOrientation() ? 0 : getRotation();
+            Muxer muxer = mFastStart ? new Mp4Muxer(outputPath) : new AndroidMuxer(outputPath);
+            SegmentStitcher.stitch(segmentPaths, mSegmentStartTimesUs, muxer, orientationHint);
+        } finally {
+            for (String segmentPath : segmentPaths) {
+                File segmentFile = new File(segmentPath);
+                if (segmentFile.exists() && !segmentFile.delete()) {
+                    Log.w(TAG, "Could not delete segment file: " + segmentPath);
+                }
+            }
+        }
+    }
+
+    private void transcodeSegments(final String[] segmentPaths, final MediaOutputFormat formatStrategy)
+            throws IOException, InterruptedException {
+        int segmentCount = segmentPaths.length;
+        final Exception[] exceptions = new Exception[segmentCount];
+        Thread[] threads = new Thread[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            final int segment = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        createEngine(segment).transcodeVideo(segmentPaths[segment], formatStrategy);
+                    } catch (IOException | InterruptedException | RuntimeException e) {
+                        exceptions[segment] = e;
+                    }
+                }
+            }, "SegmentedTranscoder-" + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            // interrupted while waiting: stop the segments still running before their files are deleted.
+            for (Thread thread : threads) {
+                if (thread.isAlive()) thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        // already canceling
+                    }
+                }
+            }
+        }
+        for (Exception exception : exceptions) {
+            if (exception instanceof IOException) throw (IOException) exception;
+            if (exception instanceof InterruptedException) throw (InterruptedException) exception;
+            if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+        }
+    }
+
+    private MediaTranscoderEngine createEngine(final int segment) {
+        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+        engine.setDataSource(mInputFileDescriptor);
+        engine.setAsyncMode(mAsyncMode);
+        engine.setConcurrentTracks(mConcurrentTracks);
+        engine.setProgressIntervalMs(mProgressIntervalMs);
+        if (mSegmentStartTimesUs.length > 1) {
+            long endTimeUs = segment + 1 < mSegmentStartTimesUs.length ? mSegmentStartTimesUs[segment + 1] : -1;
+            engine.setTimeRange(mSegmentStartTimesUs[segment], endTimeUs);
+            engine.setProgressCallback(new MediaTranscoderEngine.ProgressCallback() {
+                @Override
+                public void onProgress(double progress) {
+                    updateProgress(segment, progress);
+                }
+            });
+        } else {
+            engine.setProgressCallback(mProgressCallback);
+        }
+        return engine;
+    }
+
+    private synchronized void updateProgress(int segment, double segmentProgress) {
+        mSegmentProgress[segment] = segmentProgress;
+        if (mProgressCallback == null) return;
+        double progress = 0;
+        for (int i = 0; i < mSegmentProgress.length; i++) {
+            if (mSegmentProgress[i] < 0) {
+                progress = segmentProgress;
+                break;
+            }
+            progress += mSegmentProgress[i] * getSegmentDurationUs(i) / mDurationUs;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (progress >= 0 && progress < 1.0 && now - mLastProgressTimeMs < mProgressIntervalMs) return;
+        mLastProgressTimeMs = now;
+        mProgressCallback.onProgress(progress);
+    }
+
+    private long getSegmentDurationUs(int segment) {
+        long endTimeUs = segment + 1 < mSegmentStartTimesUs.length ? mSegmentStartTimesUs[segment + 1] : mDurationUs;
+        return endTimeUs - mSegmentStartTimesUs[segment];
+    }
+
+    // Splits the duration evenly, then moves each split back to the sync sample at or before it.
+    private long[] findSegmentStartTimes() throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mInputFileDescriptor);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+            MediaFormat videoFormat = trackResult.mVideoTrackFormat;
+            mDurationUs = videoFormat.containsKey(MediaFormat.KEY_DURATION) ? videoFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+            if (mDurationUs <= 0 || mSegmentCount == 1) {
+                return new long[]{0};
+            }
+            extractor.selectTrack(trackResult.mVideoTrackIndex);
+            long[] startTimesUs = new long[mSegmentCount];
+            int count = 1;
+            for (int i = 1; i < mSegmentCount; i++) {
+                extractor.seekTo(mDurationUs * i / mSegmentCount, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                long syncTimeUs = extractor.getSampleTime();
+                if (syncTimeUs > startTimesUs[count - 1]) {
+                    startTimesUs[count++] = syncTimeUs;
+                }
+            }
+            return Arrays.copyOf(startTimesUs, count);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private int getRotation() {
+        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+        try {
+            mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
+            return Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            mediaMetadataRetriever.release();
+        }
+    }
+}
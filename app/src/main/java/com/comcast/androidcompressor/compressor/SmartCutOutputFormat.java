@@ -0,0 +1,141 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Output format of the re-encoded parts of a {@link SmartCutTranscoder} cut: AVC at the size, profile and level
+ * of the source SPS, at the source bitrate and frame rate, so the encoder output can share one SPS/PPS with the
+ * source GOPs passed through. Sources in other codecs are encoded at their size only.
+ * Audio and, when {@link #setVideoPassThrough(boolean) set}, video are passed through.
+ * <p>
+ * Encoders choose the remaining SPS/PPS fields themselves, so the caller still has to compare their output
+ * with the source.
+ */
+class SmartCutOutputFormat implements MediaOutputFormat {
+    private static final String TAG = "SmartCutOutputFormat";
+    private static final int DEFAULT_FRAME_RATE = 30;       // fps
+    private static final int DEFAULT_I_FRAME_INTERVAL = 1;  // seconds between I-frames
+
+    // Refer: http://en.wikipedia.org/wiki/H.264/MPEG-4_AVC#Profiles
+    private static final int PROFILE_IDC_BASELINE = 66;
+    private static final int PROFILE_IDC_MAIN = 77;
+    private static final int PROFILE_IDC_EXTENDED = 88;
+    private static final int PROFILE_IDC_HIGH = 100;
+
+    private boolean mVideoPassThrough;
+
+    public void setVideoPassThrough(boolean videoPassThrough) {
+        mVideoPassThrough = videoPassThrough;
+    }
+
+    @Override
+    public MediaFormat createVideoOutputFormat(MediaFormat inputFormat, int inputOrientation) {
+        if (mVideoPassThrough) return null;
+        AvcSpsUtils.SequenceParameterSet sps = getSps(inputFormat);
+        int width = sps != null ? sps.getWidth() : inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = sps != null ? sps.getHeight() : inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC, width, height);
+        if (inputFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, inputFormat.getInteger(MediaFormat.KEY_BIT_RATE));
+        } else {
+            // 0.1 bit per pixel per frame, good enough for the few frames of a boundary GOP.
+            format.setInteger(MediaFormat.KEY_BIT_RATE, width * height * DEFAULT_FRAME_RATE / 10);
+        }
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, DEFAULT_I_FRAME_INTERVAL);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        int profile = sps != null ? toCodecProfile(sps.getProfileIdc()) : 0;
+        int level = sps != null ? toCodecLevel(sps.getLevelIdc()) : 0;
+        if (profile > 0 && level > 0) {
+            format.setInteger(MediaFormatExtraConstants.KEY_PROFILE, profile);
+            format.setInteger(MediaFormatExtraConstants.KEY_LEVEL, level);
+        }
+        return format;
+    }
+
+    @Override
+    public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+        return null;
+    }
+
+    @Override
+    public boolean isFormalizingOrientation() {
+        return false;
+    }
+
+    /**
+     * @return SPS of AVC input, or null for other codecs or if it could not be read.
+     */
+    static AvcSpsUtils.SequenceParameterSet getSps(MediaFormat inputFormat) {
+        if (!MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(inputFormat.getString(MediaFormat.KEY_MIME))
+                || !inputFormat.containsKey(MediaFormatExtraConstants.KEY_AVC_SPS)) {
+            return null;
+        }
+        try {
+            return AvcSpsUtils.parse(AvcCsdUtils.getSpsBuffer(inputFormat));
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not parse SPS.", e);
+            return null;
+        }
+    }
+
+    private static int toCodecProfile(int profileIdc) {
+        switch (profileIdc) {
+            case PROFILE_IDC_BASELINE:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+            case PROFILE_IDC_MAIN:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+            case PROFILE_IDC_EXTENDED:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+            case PROFILE_IDC_HIGH:
+                return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            default:
+                return 0;
+        }
+    }
+
+    // level_idc is ten times the level number, or 9 for level 1b.
+    private static int toCodecLevel(int levelIdc) {
+        switch (levelIdc) {
+            case 9:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+            case 10:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+            case 11:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+            case 12:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+            case 13:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+            case 20:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+            case 21:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+            case 22:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+            case 30:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+            case 31:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+            case 32:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+            case 40:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+            case 41:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+            case 42:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+            case 50:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+            case 51:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+            case 52:
+                return MediaCodecInfo.CodecProfileLevel.AVCLevel52;
+            default:
+                return 0;
+        }
+    }
+}
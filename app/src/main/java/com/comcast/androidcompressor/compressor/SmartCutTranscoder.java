@@ -0,0 +1,287 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cuts [startUs, endUs) out of an AVC input, re-encoding only the frames that cannot be copied.
+ * <p>
+ * The head, from startUs to the first sync sample at or after it, and the tail, from the last sync sample at or
+ * before endUs to endUs, are decoded and re-encoded by {@link MediaTranscoderEngine} with a format matching the
+ * source SPS, see {@link SmartCutOutputFormat}. Every GOP in between is copied by {@link PassThroughTrackTranscoder}.
+ * Audio is always passed through. The parts are written to temporary files next to the output and joined by
+ * {@link SegmentStitcher}, with output times starting at 0.
+ * <p>
+ * One SPS/PPS has to describe all parts, but encoders cannot be told to emit the source's. So each re-encoded
+ * part is compared with the source: slices must parse the same under either SPS and the PPS must be identical.
+ * If they do not, or the input is not AVC, or the range does not span a sync sample, the whole range is
+ * re-encoded instead.
+ */
+public class SmartCutTranscoder {
+    private static final String TAG = "SmartCutTranscoder";
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 100;
+    private FileDescriptor mInputFileDescriptor;
+    private boolean mAsyncMode;
+    private boolean mConcurrentTracks;
+    private boolean mFastStart;
+    private MediaTranscoderEngine.ProgressCallback mProgressCallback;
+    private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+    private long mLastProgressTimeMs;
+    private long mDurationUs;
+    private long mEndTimeUs;
+    private long mDoneDurationUs;
+
+    public void setDataSource(FileDescriptor fileDescriptor) {
+        mInputFileDescriptor = fileDescriptor;
+    }
+
+    /**
+     * @see MediaTranscoderEngine#setAsyncMode(boolean)
+     */
+    public void setAsyncMode(boolean asyncMode) {
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * @see MediaTranscoderEngine#setConcurrentTracks(boolean)
+     */
+    public void setConcurrentTracks(boolean concurrentTracks) {
+        mConcurrentTracks = concurrentTracks;
+    }
+
+    /**
+     * Write the output with the moov box first, see {@link MediaTranscoderEngine#setFastStart(boolean)}.
+     * Part files are temporary and always written by MediaMuxer.
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * Progress of all parts, weighted by duration.
+     */
+    public void setProgressCallback(MediaTranscoderEngine.ProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
+    }
+
+    public void setProgressIntervalMs(long progressIntervalMs) {
+        mProgressIntervalMs = progressIntervalMs;
+    }
+
+    /**
+     * Run the cut. Blocks current thread.
+     *
+     * @param outputPath File path to output video file.
+     * @param startUs    Start time in micro-second.
+     * @param endUs      End time in micro-second, or negative value to cut to the end of the input.
+     * @throws IOException          when input or output file could not be opened.
+     * @throws InterruptedException when cancel to transcode.
+     */
+    public void transcodeVideo(String outputPath, long startUs, long endUs) throws IOException, InterruptedException {
+        if (outputPath == null) {
+            throw new NullPointerException("Output path cannot be null.");
+        }
+        if (mInputFileDescriptor == null) {
+            throw new IllegalStateException("Data source is not set.");
+        }
+        if (startUs < 0 || (endUs >= 0 && endUs <= startUs)) {
+            throw new IllegalArgumentException("Invalid time range: " + startUs + " - " + endUs + " us.");
+        }
+        MediaProbe probe = MediaProbe.probe(mInputFileDescriptor);
+        if (probe == null || probe.getVideoFormat() == null) {
+            throw new IOException("Could not read input.");
+        }
+        long durationUs = probe.getDurationUs();
+        if (durationUs > 0 && endUs >= durationUs) endUs = -1;
+        mEndTimeUs = endUs >= 0 ? endUs : durationUs;
+        mDurationUs = mEndTimeUs - startUs;
+        mDoneDurationUs = 0;
+
+        MediaFormat sourceFormat = probe.getVideoFormat();
+        List<Part> parts = SmartCutOutputFormat.getSps(sourceFormat) != null ? findParts(startUs, endUs) : null;
+        if (parts == null) {
+            Log.i(TAG, "No GOP of AVC video to keep, re-encoding " + startUs + " - " + endUs + " us.");
+            reencode(outputPath, startUs, endUs);
+            return;
+        }
+        Log.d(TAG, "Parts: " + parts);
+        String[] partPaths = new String[parts.size()];
+        long[] partStartTimesUs = new long[parts.size()];
+        for (int i = 0; i < partPaths.length; i++) {
+            partPaths[i] = outputPath + ".part" + i;
+            partStartTimesUs[i] = parts.get(i).mStartUs - startUs;
+        }
+        boolean stitched = false;
+        try {
+            if (transcodeParts(parts, partPaths, sourceFormat)) {
+                Muxer muxer = mFastStart ? new Mp4Muxer(outputPath) : new AndroidMuxer(outputPath);
+                SegmentStitcher.stitch(partPaths, partStartTimesUs, muxer, probe.getRotation());
+                stitched = true;
+            }
+        } finally {
+            for (String partPath : partPaths) {
+                File partFile = new File(partPath);
+                if (partFile.exists() && !partFile.delete()) {
+                    Log.w(TAG, "Could not delete part file: " + partPath);
+                }
+            }
+        }
+        if (!stitched) {
+            mDoneDurationUs = 0;
+            reencode(outputPath, startUs, endUs);
+        }
+    }
+
+    // Head, middle and tail, those not empty; null if no whole GOP lies in the range.
+    private List<Part> findParts(long startUs, long endUs) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        long firstSyncTimeUs;
+        long lastSyncTimeUs = -1;
+        try {
+            extractor.setDataSource(mInputFileDescriptor);
+            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+            extractor.selectTrack(trackResult.mVideoTrackIndex);
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            firstSyncTimeUs = extractor.getSampleTime();
+            if (endUs >= 0) {
+                extractor.seekTo(endUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                lastSyncTimeUs = extractor.getSampleTime();
+            }
+        } finally {
+            extractor.release();
+        }
+        if (firstSyncTimeUs < 0 || (endUs >= 0 && lastSyncTimeUs <= firstSyncTimeUs)) return null;
+
+        List<Part> parts = new ArrayList<>(3);
+        if (firstSyncTimeUs > startUs) {
+            parts.add(new Part(startUs, firstSyncTimeUs, false));
+        }
+        parts.add(new Part(firstSyncTimeUs, endUs >= 0 ? lastSyncTimeUs : -1, true));
+        if (endUs > lastSyncTimeUs) {
+            parts.add(new Part(lastSyncTimeUs, endUs, false));
+        }
+        return parts;
+    }
+
+    // Returns false as soon as a re-encoded part cannot share the SPS/PPS of the others.
+    private boolean transcodeParts(List<Part> parts, String[] partPaths, MediaFormat sourceFormat)
+            throws IOException, InterruptedException {
+        for (int i = 0; i < partPaths.length; i++) {
+            final Part part = parts.get(i);
+            MediaTranscoderEngine engine = createEngine(part.getDurationUs());
+            SmartCutOutputFormat formatStrategy = new SmartCutOutputFormat();
+            formatStrategy.setVideoPassThrough(part.mPassThrough);
+            if (i == 0 && !part.mPassThrough) {
+                // the head starts between sync samples, which only the trim overload can do.
+                engine.transcodeVideo(partPaths[i], part.mStartUs, part.mEndUs, formatStrategy);
+            } else {
+                engine.setTimeRange(part.mStartUs, part.mEndUs);
+                engine.transcodeVideo(partPaths[i], formatStrategy);
+            }
+            mDoneDurationUs += part.getDurationUs();
+            // the first part's csd is written to the output, see SegmentStitcher.
+            if (!part.mPassThrough && !isCsdCompatible(sourceFormat, readVideoFormat(partPaths[i]), i == 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The output SPS must decode every part: a re-encoded head may exceed the source, a tail must not.
+    private static boolean isCsdCompatible(MediaFormat sourceFormat, MediaFormat partFormat, boolean isFirst) {
+        AvcSpsUtils.SequenceParameterSet sourceSps = SmartCutOutputFormat.getSps(sourceFormat);
+        AvcSpsUtils.SequenceParameterSet partSps = partFormat != null ? SmartCutOutputFormat.getSps(partFormat) : null;
+        if (partSps == null) return false;
+        boolean spsCompatible = isFirst ? partSps.canDecodeSlicesOf(sourceSps) : sourceSps.canDecodeSlicesOf(partSps);
+        boolean ppsEqual = Arrays.equals(getPps(sourceFormat), getPps(partFormat));
+        if (!spsCompatible || !ppsEqual) {
+            Log.i(TAG, "Encoder output does not match source, source " + sourceSps + ", encoded " + partSps
+                    + ", PPS " + (ppsEqual ? "equal" : "different") + ".");
+        }
+        return spsCompatible && ppsEqual;
+    }
+
+    private static byte[] getPps(MediaFormat format) {
+        ByteBuffer ppsBuffer = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_PPS);
+        return ppsBuffer != null ? AvcCsdUtils.getNalUnit(ppsBuffer) : null;
+    }
+
+    private static MediaFormat readVideoFormat(String path) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) return format;
+            }
+            return null;
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private void reencode(String outputPath, long startUs, long endUs) throws IOException, InterruptedException {
+        MediaTranscoderEngine engine = createEngine(mDurationUs);
+        engine.setFastStart(mFastStart);
+        engine.transcodeVideo(outputPath, startUs, endUs, new SmartCutOutputFormat());
+    }
+
+    private MediaTranscoderEngine createEngine(final long partDurationUs) {
+        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+        engine.setDataSource(mInputFileDescriptor);
+        engine.setAsyncMode(mAsyncMode);
+        engine.setConcurrentTracks(mConcurrentTracks);
+        engine.setProgressIntervalMs(mProgressIntervalMs);
+        engine.setProgressCallback(new MediaTranscoderEngine.ProgressCallback() {
+            @Override
+            public void onProgress(double progress) {
+                updateProgress(progress, partDurationUs);
+            }
+        });
+        return engine;
+    }
+
+    private void updateProgress(double partProgress, long partDurationUs) {
+        if (mProgressCallback == null) return;
+        double progress = partProgress;
+        if (partProgress >= 0 && mDurationUs > 0) {
+            progress = Math.min(1.0, (mDoneDurationUs + partProgress * partDurationUs) / mDurationUs);
+        }
+        long now = SystemClock.uptimeMillis();
+        if (progress >= 0 && progress < 1.0 && now - mLastProgressTimeMs < mProgressIntervalMs) return;
+        mLastProgressTimeMs = now;
+        mProgressCallback.onProgress(progress);
+    }
+
+    private class Part {
+        private final long mStartUs;
+        // negative for the end of the input.
+        private final long mEndUs;
+        private final boolean mPassThrough;
+
+        private Part(long startUs, long endUs, boolean passThrough) {
+            mStartUs = startUs;
+            mEndUs = endUs;
+            mPassThrough = passThrough;
+        }
+
+        private long getDurationUs() {
+            return (mEndUs >= 0 ? mEndUs : mEndTimeUs) - mStartUs;
+        }
+
+        @Override
+        public String toString() {
+            return (mPassThrough ? "copy " : "encode ") + mStartUs + " - " + mEndUs + " us";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ShortBuffer;
+
+/**
+ * {@link AudioRemixer} from stereo to mono with Viktor Toth's algorithm, as {@link AudioRemixer#DOWNMIX}.
+ * See: http://www.vttoth.com/CMS/index.php/technical-notes/68
+ * <p>
+ * Frames are copied in blocks into short[] scratch arrays and mixed in a plain counted loop whose only condition,
+ * the choice between the quiet and the loud equation, is a select. Not thread safe, use one per channel.
+ */
+class StereoToMonoDownmixer implements AudioRemixer {
+    private static final int FRAMES_PER_BLOCK = 1024;
+    private static final int SIGNED_SHORT_LIMIT = 32768;
+    private static final int UNSIGNED_SHORT_MAX = 65535;
+
+    private final short[] mInputBlock = new short[FRAMES_PER_BLOCK * 2];
+    private final short[] mOutputBlock = new short[FRAMES_PER_BLOCK];
+
+    @Override
+    public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final short[] in = mInputBlock;
+        final short[] out = mOutputBlock;
+        int frames = Math.min(inSBuff.remaining() / 2, outSBuff.remaining());
+        while (frames > 0) {
+            final int blockFrames = Math.min(frames, FRAMES_PER_BLOCK);
+            inSBuff.get(in, 0, blockFrames * 2);
+            for (int i = 0; i < blockFrames; i++) {
+                // Convert to unsigned
+                final int a = in[2 * i] + SIGNED_SHORT_LIMIT;
+                final int b = in[2 * i + 1] + SIGNED_SHORT_LIMIT;
+                // a * b is below 2^32, so it is exact as an unsigned int
+                final int quiet = (a * b) >>> 15;
+                // Viktor's first equation when either source is "quiet" (less than middle of the dynamic range),
+                // second one when both are loud; a select the JIT compiles without a branch
+                final int m = (a < SIGNED_SHORT_LIMIT || b < SIGNED_SHORT_LIMIT) ?
+                        quiet : 2 * (a + b) - quiet - UNSIGNED_SHORT_MAX;
+                // Convert output back to signed short, m is at most UNSIGNED_SHORT_MAX + 1
+                out[i] = (short) (Math.min(m, UNSIGNED_SHORT_MAX) - SIGNED_SHORT_LIMIT);
+            }
+            outSBuff.put(out, 0, blockFrames);
+            frames -= blockFrames;
+        }
+    }
+}
@@ -67,6 +67,15 @@ class TextureRender {
         return mTextureID;
     }
     public void drawFrame(SurfaceTexture st, boolean isFormalizingOrientation, int originalOrientation) {
+        drawFrame(st, isFormalizingOrientation, originalOrientation, false);
+        GLES20.glFinish();
+    }
+    /**
+     * Unlike the other overload, does not wait for the GPU, so a following asynchronous readback can overlap it.
+     *
+     * @param isFlipped Draws upside down, e.g. for reading back with glReadPixels whose rows start at the bottom.
+     */
+    public void drawFrame(SurfaceTexture st, boolean isFormalizingOrientation, int originalOrientation, boolean isFlipped) {
         checkGlError("onDrawFrame start");
         st.getTransformMatrix(mSTMatrix);
 
@@ -108,11 +117,13 @@ class TextureRender {
         GLES20.glEnableVertexAttribArray(maTextureHandle);
         checkGlError("glEnableVertexAttribArray maTextureHandle");
         Matrix.setIdentityM(mMVPMatrix, 0);
+        if (isFlipped) {
+            Matrix.scaleM(mMVPMatrix, 0, 1, -1, 1);
+        }
         GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
         GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         checkGlError("glDrawArrays");
-        GLES20.glFinish();
     }
     /**
      * Initializes GL state.  Call this after the EGL surface has been created and made current.
@@ -6,6 +6,25 @@ public interface TrackTranscoder {
 
     void setup();
 
+    /**
+     * Drop what is presented at or after the given time. Reading stops at the first sync sample of this track at
+     * or after it, as samples decoded before that one may still be presented earlier, see {@link TrimEnd}; the
+     * track is then unselected so a shared extractor moves on to the other track.
+     * Must be called before {@link #stepPipeline()}.
+     *
+     * @param endPresentationTimeUs Presentation time in micro-second, or negative value to read to the end.
+     */
+    void setEndPresentationTimeUs(long endPresentationTimeUs);
+
+    /**
+     * Drop what is presented before the given time, after the extractor was sought to the sync sample before it.
+     * Transcoding tracks decode those samples, as later ones depend on them, but do not encode them.
+     * Must be called before {@link #stepPipeline()}.
+     *
+     * @param startPresentationTimeUs Presentation time in micro-second, or 0 to keep all samples.
+     */
+    void setStartPresentationTimeUs(long startPresentationTimeUs);
+
     /**
      * Get actual MediaFormat which is used to write to muxer.
      * To determine you should call {@link #stepPipeline()} several times.
@@ -0,0 +1,33 @@
+package com.comcast.androidcompressor.compressor;
+
+/**
+ * End of a trimmed track, for samples read in decode order.
+ * <p>
+ * With B-frames, samples decoded after the first one presented at or after the end may still be presented before
+ * it, so reading goes on until the first sync sample at or after the end, or the end of the input; samples
+ * presented at or after the end are dropped on the way instead of ending the track.
+ */
+class TrimEnd {
+    private final long mEndTimeUs;
+
+    /**
+     * @param endTimeUs End presentation time in micro-second, or negative value for no end.
+     */
+    public TrimEnd(long endTimeUs) {
+        mEndTimeUs = endTimeUs;
+    }
+
+    /**
+     * @return true if reading should stop at this sample, as no sample from it on is presented before the end.
+     */
+    public boolean isEndOfTrack(long sampleTimeUs, boolean isSyncSample) {
+        return mEndTimeUs >= 0 && isSyncSample && sampleTimeUs >= mEndTimeUs;
+    }
+
+    /**
+     * @return true if a sample presented at this time belongs to the output.
+     */
+    public boolean isBeforeEnd(long presentationTimeUs) {
+        return mEndTimeUs < 0 || presentationTimeUs < mEndTimeUs;
+    }
+}
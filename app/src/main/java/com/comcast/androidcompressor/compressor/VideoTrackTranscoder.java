@@ -3,9 +3,11 @@ package com.comcast.androidcompressor.compressor;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Handler;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
 public class VideoTrackTranscoder implements TrackTranscoder {
@@ -30,14 +32,28 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private InputSurface mEncoderInputSurfaceWrapper;
     private boolean mIsExtractorEOS;
     private boolean mIsDecoderEOS;
-    private boolean mIsEncoderEOS;
+    private volatile boolean mIsEncoderEOS;
     private boolean mDecoderStarted;
     private boolean mEncoderStarted;
-    private long mWrittenPresentationTimeUs;
+    private volatile long mWrittenPresentationTimeUs;
+    private TrimEnd mTrimEnd = new TrimEnd(-1);
+    private long mStartPresentationTimeUs;
+    private boolean mIsPastEndPresentationTime;
+    private FrameRateDecimator mFrameRateDecimator;
+    // non-null when disposable AVC samples not rendered can be skipped before decoding.
+    private AvcNalInspector mNalInspector;
+    private int mPendingDecoderInputIndex = -1;
+    private int mSkippedSampleCount;
+    private FrameCapturer mFrameCapturer;
 
     private boolean mIsFormalizingOrientation;
     private int mOriginalOrientation;
 
+    private Handler mCallbackHandler;
+    private PipelineSignal mPipelineSignal;
+    private MediaCodecCallbackQueue mDecoderCallbackQueue;
+    private MediaCodecCallbackQueue mEncoderCallbackQueue;
+
     public VideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
         mExtractor = extractor;
@@ -46,6 +62,25 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         mMuxer = muxer;
     }
 
+    /**
+     * Drive codecs through {@link MediaCodec.Callback} instead of polling. Must be called before {@link #setup()}.
+     * Requires API 23.
+     *
+     * @param callbackHandler Handler on which codec callbacks are delivered.
+     * @param pipelineSignal  Signal raised whenever any codec has a buffer ready.
+     */
+    public void setCallbackHandler(Handler callbackHandler, PipelineSignal pipelineSignal) {
+        mCallbackHandler = callbackHandler;
+        mPipelineSignal = pipelineSignal;
+    }
+
+    /**
+     * Capture thumbnails of rendered frames. Must be called before {@link #setup()}.
+     */
+    public void setFrameCapturer(FrameCapturer frameCapturer) {
+        mFrameCapturer = frameCapturer;
+    }
+
     @Override
     public void setup() {
         mExtractor.selectTrack(mTrackIndex);
@@ -56,6 +91,10 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (mCallbackHandler != null) {
+            mEncoderCallbackQueue = new MediaCodecCallbackQueue(mPipelineSignal);
+            mEncoder.setCallback(mEncoderCallbackQueue, mCallbackHandler);
+        }
         mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface());
         mEncoderInputSurfaceWrapper.makeCurrent();
@@ -78,10 +117,37 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
+        if (mCallbackHandler != null) {
+            mDecoderCallbackQueue = new MediaCodecCallbackQueue(mPipelineSignal);
+            mDecoder.setCallback(mDecoderCallbackQueue, mCallbackHandler);
+        }
         mDecoder.configure(inputFormat, mDecoderOutputSurfaceWrapper.getSurface(), null, 0);
         mDecoder.start();
         mDecoderStarted = true;
         mDecoderBuffers = new MediaCodecInputBuffers(mDecoder);
+        // inputs of unknown frame rate keep all frames, as well as inputs at or below the output frame rate.
+        int sourceFrameRate = inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE) ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
+        int targetFrameRate = mOutputFormat.containsKey(MediaFormat.KEY_FRAME_RATE) ? mOutputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : 0;
+        if (FrameRateDecimator.isNeeded(sourceFrameRate, targetFrameRate)) {
+            mFrameRateDecimator = new FrameRateDecimator(targetFrameRate);
+        }
+        if (MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(inputFormat.getString(MediaFormat.KEY_MIME))) {
+            mNalInspector = new AvcNalInspector();
+        }
+        if (mFrameCapturer != null) {
+            mFrameCapturer.setup(inputFormat.getInteger(MediaFormat.KEY_WIDTH), inputFormat.getInteger(MediaFormat.KEY_HEIGHT),
+                    mOriginalOrientation);
+        }
+    }
+
+    @Override
+    public void setEndPresentationTimeUs(long endPresentationTimeUs) {
+        mTrimEnd = new TrimEnd(endPresentationTimeUs);
+    }
+
+    @Override
+    public void setStartPresentationTimeUs(long startPresentationTimeUs) {
+        mStartPresentationTimeUs = startPresentationTimeUs;
     }
 
     @Override
@@ -118,6 +184,10 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     // TODO: CloseGuard
     @Override
     public void release() {
+        if (mFrameCapturer != null && mEncoderInputSurfaceWrapper != null) {
+            // GL objects of the capturer live in the encoder surface's context, still current here.
+            mFrameCapturer.release();
+        }
         if (mDecoderOutputSurfaceWrapper != null) {
             mDecoderOutputSurfaceWrapper.release();
             mDecoderOutputSurfaceWrapper = null;
@@ -148,28 +218,57 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     // ready to mux the frames.
     private int drainExtractor(long timeoutUs) {
         if (mIsExtractorEOS) return DRAIN_STATE_NONE;
-        int trackIndex = mExtractor.getSampleTrackIndex();
+        // once past the end our track is unselected, so the extractor only reports the other track.
+        int trackIndex = mIsPastEndPresentationTime ? -1 : mExtractor.getSampleTrackIndex();
         if (trackIndex >= 0 && trackIndex != mTrackIndex) {
             return DRAIN_STATE_NONE;
         }
-        int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        if (trackIndex >= 0 && mTrimEnd.isEndOfTrack(mExtractor.getSampleTime(),
+                (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0)) {
+            mExtractor.unselectTrack(mTrackIndex);
+            mIsPastEndPresentationTime = true;
+            trackIndex = -1;
+        }
+        // an input buffer holding a skipped sample is reused for the next one.
+        int result = mPendingDecoderInputIndex >= 0 ? mPendingDecoderInputIndex : dequeueDecoderInputBuffer(timeoutUs);
         if (result < 0) return DRAIN_STATE_NONE;
+        mPendingDecoderInputIndex = -1;
         if (trackIndex < 0) {
             mIsExtractorEOS = true;
             mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            if (mNalInspector != null) Log.d(TAG, "Disposable samples skipped before decoding: " + mSkippedSampleCount);
             return DRAIN_STATE_NONE;
         }
-        int sampleSize = mExtractor.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        ByteBuffer inputBuffer = mDecoderBuffers.getInputBuffer(result);
+        int sampleSize = mExtractor.readSampleData(inputBuffer, 0);
+        long sampleTimeUs = mExtractor.getSampleTime();
         boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
-        mDecoder.queueInputBuffer(result, 0, sampleSize, mExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        if (isSkippable(inputBuffer, sampleSize, sampleTimeUs, isKeyFrame)) {
+            mPendingDecoderInputIndex = result;
+            mSkippedSampleCount++;
+            mExtractor.advance();
+            return DRAIN_STATE_CONSUMED;
+        }
+        mDecoder.queueInputBuffer(result, 0, sampleSize, sampleTimeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
         mExtractor.advance();
         return DRAIN_STATE_CONSUMED;
     }
 
+    // Disposable samples no other frame refers to need no decoding when they would not be rendered anyway:
+    // before the start, at or after the end, or off the output frame rate grid.
+    private boolean isSkippable(ByteBuffer sample, int sampleSize, long sampleTimeUs, boolean isKeyFrame) {
+        if (mNalInspector == null || sampleSize <= 0) return false;
+        // every sample is passed to the decimator, which needs the times around the disposable ones.
+        boolean offGrid = mFrameRateDecimator != null && !mFrameRateDecimator.mayRender(sampleTimeUs);
+        boolean inRange = sampleTimeUs >= mStartPresentationTimeUs && mTrimEnd.isBeforeEnd(sampleTimeUs);
+        if (isKeyFrame || (!offGrid && inRange)) return false;
+        return mNalInspector.inspect(sample, 0, sampleSize) && mNalInspector.isDisposable();
+    }
+
     // Poll output frames from the video decoder and feed the encoder.
     private int drainDecoder(long timeoutUs) {
         if (mIsDecoderEOS) return DRAIN_STATE_NONE;
-        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = dequeueDecoderOutputBuffer(timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -181,8 +280,16 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             mEncoder.signalEndOfInputStream();
             mIsDecoderEOS = true;
             mBufferInfo.size = 0;
+            if (mFrameRateDecimator != null) {
+                Log.d(TAG, "Frames rendered: " + mFrameRateDecimator.getKeptFrameCount() + ", dropped above output frame rate: "
+                        + mFrameRateDecimator.getDroppedFrameCount());
+            }
         }
-        boolean doRender = (mBufferInfo.size > 0);
+        // frames before the start or at or after the end are only decoded for the frames that refer to them,
+        // frames off the output frame rate grid are dropped before any GL or encoder work.
+        boolean doRender = (mBufferInfo.size > 0 && mBufferInfo.presentationTimeUs >= mStartPresentationTimeUs
+                && mTrimEnd.isBeforeEnd(mBufferInfo.presentationTimeUs)
+                && (mFrameRateDecimator == null || mFrameRateDecimator.shouldRender(mBufferInfo.presentationTimeUs)));
         // NOTE: doRender will block if buffer (of encoder) is full.
         // Refer: http://bigflake.com/mediacodec/CameraToMpegTest.java.txt
         mDecoder.releaseOutputBuffer(result, doRender);
@@ -190,16 +297,22 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             mDecoderOutputSurfaceWrapper.awaitNewImage();
             // render frame based on original video orientation and whether to formalize
             mDecoderOutputSurfaceWrapper.drawImage(mIsFormalizingOrientation, mOriginalOrientation);
+            if (mFrameCapturer != null && mFrameCapturer.isCaptureDue(mBufferInfo.presentationTimeUs)) {
+                mFrameCapturer.capture(mDecoderOutputSurfaceWrapper, mBufferInfo.presentationTimeUs);
+            }
             mEncoderInputSurfaceWrapper.setPresentationTime(mBufferInfo.presentationTimeUs * 1000);
             mEncoderInputSurfaceWrapper.swapBuffers();
         }
+        if (mIsDecoderEOS && mFrameCapturer != null) {
+            mFrameCapturer.flush();
+        }
         return DRAIN_STATE_CONSUMED;
     }
 
     // Poll frames from the video encoder and send them to the muxer.
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = dequeueEncoderOutputBuffer(timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -231,4 +344,19 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         mEncoder.releaseOutputBuffer(result, false);
         return DRAIN_STATE_CONSUMED;
     }
+
+    private int dequeueDecoderInputBuffer(long timeoutUs) {
+        if (mDecoderCallbackQueue != null) return mDecoderCallbackQueue.dequeueInputBuffer();
+        return mDecoder.dequeueInputBuffer(timeoutUs);
+    }
+
+    private int dequeueDecoderOutputBuffer(long timeoutUs) {
+        if (mDecoderCallbackQueue != null) return mDecoderCallbackQueue.dequeueOutputBuffer(mBufferInfo);
+        return mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    }
+
+    private int dequeueEncoderOutputBuffer(long timeoutUs) {
+        if (mEncoderCallbackQueue != null) return mEncoderCallbackQueue.dequeueOutputBuffer(mBufferInfo);
+        return mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+    }
 }
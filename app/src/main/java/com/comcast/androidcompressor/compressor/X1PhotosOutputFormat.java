@@ -5,6 +5,8 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
 public class X1PhotosOutputFormat implements MediaOutputFormat {
     public static final String TAG = "X1PhotosOutputFormat";
 
@@ -23,6 +25,11 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
 
     private static final int DEFAULT_MOTION_FACTOR = 3;
 
+    // Refer: http://en.wikipedia.org/wiki/H.264/MPEG-4_AVC#Profiles
+    private static final byte PROFILE_IDC_BASELINE = 66;
+    private static final byte PROFILE_IDC_MAIN = 77;
+    private static final byte PROFILE_IDC_HIGH = 100;
+
 //    private static final int DEFAULT_VIDEO_BITRATE = 2000 * 1024;    // bit/sec
 
     private int mWidth;
@@ -36,6 +43,8 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
     private int mLongerLength;
     private int mShorterLength;
     private boolean mIsFormalizingOrientation;
+    private boolean mPassThroughEnabled;
+    private int mTargetAudioSampleRate;
 
     public X1PhotosOutputFormat() {
         this(true);
@@ -65,6 +74,30 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
         mShorterLength = shorterLength;
     }
 
+    public boolean isPassThroughEnabled() {
+        return mPassThroughEnabled;
+    }
+
+    /**
+     * Keep tracks that already satisfy this format as they are, instead of re-encoding them.
+     * Video qualifies when it is AVC in Baseline, Main or High profile, fits the target size, needs no rotation,
+     * and its bitrate and frame rate are known and at most the target; audio when it is AAC at the target
+     * sample rate, with at most the target channel count and a known bitrate at most the target.
+     * Inputs smaller than the target are never upscaled, whether they qualify or not.
+     */
+    public void setPassThroughEnabled(boolean passThroughEnabled) {
+        mPassThroughEnabled = passThroughEnabled;
+    }
+
+    /**
+     * Sample rate of output audio, e.g. 16000 or 22050 Hz for speech. Audio at another rate is resampled.
+     *
+     * @param audioSampleRate Sample rate in Hz, or 0 to keep the input sample rate (default).
+     */
+    public void setAudioSampleRate(int audioSampleRate) {
+        mTargetAudioSampleRate = audioSampleRate;
+    }
+
     @Override
     public MediaFormat createVideoOutputFormat(MediaFormat inputFormat, int inputOrientation) {
         // rotation
@@ -91,6 +124,12 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
         mVideoBitrate = calculateBitrate(mWidth, mHeight, mFrameRate);
         Log.d(TAG, "New Bitrate: " + mVideoBitrate);
 
+        if (mPassThroughEnabled && isVideoPassThroughEligible(inputFormat, rotation, size)) {
+            mVideoBitrate = inputFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+            Log.d(TAG, "Video satisfies output format, passing through.");
+            return null;
+        }
+
         // create format
         MediaFormat format = MediaFormat.createVideoFormat(VIDEO_CODEC, mWidth, mHeight);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mVideoBitrate);
@@ -102,8 +141,13 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
 
     @Override
     public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
-        // Use original sample rate, as resampling is not supported yet.
-        mAudioSampleRate = inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int inputSampleRate = inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mAudioSampleRate = mTargetAudioSampleRate > 0 ? mTargetAudioSampleRate : inputSampleRate;
+
+        if (mPassThroughEnabled && isAudioPassThroughEligible(inputFormat)) {
+            Log.d(TAG, "Audio satisfies output format, passing through.");
+            return null;
+        }
 
         MediaFormat format = MediaFormat.createAudioFormat(AUDIO_CODEC, mAudioSampleRate, mAudioChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitrate);
@@ -116,6 +160,38 @@ public class X1PhotosOutputFormat implements MediaOutputFormat {
         return mIsFormalizingOrientation;
     }
 
+    private boolean isVideoPassThroughEligible(MediaFormat inputFormat, int rotation, Point size) {
+        if (!VIDEO_CODEC.equals(inputFormat.getString(MediaFormat.KEY_MIME))) return false;
+        int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        if (size.x != width || size.y != height) return false;
+        if (rotation % 360 != 0 && isFormalizingOrientation()) return false;
+        if (!inputFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                || inputFormat.getInteger(MediaFormat.KEY_BIT_RATE) > calculateBitrate(width, height, mFrameRate)) {
+            return false;
+        }
+        if (!inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE) || inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) > mFrameRate) {
+            return false;
+        }
+        if (!inputFormat.containsKey(MediaFormatExtraConstants.KEY_AVC_SPS)) return false;
+        try {
+            ByteBuffer spsBuffer = AvcCsdUtils.getSpsBuffer(inputFormat);
+            byte profileIdc = AvcSpsUtils.getProfileIdc(spsBuffer);
+            return profileIdc == PROFILE_IDC_BASELINE || profileIdc == PROFILE_IDC_MAIN || profileIdc == PROFILE_IDC_HIGH;
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Could not read video profile.", e);
+            return false;
+        }
+    }
+
+    private boolean isAudioPassThroughEligible(MediaFormat inputFormat) {
+        return AUDIO_CODEC.equals(inputFormat.getString(MediaFormat.KEY_MIME))
+                && inputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) <= mAudioChannels
+                && inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) == mAudioSampleRate
+                && inputFormat.containsKey(MediaFormat.KEY_BIT_RATE)
+                && inputFormat.getInteger(MediaFormat.KEY_BIT_RATE) <= mAudioBitrate;
+    }
+
     public static Point adjustDimension(int width, int height, int longerLength, int shorterLength) {
         int sw = longerLength;
         int sh = shorterLength;
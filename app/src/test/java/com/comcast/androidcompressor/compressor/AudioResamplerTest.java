@@ -0,0 +1,162 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioResamplerTest {
+
+    @Test
+    public void resample_producesOutputRate() throws Exception {
+        int[][] rates = {{48000, 44100}, {44100, 48000}, {22050, 44100}, {48000, 16000}, {8000, 48000}};
+        for (int[] rate : rates) {
+            AudioResampler resampler = new AudioResampler(rate[0], rate[1], 1);
+            short[] output = resampleAll(resampler, new short[rate[0]], 1, 4096);
+            assertEquals(rate[0] + " -> " + rate[1], rate[1], output.length);
+        }
+    }
+
+    @Test
+    public void resample_passesConstantLevel() throws Exception {
+        AudioResampler resampler = new AudioResampler(48000, 44100, 2);
+        short[] input = new short[48000 * 2];
+        for (int i = 0; i < input.length; i += 2) {
+            input[i] = 1000;
+            input[i + 1] = -2000;
+        }
+        short[] output = resampleAll(resampler, input, 2, 4096);
+        // away from the edges, where the filter sees silence.
+        for (int i = 200; i < output.length - 200; i += 2) {
+            assertEquals(1000, output[i], 2);
+            assertEquals(-2000, output[i + 1], 2);
+        }
+    }
+
+    @Test
+    public void resample_keepsFrequency() throws Exception {
+        AudioResampler resampler = new AudioResampler(44100, 48000, 1);
+        short[] output = resampleAll(resampler, createSine(1000, 44100, 44100), 1, 4096);
+        // a 1 kHz sine crosses zero upwards 1000 times a second.
+        int crossings = 0;
+        for (int i = 1; i < output.length; i++) {
+            if (output[i - 1] < 0 && output[i] >= 0) crossings++;
+        }
+        assertEquals(1000, crossings, 1);
+        // and keeps its level.
+        int peak = 0;
+        for (int i = 1000; i < output.length - 1000; i++) {
+            peak = Math.max(peak, Math.abs(output[i]));
+        }
+        assertEquals(10000, peak, 200);
+    }
+
+    @Test
+    public void resample_attenuatesAboveOutputNyquist() throws Exception {
+        AudioResampler resampler = new AudioResampler(48000, 16000, 1);
+        // 12 kHz would alias to 4 kHz.
+        short[] output = resampleAll(resampler, createSine(12000, 48000, 48000), 1, 4096);
+        for (int i = 500; i < output.length - 500; i++) {
+            assertTrue("sample " + i + ": " + output[i], Math.abs(output[i]) < 300);
+        }
+    }
+
+    @Test
+    public void resample_chunkingDoesNotChangeOutput() throws Exception {
+        short[] input = createSine(440, 48000, 48000 * 2);
+        short[] expected = resampleAll(new AudioResampler(48000, 44100, 2), input, 2, 1 << 20);
+        Random random = new Random(1);
+        AudioResampler resampler = new AudioResampler(48000, 44100, 2);
+        ShortBuffer in = ShortBuffer.wrap(input);
+        ShortBuffer out = ShortBuffer.allocate(expected.length);
+        while (in.hasRemaining()) {
+            // odd sizes, split inside frames.
+            ShortBuffer chunk = in.duplicate();
+            chunk.limit(Math.min(in.limit(), in.position() + 1 + random.nextInt(999)));
+            ShortBuffer window = out.duplicate();
+            window.limit(Math.min(out.limit(), out.position() + 1 + random.nextInt(777)));
+            resampler.resample(chunk, window);
+            out.position(window.position());
+            // whole frames only are consumed.
+            assertEquals(0, (chunk.position() - in.position()) % 2);
+            in.position(chunk.position());
+        }
+        while (!resampler.flush(out)) {
+            fail("output has room for all of it");
+        }
+        assertArrayEquals(expected, out.array());
+    }
+
+    @Test
+    public void resample_unusualRatePair_roundsStep() throws Exception {
+        AudioResampler resampler = new AudioResampler(44100, 44099, 1);
+        assertEquals(1024, resampler.getPhaseCount());
+        assertEquals(1024, resampler.getInputStep());
+        short[] output = resampleAll(resampler, new short[44100], 1, 4096);
+        // the rate actually produced is the input rate.
+        assertEquals(44100, output.length);
+    }
+
+    @Test
+    public void resample_unusualRatePair_timestampsFollowRateProduced() throws Exception {
+        AudioResampler resampler = new AudioResampler(48000, 44101, 1);
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(48000, resampler.getPhaseCount(),
+                resampler.getInputStep());
+        short[] output = resampleAll(resampler, new short[48000 * 10], 1, 4096);
+        generator.onInputBuffer(0, 48000 * 10);
+        generator.onOutputFrames(output.length);
+        // ten seconds in, ten seconds out, whatever the rounded rate.
+        assertEquals(10000000, generator.getPresentationTimeUs(), 100);
+        AudioTimestampGenerator nominal = new AudioTimestampGenerator(48000, 44101);
+        nominal.onInputBuffer(0, 48000 * 10);
+        nominal.onOutputFrames(output.length);
+        assertTrue(Math.abs(nominal.getPresentationTimeUs() - 10000000) > 1000);
+    }
+
+    @Test
+    public void reset_startsOver() throws Exception {
+        short[] input = createSine(440, 44100, 10000);
+        AudioResampler resampler = new AudioResampler(44100, 48000, 1);
+        short[] first = resampleAll(resampler, input, 1, 4096);
+        resampler.reset();
+        assertEquals(0, resampler.getOutputFrameCount());
+        assertArrayEquals(first, resampleAll(resampler, input, 1, 4096));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidRate_throws() throws Exception {
+        new AudioResampler(0, 44100, 1);
+    }
+
+    // Resamples all input and flushes, with output written in chunks of chunkSize samples at most.
+    private static short[] resampleAll(AudioResampler resampler, short[] input, int channelCount, int chunkSize) {
+        ShortBuffer in = ShortBuffer.wrap(input);
+        short[] output = new short[0];
+        ShortBuffer chunk = ShortBuffer.allocate(chunkSize - chunkSize % channelCount);
+        boolean flushed = false;
+        while (!flushed) {
+            chunk.clear();
+            if (in.hasRemaining()) {
+                resampler.resample(in, chunk);
+            } else {
+                flushed = resampler.flush(chunk);
+            }
+            int length = output.length;
+            output = Arrays.copyOf(output, length + chunk.position());
+            System.arraycopy(chunk.array(), 0, output, length, chunk.position());
+        }
+        return output;
+    }
+
+    // Sine of amplitude 10000, one sample per index whatever the channel count.
+    private static short[] createSine(int frequency, int sampleRate, int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) Math.round(10000 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return samples;
+    }
+}
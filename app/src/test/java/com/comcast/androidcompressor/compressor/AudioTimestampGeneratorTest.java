@@ -0,0 +1,106 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioTimestampGeneratorTest {
+
+    @Test
+    public void getPresentationTimeUs_countsFramesFromFirstBuffer() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        generator.onInputBuffer(500000, 1024);
+        assertEquals(500000, generator.getPresentationTimeUs());
+        generator.onOutputFrames(1024);
+        assertEquals(500000 + 1024L * 1000000 / 44100, generator.getPresentationTimeUs());
+        // computed from the frame count, so rounding does not add up.
+        for (int i = 1; i < 44100; i++) {
+            generator.onOutputFrames(1024);
+        }
+        assertEquals(500000 + 1024L * 1000000, generator.getPresentationTimeUs());
+    }
+
+    @Test
+    public void getPresentationTimeUs_usesOutputSampleRate() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(48000, 44100);
+        generator.onInputBuffer(0, 4800);
+        generator.onOutputFrames(4410);
+        assertEquals(100000, generator.getPresentationTimeUs());
+    }
+
+    @Test
+    public void onInputBuffer_inexactTimes_keepTimeline() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        // decoder times rounded to milliseconds, off by less than one.
+        for (int i = 0; i < 100; i++) {
+            long timeUs = i * 1024L * 1000000 / 44100 / 1000 * 1000;
+            generator.onInputBuffer(timeUs, 1024);
+            assertEquals(AudioTimestampGenerator.framesToDurationUs(i * 1024L, 44100), generator.getPresentationTimeUs());
+            generator.onOutputFrames(1024);
+        }
+        AudioTimestampGenerator.DriftReport report = generator.getDriftReport();
+        assertEquals(0, report.getResyncCount());
+        assertEquals(0, report.getDiscontinuityCount());
+        assertTrue(report.getMaxDriftUs() <= 0 && report.getMaxDriftUs() > -1000);
+    }
+
+    @Test
+    public void onInputBuffer_smallDrift_keepsTimeline() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        generator.onInputBuffer(0, 1024);
+        generator.onOutputFrames(1024);
+        // 10 ms ahead, below one AAC frame.
+        generator.onInputBuffer(1024L * 1000000 / 44100 + 10000, 1024);
+        assertEquals(1024L * 1000000 / 44100, generator.getPresentationTimeUs());
+        assertEquals(0, generator.getDriftReport().getResyncCount());
+        assertEquals(10000, generator.getDriftReport().getFinalDriftUs());
+    }
+
+    @Test
+    public void onInputBuffer_gap_resyncsToDecoderTime() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        generator.onInputBuffer(0, 1024);
+        generator.onOutputFrames(1024);
+        // half a second missing in the input.
+        long resumeTimeUs = 1024L * 1000000 / 44100 + 500000;
+        generator.onInputBuffer(resumeTimeUs, 1024);
+        assertEquals(resumeTimeUs, generator.getPresentationTimeUs());
+        generator.onOutputFrames(1024);
+        generator.onInputBuffer(resumeTimeUs + 1024L * 1000000 / 44100, 1024);
+        assertEquals(resumeTimeUs + 1024L * 1000000 / 44100, generator.getPresentationTimeUs(), 1);
+
+        AudioTimestampGenerator.DriftReport report = generator.getDriftReport();
+        assertEquals(1, report.getResyncCount());
+        assertEquals(1, report.getDiscontinuityCount());
+        assertEquals(500000, report.getMaxDriftUs(), 1);
+        assertEquals(0, report.getFinalDriftUs(), 1);
+    }
+
+    @Test
+    public void onInputBuffer_gapWithFramesPending_placesThemBeforeResumedBuffer() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        generator.onInputBuffer(0, 2048);
+        // half of the first buffer still to be emitted when the next one arrives.
+        generator.onOutputFrames(1024);
+        long resumeTimeUs = 2048L * 1000000 / 44100 + 500000;
+        generator.onInputBuffer(resumeTimeUs, 1024);
+        long pendingTimeUs = generator.getPresentationTimeUs();
+        assertEquals(resumeTimeUs - 1024L * 1000000 / 44100, pendingTimeUs, 1);
+        assertTrue(pendingTimeUs > 1024L * 1000000 / 44100);
+        generator.onOutputFrames(1024);
+        assertEquals(resumeTimeUs, generator.getPresentationTimeUs(), 1);
+    }
+
+    @Test
+    public void onInputBuffer_decoderBehind_keepsTimesIncreasing() throws Exception {
+        AudioTimestampGenerator generator = new AudioTimestampGenerator(44100, 44100);
+        generator.onInputBuffer(0, 44100);
+        generator.onOutputFrames(44100);
+        // decoder times jump back by half a second.
+        generator.onInputBuffer(500000, 1024);
+        assertEquals(1000000, generator.getPresentationTimeUs());
+        AudioTimestampGenerator.DriftReport report = generator.getDriftReport();
+        assertEquals(0, report.getResyncCount());
+        assertEquals(-500000, report.getFinalDriftUs());
+    }
+}
@@ -0,0 +1,139 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AvcNalInspectorTest {
+    // NAL headers: IDR slice with nal_ref_idc 3, non-IDR slices with nal_ref_idc 2 and 0, AUD, SEI, SPS, PPS.
+    private static final int IDR = 0x65;
+    private static final int REFERENCE = 0x41;
+    private static final int NON_REFERENCE = 0x01;
+    private static final int AUD = 0x09;
+    private static final int SEI = 0x06;
+    private static final int SPS = 0x67;
+    private static final int PPS = 0x68;
+    // first_mb_in_slice 0 then slice_type, padded with zero bits.
+    private static final int P_SLICE = 0xC0;
+    private static final int B_SLICE = 0xA0;
+    private static final int I_SLICE = 0xB0;
+    private static final int ALL_B_SLICES = 0x9C;
+    private static final int ALL_I_SLICES = 0x88;
+
+    @Test
+    public void inspect_annexB_idr() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 0, 1, SPS, 0x42, 0x00, 0x28, 0, 0, 0, 1, PPS, 0xCE, 0x38, 0x80,
+                0, 0, 1, IDR, ALL_I_SLICES, 0x84);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertTrue(inspector.isIdr());
+        assertEquals(AvcNalInspector.SLICE_TYPE_I, inspector.getSliceType());
+        assertFalse(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_annexB_nonReference() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 0, 1, AUD, 0x30, 0, 0, 1, NON_REFERENCE, ALL_B_SLICES, 0x12);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertFalse(inspector.isIdr());
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspector.getSliceType());
+        assertTrue(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_lengthPrefixed() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 0, 2, AUD, 0x30, 0, 0, 0, 3, SEI, 0x05, 0x80, 0, 0, 0, 3, REFERENCE, B_SLICE, 0x11);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspector.getSliceType());
+        assertFalse(inspector.isDisposable());
+
+        sample = wrap(0, 0, 0, 3, NON_REFERENCE, P_SLICE, 0x11);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertEquals(AvcNalInspector.SLICE_TYPE_P, inspector.getSliceType());
+        assertTrue(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_sliceTypes() throws Exception {
+        assertEquals(AvcNalInspector.SLICE_TYPE_P, inspectSliceType(P_SLICE));
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspectSliceType(B_SLICE));
+        assertEquals(AvcNalInspector.SLICE_TYPE_I, inspectSliceType(I_SLICE));
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspectSliceType(ALL_B_SLICES));
+        assertEquals(AvcNalInspector.SLICE_TYPE_I, inspectSliceType(ALL_I_SLICES));
+        // first_mb_in_slice 3, then a B slice.
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspectSliceType(0x22));
+        // slice_type 10 is not valid.
+        assertEquals(AvcNalInspector.SLICE_TYPE_UNKNOWN, inspectSliceType(0x8B));
+    }
+
+    @Test
+    public void inspect_truncatedSliceHeader_unknownType() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 1, REFERENCE);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertEquals(AvcNalInspector.SLICE_TYPE_UNKNOWN, inspector.getSliceType());
+        assertFalse(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_noSlice() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 0, 1, SEI, 0x05, 0x80, 0, 0, 1, AUD, 0x30);
+        assertFalse(inspector.inspect(sample, 0, sample.limit()));
+        assertEquals(AvcNalInspector.SLICE_TYPE_UNKNOWN, inspector.getSliceType());
+        assertFalse(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_malformedLength_noSlice() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 0, 9, NON_REFERENCE, P_SLICE, 0x11);
+        assertFalse(inspector.inspect(sample, 0, sample.limit()));
+        assertFalse(inspector.isDisposable());
+    }
+
+    @Test
+    public void inspect_replacesPreviousResult() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 1, IDR, ALL_I_SLICES);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        assertTrue(inspector.isIdr());
+        sample = wrap(0, 0, 1, AUD, 0x30);
+        assertFalse(inspector.inspect(sample, 0, sample.limit()));
+        assertFalse(inspector.isIdr());
+        assertEquals(AvcNalInspector.SLICE_TYPE_UNKNOWN, inspector.getSliceType());
+    }
+
+    @Test
+    public void inspect_onlyReadsRange() throws Exception {
+        AvcNalInspector inspector = new AvcNalInspector();
+        // a non-reference sample between a reference slice and an IDR.
+        ByteBuffer buffer = wrap(0, 0, 1, REFERENCE, P_SLICE, 0, 0, 1, NON_REFERENCE, B_SLICE, 0, 0, 1, IDR, ALL_I_SLICES);
+        buffer.position(2).limit(12);
+        assertTrue(inspector.inspect(buffer, 5, 6));
+        assertEquals(AvcNalInspector.SLICE_TYPE_B, inspector.getSliceType());
+        assertTrue(inspector.isDisposable());
+        assertEquals(2, buffer.position());
+        assertEquals(12, buffer.limit());
+    }
+
+    private static int inspectSliceType(int sliceHeader) {
+        AvcNalInspector inspector = new AvcNalInspector();
+        ByteBuffer sample = wrap(0, 0, 1, REFERENCE, sliceHeader, 0x00);
+        assertTrue(inspector.inspect(sample, 0, sample.limit()));
+        return inspector.getSliceType();
+    }
+
+    private static ByteBuffer wrap(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int value : bytes) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,170 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AvcSpsUtilsTest {
+
+    @Test
+    public void parse_baseline_readsCroppedSize() throws Exception {
+        AvcSpsUtils.SequenceParameterSet sps = AvcSpsUtils.parse(createSps(66, null).toBuffer());
+        assertEquals(66, sps.getProfileIdc());
+        assertEquals(40, sps.getLevelIdc());
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+    }
+
+    @Test
+    public void parse_allProfilesWithChromaFormat_readsCroppedSize() throws Exception {
+        for (int profileIdc : new int[]{100, 110, 122, 244, 44, 83, 86, 118, 128, 138, 139, 134, 135}) {
+            AvcSpsUtils.SequenceParameterSet sps = AvcSpsUtils.parse(createSps(profileIdc, null).toBuffer());
+            assertEquals("profile " + profileIdc, profileIdc, sps.getProfileIdc());
+            assertEquals("profile " + profileIdc, 1920, sps.getWidth());
+            assertEquals("profile " + profileIdc, 1080, sps.getHeight());
+        }
+    }
+
+    @Test
+    public void parse_scalingLists_readsCroppedSize() throws Exception {
+        AvcSpsUtils.SequenceParameterSet sps = AvcSpsUtils.parse(createSps(100, new int[][]{
+                {4, -2, 1}, null, {-8}, null, null, null, {0, 3, -3}, null}).toBuffer());
+        assertEquals(1920, sps.getWidth());
+        assertEquals(1080, sps.getHeight());
+    }
+
+    @Test
+    public void canDecodeSlicesOf_equalScalingLists() throws Exception {
+        int[][] deltas = {{4, -2, 1}, null, null, null, null, null, {0, 3, -3}, null};
+        assertTrue(parse(100, deltas).canDecodeSlicesOf(parse(100, deltas)));
+        assertTrue(parse(100, null).canDecodeSlicesOf(parse(100, null)));
+    }
+
+    @Test
+    public void canDecodeSlicesOf_differentScalingLists() throws Exception {
+        int[][] deltas = {{4, -2, 1}, null, null, null, null, null, null, null};
+        // another scale in the same list.
+        assertFalse(parse(100, deltas).canDecodeSlicesOf(parse(100, new int[][]{
+                {4, -2, 2}, null, null, null, null, null, null, null})));
+        // the same scales in another list.
+        assertFalse(parse(100, deltas).canDecodeSlicesOf(parse(100, new int[][]{
+                null, {4, -2, 1}, null, null, null, null, null, null})));
+        // the default list instead of a coded one.
+        assertFalse(parse(100, deltas).canDecodeSlicesOf(parse(100, new int[][]{
+                {-8}, null, null, null, null, null, null, null})));
+        // a scaling matrix without any list present, i.e. every list falls back.
+        assertFalse(parse(100, null).canDecodeSlicesOf(parse(100, new int[8][])));
+        assertFalse(parse(100, deltas).canDecodeSlicesOf(parse(100, null)));
+    }
+
+    @Test
+    public void canDecodeSlicesOf_lowerLevel() throws Exception {
+        AvcSpsUtils.SequenceParameterSet higher = parse(100, null);
+        AvcSpsUtils.SequenceParameterSet lower = AvcSpsUtils.parse(createSps(100, null, 31).toBuffer());
+        assertTrue(higher.canDecodeSlicesOf(lower));
+        assertFalse(lower.canDecodeSlicesOf(higher));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parse_truncated_throws() throws Exception {
+        ByteBuffer buffer = createSps(100, null).toBuffer();
+        buffer.limit(6);
+        AvcSpsUtils.parse(buffer);
+    }
+
+    private static AvcSpsUtils.SequenceParameterSet parse(int profileIdc, int[][] scalingDeltas) {
+        return AvcSpsUtils.parse(createSps(profileIdc, scalingDeltas).toBuffer());
+    }
+
+    private static BitWriter createSps(int profileIdc, int[][] scalingDeltas) {
+        return createSps(profileIdc, scalingDeltas, 40);
+    }
+
+    // 1920x1088 progressive, cropped to 1080. Scaling lists are given as their coded deltas, null where absent;
+    // the remaining scales of a list repeat the last one, as the zero delta ending it says.
+    private static BitWriter createSps(int profileIdc, int[][] scalingDeltas, int levelIdc) {
+        BitWriter writer = new BitWriter();
+        writer.writeBits(profileIdc, 8);
+        writer.writeBits(0, 8);
+        writer.writeBits(levelIdc, 8);
+        writer.writeUnsigned(0);
+        if (profileIdc != 66) {
+            writer.writeUnsigned(1);
+            writer.writeUnsigned(0);
+            writer.writeUnsigned(0);
+            writer.writeBit(false);
+            writer.writeBit(scalingDeltas != null);
+            if (scalingDeltas != null) {
+                for (int[] deltas : scalingDeltas) {
+                    writer.writeBit(deltas != null);
+                    if (deltas == null) continue;
+                    int lastScale = 8;
+                    for (int delta : deltas) {
+                        writer.writeSigned(delta);
+                        lastScale = (lastScale + delta + 256) % 256;
+                    }
+                    if (lastScale != 0) writer.writeSigned(-lastScale);
+                }
+            }
+        }
+        writer.writeUnsigned(0);
+        writer.writeUnsigned(0);
+        writer.writeUnsigned(2);
+        writer.writeUnsigned(1);
+        writer.writeBit(false);
+        writer.writeUnsigned(119);
+        writer.writeUnsigned(67);
+        writer.writeBit(true);
+        writer.writeBit(true);
+        writer.writeBit(true);
+        writer.writeUnsigned(0);
+        writer.writeUnsigned(0);
+        writer.writeUnsigned(0);
+        writer.writeUnsigned(4);
+        // vui_parameters_present_flag, then the RBSP stop bit.
+        writer.writeBit(false);
+        writer.writeBit(true);
+        return writer;
+    }
+
+    // Writes RBSP bits; the values used here never form an emulation prevention pattern.
+    private static class BitWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mCurrentByte;
+        private int mBitCount;
+
+        void writeBit(boolean bit) {
+            mCurrentByte = (mCurrentByte << 1) | (bit ? 1 : 0);
+            if (++mBitCount == 8) {
+                mBytes.write(mCurrentByte);
+                mCurrentByte = 0;
+                mBitCount = 0;
+            }
+        }
+
+        void writeBits(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit(((value >> i) & 1) != 0);
+            }
+        }
+
+        void writeUnsigned(int value) {
+            int codeNum = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(codeNum);
+            writeBits(0, length - 1);
+            writeBits(codeNum, length);
+        }
+
+        void writeSigned(int value) {
+            writeUnsigned(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        ByteBuffer toBuffer() {
+            while (mBitCount != 0) writeBit(false);
+            return ByteBuffer.wrap(mBytes.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void lease_roundsUpToSizeClass() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.lease(1).capacity());
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.lease(ByteBufferPool.MIN_BUFFER_SIZE).capacity());
+        assertEquals(8192, pool.lease(ByteBufferPool.MIN_BUFFER_SIZE + 1).capacity());
+        assertEquals(1 << 20, pool.lease((1 << 19) + 1).capacity());
+        assertEquals(ByteBufferPool.MAX_POOLED_BUFFER_SIZE, pool.lease(ByteBufferPool.MAX_POOLED_BUFFER_SIZE).capacity());
+    }
+
+    @Test
+    public void lease_returnsDirectNativeOrderBuffer() throws Exception {
+        ByteBuffer buffer = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES).lease(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    @Test
+    public void release_reusesBufferCleared() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        ByteBuffer buffer = pool.lease(5000);
+        buffer.position(100).limit(200);
+        pool.release(buffer);
+        assertEquals(8192, pool.getRetainedBytes());
+        assertEquals(0, pool.getLeasedBytes());
+
+        ByteBuffer again = pool.lease(6000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(2, pool.getLeaseCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void lease_aboveMaxPooledSize_allocatesToFitAndDoesNotRetain() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(Long.MAX_VALUE);
+        int size = ByteBufferPool.MAX_POOLED_BUFFER_SIZE + 1;
+        ByteBuffer buffer = pool.lease(size);
+        assertEquals(size, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(0, pool.getRetainedBytes());
+        assertNotSame(buffer, pool.lease(size));
+    }
+
+    @Test
+    public void release_foreignSize_isNotRetained() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        pool.lease(5000);
+        // not from a size class, e.g. allocated elsewhere.
+        pool.release(ByteBuffer.allocateDirect(5000));
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void release_beyondBudget_dropsBuffer() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(3 * ByteBufferPool.MIN_BUFFER_SIZE);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.lease(1);
+        }
+        assertEquals(4 * ByteBufferPool.MIN_BUFFER_SIZE, pool.getHighWaterMark());
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(3 * ByteBufferPool.MIN_BUFFER_SIZE, pool.getRetainedBytes());
+        assertEquals(0, pool.getLeasedBytes());
+        assertEquals(4 * ByteBufferPool.MIN_BUFFER_SIZE, pool.getHighWaterMark());
+    }
+
+    @Test
+    public void setMaxRetainedBytes_dropsLargestFirst() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        ByteBuffer small = pool.lease(ByteBufferPool.MIN_BUFFER_SIZE);
+        ByteBuffer large = pool.lease(1 << 20);
+        pool.release(small);
+        pool.release(large);
+        pool.setMaxRetainedBytes(ByteBufferPool.MIN_BUFFER_SIZE);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.getRetainedBytes());
+        assertSame(small, pool.lease(1));
+    }
+
+    @Test
+    public void trim_dropsAllRetained() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        ByteBuffer leased = pool.lease(1);
+        pool.release(pool.lease(10000));
+        pool.trim();
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.getLeasedBytes());
+        pool.release(leased);
+        assertEquals(ByteBufferPool.MIN_BUFFER_SIZE, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void release_null_isIgnored() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        pool.release(null);
+        assertEquals(0, pool.getLeasedBytes());
+    }
+}
@@ -0,0 +1,133 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class CodecSchedulerTest {
+    private static final String[] NO_CODECS = new String[0];
+    private static final String[] VIDEO_CODECS = {CodecScheduler.encoderKey("video/avc")};
+    private static final String[] AUDIO_CODECS = {CodecScheduler.encoderKey("audio/mp4a-latm")};
+
+    // dispatched jobs, run only when the test says so.
+    private final List<Runnable> mDispatched = new ArrayList<>();
+    private final List<String> mStarted = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mDispatched.add(command);
+        }
+    };
+    private CodecScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new CodecScheduler(mExecutor, 1);
+    }
+
+    @Test
+    public void submit_ordersByPriorityDeadlineCostThenSequence() throws Exception {
+        // occupies the only slot, so the others queue up.
+        submit("running", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        submit("low", NO_CODECS, 0, 1000, 1);
+        submit("costly", NO_CODECS, 5, 2000, 500);
+        submit("cheap", NO_CODECS, 5, 2000, 100);
+        submit("cheap second", NO_CODECS, 5, 2000, 100);
+        submit("early deadline", NO_CODECS, 5, 1000, 900);
+        submit("high", NO_CODECS, 10, Long.MAX_VALUE, Long.MAX_VALUE);
+        runAll();
+        assertEquals(Arrays.asList("running", "high", "early deadline", "cheap", "cheap second", "costly", "low"),
+                mStarted);
+    }
+
+    @Test
+    public void submit_unknownCost_afterKnownCosts() throws Exception {
+        submit("running", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        submit("unknown", NO_CODECS, 5, Long.MAX_VALUE, Long.MAX_VALUE);
+        submit("long clip", NO_CODECS, 5, Long.MAX_VALUE, 3600000L * 1920 * 1080);
+        runAll();
+        assertEquals(Arrays.asList("running", "long clip", "unknown"), mStarted);
+    }
+
+    @Test
+    public void setPriority_reordersPendingJob() throws Exception {
+        submit("running", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        submit("first", NO_CODECS, 5, Long.MAX_VALUE, 0);
+        CodecScheduler.Job second = submit("second", NO_CODECS, 5, Long.MAX_VALUE, 0);
+        mScheduler.setPriority(second, 10);
+        runAll();
+        assertEquals(Arrays.asList("running", "second", "first"), mStarted);
+    }
+
+    @Test
+    public void setPriority_dispatchedJob_noEffect() throws Exception {
+        CodecScheduler.Job running = submit("running", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        submit("pending", NO_CODECS, 5, Long.MAX_VALUE, 0);
+        mScheduler.setPriority(running, 10);
+        assertFalse(mScheduler.isPending(running));
+        assertEquals(1, mDispatched.size());
+        runAll();
+        assertEquals(Arrays.asList("running", "pending"), mStarted);
+    }
+
+    @Test
+    public void remove_pendingJob_neverRuns() throws Exception {
+        CodecScheduler.Job running = submit("running", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        CodecScheduler.Job removed = submit("removed", NO_CODECS, 10, Long.MAX_VALUE, 0);
+        submit("kept", NO_CODECS, 0, Long.MAX_VALUE, 0);
+        assertTrue(mScheduler.isPending(removed));
+        assertTrue(mScheduler.remove(removed));
+        assertFalse(mScheduler.isPending(removed));
+        // dispatched already.
+        assertFalse(mScheduler.remove(running));
+        runAll();
+        assertEquals(Arrays.asList("running", "kept"), mStarted);
+    }
+
+    @Test
+    public void submit_codecsInUse_othersOvertake() throws Exception {
+        mScheduler = new CodecScheduler(mExecutor, 4);
+        int capacity = mScheduler.getCapacity(VIDEO_CODECS[0]);
+        for (int i = 0; i < capacity; i++) {
+            submit("video " + i, VIDEO_CODECS, 10, Long.MAX_VALUE, 0);
+        }
+        submit("waiting video", VIDEO_CODECS, 10, Long.MAX_VALUE, 0);
+        submit("audio", AUDIO_CODECS, 0, Long.MAX_VALUE, 0);
+        assertEquals(capacity + 1, mDispatched.size());
+        assertEquals(capacity, mScheduler.getInstancesInUse(VIDEO_CODECS[0]));
+        // the first video job finishing frees an instance for the waiting one.
+        runNext();
+        assertEquals(capacity + 1, mDispatched.size());
+        assertEquals(capacity, mScheduler.getInstancesInUse(VIDEO_CODECS[0]));
+        runAll();
+        assertEquals(0, mScheduler.getInstancesInUse(VIDEO_CODECS[0]));
+        assertEquals(0, mScheduler.getInstancesInUse(AUDIO_CODECS[0]));
+        assertEquals("waiting video", mStarted.get(mStarted.size() - 1));
+    }
+
+    private CodecScheduler.Job submit(final String name, String[] codecKeys, int priority, long deadlineMs, long cost) {
+        return mScheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                mStarted.add(name);
+            }
+        }, codecKeys, priority, deadlineMs, cost);
+    }
+
+    // Runs the oldest dispatched job, which dispatches the next pending ones when it finishes.
+    private void runNext() {
+        mDispatched.remove(0).run();
+    }
+
+    private void runAll() {
+        while (!mDispatched.isEmpty()) {
+            runNext();
+        }
+    }
+}
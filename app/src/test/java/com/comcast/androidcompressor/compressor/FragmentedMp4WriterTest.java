@@ -0,0 +1,238 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80, (byte) 0xBF};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    @Test
+    public void start_writesInitSegment() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(listener);
+        writer.addAvcTrack(320, 240, SPS, PPS, false);
+        writer.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        writer.start();
+
+        assertEquals(Arrays.asList("ftyp", "moov"), Mp4Boxes.types(listener.mInitSegment));
+        assertEquals(Arrays.asList("mvhd", "trak", "trak", "mvex"),
+                Mp4Boxes.types(Mp4Boxes.payload(Mp4Boxes.find(listener.mInitSegment, "moov"))));
+        List<ByteBuffer> trexes = Mp4Boxes.findAll(listener.mInitSegment, "moov/mvex/trex");
+        assertEquals(2, trexes.size());
+        assertEquals(1, trexes.get(0).getInt(12));
+        assertEquals(2, trexes.get(1).getInt(12));
+        // samples are only in fragments.
+        for (ByteBuffer stsz : Mp4Boxes.findAll(listener.mInitSegment, "moov/trak/mdia/minf/stbl/stsz")) {
+            assertEquals(0, stsz.getInt(16));
+        }
+    }
+
+    @Test
+    public void writeSampleData_cutsFragmentsAtVideoSyncSamples() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(listener);
+        int video = writer.addAvcTrack(320, 240, SPS, PPS, false);
+        int audio = writer.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        writer.start();
+        // 3 s of 30 fps video with a sync sample every second, interleaved with audio.
+        long audioTimeUs = 0;
+        int audioFrame = 0;
+        for (int i = 0; i < 90; i++) {
+            long videoTimeUs = i * 1000000L / 30;
+            writer.writeSampleData(video, createAvccSample(i, 100), videoTimeUs, i % 30 == 0);
+            while (audioTimeUs <= videoTimeUs) {
+                writer.writeSampleData(audio, createSample(audioFrame, 50), audioTimeUs, false);
+                audioFrame++;
+                audioTimeUs = audioFrame * 1024L * 1000000 / SAMPLE_RATE;
+            }
+        }
+        writer.stop();
+
+        assertTrue(listener.mFinished);
+        assertEquals(3, listener.mFragments.size());
+        int videoSampleCount = 0;
+        int audioSampleCount = 0;
+        for (int f = 0; f < listener.mFragments.size(); f++) {
+            ByteBuffer fragment = listener.mFragments.get(f);
+            assertEquals(f + 1, (int) listener.mSequenceNumbers.get(f));
+            assertEquals(f * 1000000L, (long) listener.mStartTimesUs.get(f));
+            assertEquals(1000000L, (long) listener.mDurationsUs.get(f));
+            assertEquals(Arrays.asList("moof", "mdat"), Mp4Boxes.types(fragment));
+            assertEquals(f + 1, Mp4Boxes.find(fragment, "moof/mfhd").getInt(12));
+
+            List<ByteBuffer> trafs = Mp4Boxes.findAll(fragment, "moof/traf");
+            assertEquals(2, trafs.size());
+            int[] videoFlags = getSampleFlags(trafs.get(0));
+            assertEquals(30, videoFlags.length);
+            assertEquals(SAMPLE_FLAGS_SYNC, videoFlags[0]);
+            for (int i = 1; i < videoFlags.length; i++) {
+                assertEquals(SAMPLE_FLAGS_NON_SYNC, videoFlags[i]);
+            }
+            int[] audioFlags = getSampleFlags(trafs.get(1));
+            // not flagged by the encoder, but still sync samples.
+            for (int flags : audioFlags) {
+                assertEquals(SAMPLE_FLAGS_SYNC, flags);
+            }
+            assertSamplesInMdat(fragment, trafs.get(0), 100, 4, videoSampleCount);
+            assertSamplesInMdat(fragment, trafs.get(1), 50, 0, audioSampleCount);
+            videoSampleCount += videoFlags.length;
+            audioSampleCount += audioFlags.length;
+        }
+        assertEquals(90, videoSampleCount);
+        assertEquals(audioFrame, audioSampleCount);
+    }
+
+    @Test
+    public void writeSampleData_audioOnly_cutsFragmentsByDuration() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(listener);
+        int audio = writer.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        writer.start();
+        // 5 s of audio.
+        int frameCount = 5 * SAMPLE_RATE / 1024;
+        for (int i = 0; i < frameCount; i++) {
+            writer.writeSampleData(audio, createSample(i, 50), i * 1024L * 1000000 / SAMPLE_RATE, false);
+        }
+        writer.stop();
+
+        assertEquals(3, listener.mFragments.size());
+        int sampleCount = 0;
+        long endTimeUs = 0;
+        for (int f = 0; f < listener.mFragments.size(); f++) {
+            ByteBuffer fragment = listener.mFragments.get(f);
+            assertEquals(endTimeUs, (long) listener.mStartTimesUs.get(f));
+            long durationUs = listener.mDurationsUs.get(f);
+            if (f < listener.mFragments.size() - 1) {
+                // full fragments are cut at the first frame reaching the duration.
+                assertTrue("duration " + durationUs, durationUs >= FragmentedMp4Writer.AUDIO_ONLY_FRAGMENT_DURATION_US
+                        && durationUs < FragmentedMp4Writer.AUDIO_ONLY_FRAGMENT_DURATION_US + 1024L * 1000000 / SAMPLE_RATE);
+            }
+            endTimeUs += durationUs;
+            ByteBuffer traf = Mp4Boxes.find(fragment, "moof/traf");
+            assertEquals(Mp4Track.toTicks(listener.mStartTimesUs.get(f), SAMPLE_RATE), getBaseDecodeTicks(traf), 1);
+            assertSamplesInMdat(fragment, traf, 50, 0, sampleCount);
+            sampleCount += getSampleFlags(traf).length;
+        }
+        assertEquals(frameCount, sampleCount);
+    }
+
+    @Test
+    public void writeSampleData_replacesStartCodes() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(listener);
+        int video = writer.addAvcTrack(320, 240, SPS, PPS, true);
+        writer.start();
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x06, 3});
+        writer.writeSampleData(video, sample, 0, true);
+        writer.stop();
+
+        ByteBuffer mdat = Mp4Boxes.payload(Mp4Boxes.find(listener.mFragments.get(0), "mdat"));
+        byte[] expected = {0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x06, 3};
+        byte[] actual = new byte[mdat.remaining()];
+        mdat.get(actual);
+        assertArrayEquals(expected, actual);
+        assertEquals(expected.length, getSampleSizes(Mp4Boxes.find(listener.mFragments.get(0), "moof/traf"))[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void writeSampleData_beforeStart_throws() throws Exception {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new RecordingListener());
+        int audio = writer.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        writer.writeSampleData(audio, createSample(0, 50), 0, true);
+    }
+
+    // Checks that the data offset of a track fragment points to its samples, numbered from firstSample; the
+    // number is in the byte at indexOffset of each sample.
+    private static void assertSamplesInMdat(ByteBuffer fragment, ByteBuffer traf, int sampleSize, int indexOffset,
+                                            int firstSample) {
+        int offset = Mp4Boxes.find(Mp4Boxes.payload(traf), "trun").getInt(16);
+        int[] sizes = getSampleSizes(traf);
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(sampleSize, sizes[i]);
+            assertEquals((byte) (firstSample + i), fragment.get(offset + indexOffset));
+            offset += sizes[i];
+        }
+    }
+
+    private static int[] getSampleFlags(ByteBuffer traf) {
+        return getTrunColumn(traf, 2);
+    }
+
+    private static int[] getSampleSizes(ByteBuffer traf) {
+        return getTrunColumn(traf, 1);
+    }
+
+    // trun entries hold duration, size, flags and composition offset.
+    private static int[] getTrunColumn(ByteBuffer traf, int column) {
+        ByteBuffer trun = Mp4Boxes.find(Mp4Boxes.payload(traf), "trun");
+        int[] values = new int[trun.getInt(12)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = trun.getInt(20 + i * 16 + column * 4);
+        }
+        return values;
+    }
+
+    private static long getBaseDecodeTicks(ByteBuffer traf) {
+        return Mp4Boxes.find(Mp4Boxes.payload(traf), "tfdt").getLong(12);
+    }
+
+    private static ByteBuffer createAvccSample(int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.putInt(size - 4).put((byte) index);
+        sample.clear();
+        return sample;
+    }
+
+    private static ByteBuffer createSample(int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.put(0, (byte) index);
+        return sample;
+    }
+
+    private static class RecordingListener implements FragmentedMp4Writer.FragmentListener {
+        private ByteBuffer mInitSegment;
+        private final List<ByteBuffer> mFragments = new ArrayList<>();
+        private final List<Integer> mSequenceNumbers = new ArrayList<>();
+        private final List<Long> mStartTimesUs = new ArrayList<>();
+        private final List<Long> mDurationsUs = new ArrayList<>();
+        private boolean mFinished;
+
+        @Override
+        public void onInitSegment(ByteBuffer initSegment) throws IOException {
+            mInitSegment = copy(initSegment);
+        }
+
+        @Override
+        public void onFragment(ByteBuffer fragment, int sequenceNumber, long startTimeUs, long durationUs) throws IOException {
+            mFragments.add(copy(fragment));
+            mSequenceNumbers.add(sequenceNumber);
+            mStartTimesUs.add(startTimeUs);
+            mDurationsUs.add(durationUs);
+        }
+
+        @Override
+        public void onFinished() throws IOException {
+            mFinished = true;
+        }
+
+        // the writer reuses its buffer.
+        private static ByteBuffer copy(ByteBuffer buffer) {
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer.duplicate());
+            copy.flip();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameRateDecimatorTest {
+    private static final long MICROSECS_PER_SEC = 1000000;
+
+    @Test
+    public void isNeeded_onlyAboveTargetFrameRate() throws Exception {
+        assertTrue(FrameRateDecimator.isNeeded(60, 30));
+        assertFalse(FrameRateDecimator.isNeeded(30, 30));
+        assertFalse(FrameRateDecimator.isNeeded(24, 30));
+        // unknown source frame rate.
+        assertFalse(FrameRateDecimator.isNeeded(0, 30));
+    }
+
+    @Test
+    public void shouldRender_equalRate_keepsEveryFrame() throws Exception {
+        assertEquals(300, countKept(createTimes(30, 300, 0, 0), 30));
+    }
+
+    @Test
+    public void shouldRender_equalRateWithJitter_keepsEveryFrame() throws Exception {
+        for (long jitterUs : new long[]{1500, 3000, 5000}) {
+            assertEquals("jitter " + jitterUs, 300, countKept(createTimes(30, 300, jitterUs, jitterUs), 30));
+        }
+    }
+
+    // Inputs below span 0 to 10 s, so the output has one frame per grid time 0 to 10 s: 301 frames.
+    @Test
+    public void shouldRender_halvesRate() throws Exception {
+        assertEquals(301, countKept(createTimes(60, 601, 0, 0), 30));
+    }
+
+    @Test
+    public void shouldRender_halvesRateWithJitter() throws Exception {
+        for (long jitterUs : new long[]{1500, 3000, 5000}) {
+            assertEquals("jitter " + jitterUs, 301, countKept(createTimes(60, 601, jitterUs, jitterUs), 30));
+        }
+    }
+
+    @Test
+    public void shouldRender_reducesHigherRates() throws Exception {
+        assertEquals(301, countKept(createTimes(120, 1201, 0, 0), 30));
+        assertEquals(301, countKept(createTimes(50, 501, 0, 0), 30));
+        // 59.94 fps, as rounded to milliseconds by the container; the last frame at 9.993 s is nearest to 10 s.
+        List<Long> timesUs = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            timesUs.add(i * 1001000L / 60 / 1000 * 1000);
+        }
+        assertEquals(301, countKept(timesUs, 30));
+    }
+
+    @Test
+    public void shouldRender_gap_leavesNoDebt() throws Exception {
+        FrameRateDecimator decimator = new FrameRateDecimator(30);
+        assertTrue(decimator.shouldRender(0));
+        assertFalse(decimator.shouldRender(8333));
+        // a second missing in the input, then frames continue at 120 fps.
+        assertTrue(decimator.shouldRender(1000000));
+        assertFalse(decimator.shouldRender(1008333));
+        assertTrue(decimator.shouldRender(1033333));
+        assertEquals(3, decimator.getKeptFrameCount());
+        assertEquals(2, decimator.getDroppedFrameCount());
+    }
+
+    @Test
+    public void mayRender_skippingDisposableFrames_keepsSameFrames() throws Exception {
+        for (int lag = 2; lag <= 5; lag++) {
+            List<Long> timesUs = createTimes(60, 600, 0, 0);
+            List<Long> expected = new ArrayList<>();
+            FrameRateDecimator reference = new FrameRateDecimator(30);
+            for (long timeUs : timesUs) {
+                if (reference.shouldRender(timeUs)) expected.add(timeUs);
+            }
+            assertEquals("lag " + lag, expected, decodeSkipping(timesUs, lag));
+        }
+    }
+
+    // Feeds frames of an I B B P structure in decode order, skipping B-frames mayRender rules out, and renders
+    // decoded frames in presentation order once the decoder holds more than lag frames.
+    private static List<Long> decodeSkipping(List<Long> timesUs, int lag) {
+        List<Long> decodeOrder = new ArrayList<>();
+        List<Boolean> disposable = new ArrayList<>();
+        for (int i = 0; i < timesUs.size(); i += 3) {
+            int reference = Math.min(i + 2, timesUs.size() - 1);
+            decodeOrder.add(timesUs.get(reference));
+            disposable.add(false);
+            for (int j = i; j < reference; j++) {
+                decodeOrder.add(timesUs.get(j));
+                disposable.add(j != 0);
+            }
+        }
+        FrameRateDecimator decimator = new FrameRateDecimator(30);
+        List<Long> decoded = new ArrayList<>();
+        List<Long> rendered = new ArrayList<>();
+        for (int i = 0; i < decodeOrder.size(); i++) {
+            long timeUs = decodeOrder.get(i);
+            if (!decimator.mayRender(timeUs) && disposable.get(i)) continue;
+            decoded.add(timeUs);
+            while (decoded.size() > lag) {
+                render(decimator, decoded, rendered);
+            }
+        }
+        while (!decoded.isEmpty()) {
+            render(decimator, decoded, rendered);
+        }
+        return rendered;
+    }
+
+    private static void render(FrameRateDecimator decimator, List<Long> decoded, List<Long> rendered) {
+        Long timeUs = Collections.min(decoded);
+        decoded.remove(timeUs);
+        if (decimator.shouldRender(timeUs)) rendered.add(timeUs);
+    }
+
+    private static int countKept(List<Long> timesUs, int frameRate) {
+        FrameRateDecimator decimator = new FrameRateDecimator(frameRate);
+        for (long timeUs : timesUs) {
+            decimator.shouldRender(timeUs);
+        }
+        assertEquals(timesUs.size(), decimator.getKeptFrameCount() + decimator.getDroppedFrameCount());
+        return decimator.getKeptFrameCount();
+    }
+
+    // Times of a constant frame rate with uniform jitter of up to jitterUs either way, seeded to be repeatable.
+    private static List<Long> createTimes(int frameRate, int count, long jitterUs, long seed) {
+        Random random = new Random(seed);
+        List<Long> timesUs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long jitter = jitterUs == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterUs);
+            timesUs.add(Math.max(0, i * MICROSECS_PER_SEC / frameRate + jitter));
+        }
+        return timesUs;
+    }
+}
@@ -0,0 +1,110 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class HlsPlaylistWriterTest {
+    private static final String HEADER = "#EXTM3U\n"
+            + "#EXT-X-VERSION:7\n"
+            + "#EXT-X-TARGETDURATION:2\n"
+            + "#EXT-X-MEDIA-SEQUENCE:1\n"
+            + "#EXT-X-PLAYLIST-TYPE:EVENT\n"
+            + "#EXT-X-INDEPENDENT-SEGMENTS\n"
+            + "#EXT-X-MAP:URI=\"clip_init.mp4\"\n";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void onFragment_writesEventPlaylist() throws Exception {
+        HlsPlaylistWriter writer = new HlsPlaylistWriter(mFolder.getRoot(), "clip", 2, null);
+        writer.onInitSegment(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        writer.onFragment(ByteBuffer.wrap(new byte[]{4, 5}), 1, 0, 2000000);
+        assertEquals(HEADER
+                + "#EXTINF:2.000,\nclip_1.m4s\n", read(writer.getPlaylistFile()));
+
+        // a shorter fragment leaves the target duration as it is.
+        writer.onFragment(ByteBuffer.wrap(new byte[]{6}), 2, 2000000, 1500000);
+        assertEquals(HEADER
+                + "#EXTINF:2.000,\nclip_1.m4s\n"
+                + "#EXTINF:1.500,\nclip_2.m4s\n", read(writer.getPlaylistFile()));
+        assertArrayEquals(new byte[]{1, 2, 3}, readBytes(new File(mFolder.getRoot(), "clip_init.mp4")));
+        assertArrayEquals(new byte[]{4, 5}, readBytes(new File(mFolder.getRoot(), "clip_1.m4s")));
+        assertArrayEquals(new byte[]{6}, readBytes(new File(mFolder.getRoot(), "clip_2.m4s")));
+        assertFalse(new File(mFolder.getRoot(), "clip.m3u8.tmp").exists());
+    }
+
+    @Test
+    public void onFinished_appendsEndList() throws Exception {
+        HlsPlaylistWriter writer = new HlsPlaylistWriter(mFolder.getRoot(), "clip", 2, null);
+        writer.onInitSegment(ByteBuffer.wrap(new byte[]{1}));
+        writer.onFragment(ByteBuffer.wrap(new byte[]{2}), 1, 0, 2000000);
+        writer.onFragment(ByteBuffer.wrap(new byte[]{3}), 2, 2000000, 733333);
+        writer.onFinished();
+        assertEquals(HEADER
+                + "#EXTINF:2.000,\nclip_1.m4s\n"
+                + "#EXTINF:0.733,\nclip_2.m4s\n"
+                + "#EXT-X-ENDLIST\n", read(writer.getPlaylistFile()));
+    }
+
+    @Test
+    public void onFragment_roundedToTargetDuration_accepted() throws Exception {
+        HlsPlaylistWriter writer = new HlsPlaylistWriter(mFolder.getRoot(), "clip", 2, null);
+        writer.onFragment(ByteBuffer.wrap(new byte[]{1}), 1, 0, 2499999);
+        assertTrue(read(writer.getPlaylistFile()).contains("#EXT-X-TARGETDURATION:2\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void onFragment_longerThanTargetDuration_throws() throws Exception {
+        HlsPlaylistWriter writer = new HlsPlaylistWriter(mFolder.getRoot(), "clip", 2, null);
+        writer.onFragment(ByteBuffer.wrap(new byte[]{1}), 1, 0, 2500000);
+    }
+
+    @Test
+    public void forwardListener_receivesEveryCall() throws Exception {
+        final StringBuilder calls = new StringBuilder();
+        HlsPlaylistWriter writer = new HlsPlaylistWriter(mFolder.getRoot(), "clip", 2, new FragmentedMp4Writer.FragmentListener() {
+            @Override
+            public void onInitSegment(ByteBuffer initSegment) {
+                calls.append("init ").append(initSegment.remaining()).append(';');
+            }
+
+            @Override
+            public void onFragment(ByteBuffer fragment, int sequenceNumber, long startTimeUs, long durationUs) {
+                calls.append("fragment ").append(sequenceNumber).append(' ').append(fragment.remaining()).append(';');
+            }
+
+            @Override
+            public void onFinished() {
+                calls.append("finished;");
+            }
+        });
+        writer.onInitSegment(ByteBuffer.wrap(new byte[3]));
+        writer.onFragment(ByteBuffer.wrap(new byte[5]), 1, 0, 1000000);
+        writer.onFinished();
+        assertEquals("init 3;fragment 1 5;finished;", calls.toString());
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
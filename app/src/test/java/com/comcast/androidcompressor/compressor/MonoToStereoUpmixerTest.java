@@ -0,0 +1,52 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MonoToStereoUpmixerTest {
+
+    @Test
+    public void remix_copiesSampleToBothChannels() throws Exception {
+        ShortBuffer out = ShortBuffer.allocate(6);
+        new MonoToStereoUpmixer().remix(ShortBuffer.wrap(new short[]{1, Short.MIN_VALUE, Short.MAX_VALUE}), out);
+        assertArrayEquals(new short[]{1, 1, Short.MIN_VALUE, Short.MIN_VALUE, Short.MAX_VALUE, Short.MAX_VALUE},
+                out.array());
+    }
+
+    @Test
+    public void remix_matchesDeprecatedUpmix() throws Exception {
+        // more than one block, and not a multiple of it.
+        short[] input = createRandomSamples(5000, 1);
+        ShortBuffer expected = ShortBuffer.allocate(input.length * 2);
+        @SuppressWarnings("deprecation")
+        AudioRemixer reference = AudioRemixer.UPMIX;
+        reference.remix(ShortBuffer.wrap(input), expected);
+        ShortBuffer actual = ShortBuffer.allocate(input.length * 2);
+        new MonoToStereoUpmixer().remix(ShortBuffer.wrap(input), actual);
+        assertArrayEquals(expected.array(), actual.array());
+    }
+
+    @Test
+    public void remix_stopsWhenOutputIsFull() throws Exception {
+        ShortBuffer in = ShortBuffer.wrap(createRandomSamples(3000, 2));
+        // room for 1100 frames and half of one.
+        ShortBuffer out = ShortBuffer.allocate(2201);
+        new MonoToStereoUpmixer().remix(in, out);
+        assertEquals(1100, in.position());
+        assertEquals(2200, out.position());
+        assertEquals(in.get(1099), out.get(2199));
+    }
+
+    static short[] createRandomSamples(int count, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        return samples;
+    }
+}
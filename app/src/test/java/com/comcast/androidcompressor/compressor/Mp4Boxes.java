@@ -0,0 +1,110 @@
+package com.comcast.androidcompressor.compressor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads boxes of written MP4 data in tests. Buffers returned hold a whole box, header included, at position 0.
+ */
+class Mp4Boxes {
+    private static final int HEADER_SIZE = 8;
+    // boxes the writers nest others in, right after the header.
+    private static final String[] CONTAINERS = {"moov", "trak", "mdia", "minf", "stbl", "mvex", "moof", "traf", "dinf"};
+
+    private Mp4Boxes() {
+    }
+
+    /**
+     * @return Boxes following each other in data, from its position to its limit.
+     */
+    static List<ByteBuffer> list(ByteBuffer data) {
+        List<ByteBuffer> boxes = new ArrayList<>();
+        ByteBuffer buffer = data.slice();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int size = buffer.getInt(buffer.position());
+            if (size < HEADER_SIZE || size > buffer.remaining()) {
+                throw new IllegalStateException("Invalid box size: " + size);
+            }
+            ByteBuffer box = buffer.slice();
+            box.limit(size);
+            boxes.add(box);
+            buffer.position(buffer.position() + size);
+        }
+        if (buffer.hasRemaining()) throw new IllegalStateException(buffer.remaining() + " bytes after last box");
+        return boxes;
+    }
+
+    /**
+     * @return Types of the boxes following each other in data.
+     */
+    static List<String> types(ByteBuffer data) {
+        List<String> types = new ArrayList<>();
+        for (ByteBuffer box : list(data)) {
+            types.add(type(box));
+        }
+        return types;
+    }
+
+    static String type(ByteBuffer box) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (box.get(4 + i) & 0xFF);
+        }
+        return new String(type);
+    }
+
+    /**
+     * @return Children of a container box.
+     */
+    static List<ByteBuffer> children(ByteBuffer box) {
+        String type = type(box);
+        for (String container : CONTAINERS) {
+            if (container.equals(type)) {
+                ByteBuffer content = box.duplicate();
+                content.position(HEADER_SIZE);
+                return list(content);
+            }
+        }
+        throw new IllegalArgumentException("Not a container: " + type);
+    }
+
+    /**
+     * @param path Box types separated by '/', e.g. "moov/trak/mdia".
+     * @return All boxes at the end of the path, in order.
+     */
+    static List<ByteBuffer> findAll(ByteBuffer data, String path) {
+        List<ByteBuffer> boxes = list(data);
+        String[] types = path.split("/");
+        for (int i = 0; i < types.length; i++) {
+            List<ByteBuffer> matches = new ArrayList<>();
+            for (ByteBuffer box : boxes) {
+                if (types[i].equals(type(box))) matches.add(box);
+            }
+            if (i == types.length - 1) return matches;
+            boxes = new ArrayList<>();
+            for (ByteBuffer match : matches) {
+                boxes.addAll(children(match));
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * @return The only box at the end of the path.
+     */
+    static ByteBuffer find(ByteBuffer data, String path) {
+        List<ByteBuffer> boxes = findAll(data, path);
+        if (boxes.size() != 1) throw new IllegalStateException(boxes.size() + " boxes at " + path);
+        return boxes.get(0);
+    }
+
+    /**
+     * @return Content of a box, after the header, at position 0.
+     */
+    static ByteBuffer payload(ByteBuffer box) {
+        ByteBuffer content = box.duplicate();
+        content.position(HEADER_SIZE);
+        return content.slice();
+    }
+}
@@ -0,0 +1,184 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Mp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80, (byte) 0xBF};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    private static final int SAMPLE_RATE = 44100;
+
+    private File mMediaDataFile;
+    private ByteArrayOutputStream mOutput;
+    private Mp4Writer mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        mMediaDataFile = File.createTempFile("mdat", ".tmp");
+        mOutput = new ByteArrayOutputStream();
+        mWriter = new Mp4Writer(Channels.newChannel(mOutput), mMediaDataFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.release();
+        assertFalse(mMediaDataFile.exists());
+    }
+
+    @Test
+    public void stop_writesMoovBeforeMdat() throws Exception {
+        int video = mWriter.addAvcTrack(320, 240, SPS, PPS, false);
+        int audio = mWriter.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        mWriter.start();
+        for (int i = 0; i < 60; i++) {
+            mWriter.writeSampleData(video, createAvccSample(i, 100), i * 1000000L / 30, i % 30 == 0);
+            mWriter.writeSampleData(audio, createSample(i, 50), i * 1024L * 1000000 / SAMPLE_RATE, false);
+        }
+        mWriter.stop();
+
+        ByteBuffer file = getOutput();
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), Mp4Boxes.types(file));
+        List<ByteBuffer> traks = Mp4Boxes.findAll(file, "moov/trak");
+        assertEquals(2, traks.size());
+        ByteBuffer videoTable = Mp4Boxes.find(Mp4Boxes.payload(traks.get(0)), "mdia/minf/stbl");
+        ByteBuffer audioTable = Mp4Boxes.find(Mp4Boxes.payload(traks.get(1)), "mdia/minf/stbl");
+        // sync samples 1 and 31; audio has no stss, every sample is sync.
+        ByteBuffer stss = Mp4Boxes.find(Mp4Boxes.payload(videoTable), "stss");
+        assertEquals(2, stss.getInt(12));
+        assertEquals(1, stss.getInt(16));
+        assertEquals(31, stss.getInt(20));
+        assertTrue(Mp4Boxes.findAll(Mp4Boxes.payload(audioTable), "stss").isEmpty());
+        assertSamplesInFile(file, videoTable, 100, 4);
+        assertSamplesInFile(file, audioTable, 50, 0);
+        // about two seconds long, in the movie time scale of milliseconds.
+        ByteBuffer mvhd = Mp4Boxes.find(file, "moov/mvhd");
+        assertEquals(2000, mvhd.getInt(24), 40);
+    }
+
+    @Test
+    public void writeSampleData_avccSampleLikeStartCode_writtenAsIs() throws Exception {
+        int video = mWriter.addAvcTrack(320, 240, SPS, PPS, false);
+        mWriter.start();
+        // a first NAL unit of 256 to 511 bytes has a length starting with 00 00 01.
+        ByteBuffer sample = ByteBuffer.allocate(4 + 300);
+        sample.putInt(300).put((byte) 0x65);
+        sample.clear();
+        mWriter.writeSampleData(video, sample, 0, true);
+        mWriter.stop();
+
+        ByteBuffer file = getOutput();
+        ByteBuffer stsz = Mp4Boxes.find(file, "moov/trak/mdia/minf/stbl/stsz");
+        assertEquals(304, stsz.getInt(20));
+        ByteBuffer mdat = Mp4Boxes.payload(Mp4Boxes.find(file, "mdat"));
+        assertEquals(304, mdat.remaining());
+        assertEquals(300, mdat.getInt(0));
+        assertEquals(0x65, mdat.get(4));
+    }
+
+    @Test
+    public void writeSampleData_annexBSample_replacesStartCodes() throws Exception {
+        int video = mWriter.addAvcTrack(320, 240, SPS, PPS, true);
+        mWriter.start();
+        mWriter.writeSampleData(video, ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x06, 3}), 0, true);
+        mWriter.stop();
+
+        ByteBuffer file = getOutput();
+        ByteBuffer mdat = Mp4Boxes.payload(Mp4Boxes.find(file, "mdat"));
+        byte[] actual = new byte[mdat.remaining()];
+        mdat.get(actual);
+        assertArrayEquals(new byte[]{0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x06, 3}, actual);
+        assertEquals(13, Mp4Boxes.find(file, "moov/trak/mdia/minf/stbl/stsz").getInt(20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writeSampleData_annexBTrackWithoutStartCode_throws() throws Exception {
+        int video = mWriter.addAvcTrack(320, 240, SPS, PPS, true);
+        mWriter.start();
+        mWriter.writeSampleData(video, createAvccSample(0, 100), 0, true);
+    }
+
+    @Test
+    public void writeSampleData_interleavedTracks_startChunks() throws Exception {
+        int video = mWriter.addAvcTrack(320, 240, SPS, PPS, false);
+        int audio = mWriter.addAacTrack(SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG, 128000);
+        mWriter.start();
+        // two video samples, then three audio samples, twice.
+        for (int run = 0; run < 2; run++) {
+            for (int i = 0; i < 2; i++) {
+                mWriter.writeSampleData(video, createAvccSample(run * 2 + i, 100), (run * 2 + i) * 33333L, i == 0);
+            }
+            for (int i = 0; i < 3; i++) {
+                mWriter.writeSampleData(audio, createSample(run * 3 + i, 50), (run * 3 + i) * 23219L, false);
+            }
+        }
+        mWriter.stop();
+
+        ByteBuffer file = getOutput();
+        for (ByteBuffer stco : Mp4Boxes.findAll(file, "moov/trak/mdia/minf/stbl/stco")) {
+            assertEquals(2, stco.getInt(12));
+        }
+        List<ByteBuffer> tables = Mp4Boxes.findAll(file, "moov/trak/mdia/minf/stbl");
+        assertSamplesInFile(file, tables.get(0), 100, 4);
+        assertSamplesInFile(file, tables.get(1), 50, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void start_withoutTrack_throws() throws Exception {
+        mWriter.start();
+    }
+
+    // Checks that chunk offsets and sample counts locate the samples, numbered by the byte at indexOffset.
+    private static void assertSamplesInFile(ByteBuffer file, ByteBuffer sampleTable, int sampleSize, int indexOffset) {
+        ByteBuffer tables = Mp4Boxes.payload(sampleTable);
+        ByteBuffer stsc = Mp4Boxes.find(tables, "stsc");
+        ByteBuffer stco = Mp4Boxes.find(tables, "stco");
+        ByteBuffer stsz = Mp4Boxes.find(tables, "stsz");
+        int chunkCount = stco.getInt(12);
+        int entryCount = stsc.getInt(12);
+        int sample = 0;
+        for (int chunk = 1; chunk <= chunkCount; chunk++) {
+            // entries hold first chunk, samples per chunk and sample description index.
+            int samplesPerChunk = 0;
+            for (int e = 0; e < entryCount && stsc.getInt(16 + e * 12) <= chunk; e++) {
+                samplesPerChunk = stsc.getInt(16 + e * 12 + 4);
+            }
+            int offset = stco.getInt(16 + (chunk - 1) * 4);
+            for (int i = 0; i < samplesPerChunk; i++) {
+                int size = stsz.getInt(20 + sample * 4);
+                assertEquals(sampleSize, size);
+                assertEquals((byte) sample, file.get(offset + indexOffset));
+                offset += size;
+                sample++;
+            }
+        }
+        assertEquals(stsz.getInt(16), sample);
+    }
+
+    private ByteBuffer getOutput() {
+        return ByteBuffer.wrap(mOutput.toByteArray());
+    }
+
+    private static ByteBuffer createAvccSample(int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.putInt(size - 4).put((byte) index);
+        sample.clear();
+        return sample;
+    }
+
+    private static ByteBuffer createSample(int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        sample.put(0, (byte) index);
+        return sample;
+    }
+}
@@ -0,0 +1,115 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MultichannelDownmixerTest {
+    // 5.1 in default order: FL, FR, FC, LFE, BL, BR.
+    private static final int FL = 0;
+    private static final int FR = 1;
+    private static final int FC = 2;
+    private static final int LFE = 3;
+    private static final int BL = 4;
+    private static final int BR = 5;
+
+    @Test
+    public void remix_5point1ToStereo_placesChannels() throws Exception {
+        MultichannelDownmixer downmixer = new MultichannelDownmixer(6, MultichannelDownmixer.CHANNEL_MASK_5POINT1, 2);
+        // left gets FL + 0.707 FC + 0.707 BL, normalized by their sum.
+        double scale = 1 / (1 + 0.7071 + 0.7071);
+        short[] left = remix(downmixer, frame(6, FL, 10000));
+        assertEquals(10000 * scale, left[0], 2);
+        assertEquals(0, left[1]);
+        short[] back = remix(downmixer, frame(6, BR, 10000));
+        assertEquals(0, back[0]);
+        assertEquals(7071 * scale, back[1], 2);
+        short[] centre = remix(downmixer, frame(6, FC, 10000));
+        assertEquals(centre[0], centre[1]);
+        assertEquals(7071 * scale, centre[0], 2);
+    }
+
+    @Test
+    public void remix_dropsLowFrequency() throws Exception {
+        MultichannelDownmixer downmixer = new MultichannelDownmixer(6, MultichannelDownmixer.CHANNEL_MASK_5POINT1, 2);
+        assertArrayEquals(new short[]{0, 0}, remix(downmixer, frame(6, LFE, Short.MAX_VALUE)));
+    }
+
+    @Test
+    public void remix_toMono_averagesLeftAndRight() throws Exception {
+        MultichannelDownmixer stereo = new MultichannelDownmixer(6, MultichannelDownmixer.CHANNEL_MASK_5POINT1, 2);
+        MultichannelDownmixer mono = new MultichannelDownmixer(6, MultichannelDownmixer.CHANNEL_MASK_5POINT1, 1);
+        short[] input = {1000, -2000, 3000, 4000, -5000, 6000};
+        short[] leftRight = remix(stereo, input);
+        assertEquals((leftRight[0] + leftRight[1]) / 2.0, remix(mono, input)[0], 2);
+    }
+
+    @Test
+    public void remix_fullScaleDoesNotClip() throws Exception {
+        for (int channelCount = 3; channelCount <= MultichannelDownmixer.MAX_INPUT_CHANNEL_COUNT; channelCount++) {
+            for (short level : new short[]{Short.MAX_VALUE, Short.MIN_VALUE}) {
+                short[] input = new short[channelCount];
+                Arrays.fill(input, level);
+                for (int outputChannelCount = 1; outputChannelCount <= 2; outputChannelCount++) {
+                    MultichannelDownmixer downmixer = new MultichannelDownmixer(channelCount, 0, outputChannelCount);
+                    for (short sample : remix(downmixer, input)) {
+                        // same sign and close to full scale, not wrapped around.
+                        assertEquals(channelCount + " channels", Math.signum(level), Math.signum(sample), 0);
+                        assertTrue(channelCount + " channels: " + sample, Math.abs(sample) > 30000);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void remix_missingOrMismatchedMask_usesDefaultLayout() throws Exception {
+        short[] input = {1000, -2000, 3000, 4000, -5000, 6000, 7000, -8000};
+        short[] expected = remix(new MultichannelDownmixer(8, MultichannelDownmixer.CHANNEL_MASK_7POINT1, 2), input);
+        assertArrayEquals(expected, remix(new MultichannelDownmixer(8, 0, 2), input));
+        // a mask for another channel count is ignored.
+        assertArrayEquals(expected,
+                remix(new MultichannelDownmixer(8, MultichannelDownmixer.CHANNEL_MASK_5POINT1, 2), input));
+        assertEquals(8, Integer.bitCount(MultichannelDownmixer.getDefaultChannelMask(8)));
+    }
+
+    @Test
+    public void remix_stopsWhenOutputIsFull() throws Exception {
+        MultichannelDownmixer downmixer = new MultichannelDownmixer(6, 0, 2);
+        // more than one block of input.
+        ShortBuffer in = ShortBuffer.wrap(MonoToStereoUpmixerTest.createRandomSamples(600 * 6, 1));
+        ShortBuffer out = ShortBuffer.allocate(501 * 2 + 1);
+        downmixer.remix(in, out);
+        assertEquals(501 * 6, in.position());
+        assertEquals(501 * 2, out.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_stereoInput_throws() throws Exception {
+        new MultichannelDownmixer(2, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_multichannelOutput_throws() throws Exception {
+        new MultichannelDownmixer(6, 0, 6);
+    }
+
+    private static short[] frame(int channelCount, int channel, int level) {
+        short[] frame = new short[channelCount];
+        frame[channel] = (short) level;
+        return frame;
+    }
+
+    private static short[] remix(MultichannelDownmixer downmixer, short[] input) {
+        // fewer channels out than in.
+        ShortBuffer out = ShortBuffer.allocate(input.length);
+        downmixer.remix(ShortBuffer.wrap(input), out);
+        out.flip();
+        short[] output = new short[out.remaining()];
+        out.get(output);
+        return output;
+    }
+}
@@ -0,0 +1,87 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PendingSampleQueueTest {
+
+    @Test
+    public void drainTo_writesSamplesInOrderWithMappedTracks() throws Exception {
+        PendingSampleQueue queue = new PendingSampleQueue(1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            queue.add(i % 2, RecordingMuxer.createSample(i, 100 + i), RecordingMuxer.createBufferInfo(100 + i, i * 1000L, i));
+        }
+        assertEquals(10, queue.getSampleCount());
+        assertFalse(queue.isSpilled());
+        RecordingMuxer muxer = new RecordingMuxer();
+        queue.drainTo(muxer, new int[]{5, 7});
+
+        assertSamples(muxer, 10, 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2 == 0 ? 5 : 7, (int) muxer.mTrackIndices.get(i));
+        }
+        assertEquals(0, queue.getSampleCount());
+        assertEquals(0, queue.getMemoryBytes());
+    }
+
+    @Test
+    public void add_largeSample_spansChunks() throws Exception {
+        PendingSampleQueue queue = new PendingSampleQueue(1024 * 1024);
+        int size = PendingSampleQueue.CHUNK_SIZE * 2 + 1000;
+        queue.add(0, RecordingMuxer.createSample(0, 500), RecordingMuxer.createBufferInfo(500, 0, 0));
+        queue.add(0, RecordingMuxer.createSample(1, size), RecordingMuxer.createBufferInfo(size, 1000, 1));
+        queue.add(0, RecordingMuxer.createSample(2, 500), RecordingMuxer.createBufferInfo(500, 2000, 2));
+        assertEquals(size + 1000, queue.getMemoryBytes());
+        RecordingMuxer muxer = new RecordingMuxer();
+        queue.drainTo(muxer, new int[]{0});
+
+        assertEquals(3, muxer.getSampleCount());
+        assertArrayEquals(RecordingMuxer.createSample(1, size).array(), muxer.mData.get(1));
+        assertArrayEquals(RecordingMuxer.createSample(2, 500).array(), muxer.mData.get(2));
+    }
+
+    @Test
+    public void add_beyondMemoryBudget_spillsToFile() throws Exception {
+        PendingSampleQueue queue = new PendingSampleQueue(1000);
+        for (int i = 0; i < 10; i++) {
+            queue.add(0, RecordingMuxer.createSample(i, 300 + i), RecordingMuxer.createBufferInfo(300 + i, i * 1000L, i));
+        }
+        assertTrue(queue.isSpilled());
+        // the first three fit the budget.
+        assertEquals(300 + 301 + 302, queue.getMemoryBytes());
+        RecordingMuxer muxer = new RecordingMuxer();
+        queue.drainTo(muxer, new int[]{0});
+
+        assertSamples(muxer, 10, 300);
+        assertFalse(queue.isSpilled());
+    }
+
+    @Test
+    public void add_movesPositionToLimit() throws Exception {
+        PendingSampleQueue queue = new PendingSampleQueue(1000);
+        ByteBuffer sample = RecordingMuxer.createSample(0, 100);
+        queue.add(0, sample, RecordingMuxer.createBufferInfo(100, 0, 0));
+        assertFalse(sample.hasRemaining());
+        queue.release();
+    }
+
+    @Test
+    public void drainTo_empty_writesNothing() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        new PendingSampleQueue(1000).drainTo(muxer, new int[0]);
+        assertEquals(0, muxer.getSampleCount());
+    }
+
+    // Checks samples written as added: size baseSize + i, time i ms and flags i.
+    private static void assertSamples(RecordingMuxer muxer, int count, int baseSize) {
+        assertEquals(count, muxer.getSampleCount());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(RecordingMuxer.createSample(i, baseSize + i).array(), muxer.mData.get(i));
+            assertEquals(i * 1000L, (long) muxer.mPresentationTimesUs.get(i));
+            assertEquals(i, (int) muxer.mFlags.get(i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Muxer} keeping copies of the samples written to it, for tests.
+ */
+class RecordingMuxer implements Muxer {
+    final List<Integer> mTrackIndices = new ArrayList<>();
+    final List<byte[]> mData = new ArrayList<>();
+    final List<Long> mPresentationTimesUs = new ArrayList<>();
+    final List<Integer> mFlags = new ArrayList<>();
+    int mTrackCount;
+    boolean mStarted;
+    boolean mStopped;
+    boolean mReleased;
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mTrackCount++;
+    }
+
+    @Override
+    public void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        mTrackIndices.add(trackIndex);
+        mData.add(bytes);
+        mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+        mFlags.add(bufferInfo.flags);
+    }
+
+    @Override
+    public void stop() {
+        mStopped = true;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+
+    int getSampleCount() {
+        return mData.size();
+    }
+
+    /**
+     * @return Buffer info with the fields set, as MediaCodec.BufferInfo#set is empty in JVM tests.
+     */
+    static MediaCodec.BufferInfo createBufferInfo(int size, long presentationTimeUs, int flags) {
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        bufferInfo.offset = 0;
+        bufferInfo.size = size;
+        bufferInfo.presentationTimeUs = presentationTimeUs;
+        bufferInfo.flags = flags;
+        return bufferInfo;
+    }
+
+    /**
+     * @return Sample of the given size whose bytes are derived from its index.
+     */
+    static ByteBuffer createSample(int index, int size) {
+        ByteBuffer sample = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            sample.put(i, (byte) (index * 31 + i));
+        }
+        return sample;
+    }
+}
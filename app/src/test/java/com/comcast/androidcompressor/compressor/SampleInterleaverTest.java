@@ -0,0 +1,146 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleInterleaverTest {
+    private static final long VIDEO_FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 23220;
+
+    @Test
+    public void writeSampleData_burstsOfOneTrack_interleavedInChunks() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        SampleInterleaver interleaver = createInterleaver(muxer, SampleInterleaver.DEFAULT_MEMORY_BUDGET);
+        // the video pipeline runs a second ahead before audio catches up, for 5 s.
+        int videoCount = 0;
+        int audioCount = 0;
+        for (long second = 1; second <= 5; second++) {
+            while (videoCount * VIDEO_FRAME_US < second * 1000000) {
+                write(interleaver, 0, videoCount++, VIDEO_FRAME_US);
+            }
+            while (audioCount * AUDIO_FRAME_US < second * 1000000) {
+                write(interleaver, 1, audioCount++, AUDIO_FRAME_US);
+            }
+        }
+        interleaver.stop();
+
+        assertTrue(muxer.mStopped);
+        assertEquals(videoCount + audioCount, muxer.getSampleCount());
+        assertTrackOrder(muxer, 0, videoCount, VIDEO_FRAME_US);
+        assertTrackOrder(muxer, 1, audioCount, AUDIO_FRAME_US);
+        // no sample is written after one of another track a chunk duration later.
+        long[] latestUs = {Long.MIN_VALUE, Long.MIN_VALUE};
+        for (int i = 0; i < muxer.getSampleCount(); i++) {
+            int track = muxer.mTrackIndices.get(i);
+            long timeUs = muxer.mPresentationTimesUs.get(i);
+            assertTrue("sample " + i, latestUs[1 - track] < timeUs + SampleInterleaver.DEFAULT_MAX_CHUNK_DURATION_US);
+            latestUs[track] = Math.max(latestUs[track], timeUs);
+        }
+        // so there is a run of each track every 500 ms or so, rather than one per burst.
+        int runCount = getRunCount(muxer);
+        assertTrue(runCount + " runs", runCount >= 16 && runCount <= 24);
+    }
+
+    @Test
+    public void writeSampleData_trackEndsEarly_otherWaitsAtMostWindow() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        SampleInterleaver interleaver = createInterleaver(muxer, SampleInterleaver.DEFAULT_MEMORY_BUDGET);
+        write(interleaver, 1, 0, AUDIO_FRAME_US);
+        // no more audio: video goes out once it spans the reorder window past the last audio sample.
+        int count = 0;
+        while (count * VIDEO_FRAME_US <= SampleInterleaver.DEFAULT_REORDER_WINDOW_US) {
+            write(interleaver, 0, count++, VIDEO_FRAME_US);
+        }
+        assertTrue(muxer.getSampleCount() <= 2);
+        write(interleaver, 0, count++, VIDEO_FRAME_US);
+        assertTrue(muxer.getSampleCount() >= 2);
+        interleaver.stop();
+        assertEquals(count + 1, muxer.getSampleCount());
+    }
+
+    @Test
+    public void writeSampleData_beyondMemoryBudget_writesEarliest() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        SampleInterleaver interleaver = createInterleaver(muxer, 10000);
+        // audio never comes, so video is held for it until the budget is used up.
+        for (int i = 0; i < 10; i++) {
+            write(interleaver, 0, i, VIDEO_FRAME_US);
+        }
+        assertEquals(0, muxer.getSampleCount());
+        write(interleaver, 0, 10, VIDEO_FRAME_US);
+        // 11 samples of 1000 bytes: the earliest goes out, leaving no more than the budget held.
+        assertEquals(1, muxer.getSampleCount());
+        assertEquals(0L, (long) muxer.mPresentationTimesUs.get(0));
+        interleaver.stop();
+        assertEquals(11, muxer.getSampleCount());
+    }
+
+    @Test
+    public void writeSampleData_codecConfig_writtenRightAway() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        SampleInterleaver interleaver = createInterleaver(muxer, SampleInterleaver.DEFAULT_MEMORY_BUDGET);
+        interleaver.writeSampleData(0, RecordingMuxer.createSample(0, 20),
+                RecordingMuxer.createBufferInfo(20, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG));
+        assertEquals(1, muxer.getSampleCount());
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, (int) muxer.mFlags.get(0));
+    }
+
+    @Test
+    public void writeSampleData_mapsTrackIndices() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        // a track of the underlying muxer the interleaver does not know.
+        muxer.addTrack(null);
+        SampleInterleaver interleaver = createInterleaver(muxer, SampleInterleaver.DEFAULT_MEMORY_BUDGET);
+        write(interleaver, 1, 0, AUDIO_FRAME_US);
+        interleaver.stop();
+        assertEquals(2, (int) muxer.mTrackIndices.get(0));
+    }
+
+    @Test
+    public void release_releasesMuxer() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        SampleInterleaver interleaver = createInterleaver(muxer, SampleInterleaver.DEFAULT_MEMORY_BUDGET);
+        write(interleaver, 0, 0, VIDEO_FRAME_US);
+        interleaver.release();
+        assertTrue(muxer.mReleased);
+        assertEquals(0, muxer.getSampleCount());
+    }
+
+    private static SampleInterleaver createInterleaver(RecordingMuxer muxer, long memoryBudget) {
+        SampleInterleaver interleaver = new SampleInterleaver(muxer, SampleInterleaver.DEFAULT_MAX_CHUNK_DURATION_US,
+                SampleInterleaver.DEFAULT_REORDER_WINDOW_US, memoryBudget);
+        interleaver.addTrack(null);
+        interleaver.addTrack(null);
+        interleaver.start();
+        return interleaver;
+    }
+
+    // Writes sample number index of a track, 1000 bytes derived from the index, timed by the frame duration.
+    private static void write(SampleInterleaver interleaver, int trackIndex, int index, long frameUs) {
+        interleaver.writeSampleData(trackIndex, RecordingMuxer.createSample(index, 1000),
+                RecordingMuxer.createBufferInfo(1000, index * frameUs, 0));
+    }
+
+    private static void assertTrackOrder(RecordingMuxer muxer, int trackIndex, int count, long frameUs) {
+        int index = 0;
+        for (int i = 0; i < muxer.getSampleCount(); i++) {
+            if (muxer.mTrackIndices.get(i) != trackIndex) continue;
+            assertEquals(index * frameUs, (long) muxer.mPresentationTimesUs.get(i));
+            assertArrayEquals(RecordingMuxer.createSample(index, 1000).array(), muxer.mData.get(i));
+            index++;
+        }
+        assertEquals(count, index);
+    }
+
+    // Number of runs of consecutive samples of one track.
+    private static int getRunCount(RecordingMuxer muxer) {
+        int runCount = 0;
+        for (int i = 0; i < muxer.getSampleCount(); i++) {
+            if (i == 0 || !muxer.mTrackIndices.get(i).equals(muxer.mTrackIndices.get(i - 1))) runCount++;
+        }
+        return runCount;
+    }
+}
@@ -0,0 +1,285 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SegmentStitcherTest {
+    private static final long VIDEO_FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 23220;
+    private static final int SAMPLE_SIZE = 16;
+
+    @Test
+    public void stitch_rebasesSegmentsToTheirStartTimes() throws Exception {
+        // MediaMuxer starts every segment file at 0.
+        FakeSegment first = new FakeSegment("video/avc", "audio/mp4a-latm")
+                .addVideo(0, true).addAudio(0).addVideo(VIDEO_FRAME_US, false).addAudio(AUDIO_FRAME_US);
+        FakeSegment second = new FakeSegment("video/avc", "audio/mp4a-latm")
+                .addVideo(0, true).addAudio(0).addVideo(VIDEO_FRAME_US, false).addAudio(AUDIO_FRAME_US);
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first, second}, new long[]{0, 1000000}, muxer, 0);
+
+        assertEquals(Arrays.asList(0L, VIDEO_FRAME_US, 1000000L, 1000000 + VIDEO_FRAME_US), getTimesUs(muxer, 0));
+        assertEquals(Arrays.asList(0L, AUDIO_FRAME_US, 1000000L, 1000000 + AUDIO_FRAME_US), getTimesUs(muxer, 1));
+        assertEquals(2, muxer.mTrackCount);
+        assertTrue(muxer.mStarted);
+        assertTrue(muxer.mStopped);
+        assertTrue(muxer.mReleased);
+        assertTrue(first.mReleased);
+        assertTrue(second.mReleased);
+    }
+
+    @Test
+    public void stitch_segmentNotStartingAtZero_rebasesEarliestTrack() throws Exception {
+        FakeSegment first = new FakeSegment("video/avc", "audio/mp4a-latm").addVideo(0, true).addAudio(0);
+        // audio priming ahead of the first frame.
+        FakeSegment second = new FakeSegment("video/avc", "audio/mp4a-latm")
+                .addAudio(500).addVideo(2000, true).addAudio(500 + AUDIO_FRAME_US);
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first, second}, new long[]{0, 1000000}, muxer, 0);
+
+        assertEquals(Arrays.asList(0L, 1001500L), getTimesUs(muxer, 0));
+        assertEquals(Arrays.asList(0L, 1000000L, 1000000 + AUDIO_FRAME_US), getTimesUs(muxer, 1));
+    }
+
+    @Test
+    public void stitch_audioOverlappingPreviousSegment_dropped() throws Exception {
+        // audio of the first segment runs 30 ms past the start of the second.
+        FakeSegment first = new FakeSegment("video/avc", "audio/mp4a-latm").addVideo(0, true);
+        for (long timeUs = 0; timeUs <= 130000; timeUs += 10000) {
+            first.addAudio(timeUs);
+        }
+        FakeSegment second = new FakeSegment("video/avc", "audio/mp4a-latm").addVideo(0, true);
+        for (long timeUs = 0; timeUs <= 50000; timeUs += 10000) {
+            second.addAudio(timeUs);
+        }
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first, second}, new long[]{0, 100000}, muxer, 0);
+
+        List<Long> expected = new ArrayList<>();
+        for (long timeUs = 0; timeUs <= 150000; timeUs += 10000) {
+            expected.add(timeUs);
+        }
+        assertEquals(expected, getTimesUs(muxer, 1));
+        // video is kept whole, as it starts at its joint.
+        assertEquals(Arrays.asList(0L, 100000L), getTimesUs(muxer, 0));
+    }
+
+    @Test
+    public void stitch_videoOverlappingPreviousSegment_shiftsWholeSegment() throws Exception {
+        FakeSegment first = new FakeSegment("video/avc")
+                .addVideo(0, true).addVideo(50000, false).addVideo(100000, false);
+        FakeSegment second = new FakeSegment("video/avc")
+                .addVideo(0, true).addVideo(VIDEO_FRAME_US, false).addVideo(2 * VIDEO_FRAME_US, false);
+        FakeSegment third = new FakeSegment("video/avc").addVideo(0, true);
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first, second, third}, new long[]{0, 100000, 200000},
+                muxer, 0);
+
+        // no frame is dropped, every frame of the second segment moves by the overlap.
+        assertEquals(Arrays.asList(0L, 50000L, 100000L, 100001L, 100001 + VIDEO_FRAME_US, 100001 + 2 * VIDEO_FRAME_US,
+                200000L), getTimesUs(muxer, 0));
+        assertEquals(Arrays.asList(MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0, 0, MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0, 0,
+                MediaCodec.BUFFER_FLAG_SYNC_FRAME), muxer.mFlags);
+    }
+
+    @Test
+    public void stitch_timestampsIncreasePerTrack() throws Exception {
+        long[] startTimesUs = {0, 400000, 800000, 1200000};
+        SegmentStitcher.Segment[] segments = new SegmentStitcher.Segment[startTimesUs.length];
+        for (int segment = 0; segment < segments.length; segment++) {
+            FakeSegment fakeSegment = new FakeSegment("video/avc", "audio/mp4a-latm");
+            // segments end a little late, as encoders flush whole frames.
+            long durationUs = 400000 + segment * 10000;
+            for (long timeUs = 0; timeUs < durationUs; timeUs += VIDEO_FRAME_US) {
+                fakeSegment.addVideo(timeUs, timeUs == 0);
+                fakeSegment.addAudio(timeUs);
+                fakeSegment.addAudio(timeUs + AUDIO_FRAME_US / 2);
+            }
+            segments[segment] = fakeSegment;
+        }
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(segments, startTimesUs, muxer, 0);
+
+        for (int track = 0; track < 2; track++) {
+            List<Long> timesUs = getTimesUs(muxer, track);
+            assertFalse(timesUs.isEmpty());
+            for (int i = 1; i < timesUs.size(); i++) {
+                assertTrue("track " + track + " sample " + i, timesUs.get(i) > timesUs.get(i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void stitch_largerSamplesInLaterSegment_growsBuffer() throws Exception {
+        int largeSampleSize = 3 * 1024 * 1024;
+        FakeSegment first = new FakeSegment("video/avc").addVideo(0, true);
+        FakeSegment second = new FakeSegment("video/avc").setMaxInputSize(0, largeSampleSize)
+                .addVideo(0, true, largeSampleSize);
+        RecordingMuxer muxer = new RecordingMuxer();
+        long leasedBytes = ByteBufferPool.getInstance().getLeasedBytes();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first, second}, new long[]{0, 100000}, muxer, 0);
+
+        assertEquals(2, muxer.getSampleCount());
+        assertArrayEquals(second.getData(0), muxer.mData.get(1));
+        assertEquals(leasedBytes, ByteBufferPool.getInstance().getLeasedBytes());
+    }
+
+    @Test
+    public void stitch_otherTracks_dropped() throws Exception {
+        FakeSegment first = new FakeSegment("video/avc", "text/vtt")
+                .addVideo(0, true).addSample(1, 0, true, SAMPLE_SIZE);
+        RecordingMuxer muxer = new RecordingMuxer();
+        SegmentStitcher.stitch(new SegmentStitcher.Segment[]{first}, new long[]{0}, muxer, 0);
+
+        assertEquals(1, muxer.mTrackCount);
+        assertEquals(Arrays.asList(0), muxer.mTrackIndices);
+        assertArrayEquals(first.getData(0), muxer.mData.get(0));
+    }
+
+    private static List<Long> getTimesUs(RecordingMuxer muxer, int trackIndex) {
+        List<Long> timesUs = new ArrayList<>();
+        for (int i = 0; i < muxer.getSampleCount(); i++) {
+            if (muxer.mTrackIndices.get(i) == trackIndex) timesUs.add(muxer.mPresentationTimesUs.get(i));
+        }
+        return timesUs;
+    }
+
+    /**
+     * Segment of samples in file order, track 0 being the first mime given. Only selected tracks are read.
+     */
+    private static class FakeSegment implements SegmentStitcher.Segment {
+        private final String[] mMimes;
+        private final int[] mMaxInputSizes;
+        private final boolean[] mSelected;
+        private final List<Integer> mTrackIndices = new ArrayList<>();
+        private final List<Long> mTimesUs = new ArrayList<>();
+        private final List<Boolean> mSyncSamples = new ArrayList<>();
+        private final List<byte[]> mData = new ArrayList<>();
+        private int mPosition;
+        private boolean mReleased;
+
+        private FakeSegment(String... mimes) {
+            mMimes = mimes;
+            mMaxInputSizes = new int[mimes.length];
+            mSelected = new boolean[mimes.length];
+        }
+
+        private FakeSegment setMaxInputSize(int trackIndex, int maxInputSize) {
+            mMaxInputSizes[trackIndex] = maxInputSize;
+            return this;
+        }
+
+        private FakeSegment addVideo(long timeUs, boolean isSyncSample) {
+            return addVideo(timeUs, isSyncSample, SAMPLE_SIZE);
+        }
+
+        private FakeSegment addVideo(long timeUs, boolean isSyncSample, int size) {
+            return addSample(0, timeUs, isSyncSample, size);
+        }
+
+        private FakeSegment addAudio(long timeUs) {
+            return addSample(1, timeUs, true, SAMPLE_SIZE);
+        }
+
+        private FakeSegment addSample(int trackIndex, long timeUs, boolean isSyncSample, int size) {
+            ByteBuffer sample = RecordingMuxer.createSample(mData.size(), size);
+            byte[] data = new byte[size];
+            sample.get(data);
+            mTrackIndices.add(trackIndex);
+            mTimesUs.add(timeUs);
+            mSyncSamples.add(isSyncSample);
+            mData.add(data);
+            return this;
+        }
+
+        private byte[] getData(int sample) {
+            return mData.get(sample);
+        }
+
+        // current sample, the first one of a selected track from the read position on.
+        private int getSample() {
+            for (int i = mPosition; i < mTrackIndices.size(); i++) {
+                if (mSelected[mTrackIndices.get(i)]) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public int getTrackCount() {
+            return mMimes.length;
+        }
+
+        @Override
+        public MediaFormat getTrackFormat(int trackIndex) {
+            return null;
+        }
+
+        @Override
+        public String getMime(int trackIndex) {
+            return mMimes[trackIndex];
+        }
+
+        @Override
+        public int getMaxInputSize(int trackIndex) {
+            return mMaxInputSizes[trackIndex];
+        }
+
+        @Override
+        public void selectTrack(int trackIndex) {
+            mSelected[trackIndex] = true;
+        }
+
+        @Override
+        public void unselectTrack(int trackIndex) {
+            mSelected[trackIndex] = false;
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            int sample = getSample();
+            return sample >= 0 ? mTrackIndices.get(sample) : -1;
+        }
+
+        @Override
+        public long getSampleTime() {
+            int sample = getSample();
+            return sample >= 0 ? mTimesUs.get(sample) : -1;
+        }
+
+        @Override
+        public boolean isSyncSample() {
+            return mSyncSamples.get(getSample());
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer) {
+            byte[] data = mData.get(getSample());
+            // overflows if the buffer was not sized for the segment.
+            buffer.put(data).flip();
+            return data.length;
+        }
+
+        @Override
+        public void advance() {
+            mPosition = getSample() + 1;
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+public class StereoToMonoDownmixerTest {
+
+    @Test
+    public void remix_matchesAlgorithm() throws Exception {
+        // more than one block, and not a multiple of it.
+        short[] input = MonoToStereoUpmixerTest.createRandomSamples(5000 * 2, 1);
+        assertArrayEquals(downmixWithReference(input), downmix(input));
+    }
+
+    @Test
+    public void remix_matchesAlgorithmAtExtremes() throws Exception {
+        short[] levels = {Short.MIN_VALUE, Short.MIN_VALUE + 1, -1, 0, 1, Short.MAX_VALUE - 1, Short.MAX_VALUE};
+        short[] input = new short[levels.length * levels.length * 2];
+        int index = 0;
+        for (short a : levels) {
+            for (short b : levels) {
+                input[index++] = a;
+                input[index++] = b;
+            }
+        }
+        assertArrayEquals(downmixWithReference(input), downmix(input));
+    }
+
+    @Test
+    public void remix_keepsFullScale() throws Exception {
+        assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MIN_VALUE},
+                downmix(new short[]{Short.MAX_VALUE, Short.MAX_VALUE, Short.MIN_VALUE, Short.MIN_VALUE}));
+    }
+
+    @Test
+    public void remix_stopsWhenOutputIsFull() throws Exception {
+        ShortBuffer in = ShortBuffer.wrap(MonoToStereoUpmixerTest.createRandomSamples(3000 * 2, 2));
+        ShortBuffer out = ShortBuffer.allocate(1100);
+        new StereoToMonoDownmixer().remix(in, out);
+        assertEquals(2200, in.position());
+        assertEquals(1100, out.position());
+    }
+
+    @Test
+    public void remix_leavesIncompleteFrame() throws Exception {
+        ShortBuffer in = ShortBuffer.wrap(new short[]{1, 2, 3});
+        ShortBuffer out = ShortBuffer.allocate(2);
+        new StereoToMonoDownmixer().remix(in, out);
+        assertEquals(2, in.position());
+        assertEquals(1, out.position());
+    }
+
+    private static short[] downmix(short[] input) {
+        ShortBuffer out = ShortBuffer.allocate(input.length / 2);
+        new StereoToMonoDownmixer().remix(ShortBuffer.wrap(input), out);
+        return out.array();
+    }
+
+    // Viktor Toth's equations in long arithmetic. AudioRemixer.DOWNMIX is no reference: a * b overflows an int
+    // when both samples are loud.
+    private static short[] downmixWithReference(short[] input) {
+        short[] output = new short[input.length / 2];
+        for (int i = 0; i < output.length; i++) {
+            long a = input[2 * i] + 32768L;
+            long b = input[2 * i + 1] + 32768L;
+            long m = a < 32768 || b < 32768 ? a * b / 32768 : 2 * (a + b) - a * b / 32768 - 65535;
+            output[i] = (short) (Math.min(m, 65535) - 32768);
+        }
+        return output;
+    }
+}
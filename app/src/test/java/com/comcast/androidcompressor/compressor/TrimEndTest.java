@@ -0,0 +1,76 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrimEndTest {
+    private static final long FRAME_DURATION_US = 33333;
+    private static final int GOP_SIZE = 6;
+    private static final int GOP_COUNT = 4;
+
+    @Test
+    public void isBeforeEnd_noEnd_keepsAll() throws Exception {
+        TrimEnd trimEnd = new TrimEnd(-1);
+        assertTrue(trimEnd.isBeforeEnd(Long.MAX_VALUE));
+        assertFalse(trimEnd.isEndOfTrack(Long.MAX_VALUE, true));
+    }
+
+    @Test
+    public void isEndOfTrack_onlyAtSyncSamples() throws Exception {
+        TrimEnd trimEnd = new TrimEnd(1000000);
+        assertFalse(trimEnd.isEndOfTrack(999999, true));
+        assertFalse(trimEnd.isEndOfTrack(1000000, false));
+        assertTrue(trimEnd.isEndOfTrack(1000000, true));
+        assertFalse(trimEnd.isBeforeEnd(1000000));
+        assertTrue(trimEnd.isBeforeEnd(999999));
+    }
+
+    // Whatever the end, every frame presented before it is kept and none after, although B-frames presented
+    // before the end are decoded after a P-frame presented at or after it.
+    @Test
+    public void read_bFrames_keepsEveryFrameBeforeEnd() throws Exception {
+        List<Long> decodeOrder = new ArrayList<>();
+        List<Boolean> syncSamples = new ArrayList<>();
+        createGops(decodeOrder, syncSamples);
+        for (int endFrame = 1; endFrame <= GOP_SIZE * GOP_COUNT + 1; endFrame++) {
+            long endUs = endFrame * FRAME_DURATION_US;
+            List<Long> expected = new ArrayList<>();
+            for (int i = 0; i < Math.min(endFrame, GOP_SIZE * GOP_COUNT); i++) {
+                expected.add(i * FRAME_DURATION_US);
+            }
+            List<Long> kept = new ArrayList<>();
+            int readCount = read(new TrimEnd(endUs), decodeOrder, syncSamples, kept);
+            Collections.sort(kept);
+            assertEquals("end frame " + endFrame, expected, kept);
+            // reading stops at the first GOP starting at or after the end.
+            int gopsRead = (endFrame + GOP_SIZE - 1) / GOP_SIZE;
+            assertEquals("end frame " + endFrame, Math.min(gopsRead, GOP_COUNT) * GOP_SIZE, readCount);
+        }
+    }
+
+    // Returns the number of samples read, passing the times of those presented before the end to kept.
+    private static int read(TrimEnd trimEnd, List<Long> decodeOrder, List<Boolean> syncSamples, List<Long> kept) {
+        for (int i = 0; i < decodeOrder.size(); i++) {
+            long timeUs = decodeOrder.get(i);
+            if (trimEnd.isEndOfTrack(timeUs, syncSamples.get(i))) return i;
+            if (trimEnd.isBeforeEnd(timeUs)) kept.add(timeUs);
+        }
+        return decodeOrder.size();
+    }
+
+    // Closed GOPs of I P B B P B in decode order, presented as I B B P B P.
+    private static void createGops(List<Long> decodeOrder, List<Boolean> syncSamples) {
+        int[] gopDecodeOrder = {0, 3, 1, 2, 5, 4};
+        for (int gop = 0; gop < GOP_COUNT; gop++) {
+            for (int frame : gopDecodeOrder) {
+                decodeOrder.add((gop * GOP_SIZE + frame) * FRAME_DURATION_US);
+                syncSamples.add(frame == 0);
+            }
+        }
+    }
+}
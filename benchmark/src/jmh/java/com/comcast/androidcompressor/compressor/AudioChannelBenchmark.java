@@ -0,0 +1,65 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves one decoder buffer through {@link AudioChannel} into the encoder per operation. The encoder buffer is
+ * smaller than the decoder's, so the overflow path runs as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AudioChannelBenchmark {
+    private static final int FRAMES = 2048;
+    private static final int ENCODER_BUFFER_SIZE = 4096;
+
+    @Param({"1", "2", "6"})
+    public int inputChannelCount;
+
+    @Param({"1", "2"})
+    public int outputChannelCount;
+
+    @Param({"44100", "48000"})
+    public int inputSampleRate;
+
+    private AudioChannel mAudioChannel;
+    private long mPresentationTimeUs;
+
+    @Setup
+    public void setUp() {
+        FakeMediaCodec decoder = new FakeMediaCodec(FRAMES * inputChannelCount * 2);
+        decoder.getBuffer().asShortBuffer().put(AudioRemixerBenchmark.createSignal(new Random(0), FRAMES * inputChannelCount));
+        FakeMediaCodec encoder = new FakeMediaCodec(ENCODER_BUFFER_SIZE);
+        MediaFormat encodeFormat = MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, outputChannelCount);
+        mAudioChannel = new AudioChannel(decoder, encoder, encodeFormat);
+        mAudioChannel.setActualDecodedFormat(MediaFormat.createAudioFormat("audio/raw", inputSampleRate, inputChannelCount));
+    }
+
+    @Benchmark
+    public long feedEncoder() {
+        mAudioChannel.drainDecoderBufferAndQueue(0, mPresentationTimeUs);
+        mPresentationTimeUs += FRAMES * 1000000L / inputSampleRate;
+        //noinspection StatementWithEmptyBody
+        while (mAudioChannel.feedEncoder(0)) {
+        }
+        return mPresentationTimeUs;
+    }
+
+    @TearDown
+    public void tearDown() {
+        mAudioChannel.release();
+    }
+}
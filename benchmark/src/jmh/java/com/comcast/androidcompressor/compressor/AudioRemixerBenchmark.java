@@ -0,0 +1,89 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remixes one AAC decoder buffer (1024 frames) per operation, between direct buffers as codecs hand them out.
+ * The deprecated per-sample {@link AudioRemixer#DOWNMIX} and {@link AudioRemixer#UPMIX} are kept as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@SuppressWarnings("deprecation")
+public class AudioRemixerBenchmark {
+    private static final int FRAMES = 1024;
+
+    private ShortBuffer mMono;
+    private ShortBuffer mStereo;
+    private ShortBuffer mSurround;
+    private ShortBuffer mOutput;
+    private final AudioRemixer mStereoToMono = new StereoToMonoDownmixer();
+    private final AudioRemixer mMonoToStereo = new MonoToStereoUpmixer();
+    private final AudioRemixer mSurroundToStereo = new MultichannelDownmixer(6, 0, 2);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mMono = createSignal(random, FRAMES);
+        mStereo = createSignal(random, FRAMES * 2);
+        mSurround = createSignal(random, FRAMES * 6);
+        mOutput = createBuffer(FRAMES * 2);
+    }
+
+    @Benchmark
+    public ShortBuffer downmixStereoPerSample() {
+        return remix(AudioRemixer.DOWNMIX, mStereo);
+    }
+
+    @Benchmark
+    public ShortBuffer downmixStereoBulk() {
+        return remix(mStereoToMono, mStereo);
+    }
+
+    @Benchmark
+    public ShortBuffer upmixMonoPerSample() {
+        return remix(AudioRemixer.UPMIX, mMono);
+    }
+
+    @Benchmark
+    public ShortBuffer upmixMonoBulk() {
+        return remix(mMonoToStereo, mMono);
+    }
+
+    @Benchmark
+    public ShortBuffer downmixSurroundBulk() {
+        return remix(mSurroundToStereo, mSurround);
+    }
+
+    private ShortBuffer remix(AudioRemixer remixer, ShortBuffer input) {
+        input.clear();
+        mOutput.clear();
+        remixer.remix(input, mOutput);
+        return mOutput;
+    }
+
+    static ShortBuffer createSignal(Random random, int samples) {
+        ShortBuffer buffer = createBuffer(samples);
+        for (int i = 0; i < samples; i++) {
+            buffer.put((short) (random.nextGaussian() * 8000));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    static ShortBuffer createBuffer(int samples) {
+        return ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+}
@@ -0,0 +1,50 @@
+package com.comcast.androidcompressor.compressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resamples one stereo AAC decoder buffer (1024 frames) per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AudioResamplerBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"48000", "44100"})
+    public int inputSampleRate;
+
+    @Param({"44100", "16000"})
+    public int outputSampleRate;
+
+    private AudioResampler mResampler;
+    private ShortBuffer mInput;
+    private ShortBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        mResampler = new AudioResampler(inputSampleRate, outputSampleRate, 2);
+        mInput = AudioRemixerBenchmark.createSignal(new Random(0), FRAMES * 2);
+        // room for all output, so every operation consumes the whole input.
+        mOutput = AudioRemixerBenchmark.createBuffer((FRAMES * outputSampleRate / inputSampleRate + 2) * 2);
+    }
+
+    @Benchmark
+    public ShortBuffer resample() {
+        mInput.clear();
+        mOutput.clear();
+        mResampler.resample(mInput, mOutput);
+        return mOutput;
+    }
+}
@@ -0,0 +1,51 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * In-memory codec with a single buffer, always available, for driving {@link AudioChannel} without Android.
+ * Queued input is only counted.
+ */
+class FakeMediaCodec extends MediaCodec {
+    private final ByteBuffer mBuffer;
+    private int mQueuedBytes;
+
+    FakeMediaCodec(int bufferSize) {
+        mBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return 0;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mQueuedBytes += size;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mBuffer;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mBuffer;
+    }
+}
@@ -0,0 +1,52 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.graphics.Point;
+import android.media.MediaFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-file format work: SPS extraction from csd-0 and output size and bitrate calculation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputFormatBenchmark {
+    // start code, then SPS of 1920x1080 High profile.
+    private static final byte[] CSD_0 = {0x00, 0x00, 0x00, 0x01, 0x67, 0x64, 0x00, 0x28, (byte) 0xac, (byte) 0xd9,
+            0x40, 0x78, 0x02, 0x27, (byte) 0xe5, (byte) 0xc0, 0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03,
+            0x00, (byte) 0xf0, 0x3c, 0x60, (byte) 0xc6, 0x58};
+
+    private final MediaFormat mFormat = MediaFormat.createVideoFormat("video/avc", 1920, 1080);
+
+    @Setup
+    public void setUp() {
+        ByteBuffer csd = ByteBuffer.allocateDirect(CSD_0.length);
+        csd.put(CSD_0).flip();
+        mFormat.setByteBuffer(MediaFormatExtraConstants.KEY_AVC_SPS, csd);
+    }
+
+    @Benchmark
+    public ByteBuffer getSpsBuffer() {
+        return AvcCsdUtils.getSpsBuffer(mFormat);
+    }
+
+    @Benchmark
+    public Point adjustDimension() {
+        return X1PhotosOutputFormat.adjustDimension(1920, 1080, 1280, 720);
+    }
+
+    @Benchmark
+    public int calculateBitrate() {
+        return X1PhotosOutputFormat.calculateBitrate(1280, 720, 30);
+    }
+}
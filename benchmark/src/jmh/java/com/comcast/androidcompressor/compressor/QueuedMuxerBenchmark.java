@@ -0,0 +1,105 @@
+package com.comcast.androidcompressor.compressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues a second of samples (30 video frames of the given size, 43 audio frames) before the output formats are
+ * known, then drains them into a muxer that drops them, per operation. A budget below the queued size spills.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QueuedMuxerBenchmark {
+    private static final int VIDEO_SAMPLES = 30;
+    private static final int AUDIO_SAMPLES = 43;
+    private static final int AUDIO_SAMPLE_SIZE = 400;
+
+    @Param({"20000", "200000"})
+    public int videoSampleSize;
+
+    @Param({"4194304", "262144"})
+    public long memoryBudget;
+
+    private ByteBuffer mVideoSample;
+    private ByteBuffer mAudioSample;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final MediaFormat mVideoFormat = MediaFormat.createVideoFormat("video/avc", 1280, 720);
+    private final MediaFormat mAudioFormat = MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 1);
+    private final Muxer mMuxer = new NullMuxer();
+    private final QueuedMuxer.Listener mListener = new QueuedMuxer.Listener() {
+        @Override
+        public void onDetermineOutputFormat() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mVideoSample = ByteBuffer.allocateDirect(videoSampleSize);
+        mAudioSample = ByteBuffer.allocateDirect(AUDIO_SAMPLE_SIZE);
+    }
+
+    @Benchmark
+    public QueuedMuxer queueAndDrain() {
+        QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxer, mListener, memoryBudget);
+        int audioIndex = 0;
+        for (int videoIndex = 0; videoIndex < VIDEO_SAMPLES; videoIndex++) {
+            long videoTimeUs = videoIndex * 1000000L / VIDEO_SAMPLES;
+            write(queuedMuxer, QueuedMuxer.SampleType.VIDEO, mVideoSample, videoTimeUs);
+            for (; audioIndex * 1000000L / AUDIO_SAMPLES <= videoTimeUs; audioIndex++) {
+                write(queuedMuxer, QueuedMuxer.SampleType.AUDIO, mAudioSample, audioIndex * 1000000L / AUDIO_SAMPLES);
+            }
+        }
+        queuedMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mVideoFormat);
+        queuedMuxer.setOutputFormat(QueuedMuxer.SampleType.AUDIO, mAudioFormat);
+        queuedMuxer.release();
+        return queuedMuxer;
+    }
+
+    private void write(QueuedMuxer queuedMuxer, QueuedMuxer.SampleType sampleType, ByteBuffer sample, long timeUs) {
+        sample.clear();
+        mBufferInfo.set(0, sample.capacity(), timeUs, 0);
+        queuedMuxer.writeSampleData(sampleType, sample, mBufferInfo);
+    }
+
+    private static class NullMuxer implements Muxer {
+        private int mTrackCount;
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return mTrackCount++;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package android.annotation;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ */
+public @interface TargetApi {
+    int value();
+}
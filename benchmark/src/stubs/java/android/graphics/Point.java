@@ -0,0 +1,17 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ */
+public class Point {
+    public int x;
+    public int y;
+
+    public Point() {
+    }
+
+    public Point(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+}
@@ -0,0 +1,87 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ * Unlike the real one it can be extended: benchmarks subclass it with an in-memory codec.
+ * Methods not overridden throw, as in the SDK stubs.
+ */
+public class MediaCodec {
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+    public static final int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_KEY_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    public static final class CodecException extends IllegalStateException {
+        public CodecException(String message) {
+            super(message);
+        }
+
+        public String getDiagnosticInfo() {
+            return getMessage();
+        }
+    }
+
+    public static abstract class Callback {
+        public abstract void onInputBufferAvailable(MediaCodec codec, int index);
+
+        public abstract void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info);
+
+        public abstract void onError(MediaCodec codec, CodecException e);
+
+        public abstract void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
+    }
+
+    protected MediaCodec() {
+    }
+
+    public int dequeueInputBuffer(long timeoutUs) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void releaseOutputBuffer(int index, boolean render) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer getInputBuffer(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer getOutputBuffer(int index) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer[] getInputBuffers() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public ByteBuffer[] getOutputBuffers() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,14 @@
+package android.media;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ */
+public final class MediaCodecInfo {
+    public static final class CodecCapabilities {
+        public static final int COLOR_FormatSurface = 0x7F000789;
+    }
+
+    public static final class CodecProfileLevel {
+        public static final int AACObjectLC = 2;
+    }
+}
@@ -0,0 +1,94 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ * Keeps values in a map like the real one.
+ */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_CHANNEL_MASK = "channel-mask";
+    public static final String KEY_AAC_PROFILE = "aac-profile";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    public static final String KEY_DURATION = "durationUs";
+    public static final String KEY_PROFILE = "profile";
+    public static final String KEY_LEVEL = "level";
+
+    private final Map<String, Object> mMap = new HashMap<>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+
+    public int getInteger(String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public long getLong(String name) {
+        return (Long) mMap.get(name);
+    }
+
+    public float getFloat(String name) {
+        return (Float) mMap.get(name);
+    }
+
+    public String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public void setLong(String name, long value) {
+        mMap.put(name, value);
+    }
+
+    public void setFloat(String name, float value) {
+        mMap.put(name, value);
+    }
+
+    public void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return mMap.toString();
+    }
+}
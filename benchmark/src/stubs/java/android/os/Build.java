@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Stand-in for the Android SDK class, so the pure Java parts of the compressor build on a plain JVM.
+ * Reports Lollipop, so codec buffers are fetched one index at a time.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.LOLLIPOP;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+    }
+}